@@ -0,0 +1,141 @@
+package hyphanet.access.block.client;
+
+import hyphanet.access.key.CryptoAlgorithm;
+import hyphanet.crypt.hash.Sha256;
+import java.lang.ref.SoftReference;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * The JCA objects needed to encode or decode one CHK block, kept for reuse.
+ *
+ * <p>Looking up a {@link Cipher} or {@link Mac} through the provider framework costs more than
+ * encrypting a 32 KiB block with it, so {@link ClientChkBlock} takes a context from a shared pool,
+ * re-keys the cached instances with {@code init} and returns the context when done. Like {@link
+ * Sha256}'s digest pool, the pool holds contexts through soft references, so idle contexts can be
+ * reclaimed under memory pressure. The pool is last-in first-out, so a few hot contexts are reused
+ * rather than all of them cycling through. A context is used by one thread at a time and is not
+ * thread-safe.
+ */
+final class ChkCryptoContext {
+
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+  private static final Deque<SoftReference<ChkCryptoContext>> pool = new ConcurrentLinkedDeque<>();
+
+  private ChkCryptoContext() {}
+
+  /**
+   * Takes a context from the pool, or creates one if the pool is empty.
+   *
+   * @return A context for the exclusive use of the caller until it is passed to {@link
+   *     #release(ChkCryptoContext)}.
+   */
+  static ChkCryptoContext acquire() {
+    SoftReference<ChkCryptoContext> ref;
+    while ((ref = pool.poll()) != null) {
+      var context = ref.get();
+      if (context != null) {
+        return context;
+      }
+    }
+    return new ChkCryptoContext();
+  }
+
+  /**
+   * Returns a context to the pool. The context must not be used afterwards.
+   *
+   * @param context The context to return.
+   */
+  static void release(ChkCryptoContext context) {
+    // A failed encode may have left a partial hash behind.
+    if (context.sha256 != null) {
+      context.sha256.reset();
+    }
+    pool.push(new SoftReference<>(context));
+  }
+
+  /**
+   * Returns the cached SHA-256 digest, in its reset state.
+   *
+   * @return The digest.
+   */
+  MessageDigest sha256() {
+    if (sha256 == null) {
+      sha256 = Sha256.getMessageDigest();
+    }
+    return sha256;
+  }
+
+  /**
+   * Returns the cached HMAC-SHA256 instance, initialized with the given key.
+   *
+   * @param key The raw key bytes.
+   * @return The initialized MAC.
+   * @throws GeneralSecurityException If the algorithm is not available or the key is rejected.
+   */
+  Mac hmac(byte[] key) throws GeneralSecurityException {
+    if (hmac == null) {
+      hmac = Mac.getInstance(HMAC_ALGORITHM);
+    }
+    hmac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+    return hmac;
+  }
+
+  /**
+   * Returns the cached cipher for the given algorithm, initialized with the given key and the IV
+   * taken from the start of the block's HMAC.
+   *
+   * @param cryptoAlgorithm The block's crypto algorithm.
+   * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+   * @param key The raw key bytes.
+   * @param hash The HMAC of the plaintext, of which the IV is a prefix.
+   * @param hashOffset The offset of the HMAC in {@code hash}.
+   * @return The initialized cipher.
+   * @throws GeneralSecurityException If the algorithm is not available or the key is rejected.
+   */
+  Cipher cipher(CryptoAlgorithm cryptoAlgorithm, int mode, byte[] key, byte[] hash, int hashOffset)
+      throws GeneralSecurityException {
+    var cipher = ciphers.get(cryptoAlgorithm);
+    if (cipher == null) {
+      cipher = Cipher.getInstance(transformation(cryptoAlgorithm));
+      ciphers.put(cryptoAlgorithm, cipher);
+    }
+    var iv =
+        switch (cryptoAlgorithm) {
+          case ALGO_AES_PCFB_256_SHA256 -> new IvParameterSpec(hash, hashOffset, 32);
+          // CTR mode IV is only 16 bytes.
+          // That's still plenty though. It will still be unique.
+          case ALGO_AES_CTR_256_SHA256 -> new IvParameterSpec(hash, hashOffset, 16);
+        };
+    cipher.init(mode, new SecretKeySpec(key, keyAlgorithm(cryptoAlgorithm)), iv);
+    return cipher;
+  }
+
+  private static String transformation(CryptoAlgorithm cryptoAlgorithm) {
+    return switch (cryptoAlgorithm) {
+      case ALGO_AES_PCFB_256_SHA256 -> "RIJNDAEL256/CFB/NoPadding";
+      case ALGO_AES_CTR_256_SHA256 -> "AES/CTR/NoPadding";
+    };
+  }
+
+  private static String keyAlgorithm(CryptoAlgorithm cryptoAlgorithm) {
+    return switch (cryptoAlgorithm) {
+      case ALGO_AES_PCFB_256_SHA256 -> "Rijndael";
+      case ALGO_AES_CTR_256_SHA256 -> "AES";
+    };
+  }
+
+  private final Map<CryptoAlgorithm, Cipher> ciphers = new EnumMap<>(CryptoAlgorithm.class);
+  private @Nullable Mac hmac;
+  private @Nullable MessageDigest sha256;
+}
@@ -0,0 +1,318 @@
+package hyphanet.access.block.client;
+
+import hyphanet.access.KeyEncodeException;
+import hyphanet.access.KeyVerifyException;
+import hyphanet.access.block.node.NodeChkBlock;
+import hyphanet.access.key.CryptoAlgorithm;
+import hyphanet.access.key.DecryptionKey;
+import hyphanet.access.key.client.ClientChk;
+import hyphanet.support.io.storage.bucket.Bucket;
+import hyphanet.support.io.storage.rab.Rab;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Encodes the data blocks of a splitfile as CHKs on several threads at once.
+ *
+ * <p>The data is cut into {@link ClientChkBlock#DATA_LENGTH} byte blocks; the last block is padded
+ * with zeros, so that encoding the same data twice gives the same keys. Encoded block {@code i} is
+ * written to the output {@link Rab} at {@code i * }{@link #ENCODED_BLOCK_LENGTH}: first its {@link
+ * NodeChkBlock#TOTAL_HEADERS_LENGTH} bytes of headers, then its {@link ClientChkBlock#DATA_LENGTH}
+ * bytes of encrypted data. {@link #readBlock(Rab, int, ClientChk)} reads one back.
+ *
+ * <p>The threads come from the {@link Executor} given to the constructor, for example a {@link
+ * java.util.concurrent.ForkJoinPool} or a virtual thread executor, and at most {@code parallelism}
+ * of them work on one call at a time. Each worker holds one pooled crypto context for all the
+ * blocks it encodes.
+ *
+ * <p>Instances are thread-safe; concurrent calls share the executor but not their parallelism
+ * bound.
+ */
+public final class ChkSplitfileEncoder {
+
+  /** The number of bytes one encoded block takes in the output. */
+  public static final int ENCODED_BLOCK_LENGTH =
+      NodeChkBlock.TOTAL_HEADERS_LENGTH + ClientChkBlock.DATA_LENGTH;
+
+  /**
+   * The number of consecutive blocks a worker claims at once when reading from a {@link Rab}. Large
+   * enough to keep the shared counter cold, small enough to balance the load at the end.
+   */
+  private static final int BLOCKS_PER_CLAIM = 8;
+
+  /**
+   * Creates an encoder.
+   *
+   * @param executor The executor to run the encoding tasks on.
+   * @param parallelism The maximum number of tasks one call runs at the same time.
+   * @throws IllegalArgumentException If {@code parallelism} is not positive.
+   */
+  public ChkSplitfileEncoder(Executor executor, int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+    }
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Returns the number of blocks needed for the given amount of data.
+   *
+   * @param dataLength The length of the data in bytes.
+   * @return The number of blocks.
+   */
+  public static int blockCount(long dataLength) {
+    return Math.toIntExact(
+        (dataLength + ClientChkBlock.DATA_LENGTH - 1) / ClientChkBlock.DATA_LENGTH);
+  }
+
+  /**
+   * Returns the size the output {@link Rab} needs for the given amount of data.
+   *
+   * @param dataLength The length of the data in bytes.
+   * @return The length of the encoded blocks in bytes.
+   */
+  public static long encodedLength(long dataLength) {
+    return (long) blockCount(dataLength) * ENCODED_BLOCK_LENGTH;
+  }
+
+  /**
+   * Reads an encoded block back from the output of an earlier call.
+   *
+   * @param encoded The output {@link Rab} of the call.
+   * @param index The index of the block.
+   * @param key The key returned for the block.
+   * @return The block.
+   * @throws IOException If the block cannot be read.
+   * @throws KeyVerifyException If the block does not match the key.
+   */
+  public static ClientChkBlock readBlock(Rab encoded, int index, ClientChk key)
+      throws IOException, KeyVerifyException {
+    byte[] headers = new byte[NodeChkBlock.TOTAL_HEADERS_LENGTH];
+    byte[] data = new byte[ClientChkBlock.DATA_LENGTH];
+    long offset = (long) index * ENCODED_BLOCK_LENGTH;
+    encoded.pread(offset, headers, 0, headers.length);
+    encoded.pread(offset + headers.length, data, 0, data.length);
+    return new ClientChkBlock(data, headers, key, true);
+  }
+
+  /**
+   * Encodes {@code length} bytes of {@code source}, starting at {@code offset}. The workers read
+   * their blocks from {@code source} themselves, so reading is parallel too.
+   *
+   * @param source The data to encode. Must support concurrent {@link Rab#pread}s, as all
+   *     implementations in this project do.
+   * @param offset The offset of the data in {@code source}.
+   * @param length The length of the data.
+   * @param output Where to write the encoded blocks. Must be at least {@link #encodedLength(long)}
+   *     bytes long.
+   * @param cryptoKey The key to encrypt all blocks with, or {@code null} to use the hash of each
+   *     block as its key.
+   * @param cryptoAlgorithm The crypto algorithm.
+   * @return The keys of the blocks, in order.
+   * @throws IOException If reading or writing fails, or the thread is interrupted.
+   * @throws KeyEncodeException If a block cannot be encoded.
+   */
+  public List<ClientChk> encode(
+      Rab source,
+      long offset,
+      long length,
+      Rab output,
+      @Nullable DecryptionKey cryptoKey,
+      CryptoAlgorithm cryptoAlgorithm)
+      throws IOException, KeyEncodeException {
+    if (offset < 0 || length < 0 || offset + length > source.size()) {
+      throw new IllegalArgumentException(
+          "Range %d+%d outside source of size %d".formatted(offset, length, source.size()));
+    }
+    int blocks = blockCount(length);
+    checkOutput(output, length);
+    var keys = new ClientChk[blocks];
+    var nextBlock = new AtomicInteger();
+    var failure = new AtomicReference<@Nullable Throwable>();
+
+    Rab.RabLock sourceLock = source.lockOpen();
+    try {
+      Rab.RabLock outputLock = output.lockOpen();
+      try {
+        int tasks = Math.min(parallelism, (blocks + BLOCKS_PER_CLAIM - 1) / BLOCKS_PER_CLAIM);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+          futures.add(
+              CompletableFuture.runAsync(
+                  () -> {
+                    byte[] buf = new byte[ClientChkBlock.DATA_LENGTH];
+                    var context = ChkCryptoContext.acquire();
+                    try {
+                      int first;
+                      while (failure.get() == null
+                          && (first = nextBlock.getAndAdd(BLOCKS_PER_CLAIM)) < blocks) {
+                        for (int i = first; i < Math.min(first + BLOCKS_PER_CLAIM, blocks); i++) {
+                          long start = (long) i * ClientChkBlock.DATA_LENGTH;
+                          int read = (int) Math.min(buf.length, length - start);
+                          source.pread(offset + start, buf, 0, read);
+                          Arrays.fill(buf, read, buf.length, (byte) 0);
+                          keys[i] =
+                              encodeBlock(context, buf, i, output, cryptoKey, cryptoAlgorithm);
+                        }
+                      }
+                    } catch (IOException | KeyEncodeException | RuntimeException e) {
+                      failure.compareAndSet(null, e);
+                    } finally {
+                      ChkCryptoContext.release(context);
+                    }
+                  },
+                  executor));
+        }
+        await(futures);
+      } finally {
+        outputLock.unlock();
+      }
+    } finally {
+      sourceLock.unlock();
+    }
+    rethrow(failure.get());
+    return List.of(keys);
+  }
+
+  /**
+   * Encodes the contents of a {@link Bucket}. The calling thread reads the bucket sequentially and
+   * hands the blocks to the workers, keeping at most twice the parallelism in memory.
+   *
+   * @param source The data to encode.
+   * @param output Where to write the encoded blocks. Must be at least {@link #encodedLength(long)}
+   *     bytes long for the size of {@code source}.
+   * @param cryptoKey The key to encrypt all blocks with, or {@code null} to use the hash of each
+   *     block as its key.
+   * @param cryptoAlgorithm The crypto algorithm.
+   * @return The keys of the blocks, in order.
+   * @throws IOException If reading or writing fails, or the thread is interrupted.
+   * @throws KeyEncodeException If a block cannot be encoded.
+   */
+  public List<ClientChk> encode(
+      Bucket source, Rab output, @Nullable DecryptionKey cryptoKey, CryptoAlgorithm cryptoAlgorithm)
+      throws IOException, KeyEncodeException {
+    long length = source.size();
+    int blocks = blockCount(length);
+    checkOutput(output, length);
+    var keys = new ClientChk[blocks];
+    var failure = new AtomicReference<@Nullable Throwable>();
+    var inFlight = new Semaphore(parallelism * 2);
+    List<CompletableFuture<Void>> futures = new ArrayList<>(blocks);
+
+    Rab.RabLock outputLock = output.lockOpen();
+    try (InputStream is = source.getInputStreamUnbuffered()) {
+      for (int i = 0; i < blocks && failure.get() == null; i++) {
+        byte[] buf = new byte[ClientChkBlock.DATA_LENGTH];
+        // The rest of the last block stays zero.
+        int want = (int) Math.min(buf.length, length - (long) i * buf.length);
+        if (is.readNBytes(buf, 0, want) != want) {
+          throw new IOException("Bucket shorter than its size " + length);
+        }
+        try {
+          inFlight.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while encoding", e);
+        }
+        int index = i;
+        futures.add(
+            CompletableFuture.runAsync(
+                () -> {
+                  var context = ChkCryptoContext.acquire();
+                  try {
+                    keys[index] =
+                        encodeBlock(context, buf, index, output, cryptoKey, cryptoAlgorithm);
+                  } catch (IOException | KeyEncodeException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                  } finally {
+                    ChkCryptoContext.release(context);
+                    inFlight.release();
+                  }
+                },
+                executor));
+      }
+    } finally {
+      try {
+        await(futures);
+      } finally {
+        outputLock.unlock();
+      }
+    }
+    rethrow(failure.get());
+    return List.of(keys);
+  }
+
+  private static ClientChk encodeBlock(
+      ChkCryptoContext context,
+      byte[] data,
+      int index,
+      Rab output,
+      @Nullable DecryptionKey cryptoKey,
+      CryptoAlgorithm cryptoAlgorithm)
+      throws IOException, KeyEncodeException {
+    var block = ClientChkBlock.encodeSplitfileBlock(context, data, cryptoKey, cryptoAlgorithm);
+    byte[] headers = block.getBlock().getRawHeaders();
+    byte[] encrypted = block.getBlock().getRawData();
+    long position = (long) index * ENCODED_BLOCK_LENGTH;
+    output.pwrite(position, headers, 0, headers.length);
+    output.pwrite(position + headers.length, encrypted, 0, encrypted.length);
+    return block.getClientKey();
+  }
+
+  private static void checkOutput(Rab output, long dataLength) {
+    if (output.size() < encodedLength(dataLength)) {
+      throw new IllegalArgumentException(
+          "Output of size %d too small for %d bytes of encoded blocks"
+              .formatted(output.size(), encodedLength(dataLength)));
+    }
+  }
+
+  /**
+   * Waits for all tasks, even if interrupted, since they write into buffers owned by the caller.
+   */
+  private static void await(List<CompletableFuture<Void>> futures) throws IOException {
+    boolean interrupted = false;
+    for (var future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          // The tasks catch everything but errors.
+          throw new IllegalStateException("Encoding task failed", e.getCause());
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while encoding");
+    }
+  }
+
+  private static void rethrow(@Nullable Throwable failure) throws IOException, KeyEncodeException {
+    switch (failure) {
+      case null -> {}
+      case IOException e -> throw e;
+      case KeyEncodeException e -> throw e;
+      case RuntimeException e -> throw e;
+      default -> throw new IllegalStateException(failure);
+    }
+  }
+
+  private final Executor executor;
+
+  private final int parallelism;
+}
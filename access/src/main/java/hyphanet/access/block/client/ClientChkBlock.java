@@ -14,7 +14,6 @@ import hyphanet.access.key.client.ClientChk;
 import hyphanet.access.key.node.NodeChk;
 import hyphanet.access.key.node.NodeKey;
 import hyphanet.crypt.Global;
-import hyphanet.crypt.hash.Sha256;
 import hyphanet.support.compress.InvalidCompressionCodecException;
 import hyphanet.support.io.storage.bucket.Bucket;
 import hyphanet.support.io.storage.bucket.BucketFactory;
@@ -24,10 +23,6 @@ import java.security.MessageDigest;
 import java.util.Arrays;
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import org.apache.commons.lang3.ArrayUtils;
 import org.jspecify.annotations.Nullable;
 
 public class ClientChkBlock extends ClientKeyBlock<NodeChk, ClientChk, NodeChkBlock> {
@@ -72,37 +67,45 @@ public class ClientChkBlock extends ClientKeyBlock<NodeChk, ClientChk, NodeChkBl
       CryptoAlgorithm cryptoAlgorithm,
       int blockHashAlgorithm)
       throws KeyEncodeException {
+    var context = ChkCryptoContext.acquire();
+    try {
+      return encode(
+          context,
+          data,
+          dataLength,
+          md256,
+          encKey,
+          asMetadata,
+          compressionAlgorithm,
+          cryptoAlgorithm,
+          blockHashAlgorithm);
+    } finally {
+      ChkCryptoContext.release(context);
+    }
+  }
 
-    var transformation =
-        switch (cryptoAlgorithm) {
-          case ALGO_AES_PCFB_256_SHA256 -> "RIJNDAEL256/CFB/NoPadding";
-          case ALGO_AES_CTR_256_SHA256 -> "AES/CTR/NoPadding";
-        };
-
-    var keyAgo =
-        switch (cryptoAlgorithm) {
-          case ALGO_AES_PCFB_256_SHA256 -> "Rijndael";
-          case ALGO_AES_CTR_256_SHA256 -> "AES";
-        };
-
+  private static ClientChkBlock encode(
+      ChkCryptoContext context,
+      byte[] data,
+      int dataLength,
+      MessageDigest md256,
+      DecryptionKey encKey,
+      boolean asMetadata,
+      CompressionAlgorithm compressionAlgorithm,
+      CryptoAlgorithm cryptoAlgorithm,
+      int blockHashAlgorithm)
+      throws KeyEncodeException {
     try {
       // IV = HMAC<cryptokey>(plaintext).
       // It's okay that this is the same for 2 blocks with the same key and the same content.
       // In fact that's the point; this is still a Content Hash Key.
       // FIXME And yes we should check on insert for multiple identical keys.
-      Mac hmac = Mac.getInstance("HmacSHA256");
-      hmac.init(new SecretKeySpec(encKey.getBytes(), "HmacSHA256"));
+      Mac hmac = context.hmac(encKey.getBytes());
       byte[] tmpLen = new byte[] {(byte) (dataLength >> 8), (byte) (dataLength & 0xff)};
       hmac.update(data);
       hmac.update(tmpLen);
       byte[] hash = hmac.doFinal();
 
-      var iv =
-          switch (cryptoAlgorithm) {
-            case ALGO_AES_PCFB_256_SHA256 -> new IvParameterSpec(hash, 0, 32);
-            case ALGO_AES_CTR_256_SHA256 -> new IvParameterSpec(hash, 0, 16);
-          };
-
       byte[] header = new byte[hash.length + 2 + 2];
       if (blockHashAlgorithm == 0) blockHashAlgorithm = NodeKeyBlock.HASH_SHA256;
       if (blockHashAlgorithm != NodeKeyBlock.HASH_SHA256)
@@ -111,11 +114,8 @@ public class ClientChkBlock extends ClientKeyBlock<NodeChk, ClientChk, NodeChkBl
       header[1] = (byte) (blockHashAlgorithm & 0xff);
       System.arraycopy(hash, 0, header, 2, hash.length);
 
-      SecretKey ckey = new SecretKeySpec(encKey.getBytes(), keyAgo);
-      // CTR mode IV is only 16 bytes.
-      // That's still plenty though. It will still be unique.
-      Cipher cipher = Cipher.getInstance(transformation);
-      cipher.init(Cipher.ENCRYPT_MODE, ckey, iv);
+      Cipher cipher =
+          context.cipher(cryptoAlgorithm, Cipher.ENCRYPT_MODE, encKey.getBytes(), hash, 0);
 
       byte[] cdata = new byte[data.length];
       int moved = cipher.doFinal(data, 0, data.length, cdata);
@@ -205,21 +205,27 @@ public class ClientChkBlock extends ClientKeyBlock<NodeChk, ClientChk, NodeChkBl
     }
 
     // Now make the header
-    MessageDigest md256 = Sha256.getMessageDigest();
-
-    DecryptionKey encKey;
-    if (cryptoKey != null) encKey = cryptoKey;
-    else encKey = new DecryptionKey(md256.digest(data));
-
-    return encode(
-        data,
-        dataLength,
-        md256,
-        encKey,
-        asMetadata,
-        compressionAlgorithm,
-        cryptoAlgorithm,
-        NodeKeyBlock.HASH_SHA256);
+    var context = ChkCryptoContext.acquire();
+    try {
+      MessageDigest md256 = context.sha256();
+
+      DecryptionKey encKey;
+      if (cryptoKey != null) encKey = cryptoKey;
+      else encKey = new DecryptionKey(md256.digest(data));
+
+      return encode(
+          context,
+          data,
+          dataLength,
+          md256,
+          encKey,
+          asMetadata,
+          compressionAlgorithm,
+          cryptoAlgorithm,
+          NodeKeyBlock.HASH_SHA256);
+    } finally {
+      ChkCryptoContext.release(context);
+    }
   }
 
   /**
@@ -232,15 +238,36 @@ public class ClientChkBlock extends ClientKeyBlock<NodeChk, ClientChk, NodeChkBl
   public static ClientChkBlock encodeSplitfileBlock(
       byte[] data, DecryptionKey cryptoKey, CryptoAlgorithm cryptoAlgorithm)
       throws KeyEncodeException {
+    var context = ChkCryptoContext.acquire();
+    try {
+      return encodeSplitfileBlock(context, data, cryptoKey, cryptoAlgorithm);
+    } finally {
+      ChkCryptoContext.release(context);
+    }
+  }
+
+  /**
+   * Encode a splitfile block with a crypto context the caller already holds, so that a batch of
+   * blocks can share one.
+   *
+   * @see #encodeSplitfileBlock(byte[], DecryptionKey, CryptoAlgorithm)
+   */
+  static ClientChkBlock encodeSplitfileBlock(
+      ChkCryptoContext context,
+      byte[] data,
+      @Nullable DecryptionKey cryptoKey,
+      CryptoAlgorithm cryptoAlgorithm)
+      throws KeyEncodeException {
     if (data.length != DATA_LENGTH) throw new IllegalArgumentException();
     if (cryptoKey != null && cryptoKey.getBytes().length != 32)
       throw new IllegalArgumentException();
-    MessageDigest md256 = Sha256.getMessageDigest();
+    MessageDigest md256 = context.sha256();
     // No need to pad
     if (cryptoKey == null) {
       cryptoKey = new DecryptionKey(md256.digest(data));
     }
     return encode(
+        context,
         data,
         DATA_LENGTH,
         md256,
@@ -254,19 +281,6 @@ public class ClientChkBlock extends ClientKeyBlock<NodeChk, ClientChk, NodeChkBl
   @Override
   public Bucket decode(BucketFactory factory, int maxLength, boolean dontDecompress)
       throws KeyDecodeException, IOException {
-
-    var transformation =
-        switch (getClientKey().getCryptoAlgorithm()) {
-          case ALGO_AES_PCFB_256_SHA256 -> "RIJNDAEL256/CFB/NoPadding";
-          case ALGO_AES_CTR_256_SHA256 -> "AES/CTR/NoPadding";
-        };
-
-    var keyAgo =
-        switch (getClientKey().getCryptoAlgorithm()) {
-          case ALGO_AES_PCFB_256_SHA256 -> "Rijndael";
-          case ALGO_AES_CTR_256_SHA256 -> "AES";
-        };
-
     var cryptoKey = getClientKey().getDecryptionKey();
     if (cryptoKey == null) {
       throw new KeyDecodeException(KeyType.CHK, "CryptoKey is null");
@@ -274,48 +288,45 @@ public class ClientChkBlock extends ClientKeyBlock<NodeChk, ClientChk, NodeChkBl
 
     var headers = getBlock().getRawHeaders();
     var data = getBlock().getRawData();
-    var hash = Arrays.copyOfRange(headers, 2, 2 + 32);
     var cryptoKeyBytes = cryptoKey.getBytes();
 
-    var iv =
-        switch (getClientKey().getCryptoAlgorithm()) {
-          case ALGO_AES_PCFB_256_SHA256 -> new IvParameterSpec(hash, 0, 32);
-          case ALGO_AES_CTR_256_SHA256 -> new IvParameterSpec(hash, 0, 16);
-        };
-
+    byte[] plaintext = new byte[data.length + 2];
+    int size;
+    var context = ChkCryptoContext.acquire();
     try {
-      Cipher cipher = Cipher.getInstance(transformation);
-      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cryptoKeyBytes, keyAgo), iv);
-      byte[] plaintext;
-      byte[] plainData = cipher.doFinal(data, 0, data.length);
-      byte[] plainHeader = cipher.doFinal(headers, hash.length + 2, 2);
-      int size = ((plainHeader[0] & 0xff) << 8) + (plainHeader[1] & 0xff);
+      // The IV is the start of the HMAC, which follows the hash algorithm in the headers.
+      Cipher cipher =
+          context.cipher(
+              getClientKey().getCryptoAlgorithm(), Cipher.DECRYPT_MODE, cryptoKeyBytes, headers, 2);
+      // Data and length bytes are encrypted separately, each starting from the IV.
+      cipher.doFinal(data, 0, data.length, plaintext, 0);
+      cipher.doFinal(headers, 2 + 32, 2, plaintext, data.length);
+      size = ((plaintext[data.length] & 0xff) << 8) + (plaintext[data.length + 1] & 0xff);
       if (size > 32768) {
         throw new KeyDecodeException(KeyType.CHK, "Invalid size: " + size);
       }
 
-      plaintext = ArrayUtils.addAll(plainData, plainHeader[0], plainHeader[1]);
-
       // Check the hash.
-      Mac hmac = Mac.getInstance("HmacSHA256");
-      hmac.init(new SecretKeySpec(cryptoKeyBytes, "HmacSHA256"));
+      Mac hmac = context.hmac(cryptoKeyBytes);
       hmac.update(plaintext); // plaintext includes lengthBytes
       byte[] hashCheck = hmac.doFinal();
-      if (!Arrays.equals(hash, hashCheck)) {
+      if (!Arrays.equals(headers, 2, 2 + 32, hashCheck, 0, hashCheck.length)) {
         throw new KeyDecodeException(KeyType.CHK, "HMAC is wrong, wrong decryption key?");
       }
-
-      return NodeKey.decompress(
-          !dontDecompress && getClientKey().isCompressed(),
-          plaintext,
-          size,
-          factory,
-          maxLength,
-          getClientKey().getCompressionAlgorithm(),
-          false);
     } catch (GeneralSecurityException e) {
       throw new KeyDecodeException(KeyType.CHK, "Problem with JCA, should be impossible!", e);
+    } finally {
+      ChkCryptoContext.release(context);
     }
+
+    return NodeKey.decompress(
+        !dontDecompress && getClientKey().isCompressed(),
+        plaintext,
+        size,
+        factory,
+        maxLength,
+        getClientKey().getCompressionAlgorithm(),
+        false);
   }
 
   @Override
@@ -30,9 +30,14 @@ public class NodeChkBlock extends NodeKeyBlock<NodeChk> {
     var hashIdentifier = (short) (((headers[0] & 0xff) << 8) + (headers[1] & 0xff));
 
     var md = Sha256.getMessageDigest();
-    md.update(headers);
-    md.update(data);
-    var hash = md.digest();
+    byte[] hash;
+    try {
+      md.update(headers);
+      md.update(data);
+      hash = md.digest();
+    } finally {
+      Sha256.returnMessageDigest(md);
+    }
 
     if (nodeKey == null) {
       nodeKey = new NodeChk(new RoutingKey(hash), cryptoAlgorithm);
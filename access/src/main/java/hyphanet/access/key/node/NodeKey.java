@@ -4,6 +4,7 @@ import hyphanet.access.KeyDecodeException;
 import hyphanet.access.KeyEncodeException;
 import hyphanet.access.KeyType;
 import hyphanet.access.key.*;
+import hyphanet.support.compress.CompressibilityPredictor;
 import hyphanet.support.compress.CompressionOutputSizeException;
 import hyphanet.support.compress.CompressorRegistry;
 import hyphanet.support.compress.InvalidCompressionCodecException;
@@ -11,6 +12,8 @@ import hyphanet.support.io.storage.bucket.*;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public abstract class NodeKey<N extends NodeKey<N>> extends Key {
   public record Compressed(byte[] compressedData, CompressionAlgorithm compressionAlgorithm) {}
@@ -144,7 +147,15 @@ public abstract class NodeKey<N extends NodeKey<N>> extends Key {
       Bucket src, String descriptor, int maxSize, int prefixSize, boolean shortPrefix)
       throws InvalidCompressionCodecException, IOException {
     CompressorRegistry reg = CompressorRegistry.getInstance();
-    for (var type : reg.parseDescriptor(descriptor)) {
+    var types = reg.parseDescriptor(descriptor);
+    // Only skip codecs when the data can still be stored uncompressed, so that a wrong guess never
+    // makes an insert fail which compressing would have saved.
+    if (!types.isEmpty() && src.size() <= maxSize + prefixSize) {
+      var prediction = CompressibilityPredictor.predict(src);
+      logger.debug("Compressibility of {} bytes: {}", src.size(), prediction);
+      types = reg.select(types, prediction);
+    }
+    for (var type : types) {
       try {
         ArrayBucket compressed =
             (ArrayBucket)
@@ -177,4 +188,6 @@ public abstract class NodeKey<N extends NodeKey<N>> extends Key {
     buf.put(raw);
     return new Compressed(buf.array(), algo);
   }
+
+  private static final Logger logger = LoggerFactory.getLogger(NodeKey.class);
 }
@@ -0,0 +1,213 @@
+package hyphanet.access.block.client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hyphanet.access.key.CryptoAlgorithm;
+import hyphanet.access.key.DecryptionKey;
+import hyphanet.access.key.client.ClientChk;
+import hyphanet.crypt.JcaProvider;
+import hyphanet.support.io.storage.bucket.ArrayBucket;
+import hyphanet.support.io.storage.rab.ArrayRab;
+import hyphanet.support.io.storage.rab.Rab;
+import java.io.IOException;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class ChkSplitfileEncoderTest {
+
+  @BeforeAll
+  static void setup() {
+    Security.addProvider(new JcaProvider());
+  }
+
+  /** Every block must be exactly what encoding it on its own gives, and the keys in order. */
+  @Test
+  void testMatchesSingleBlockEncode() throws Exception {
+    // Not a multiple of the block size, so the last block is padded.
+    byte[] data = randomData(37 * ClientChkBlock.DATA_LENGTH + 1234, 1);
+    var encoder = new ChkSplitfileEncoder(ForkJoinPool.commonPool(), 4);
+    for (var cryptoAlgorithm : CryptoAlgorithm.values()) {
+      var output = new ArrayRab((int) ChkSplitfileEncoder.encodedLength(data.length));
+      List<ClientChk> keys =
+          encoder.encode(new ArrayRab(data), 0, data.length, output, null, cryptoAlgorithm);
+      assertEquals(38, keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        byte[] block =
+            Arrays.copyOfRange(
+                data, i * ClientChkBlock.DATA_LENGTH, (i + 1) * ClientChkBlock.DATA_LENGTH);
+        var expected = ClientChkBlock.encodeSplitfileBlock(block, null, cryptoAlgorithm);
+        assertEquals(expected.getClientKey(), keys.get(i));
+        var actual = ChkSplitfileEncoder.readBlock(output, i, keys.get(i));
+        assertArrayEquals(expected.getBlock().getRawHeaders(), actual.getBlock().getRawHeaders());
+        assertArrayEquals(expected.getBlock().getRawData(), actual.getBlock().getRawData());
+        assertArrayEquals(block, actual.memoryDecode(true));
+      }
+    }
+  }
+
+  @Test
+  void testBucketMatchesRab() throws Exception {
+    byte[] data = randomData(20 * ClientChkBlock.DATA_LENGTH - 1, 2);
+    byte[] keyBytes = new byte[32];
+    new Random(3).nextBytes(keyBytes);
+    var cryptoKey = new DecryptionKey(keyBytes);
+    ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    try {
+      var encoder = new ChkSplitfileEncoder(executor, 3);
+      int encodedLength = (int) ChkSplitfileEncoder.encodedLength(data.length);
+      var fromRab = new ArrayRab(encodedLength);
+      var fromBucket = new ArrayRab(encodedLength);
+      var rabKeys =
+          encoder.encode(
+              new ArrayRab(data),
+              0,
+              data.length,
+              fromRab,
+              cryptoKey,
+              CryptoAlgorithm.ALGO_AES_CTR_256_SHA256);
+      var bucketKeys =
+          encoder.encode(
+              new ArrayBucket(data),
+              fromBucket,
+              cryptoKey,
+              CryptoAlgorithm.ALGO_AES_CTR_256_SHA256);
+      assertEquals(rabKeys, bucketKeys);
+      assertArrayEquals(contents(fromRab), contents(fromBucket));
+      for (var key : rabKeys) {
+        assertArrayEquals(keyBytes, key.getDecryptionKey().getBytes());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  void testOffsetAndEmptyRange() throws Exception {
+    byte[] data = randomData(3 * ClientChkBlock.DATA_LENGTH, 4);
+    var encoder = new ChkSplitfileEncoder(ForkJoinPool.commonPool(), 2);
+    var output = new ArrayRab((int) ChkSplitfileEncoder.ENCODED_BLOCK_LENGTH);
+    var keys =
+        encoder.encode(
+            new ArrayRab(data),
+            ClientChkBlock.DATA_LENGTH,
+            ClientChkBlock.DATA_LENGTH,
+            output,
+            null,
+            CryptoAlgorithm.ALGO_AES_PCFB_256_SHA256);
+    byte[] second =
+        Arrays.copyOfRange(data, ClientChkBlock.DATA_LENGTH, 2 * ClientChkBlock.DATA_LENGTH);
+    assertEquals(
+        ClientChkBlock.encodeSplitfileBlock(second, null, CryptoAlgorithm.ALGO_AES_PCFB_256_SHA256)
+            .getClientKey(),
+        keys.getFirst());
+    assertTrue(
+        encoder
+            .encode(
+                new ArrayRab(data), 0, 0, output, null, CryptoAlgorithm.ALGO_AES_PCFB_256_SHA256)
+            .isEmpty());
+  }
+
+  @Test
+  void testInvalidArguments() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new ChkSplitfileEncoder(ForkJoinPool.commonPool(), 0));
+    var encoder = new ChkSplitfileEncoder(ForkJoinPool.commonPool(), 2);
+    var source = new ArrayRab(2 * ClientChkBlock.DATA_LENGTH);
+    var tooSmall = new ArrayRab(ChkSplitfileEncoder.ENCODED_BLOCK_LENGTH);
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            encoder.encode(
+                source, 0, source.size(), tooSmall, null, CryptoAlgorithm.ALGO_AES_CTR_256_SHA256));
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            encoder.encode(
+                source, 1, source.size(), tooSmall, null, CryptoAlgorithm.ALGO_AES_CTR_256_SHA256));
+  }
+
+  @Test
+  void testReadFailureIsReported() {
+    int blocks = 100;
+    var source =
+        new ArrayRab(blocks * ClientChkBlock.DATA_LENGTH) {
+          @Override
+          public synchronized void pread(long fileOffset, byte[] buf, int bufOffset, int length)
+              throws IOException {
+            if (fileOffset == 57L * ClientChkBlock.DATA_LENGTH) {
+              throw new IOException("Broken block");
+            }
+            super.pread(fileOffset, buf, bufOffset, length);
+          }
+        };
+    var encoder = new ChkSplitfileEncoder(ForkJoinPool.commonPool(), 4);
+    var output = new ArrayRab((int) ChkSplitfileEncoder.encodedLength(source.size()));
+    var e =
+        assertThrows(
+            IOException.class,
+            () ->
+                encoder.encode(
+                    source,
+                    0,
+                    source.size(),
+                    output,
+                    null,
+                    CryptoAlgorithm.ALGO_AES_CTR_256_SHA256));
+    assertEquals("Broken block", e.getMessage());
+  }
+
+  /** The output must not depend on how many blocks are encoded at the same time. */
+  @Test
+  void testParallelMatchesSerial() throws Exception {
+    byte[] data = randomData(64 * ClientChkBlock.DATA_LENGTH + 100, 5);
+    var source = new ArrayRab(data);
+    int encodedLength = (int) ChkSplitfileEncoder.encodedLength(data.length);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      var serialOutput = new ArrayRab(encodedLength);
+      var parallelOutput = new ArrayRab(encodedLength);
+      var serialKeys =
+          new ChkSplitfileEncoder(executor, 1)
+              .encode(
+                  source,
+                  0,
+                  data.length,
+                  serialOutput,
+                  null,
+                  CryptoAlgorithm.ALGO_AES_CTR_256_SHA256);
+      var parallelKeys =
+          new ChkSplitfileEncoder(executor, 8)
+              .encode(
+                  source,
+                  0,
+                  data.length,
+                  parallelOutput,
+                  null,
+                  CryptoAlgorithm.ALGO_AES_CTR_256_SHA256);
+      assertEquals(serialKeys, parallelKeys);
+      assertArrayEquals(contents(serialOutput), contents(parallelOutput));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static byte[] randomData(int length, long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] contents(Rab rab) throws IOException {
+    byte[] buf = new byte[(int) rab.size()];
+    rab.pread(0, buf, 0, buf.length);
+    return buf;
+  }
+}
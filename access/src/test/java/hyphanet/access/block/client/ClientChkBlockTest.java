@@ -1,17 +1,36 @@
 package hyphanet.access.block.client;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import hyphanet.access.KeyDecodeException;
 import hyphanet.access.block.node.NodeChkBlock;
+import hyphanet.access.block.node.NodeKeyBlock;
 import hyphanet.access.key.CompressionAlgorithm;
 import hyphanet.access.key.CryptoAlgorithm;
+import hyphanet.access.key.DecryptionKey;
+import hyphanet.access.key.client.ClientChk;
 import hyphanet.crypt.JcaProvider;
+import hyphanet.crypt.hash.Sha256;
 import hyphanet.support.io.storage.bucket.ArrayBucket;
 import hyphanet.support.io.storage.bucket.ArrayBucketFactory;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.Security;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.random.RandomGenerator;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
@@ -77,6 +96,139 @@ class ClientChkBlockTest {
     }
   }
 
+  /**
+   * The pooled crypto contexts must not change a single byte of the output: compare against the
+   * encoder as it was before pooling, which looked up a fresh Cipher and Mac for every block.
+   */
+  @Test
+  void testEncodeMatchesUnpooledEncoder() throws Exception {
+    var random = new Random(1234);
+    for (var cryptoAlgorithm : CryptoAlgorithm.values()) {
+      for (int length : new int[] {0, 1, 31, 32, 33, 1000, ClientChkBlock.DATA_LENGTH - 1}) {
+        byte[] data = new byte[ClientChkBlock.DATA_LENGTH];
+        random.nextBytes(data);
+        byte[] keyBytes = new byte[32];
+        random.nextBytes(keyBytes);
+        var key = new DecryptionKey(keyBytes);
+
+        var encoded =
+            ClientChkBlock.encode(
+                data,
+                length,
+                Sha256.getMessageDigest(),
+                key,
+                false,
+                CompressionAlgorithm.NO_COMP,
+                cryptoAlgorithm,
+                NodeKeyBlock.HASH_SHA256);
+        byte[][] expected = referenceEncode(data, length, keyBytes, cryptoAlgorithm);
+
+        assertArrayEquals(expected[0], encoded.getBlock().getRawHeaders(), cryptoAlgorithm.name());
+        assertArrayEquals(expected[1], encoded.getBlock().getRawData(), cryptoAlgorithm.name());
+        assertArrayEquals(expected[2], encoded.getClientKey().getRoutingKey().getBytes());
+        assertArrayEquals(
+            Arrays.copyOf(data, length), encoded.memoryDecode(true), cryptoAlgorithm.name());
+      }
+    }
+  }
+
+  @Test
+  void testEncodeSplitfileBlockMatchesUnpooledEncoder() throws Exception {
+    var random = new Random(5678);
+    for (var cryptoAlgorithm : CryptoAlgorithm.values()) {
+      byte[] data = new byte[ClientChkBlock.DATA_LENGTH];
+      random.nextBytes(data);
+      var encoded = ClientChkBlock.encodeSplitfileBlock(data, null, cryptoAlgorithm);
+      // Without a key, the key is the hash of the data.
+      byte[] keyBytes = MessageDigest.getInstance("SHA-256").digest(data);
+      byte[][] expected = referenceEncode(data, data.length, keyBytes, cryptoAlgorithm);
+      assertArrayEquals(expected[0], encoded.getBlock().getRawHeaders());
+      assertArrayEquals(expected[1], encoded.getBlock().getRawData());
+      assertArrayEquals(keyBytes, encoded.getClientKey().getDecryptionKey().getBytes());
+    }
+  }
+
+  /** A decode failing half-way must not leave a pooled context in a state that breaks the next. */
+  @Test
+  void testFailedDecodeDoesNotPoisonContext() throws Exception {
+    byte[] data = "some data".getBytes(StandardCharsets.UTF_8);
+    for (var cryptoAlgorithm : CryptoAlgorithm.values()) {
+      var encoded =
+          ClientChkBlock.encode(
+              new ArrayBucket(data),
+              false,
+              false,
+              CompressionAlgorithm.NO_COMP,
+              data.length,
+              null,
+              null,
+              cryptoAlgorithm);
+      var goodKey = encoded.getClientKey();
+      var wrongKey =
+          new ClientChk(
+              goodKey.getRoutingKey(),
+              new DecryptionKey(new byte[32]),
+              cryptoAlgorithm,
+              false,
+              CompressionAlgorithm.NO_COMP);
+      var wrong = new ClientChkBlock(encoded.getBlock(), wrongKey);
+      assertThrows(KeyDecodeException.class, () -> wrong.memoryDecode(false));
+      assertArrayEquals(data, encoded.memoryDecode(false));
+    }
+  }
+
+  @Test
+  void testContextsAreReused() {
+    var context = ChkCryptoContext.acquire();
+    ChkCryptoContext.release(context);
+    var again = ChkCryptoContext.acquire();
+    try {
+      assertSame(context, again);
+    } finally {
+      ChkCryptoContext.release(again);
+    }
+  }
+
+  /** Blocks encoded concurrently, each thread using its own context, match a serial encode. */
+  @Test
+  void testConcurrentEncodeMatchesSerial() throws Exception {
+    int blocks = 64;
+    byte[][] data = new byte[blocks][ClientChkBlock.DATA_LENGTH];
+    var random = new Random(42);
+    for (byte[] block : data) {
+      random.nextBytes(block);
+    }
+    var cryptoAlgorithms = CryptoAlgorithm.values();
+    byte[][] expected = new byte[blocks][];
+    for (int i = 0; i < blocks; i++) {
+      expected[i] =
+          ClientChkBlock.encodeSplitfileBlock(
+                  data[i], null, cryptoAlgorithms[i % cryptoAlgorithms.length])
+              .getBlock()
+              .getRawHeaders();
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<byte[]>> futures = new ArrayList<>();
+      for (int i = 0; i < blocks; i++) {
+        int index = i;
+        futures.add(
+            executor.submit(
+                () ->
+                    ClientChkBlock.encodeSplitfileBlock(
+                            data[index], null, cryptoAlgorithms[index % cryptoAlgorithms.length])
+                        .getBlock()
+                        .getRawHeaders()));
+      }
+      for (int i = 0; i < blocks; i++) {
+        assertArrayEquals(expected[i], futures.get(i).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(blocks, expected.length);
+  }
+
   private void checkBlock(byte[] data, boolean newAlgo) throws Exception {
     var cryptoAlgorithm =
         newAlgo
@@ -112,4 +264,45 @@ class ClientChkBlockTest {
       assertArrayEquals(checkData.toByteArray(), data);
     }
   }
+
+  /**
+   * The CHK encoder as it was before crypto contexts were pooled.
+   *
+   * @return The headers, the encrypted data and the routing key.
+   */
+  private static byte[][] referenceEncode(
+      byte[] data, int dataLength, byte[] keyBytes, CryptoAlgorithm cryptoAlgorithm)
+      throws Exception {
+    var transformation =
+        switch (cryptoAlgorithm) {
+          case ALGO_AES_PCFB_256_SHA256 -> "RIJNDAEL256/CFB/NoPadding";
+          case ALGO_AES_CTR_256_SHA256 -> "AES/CTR/NoPadding";
+        };
+    var keyAlgorithm =
+        switch (cryptoAlgorithm) {
+          case ALGO_AES_PCFB_256_SHA256 -> "Rijndael";
+          case ALGO_AES_CTR_256_SHA256 -> "AES";
+        };
+    Mac hmac = Mac.getInstance("HmacSHA256");
+    hmac.init(new SecretKeySpec(keyBytes, "HmacSHA256"));
+    byte[] tmpLen = new byte[] {(byte) (dataLength >> 8), (byte) (dataLength & 0xff)};
+    hmac.update(data);
+    hmac.update(tmpLen);
+    byte[] hash = hmac.doFinal();
+    var iv =
+        switch (cryptoAlgorithm) {
+          case ALGO_AES_PCFB_256_SHA256 -> new IvParameterSpec(hash, 0, 32);
+          case ALGO_AES_CTR_256_SHA256 -> new IvParameterSpec(hash, 0, 16);
+        };
+    byte[] header = new byte[hash.length + 2 + 2];
+    header[1] = (byte) NodeKeyBlock.HASH_SHA256;
+    System.arraycopy(hash, 0, header, 2, hash.length);
+    Cipher cipher = Cipher.getInstance(transformation);
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyBytes, keyAlgorithm), iv);
+    byte[] cdata = cipher.doFinal(data);
+    System.arraycopy(cipher.doFinal(tmpLen), 0, header, hash.length + 2, 2);
+    MessageDigest md256 = MessageDigest.getInstance("SHA-256");
+    md256.update(header);
+    return new byte[][] {header, cdata, md256.digest(cdata)};
+  }
 }
@@ -0,0 +1,369 @@
+package hyphanet.base.lru;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * A key-value cache with a fixed size and optional expiration time, like {@link LruCache}, but
+ * built for concurrent use.
+ *
+ * <p>The cache is split into independent shards selected by the key's hash code. Each shard keeps
+ * its entries in a {@link ConcurrentHashMap} and its LRU order in an {@link LruList} guarded by a
+ * lock of its own:
+ *
+ * <ul>
+ *   <li>{@link #get(Object)} never blocks. A hit is looked up in the map and the access is recorded
+ *       in a small lossy ring buffer. Once the buffer is half full, the thread which notices tries
+ *       to take the shard's lock and replays the buffered accesses onto the LRU list; if the lock
+ *       is busy it simply carries on, leaving the work to the next thread. If the buffer is full,
+ *       accesses are dropped, so under heavy load the order is an approximation of the true LRU
+ *       order.
+ *   <li>{@link #put(Object, Object)} takes the shard's lock, replays the buffered accesses and
+ *       evicts the least recently used entries of the shard until it is within its share of the
+ *       size limit.
+ * </ul>
+ *
+ * <p>Since every shard evicts on its own, the entry evicted is the least recently used of its shard
+ * rather than of the whole cache. The total number of entries never exceeds the size limit.
+ *
+ * <p>Expiration is passive, exactly like in {@link LruCache}: an entry expires a fixed delay after
+ * it was put, and expired entries are only removed when {@link #get(Object)} finds them or when
+ * they are evicted as the least recently used entry.
+ *
+ * <p>Keys must implement {@link Object#hashCode()} and {@link Object#equals(Object)}. Keys that are
+ * {@link Comparable} additionally benefit from {@link ConcurrentHashMap}'s protection against hash
+ * collision attacks.
+ *
+ * @param <K> The type of keys in the cache.
+ * @param <V> The type of values in the cache.
+ */
+public final class ConcurrentLruCache<K, V> {
+
+  /** Number of slots in each shard's read buffer. Must be a power of two. */
+  static final int READ_BUFFER_SIZE = 64;
+
+  /** Number of buffered accesses after which a reader tries to drain the buffer. */
+  private static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+  /**
+   * Creates a cache without an expiration time and one shard per available processor.
+   *
+   * @param sizeLimit The maximum number of items the cache can hold.
+   */
+  public ConcurrentLruCache(int sizeLimit) {
+    this(sizeLimit, Long.MAX_VALUE);
+  }
+
+  /**
+   * Creates a cache with a specified size limit and expiration time and one shard per available
+   * processor.
+   *
+   * @param sizeLimit The maximum number of items the cache can hold.
+   * @param expirationDelay The time in milliseconds after which an entry expires.
+   */
+  public ConcurrentLruCache(int sizeLimit, long expirationDelay) {
+    this(sizeLimit, expirationDelay, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a cache with a specified size limit, expiration time and number of shards.
+   *
+   * <p>The number of shards is rounded up to a power of two, but never exceeds the size limit, so
+   * that every shard can hold at least one entry.
+   *
+   * @param sizeLimit The maximum number of items the cache can hold.
+   * @param expirationDelay The time in milliseconds after which an entry expires, or {@link
+   *     Long#MAX_VALUE} for no expiration.
+   * @param shardCount The desired number of shards.
+   * @throws IllegalArgumentException if {@code sizeLimit} or {@code shardCount} is not positive, or
+   *     {@code expirationDelay} is negative.
+   */
+  public ConcurrentLruCache(int sizeLimit, long expirationDelay, int shardCount) {
+    this(sizeLimit, expirationDelay, shardCount, System::currentTimeMillis);
+  }
+
+  /**
+   * Creates a cache which reads the time from {@code currentTimeMillis}. Exposed for testing.
+   *
+   * @param sizeLimit The maximum number of items the cache can hold.
+   * @param expirationDelay The time in milliseconds after which an entry expires, or {@link
+   *     Long#MAX_VALUE} for no expiration.
+   * @param shardCount The desired number of shards.
+   * @param currentTimeMillis The source of the current time in milliseconds.
+   */
+  @SuppressWarnings("unchecked")
+  ConcurrentLruCache(
+      int sizeLimit, long expirationDelay, int shardCount, LongSupplier currentTimeMillis) {
+    if (sizeLimit <= 0 || shardCount <= 0 || expirationDelay < 0) {
+      throw new IllegalArgumentException();
+    }
+    int count = Math.min(Integer.highestOneBit(sizeLimit), ceilPowerOfTwo(shardCount));
+    this.sizeLimit = sizeLimit;
+    this.expirationDelay = expirationDelay;
+    this.currentTimeMillis = currentTimeMillis;
+    shards = new Shard[count];
+    for (int i = 0; i < count; i++) {
+      // Spread the remainder so that the limits add up to sizeLimit exactly.
+      shards[i] = new Shard<>(sizeLimit / count + (i < sizeLimit % count ? 1 : 0));
+    }
+    shardMask = count - 1;
+  }
+
+  /**
+   * Puts a value into the cache under the given key.
+   *
+   * <p>If an entry with the given key already exists, its value is replaced, its expiration time is
+   * reset and it becomes the most recently used entry of its shard. If the shard is full, its least
+   * recently used entries are removed to make space.
+   *
+   * @param key The key under which to store the value. Must not be {@code null}.
+   * @param value The value to be stored in the cache.
+   * @throws NullPointerException if the key is {@code null}.
+   */
+  public void put(K key, V value) {
+    long expirationDate =
+        expirationDelay < Long.MAX_VALUE
+            ? currentTimeMillis.getAsLong() + expirationDelay
+            : Long.MAX_VALUE;
+    shardFor(key).put(new LruList.Node<>(key, new Entry<>(value, expirationDate)));
+  }
+
+  /**
+   * Retrieves a value from the cache associated with the given key, without blocking.
+   *
+   * <p>If an entry is found and is not expired, the access is recorded and the value is returned.
+   * If the entry is expired, it is removed and {@code null} is returned.
+   *
+   * @param key The key of the entry to retrieve. Must not be {@code null}.
+   * @return The value associated with the key if found and not expired, otherwise {@code null}.
+   * @throws NullPointerException if the key is {@code null}.
+   */
+  public @Nullable V get(K key) {
+    var shard = shardFor(key);
+    var node = shard.map.get(key);
+    if (node == null) {
+      return null;
+    }
+    if (expirationDelay < Long.MAX_VALUE
+        && node.value.expirationDate < currentTimeMillis.getAsLong()) {
+      shard.remove(node);
+      return null;
+    }
+    shard.recordAccess(node);
+    return node.value.value;
+  }
+
+  /**
+   * Removes the entry for the given key, if present.
+   *
+   * @param key The key of the entry to remove. Must not be {@code null}.
+   * @return {@code true} if an entry was removed.
+   * @throws NullPointerException if the key is {@code null}.
+   */
+  public boolean remove(K key) {
+    var shard = shardFor(key);
+    var node = shard.map.get(key);
+    return node != null && shard.remove(node);
+  }
+
+  /**
+   * Returns the number of entries in the cache, including expired entries not removed yet. The
+   * result is only a snapshot if the cache is modified concurrently.
+   *
+   * @return The number of entries.
+   */
+  public int size() {
+    int size = 0;
+    for (var shard : shards) {
+      size += shard.map.size();
+    }
+    return size;
+  }
+
+  /**
+   * Returns the maximum number of entries this cache can hold.
+   *
+   * @return The size limit given at construction.
+   */
+  public int getSizeLimit() {
+    return sizeLimit;
+  }
+
+  /** Removes all entries from the cache. */
+  public void clear() {
+    for (var shard : shards) {
+      shard.clear();
+    }
+  }
+
+  /**
+   * Returns the number of shards. Exposed for testing.
+   *
+   * @return The number of shards.
+   */
+  int shardCount() {
+    return shards.length;
+  }
+
+  private static int ceilPowerOfTwo(int n) {
+    int high = Integer.highestOneBit(n);
+    return high == n || high == 1 << 30 ? high : high << 1;
+  }
+
+  private Shard<K, V> shardFor(K key) {
+    int h = key.hashCode();
+    // Spread the high bits like HashMap, shards use the low ones.
+    return shards[(h ^ (h >>> 16)) & shardMask];
+  }
+
+  /**
+   * An immutable cache entry, so that readers never see a value together with the expiration date
+   * of another one.
+   */
+  private record Entry<V>(V value, long expirationDate) {}
+
+  /**
+   * One shard of the cache.
+   *
+   * <p>The map may be read at any time. The list, the map's structure and {@link #readIndex} are
+   * only modified while holding {@link #lock}. The nodes in the map are never modified after being
+   * published; a put replaces the node.
+   */
+  private static final class Shard<K, V> {
+    private Shard(int limit) {
+      this.limit = limit;
+    }
+
+    private void put(LruList.Node<K, Entry<V>> node) {
+      lock.lock();
+      try {
+        drainReadBuffer();
+        var old = map.put(node.key, node);
+        if (old != null) {
+          list.unlink(old);
+        }
+        list.addFirst(node);
+        while (map.size() > limit) {
+          var eldest = list.removeLast();
+          if (eldest == null) {
+            break;
+          }
+          map.remove(eldest.key, eldest);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Removes the given node if it is still the current one for its key.
+     *
+     * @return {@code true} if the node was removed
+     */
+    private boolean remove(LruList.Node<K, Entry<V>> node) {
+      lock.lock();
+      try {
+        if (map.remove(node.key, node)) {
+          list.unlink(node);
+          return true;
+        }
+        return false;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void clear() {
+      lock.lock();
+      try {
+        drainReadBuffer();
+        map.clear();
+        list.clear();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Records an access without blocking. The access is dropped if the buffer is full and nobody
+     * drains it in time.
+     */
+    private void recordAccess(LruList.Node<K, Entry<V>> node) {
+      long write = writeIndex.get();
+      long pending = write - readIndex;
+      if (pending < READ_BUFFER_SIZE && writeIndex.compareAndSet(write, write + 1)) {
+        readBuffer.lazySet((int) (write & (READ_BUFFER_SIZE - 1)), node);
+        pending++;
+      }
+      if (pending >= DRAIN_THRESHOLD && lock.tryLock()) {
+        try {
+          drainReadBuffer();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+
+    /**
+     * Replays the buffered accesses onto the LRU list, oldest first. Must be called with {@link
+     * #lock} held.
+     */
+    private void drainReadBuffer() {
+      long write = writeIndex.get();
+      long read = readIndex;
+      for (; read < write; read++) {
+        int slot = (int) (read & (READ_BUFFER_SIZE - 1));
+        var node = readBuffer.getAndSet(slot, null);
+        if (node == null) {
+          // The slot was claimed but not written yet. Try again with the next drain.
+          break;
+        }
+        // Skip nodes which have been removed or replaced since they were read.
+        if (map.get(node.key) == node) {
+          list.moveToFirst(node);
+        }
+      }
+      readIndex = read;
+    }
+
+    /** The maximum number of entries in this shard. */
+    private final int limit;
+
+    private final ConcurrentHashMap<K, LruList.Node<K, Entry<V>>> map = new ConcurrentHashMap<>();
+
+    /** The LRU order of the nodes in {@link #map}. Guarded by {@link #lock}. */
+    private final LruList<K, Entry<V>> list = new LruList<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Ring buffer of recently read nodes not yet moved in {@link #list}. */
+    private final AtomicReferenceArray<LruList.@Nullable Node<K, Entry<V>>> readBuffer =
+        new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+
+    /** Number of slots ever claimed in {@link #readBuffer}. */
+    private final AtomicLong writeIndex = new AtomicLong();
+
+    /** Number of slots ever drained. Written only under {@link #lock}. */
+    private volatile long readIndex;
+  }
+
+  /** The maximum number of entries in the whole cache. */
+  private final int sizeLimit;
+
+  /**
+   * The expiration delay for entries in this cache, in milliseconds. A value of {@link
+   * Long#MAX_VALUE} indicates no expiration.
+   */
+  private final long expirationDelay;
+
+  /** The source of the current time in milliseconds. */
+  private final LongSupplier currentTimeMillis;
+
+  private final Shard<K, V>[] shards;
+
+  private final int shardMask;
+}
@@ -0,0 +1,208 @@
+package hyphanet.base.lru;
+
+import java.util.function.Consumer;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * An intrusive doubly linked list of {@link Node}s, used by {@link LruMap} and {@link LruQueue} to
+ * keep their entries in access order.
+ *
+ * <p>The head of the list is the most recently used node, the tail the least recently used one.
+ * Since every node knows its neighbours, a node found through the owner's index can be moved or
+ * unlinked in constant time, unlike with an {@link java.util.ArrayDeque} where {@code
+ * remove(Object)} has to scan the whole deque.
+ *
+ * <p>This class is not thread-safe; the owners synchronize all access.
+ *
+ * @param <K> The type of keys held by the nodes.
+ * @param <V> The type of values held by the nodes.
+ */
+final class LruList<K, V> {
+
+  /**
+   * Adds a node which is not linked yet at the head (most recently used).
+   *
+   * @param node The node to link.
+   */
+  void addFirst(Node<K, V> node) {
+    node.prev = null;
+    node.next = head;
+    if (head != null) {
+      head.prev = node;
+    } else {
+      tail = node;
+    }
+    head = node;
+    size++;
+  }
+
+  /**
+   * Adds a node which is not linked yet at the tail (least recently used).
+   *
+   * @param node The node to link.
+   */
+  void addLast(Node<K, V> node) {
+    node.next = null;
+    node.prev = tail;
+    if (tail != null) {
+      tail.next = node;
+    } else {
+      head = node;
+    }
+    tail = node;
+    size++;
+  }
+
+  /**
+   * Unlinks a node currently in this list.
+   *
+   * @param node The node to unlink.
+   */
+  void unlink(Node<K, V> node) {
+    var prev = node.prev;
+    var next = node.next;
+    if (prev != null) {
+      prev.next = next;
+    } else {
+      head = next;
+    }
+    if (next != null) {
+      next.prev = prev;
+    } else {
+      tail = prev;
+    }
+    node.prev = null;
+    node.next = null;
+    size--;
+  }
+
+  /**
+   * Moves a node currently in this list to the head.
+   *
+   * @param node The node to move.
+   */
+  void moveToFirst(Node<K, V> node) {
+    if (node != head) {
+      unlink(node);
+      addFirst(node);
+    }
+  }
+
+  /**
+   * Moves a node currently in this list to the tail.
+   *
+   * @param node The node to move.
+   */
+  void moveToLast(Node<K, V> node) {
+    if (node != tail) {
+      unlink(node);
+      addLast(node);
+    }
+  }
+
+  /**
+   * Unlinks and returns the tail.
+   *
+   * @return The least recently used node, or {@code null} if the list is empty.
+   */
+  @Nullable Node<K, V> removeLast() {
+    var node = tail;
+    if (node != null) {
+      unlink(node);
+    }
+    return node;
+  }
+
+  /**
+   * Returns the tail without unlinking it.
+   *
+   * @return The least recently used node, or {@code null} if the list is empty.
+   */
+  @Nullable Node<K, V> peekLast() {
+    return tail;
+  }
+
+  /**
+   * Passes every node to {@code action}, from the tail (least recently used) to the head.
+   *
+   * @param action The action to perform; must not modify the list.
+   */
+  void forEachFromLeastRecent(Consumer<Node<K, V>> action) {
+    for (var node = tail; node != null; node = node.prev) {
+      action.accept(node);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Unlinks all nodes. */
+  void clear() {
+    // Break the links so that nodes still referenced from outside don't keep the others alive.
+    var node = head;
+    while (node != null) {
+      var next = node.next;
+      node.prev = null;
+      node.next = null;
+      node = next;
+    }
+    head = null;
+    tail = null;
+    size = 0;
+  }
+
+  /**
+   * A list node holding a key-value pair.
+   *
+   * @param <K> The type of the key.
+   * @param <V> The type of the value.
+   */
+  static final class Node<K, V> {
+    /**
+     * Constructs a new unlinked node.
+     *
+     * @param key The key of the node.
+     * @param value The value of the node.
+     */
+    Node(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    /**
+     * Returns a string representation of this node.
+     *
+     * @return A string representation in the format "key value".
+     */
+    @Override
+    public String toString() {
+      return key + " " + value;
+    }
+
+    /** The key of this node. */
+    final K key;
+
+    /** The value of this node. */
+    V value;
+
+    /** The next more recently used node. */
+    @Nullable Node<K, V> prev;
+
+    /** The next less recently used node. */
+    @Nullable Node<K, V> next;
+  }
+
+  /** The most recently used node. */
+  private @Nullable Node<K, V> head;
+
+  /** The least recently used node. */
+  private @Nullable Node<K, V> tail;
+
+  /** The number of linked nodes. */
+  private int size;
+}
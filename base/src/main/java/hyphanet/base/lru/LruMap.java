@@ -2,8 +2,6 @@ package hyphanet.base.lru;
 
 import java.util.*;
 import org.jspecify.annotations.Nullable;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * An LRU map from K to V. That is, when a mapping is added, it is pushed to the top of the queue,
@@ -21,6 +19,9 @@ import org.slf4j.LoggerFactory;
  * <p><b>Important:</b> This implementation does <b>not</b> enforce a size limit. It is the caller's
  * responsibility to manage the size of the map based on their requirements.
  *
+ * <p>The entries form an intrusive doubly linked list indexed by the underlying map, so moving an
+ * entry to the front or removing it takes constant time on top of the map lookup.
+ *
  * <p><b>Limitations:</b> This map does not support {@code null} keys and will throw a {@link
  * NullPointerException} if {@code null} is used as a key.
  *
@@ -28,12 +29,6 @@ import org.slf4j.LoggerFactory;
  * @param <V> The type of values in this map.
  */
 public class LruMap<K, V> {
-  /**
-   * Logger for this class. Used for logging events such as adding items to the map. Currently, it
-   * logs when items are "pushed" (added or updated) via {@link #addRecent(Object, Object)}.
-   */
-  private static final Logger logger = LoggerFactory.getLogger(LruMap.class);
-
   /**
    * Constructs a new empty {@link LruMap} using a {@link HashMap} as the underlying map.
    *
@@ -52,7 +47,7 @@ public class LruMap<K, V> {
    *
    * @param underlyingMap The map to be used internally to store key-value pairs.
    */
-  private LruMap(Map<K, QItem<K, V>> underlyingMap) {
+  private LruMap(Map<K, LruList.Node<K, V>> underlyingMap) {
     this.underlyingMap = underlyingMap;
   }
 
@@ -115,14 +110,12 @@ public class LruMap<K, V> {
     if (item != null) {
       old = item.value;
       item.value = value;
-      list.remove(item); // Remove it from its current position.
+      list.moveToFirst(item);
     } else {
-      item = new QItem<>(key, value);
+      item = new LruList.Node<>(key, value);
       underlyingMap.put(key, item);
+      list.addFirst(item); // Add to head (most recent)
     }
-    logger.info("Pushed {} ( {} {} )", item, key, value);
-
-    list.addFirst(item); // Add to head (most recent)
     return old;
   }
 
@@ -135,8 +128,8 @@ public class LruMap<K, V> {
    * @return The least recently used key, or {@code null} if the map is empty.
    */
   public final synchronized @Nullable K takeLeastRecentKey() {
-    if (!list.isEmpty()) {
-      var item = list.removeLast(); // Least recent at tail.
+    var item = list.removeLast(); // Least recent at tail.
+    if (item != null) {
       underlyingMap.remove(item.key);
       return item.key;
     }
@@ -154,8 +147,8 @@ public class LruMap<K, V> {
    *     empty.
    */
   public final synchronized @Nullable V takeLeastRecentValue() {
-    if (!list.isEmpty()) {
-      QItem<K, V> item = list.removeLast();
+    var item = list.removeLast();
+    if (item != null) {
       underlyingMap.remove(item.key);
       return item.value;
     }
@@ -171,10 +164,8 @@ public class LruMap<K, V> {
    * @return The least recently used key, or {@code null} if the map is empty.
    */
   public final synchronized @Nullable K peekLeastRecentKey() {
-    if (!list.isEmpty()) {
-      return list.getLast().key;
-    }
-    return null;
+    var item = list.peekLast();
+    return item == null ? null : item.key;
   }
 
   /**
@@ -189,10 +180,8 @@ public class LruMap<K, V> {
    *     empty.
    */
   public final synchronized @Nullable V peekLeastRecentValue() {
-    if (!list.isEmpty()) {
-      return list.getLast().value;
-    }
-    return null;
+    var item = list.peekLast();
+    return item == null ? null : item.value;
   }
 
   /**
@@ -203,7 +192,7 @@ public class LruMap<K, V> {
    *
    * @return The number of key-value mappings in this map.
    */
-  public final int size() {
+  public final synchronized int size() {
     return list.size();
   }
 
@@ -219,9 +208,9 @@ public class LruMap<K, V> {
    */
   public final synchronized boolean removeKey(K key) {
     if (key == null) throw new NullPointerException();
-    QItem<K, V> i = underlyingMap.remove(key);
+    var i = underlyingMap.remove(key);
     if (i != null) {
-      list.remove(i);
+      list.unlink(i);
       return true;
     }
     return false;
@@ -259,7 +248,7 @@ public class LruMap<K, V> {
    */
   public final synchronized @Nullable V get(K key) {
     if (key == null) throw new NullPointerException();
-    QItem<K, V> item = underlyingMap.get(key);
+    var item = underlyingMap.get(key);
     return item == null ? null : item.value;
   }
 
@@ -278,11 +267,7 @@ public class LruMap<K, V> {
    */
   public synchronized Iterator<K> keys() {
     List<K> snapshot = new ArrayList<>(list.size());
-    // Using the descendingIterator to get keys from tail (eldest) to head (most recent)
-    Iterator<QItem<K, V>> it = list.descendingIterator();
-    while (it.hasNext()) {
-      snapshot.add(it.next().key);
-    }
+    list.forEachFromLeastRecent(item -> snapshot.add(item.key));
     return snapshot.iterator();
   }
 
@@ -302,10 +287,7 @@ public class LruMap<K, V> {
    */
   public synchronized Iterator<V> values() {
     List<V> snapshot = new ArrayList<>(list.size());
-    Iterator<QItem<K, V>> it = list.descendingIterator();
-    while (it.hasNext()) {
-      snapshot.add(it.next().value);
-    }
+    list.forEachFromLeastRecent(item -> snapshot.add(item.value));
     return snapshot.iterator();
   }
 
@@ -316,7 +298,7 @@ public class LruMap<K, V> {
    *
    * @return {@code true} if this LRU map contains no key-value mappings, {@code false} otherwise.
    */
-  public boolean isEmpty() {
+  public synchronized boolean isEmpty() {
     return list.isEmpty();
   }
 
@@ -336,9 +318,8 @@ public class LruMap<K, V> {
    */
   public synchronized void valuesToArray(V[] entries) {
     int i = 0;
-    Iterator<QItem<K, V>> iter = list.descendingIterator();
-    while (iter.hasNext()) {
-      entries[i++] = iter.next().value;
+    for (var item = list.peekLast(); item != null; item = item.prev) {
+      entries[i++] = item.value;
     }
   }
 
@@ -354,58 +335,20 @@ public class LruMap<K, V> {
   }
 
   /**
-   * Private inner class representing an item in the LRU queue.
-   *
-   * <p>Each {@link QItem} holds a key-value pair and is used internally by {@link LruMap} to
-   * maintain the LRU order.
-   *
-   * @param <K> The type of the key.
-   * @param <V> The type of the value.
-   */
-  private static class QItem<K, V> {
-    /**
-     * Constructs a new {@link QItem} with the specified key and value.
-     *
-     * @param key The key of the item.
-     * @param value The value of the item.
-     */
-    public QItem(K key, V value) {
-      this.key = key;
-      this.value = value;
-    }
-
-    /**
-     * Returns a string representation of this {@link QItem}.
-     *
-     * @return A string representation in the format "key value".
-     */
-    @Override
-    public String toString() {
-      return key + " " + value;
-    }
-
-    /** The key of this item. */
-    K key;
-
-    /** The value of this item. */
-    V value;
-  }
-
-  /**
-   * Array deque to maintain the LRU order of {@link QItem}s.
+   * Linked list maintaining the LRU order of the entries.
    *
-   * <p>The list stores {@link QItem}s in the order of their last access, with the most recently
-   * used item at the head and the least recently used item at the tail. Using a {@link ArrayDeque}
-   * allows for efficient addition and removal of items at both ends.
+   * <p>The list stores the entries in the order of their last access, with the most recently used
+   * item at the head and the least recently used item at the tail. Entries are linked directly, so
+   * an entry found through {@link #underlyingMap} can be moved or removed in constant time.
    */
-  private final ArrayDeque<QItem<K, V>> list = new ArrayDeque<>();
+  private final LruList<K, V> list = new LruList<>();
 
   /**
-   * Underlying map to store key to {@link QItem} mappings for fast lookup.
+   * Underlying map to store key to list node mappings for fast lookup.
    *
    * <p>This map provides constant-time average complexity for operations like {@code get}, {@code
-   * put}, and {@code remove} based on keys. The values in this map are {@link QItem} instances,
-   * which are also stored in the {@link #list} to maintain LRU order.
+   * put}, and {@code remove} based on keys. The values in this map are the nodes linked into {@link
+   * #list} to maintain LRU order.
    */
-  private final Map<K, QItem<K, V>> underlyingMap;
+  private final Map<K, LruList.Node<K, V>> underlyingMap;
 }
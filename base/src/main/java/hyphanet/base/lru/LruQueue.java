@@ -4,14 +4,14 @@ import java.util.*;
 import org.jspecify.annotations.Nullable;
 
 /**
- * {@code LruQueue} is a thread-safe implementation of a Least Recently Used (LRU) queue using
- * standard {@link LinkedList} and {@link HashMap}.
+ * {@code LruQueue} is a thread-safe implementation of a Least Recently Used (LRU) queue using a
+ * {@link HashMap} indexing an intrusive doubly linked list, so that every operation except the
+ * array conversions takes constant time.
  *
  * <p><b>Ordering:</b>
  *
  * <ul>
- *   <li>The <b>head</b> (first element) of the {@link LinkedList} is the <b>most recently used
- *       (MRU)</b>.
+ *   <li>The <b>head</b> (first element) of the linked list is the <b>most recently used (MRU)</b>.
  *   <li>The <b>tail</b> (last element) is the <b>least recently used (LRU)</b>.
  * </ul>
  *
@@ -28,7 +28,7 @@ import org.jspecify.annotations.Nullable;
  *
  * <p>The {@link #toArrayOrdered()} and {@link #toArrayOrdered(Object[])} methods return an array
  * where index 0 contains the LRU element and the last element is the MRU. This is the reverse of
- * the internal LinkedList order to provide LRU-first ordering in the array representation.
+ * the internal list order to provide LRU-first ordering in the array representation.
  *
  * @param <T> The type of objects held in this {@code LruQueue}.
  */
@@ -45,13 +45,16 @@ public class LruQueue<T> {
    */
   public final synchronized void addRecent(T obj) {
     if (obj == null) throw new NullPointerException();
-    // If the element exists, remove it from its current position.
-    if (map.containsKey(obj)) {
-      list.remove(obj);
+    var node = map.get(obj);
+    if (node != null) {
+      // If the element exists, move it from its current position to the front (MRU).
+      node.value = obj;
+      list.moveToFirst(node);
+    } else {
+      node = new LruList.Node<>(obj, obj);
+      map.put(obj, node);
+      list.addFirst(node);
     }
-    // Add the element at the front (MRU) and update the map.
-    list.addFirst(obj);
-    map.put(obj, obj);
   }
 
   /**
@@ -65,12 +68,16 @@ public class LruQueue<T> {
    */
   public synchronized void addLeastRecent(T obj) {
     if (obj == null) throw new NullPointerException();
-    if (map.containsKey(obj)) {
-      list.remove(obj);
+    var node = map.get(obj);
+    if (node != null) {
+      // If the element exists, move it from its current position to the tail (LRU).
+      node.value = obj;
+      list.moveToLast(node);
+    } else {
+      node = new LruList.Node<>(obj, obj);
+      map.put(obj, node);
+      list.addLast(node);
     }
-    // Add the element at the tail (LRU) and update the map.
-    list.addLast(obj);
-    map.put(obj, obj);
   }
 
   /**
@@ -82,10 +89,10 @@ public class LruQueue<T> {
    * @return The least recently used object, or {@code null} if the queue is empty.
    */
   public final synchronized @Nullable T takeLeastRecent() {
-    if (!list.isEmpty()) {
-      T obj = list.removeLast(); // remove LRU from tail
-      map.remove(obj);
-      return obj;
+    var node = list.removeLast(); // remove LRU from tail
+    if (node != null) {
+      map.remove(node.key);
+      return node.value;
     } else {
       return null;
     }
@@ -111,9 +118,9 @@ public class LruQueue<T> {
    */
   public final synchronized boolean remove(T obj) {
     if (obj == null) throw new NullPointerException();
-    if (map.containsKey(obj)) {
-      map.remove(obj);
-      list.remove(obj);
+    var node = map.remove(obj);
+    if (node != null) {
+      list.unlink(node);
       return true;
     }
     return false;
@@ -135,12 +142,15 @@ public class LruQueue<T> {
    * Returns an {@link Iterator} over the elements in the queue, ordered from LRU to MRU.
    *
    * <p>This iterator allows traversal of the queue elements in the least-recently-used to
-   * most-recently-used order.
+   * most-recently-used order. It iterates over a snapshot taken when this method is called, so it
+   * is not affected by later modifications of the queue.
    *
    * @return An {@link Iterator} of the objects in the queue from LRU to MRU.
    */
-  public Iterator<T> elements() {
-    return list.descendingIterator();
+  public synchronized Iterator<T> elements() {
+    List<T> snapshot = new ArrayList<>(list.size());
+    list.forEachFromLeastRecent(node -> snapshot.add(node.value));
+    return snapshot.iterator();
   }
 
   /**
@@ -186,9 +196,9 @@ public class LruQueue<T> {
   public synchronized Object[] toArrayOrdered() {
     Object[] array = new Object[list.size()];
     int index = 0;
-    // Using descendingIterator so that iteration goes from tail (LRU) to head (MRU)
-    for (Iterator<T> it = list.descendingIterator(); it.hasNext(); ) {
-      array[index++] = it.next();
+    // Iterate from tail (LRU) to head (MRU)
+    for (var node = list.peekLast(); node != null; node = node.prev) {
+      array[index++] = node.value;
     }
     return array;
   }
@@ -219,8 +229,8 @@ public class LruQueue<T> {
       throw new IllegalStateException(
           "array.length=" + array.length + " but list.size=" + list.size());
     int index = 0;
-    for (Iterator<T> it = list.descendingIterator(); it.hasNext(); ) {
-      array[index++] = (E) it.next();
+    for (var node = list.peekLast(); node != null; node = node.prev) {
+      array[index++] = (E) node.value;
     }
     return array;
   }
@@ -237,7 +247,7 @@ public class LruQueue<T> {
   /**
    * Removes all elements from the queue, making it empty.
    *
-   * <p>This operation clears both the internal {@link LinkedList} and {@link HashMap}.
+   * <p>This operation clears both the internal linked list and {@link HashMap}.
    */
   public synchronized void clear() {
     list.clear();
@@ -256,22 +266,23 @@ public class LruQueue<T> {
    * @return The object if it is in the queue, {@code null} otherwise.
    */
   public synchronized @Nullable T get(T obj) {
-    return map.get(obj);
+    var node = map.get(obj);
+    return node == null ? null : node.value;
   }
 
   /**
-   * The {@link ArrayDeque} that maintains the LRU order of elements.
+   * The linked list that maintains the LRU order of elements.
    *
    * <p>The head of the list is the most recently used element, and the tail is the least recently
    * used element.
    */
-  private final ArrayDeque<T> list = new ArrayDeque<>();
+  private final LruList<T, T> list = new LruList<>();
 
   /**
    * The {@link HashMap} used for fast lookups and presence checks of elements in the queue.
    *
-   * <p>Maps each element in the queue to itself, allowing for O(1) time complexity for {@link
-   * #contains(Object)} and {@link #remove(Object)} operations.
+   * <p>Maps each element in the queue to its list node, allowing for O(1) time complexity for
+   * {@link #contains(Object)}, {@link #remove(Object)} and moving an element within the list.
    */
-  private final Map<T, T> map = new HashMap<>();
+  private final Map<T, LruList.Node<T, T>> map = new HashMap<>();
 }
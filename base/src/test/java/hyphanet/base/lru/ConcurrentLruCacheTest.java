@@ -0,0 +1,199 @@
+package hyphanet.base.lru;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import org.junit.jupiter.api.Test;
+
+class ConcurrentLruCacheTest {
+
+  @Test
+  void testPutGet() {
+    var cache = new ConcurrentLruCache<Integer, String>(100);
+    for (int i = 0; i < 100; i++) {
+      cache.put(i, "v" + i);
+    }
+    for (int i = 0; i < 100; i++) {
+      assertEquals("v" + i, cache.get(i));
+    }
+    cache.put(5, "new");
+    assertEquals("new", cache.get(5));
+    assertEquals(100, cache.size());
+    assertTrue(cache.remove(5));
+    assertFalse(cache.remove(5));
+    assertNull(cache.get(5));
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get(1));
+  }
+
+  @Test
+  void testNullKey() {
+    var cache = new ConcurrentLruCache<Integer, String>(10);
+    assertThrows(NullPointerException.class, () -> cache.put(null, "a"));
+    assertThrows(NullPointerException.class, () -> cache.get(null));
+  }
+
+  @Test
+  void testShardCount() {
+    assertEquals(1, new ConcurrentLruCache<Integer, Integer>(1, Long.MAX_VALUE, 16).shardCount());
+    assertEquals(4, new ConcurrentLruCache<Integer, Integer>(5, Long.MAX_VALUE, 16).shardCount());
+    assertEquals(8, new ConcurrentLruCache<Integer, Integer>(1000, Long.MAX_VALUE, 5).shardCount());
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrentLruCache<>(0));
+  }
+
+  /** With a single shard, eviction order must be exactly the one of {@link LruCache}. */
+  @Test
+  void testSingleShardEvictsLikeLruCache() {
+    int limit = 50;
+    var cache = new ConcurrentLruCache<Integer, Integer>(limit, Long.MAX_VALUE, 1);
+    var reference = new LruCache<Integer, Integer>(limit);
+    Random r = new Random(7);
+    for (int i = 0; i < 100_000; i++) {
+      int key = r.nextInt(limit * 2);
+      if (r.nextBoolean()) {
+        cache.put(key, i);
+        reference.put(key, i);
+      } else {
+        assertEquals(reference.get(key), cache.get(key), "key " + key + " at step " + i);
+      }
+    }
+  }
+
+  @Test
+  void testExpiration() {
+    var now = new AtomicLong(1_000);
+    var cache = new ConcurrentLruCache<Integer, String>(10, 50, 1, now::get);
+    cache.put(1, "a");
+    assertEquals("a", cache.get(1));
+    now.addAndGet(50);
+    assertEquals("a", cache.get(1));
+    now.addAndGet(1);
+    assertEquals(1, cache.size()); // Expiry is passive.
+    assertNull(cache.get(1));
+    assertEquals(0, cache.size());
+    // Putting again resets the expiration time.
+    cache.put(2, "b");
+    now.addAndGet(30);
+    cache.put(2, "c");
+    now.addAndGet(30);
+    assertEquals("c", cache.get(2));
+    now.addAndGet(21);
+    assertNull(cache.get(2));
+  }
+
+  /**
+   * Hammers a small cache from several threads. Every value is derived from its key, so any torn or
+   * misplaced entry shows up as a wrong value, and the size limit must hold throughout.
+   */
+  @Test
+  void testConcurrentStress() throws Exception {
+    int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+    int limit = 1000;
+    var cache = new ConcurrentLruCache<Integer, Integer>(limit, Long.MAX_VALUE, 8);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int seed = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  Random r = new Random(seed);
+                  start.await();
+                  for (int i = 0; i < 200_000; i++) {
+                    int key = r.nextInt(limit * 3);
+                    switch (r.nextInt(10)) {
+                      case 0, 1 -> cache.put(key, key * 31);
+                      case 2 -> cache.remove(key);
+                      default -> {
+                        Integer value = cache.get(key);
+                        if (value != null) {
+                          assertEquals(key * 31, value);
+                        }
+                      }
+                    }
+                    if ((i & 1023) == 0) {
+                      assertTrue(cache.size() <= limit, "size " + cache.size());
+                    }
+                  }
+                  return null;
+                }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(cache.size() <= limit);
+    for (int key = 0; key < limit * 3; key++) {
+      Integer value = cache.get(key);
+      if (value != null) {
+        assertEquals(key * 31, value);
+      }
+    }
+  }
+
+  /**
+   * Compares the hit rate with {@link LruCache} on a skewed workload. Sharding and lossy access
+   * recording must not cost more than a few percent of hit rate. Throughput is measured by {@code
+   * ConcurrentLruCacheBenchmark}.
+   */
+  @Test
+  void testHitRateAgainstLruCache() {
+    int limit = 10_000;
+    int keySpace = 100_000;
+    int[] keys = skewedKeys(1_000_000, keySpace, 42);
+    var lruCache = new LruCache<Integer, Integer>(limit);
+    var concurrentCache = new ConcurrentLruCache<Integer, Integer>(limit);
+
+    double lruHitRate = hitRate(new CacheOps(lruCache::get, lruCache::put), keys);
+    double concurrentHitRate =
+        hitRate(new CacheOps(concurrentCache::get, concurrentCache::put), keys);
+    assertTrue(lruHitRate > 0.5, "hit rate " + lruHitRate);
+    assertTrue(
+        concurrentHitRate > lruHitRate - 0.05,
+        "hit rate " + concurrentHitRate + " vs " + lruHitRate);
+    assertTrue(concurrentCache.size() <= limit);
+  }
+
+  /** Draws keys from an exponential distribution, so that a small set of keys is hot. */
+  private static int[] skewedKeys(int count, int keySpace, long seed) {
+    Random r = new Random(seed);
+    int[] keys = new int[count];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = (int) Math.min(keySpace - 1, -Math.log(r.nextDouble()) * 5000);
+    }
+    return keys;
+  }
+
+  /** Runs a read-through workload on the calling thread and returns the share of hits. */
+  private static double hitRate(CacheOps cache, int[] keys) {
+    long hits = 0;
+    for (int key : keys) {
+      if (cache.get.apply(key) != null) {
+        hits++;
+      } else {
+        cache.put.put(key, key);
+      }
+    }
+    return (double) hits / keys.length;
+  }
+
+  private interface Put {
+    void put(int key, int value);
+  }
+
+  private record CacheOps(IntFunction<Integer> get, Put put) {}
+}
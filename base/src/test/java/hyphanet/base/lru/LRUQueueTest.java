@@ -17,6 +17,11 @@ package hyphanet.base.lru;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -311,6 +316,58 @@ class LRUQueueTest {
     return methodLruQueue;
   }
 
+  /**
+   * Runs a random sequence of operations against both a {@link LruQueue} and a straightforward
+   * deque model of the original implementation, and verifies that the order and all returned values
+   * are identical.
+   */
+  @Test
+  void testOrderingMatchesReference() {
+    Random r = new Random(20250316);
+    LruQueue<Integer> queue = new LruQueue<>();
+    ArrayDeque<Integer> reference = new ArrayDeque<>(); // head is most recent
+    for (int i = 0; i < 20000; i++) {
+      Integer obj = r.nextInt(200);
+      switch (r.nextInt(6)) {
+        case 0, 1 -> {
+          reference.remove(obj);
+          reference.addFirst(obj);
+          queue.addRecent(obj);
+        }
+        case 2 -> {
+          reference.remove(obj);
+          reference.addLast(obj);
+          queue.addLeastRecent(obj);
+        }
+        case 3 -> assertEquals(reference.remove(obj), queue.remove(obj));
+        case 4 -> assertEquals(reference.contains(obj), queue.contains(obj));
+        default -> assertEquals(reference.pollLast(), queue.takeLeastRecent());
+      }
+      assertEquals(reference.size(), queue.size());
+    }
+    List<Integer> expected = new ArrayList<>();
+    reference.descendingIterator().forEachRemaining(expected::add);
+    List<Integer> actual = new ArrayList<>();
+    queue.elements().forEachRemaining(actual::add);
+    assertEquals(expected, actual);
+    assertEquals(expected, List.of(queue.toArrayOrdered(new Integer[queue.size()])));
+    assertArrayEquals(expected.toArray(), queue.toArrayOrdered());
+  }
+
+  /** Iterators returned by {@link LruQueue#elements()} must not see later modifications. */
+  @Test
+  void testSnapshotIteration() {
+    LruQueue<Object> queue = createSampleQueue();
+    Object[] expected = queue.toArrayOrdered();
+    Iterator<Object> it = queue.elements();
+    queue.clear();
+    queue.addRecent(new Object());
+    for (Object o : expected) {
+      assertSame(o, it.next());
+    }
+    assertFalse(it.hasNext());
+  }
+
   /**
    * Verifies if an element is present in an array
    *
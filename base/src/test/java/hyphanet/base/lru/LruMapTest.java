@@ -17,7 +17,12 @@ package hyphanet.base.lru;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
+import java.util.Random;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -307,6 +312,97 @@ class LruMapTest {
     assertTrue(methodLRUht.isEmpty());
   }
 
+  /**
+   * Runs a random sequence of operations against both a {@link LruMap} and a straightforward deque
+   * model of the original implementation, and verifies that the order and all returned values are
+   * identical.
+   */
+  @Test
+  void testOrderingMatchesReference() {
+    Random r = new Random(20250315);
+    for (LruMap<Integer, Integer> map :
+        List.of(new LruMap<Integer, Integer>(), LruMap.<Integer, Integer>createSafeMap())) {
+      ArrayDeque<Integer[]> reference = new ArrayDeque<>(); // head is most recent
+      for (int i = 0; i < 20000; i++) {
+        Integer key = r.nextInt(200);
+        switch (r.nextInt(6)) {
+          case 0, 1, 2 -> {
+            Integer value = r.nextInt();
+            Integer[] old = find(reference, key);
+            if (old != null) {
+              reference.remove(old);
+            }
+            reference.addFirst(new Integer[] {key, value});
+            assertEquals(old == null ? null : old[1], map.addRecent(key, value));
+          }
+          case 3 -> {
+            Integer[] old = find(reference, key);
+            if (old != null) {
+              reference.remove(old);
+            }
+            assertEquals(old != null, map.removeKey(key));
+          }
+          case 4 -> {
+            Integer[] last = reference.peekLast();
+            assertEquals(last == null ? null : last[0], map.peekLeastRecentKey());
+            assertEquals(last == null ? null : last[1], map.peekLeastRecentValue());
+          }
+          default -> {
+            Integer[] last = reference.pollLast();
+            if (r.nextBoolean()) {
+              assertEquals(last == null ? null : last[0], map.takeLeastRecentKey());
+            } else {
+              assertEquals(last == null ? null : last[1], map.takeLeastRecentValue());
+            }
+          }
+        }
+        assertEquals(reference.size(), map.size());
+      }
+      List<Integer> expectedKeys = new ArrayList<>();
+      List<Integer> expectedValues = new ArrayList<>();
+      reference
+          .descendingIterator()
+          .forEachRemaining(
+              e -> {
+                expectedKeys.add(e[0]);
+                expectedValues.add(e[1]);
+              });
+      assertEquals(expectedKeys, toList(map.keys()));
+      assertEquals(expectedValues, toList(map.values()));
+      Integer[] values = new Integer[map.size()];
+      map.valuesToArray(values);
+      assertEquals(expectedValues, List.of(values));
+    }
+  }
+
+  /** Iterators returned by {@link LruMap#keys()} must not see later modifications. */
+  @Test
+  void testSnapshotIteration() {
+    var map = createSampleHashTable();
+    Iterator<Object> keys = map.keys();
+    map.clear();
+    map.addRecent(-1, new Object());
+    for (int i = 0; i < SAMPLE_ITEMS_NUMBER; i++) {
+      assertEquals(i, keys.next());
+    }
+    assertFalse(keys.hasNext());
+  }
+
+  private static Integer[] find(ArrayDeque<Integer[]> reference, Integer key) {
+    for (Integer[] e : reference) {
+      if (e[0].equals(key)) {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  private static <T> List<T> toList(Iterator<T> it) {
+    List<T> list = new ArrayList<>();
+    it.forEachRemaining(list::add);
+    return list;
+  }
+
   /**
    * Creates a double array of objects with a specified size where Object[i][0] is the key, and is
    * an Integer, and Object[i][1] is the value
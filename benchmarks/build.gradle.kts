@@ -0,0 +1,40 @@
+import net.ltgt.gradle.errorprone.errorprone
+
+/*
+ * JMH benchmarks for the library modules.
+ *
+ * Run all suites with `./gradlew :benchmarks:jmh`, or a subset with e.g.
+ * `./gradlew :benchmarks:jmh -Pjmh.includes=LruMap`. Once the dependencies are in the Gradle cache
+ * this also works with `--offline`. Results are written as JSON to
+ * build/results/jmh/results.json for comparison between revisions.
+ */
+
+plugins {
+    id("buildlogic.java-common-conventions")
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+dependencies {
+    jmh(project(":base"))
+    jmh(project(":crypt"))
+    jmh(project(":support"))
+    jmh(project(":access"))
+
+    jmh("org.bouncycastle:bcprov-jdk18on:latest.release")
+}
+
+jmh {
+    jmhVersion = "1.37"
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+    jvmArgsAppend = listOf("--enable-preview")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    providers.gradleProperty("jmh.includes").orNull?.let { includes = listOf(it) }
+}
+
+tasks.named<JavaCompile>("jmhCompileGeneratedClasses") {
+    // The sources generated by the JMH annotation processor are not ours to lint.
+    options.errorprone.isEnabled = false
+}
@@ -0,0 +1,64 @@
+package hyphanet.benchmarks;
+
+import hyphanet.support.io.storage.bucket.ArrayBucket;
+import hyphanet.support.io.storage.bucket.Bucket;
+import hyphanet.support.io.storage.bucket.BucketTools;
+import hyphanet.support.io.storage.bucket.RegularFileBucket;
+import hyphanet.support.io.util.FileSystem;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** {@link BucketTools#copy} and {@link BucketTools#hash} on RAM and file buckets. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class BucketToolsBenchmark {
+
+  @Param({"4096", "1048576", "16777216"})
+  public int size;
+
+  @Param({"ARRAY", "FILE"})
+  public String kind;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("bucket-tools-benchmark");
+    byte[] data = new byte[size];
+    new Random(42).nextBytes(data);
+    if ("FILE".equals(kind)) {
+      Path srcPath = dir.resolve("src");
+      Files.write(srcPath, data);
+      src = new RegularFileBucket(srcPath, true, false, false, false);
+      dst = new RegularFileBucket(dir.resolve("dst"), false, false, false, false);
+    } else {
+      src = new ArrayBucket(data);
+      dst = new ArrayBucket();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    src.close();
+    dst.close();
+    FileSystem.removeAll(dir);
+  }
+
+  @Benchmark
+  public Bucket copy() throws IOException {
+    BucketTools.copy(src, dst);
+    return dst;
+  }
+
+  @Benchmark
+  public byte[] hash() throws IOException {
+    return BucketTools.hash(src);
+  }
+
+  private Path dir;
+  private Bucket src;
+  private Bucket dst;
+}
@@ -0,0 +1,65 @@
+package hyphanet.benchmarks;
+
+import hyphanet.access.KeyEncodeException;
+import hyphanet.access.block.client.ChkSplitfileEncoder;
+import hyphanet.access.block.client.ClientChkBlock;
+import hyphanet.access.key.CryptoAlgorithm;
+import hyphanet.access.key.client.ClientChk;
+import hyphanet.crypt.JcaProvider;
+import hyphanet.support.io.storage.rab.ArrayRab;
+import hyphanet.support.io.storage.rab.Rab;
+import java.io.IOException;
+import java.security.Security;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encoding a 32 MiB splitfile with {@link ChkSplitfileEncoder} at different parallelism levels.
+ * Compare the scores against {@code threads=1} to see how encoding scales with cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ChkSplitfileEncoderBenchmark {
+
+  private static final int BLOCKS = 1024;
+
+  static {
+    Security.addProvider(new JcaProvider());
+  }
+
+  @Param({"ALGO_AES_PCFB_256_SHA256", "ALGO_AES_CTR_256_SHA256"})
+  public CryptoAlgorithm cryptoAlgorithm;
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    byte[] data = new byte[BLOCKS * ClientChkBlock.DATA_LENGTH];
+    new Random(42).nextBytes(data);
+    source = new ArrayRab(data);
+    output = new ArrayRab((int) ChkSplitfileEncoder.encodedLength(data.length));
+    executor = Executors.newFixedThreadPool(threads);
+    encoder = new ChkSplitfileEncoder(executor, threads);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public List<ClientChk> encode() throws KeyEncodeException, IOException {
+    return encoder.encode(source, 0, source.size(), output, null, cryptoAlgorithm);
+  }
+
+  private Rab source;
+  private Rab output;
+  private ExecutorService executor;
+  private ChkSplitfileEncoder encoder;
+}
@@ -0,0 +1,74 @@
+package hyphanet.benchmarks;
+
+import hyphanet.access.KeyDecodeException;
+import hyphanet.access.KeyEncodeException;
+import hyphanet.access.KeyVerifyException;
+import hyphanet.access.block.client.ClientChkBlock;
+import hyphanet.access.block.node.NodeChkBlock;
+import hyphanet.access.key.CompressionAlgorithm;
+import hyphanet.access.key.CryptoAlgorithm;
+import hyphanet.access.key.client.ClientChk;
+import hyphanet.crypt.JcaProvider;
+import hyphanet.support.io.storage.bucket.ArrayBucket;
+import hyphanet.support.io.storage.bucket.ArrayBucketFactory;
+import hyphanet.support.io.storage.bucket.Bucket;
+import java.io.IOException;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/** Encoding and decoding of full 32 KiB CHK blocks with both crypto algorithms. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ClientChkBlockBenchmark {
+
+  static {
+    Security.addProvider(new JcaProvider());
+  }
+
+  @Param({"ALGO_AES_PCFB_256_SHA256", "ALGO_AES_CTR_256_SHA256"})
+  public CryptoAlgorithm cryptoAlgorithm;
+
+  @Setup(Level.Trial)
+  public void setUp() throws KeyEncodeException, IOException {
+    data = new byte[ClientChkBlock.DATA_LENGTH];
+    new Random(42).nextBytes(data);
+    ClientChkBlock encoded = encode();
+    key = encoded.getClientKey();
+    rawData = encoded.getBlock().getRawData();
+    rawHeaders = encoded.getBlock().getRawHeaders();
+  }
+
+  @Benchmark
+  public ClientChkBlock encode() throws KeyEncodeException, IOException {
+    return ClientChkBlock.encode(
+        new ArrayBucket(data),
+        false,
+        false,
+        CompressionAlgorithm.NO_COMP,
+        data.length,
+        null,
+        null,
+        cryptoAlgorithm);
+  }
+
+  @Benchmark
+  public ClientChkBlock encodeSplitfileBlock() throws KeyEncodeException {
+    return ClientChkBlock.encodeSplitfileBlock(data, null, cryptoAlgorithm);
+  }
+
+  /** Verifies the node-level block and decrypts it, as a fetch does. */
+  @Benchmark
+  public Bucket decode() throws KeyVerifyException, KeyDecodeException, IOException {
+    var block = new NodeChkBlock(rawData, rawHeaders, null, cryptoAlgorithm, true);
+    return new ClientChkBlock(block, key).decode(bucketFactory, data.length, false);
+  }
+
+  private final ArrayBucketFactory bucketFactory = new ArrayBucketFactory();
+  private byte[] data;
+  private ClientChk key;
+  private byte[] rawData;
+  private byte[] rawHeaders;
+}
@@ -0,0 +1,100 @@
+package hyphanet.benchmarks;
+
+import hyphanet.support.compress.Compressor;
+import hyphanet.support.compress.CompressorRegistry;
+import hyphanet.support.compress.CompressorType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Every {@link Compressor} registered in {@link CompressorRegistry}, on text-like data which
+ * compresses to roughly a third of its size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class CompressorBenchmark {
+
+  private static final String[] WORDS = {
+    "freenet",
+    "hyphanet",
+    "bucket",
+    "splitfile",
+    "block",
+    "key",
+    "insert",
+    "request",
+    "node",
+    "peer",
+    "the",
+    "of",
+    "and",
+    "a",
+    "to",
+    "in",
+    "is",
+    "that",
+    "for",
+    "with"
+  };
+
+  @Param({"GZIP", "BZIP2", "LZMA_NEW"})
+  public CompressorType type;
+
+  @Param({"32768", "1048576"})
+  public int size;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    compressor = Objects.requireNonNull(CompressorRegistry.getInstance().getCompressor(type));
+    data = text(size);
+    var out = new ByteArrayOutputStream();
+    compressor.compress(new ByteArrayInputStream(data), out, size, Long.MAX_VALUE);
+    compressed = out.toByteArray();
+    output = new byte[size];
+  }
+
+  @Benchmark
+  public byte[] compress() throws IOException {
+    var out = new ByteArrayOutputStream(size);
+    compressor.compress(new ByteArrayInputStream(data), out, size, Long.MAX_VALUE);
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public long decompressStream() throws IOException {
+    var out = new ByteArrayOutputStream(size);
+    return compressor.decompress(new ByteArrayInputStream(compressed), out, size, -1);
+  }
+
+  @Benchmark
+  public int decompressArray() throws IOException {
+    return compressor.decompress(compressed, 0, compressed.length, output);
+  }
+
+  private static byte[] text(int size) {
+    Random r = new Random(42);
+    var sb = new StringBuilder(size + 16);
+    while (sb.length() < size) {
+      sb.append(WORDS[r.nextInt(WORDS.length)]);
+      sb.append(r.nextInt(12) == 0 ? ".\n" : " ");
+      if (r.nextInt(8) == 0) {
+        sb.append(r.nextInt(100_000));
+        sb.append(' ');
+      }
+    }
+    sb.setLength(size);
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private Compressor compressor;
+  private byte[] data;
+  private byte[] compressed;
+  private byte[] output;
+}
@@ -0,0 +1,143 @@
+package hyphanet.benchmarks;
+
+import hyphanet.base.lru.ConcurrentLruCache;
+import hyphanet.base.lru.LruCache;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A read-through workload on {@link ConcurrentLruCache} and {@link LruCache} from several threads,
+ * with keys drawn from a Zipf distribution. Besides the throughput, the {@code hits} and {@code
+ * misses} counters give the hit rate of each cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentLruCacheBenchmark {
+
+  private static final int LIMIT = 10_000;
+  private static final int KEY_SPACE = 100_000;
+
+  /** The number of keys each thread cycles through. */
+  private static final int KEYS_PER_THREAD = 1 << 20;
+
+  public enum CacheType {
+    LRU,
+    CONCURRENT
+  }
+
+  @Param({"LRU", "CONCURRENT"})
+  public CacheType cacheType;
+
+  @Param({"0.99"})
+  public double zipfExponent;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    switch (cacheType) {
+      case LRU -> {
+        var cache = new LruCache<Integer, Integer>(LIMIT);
+        get = cache::get;
+        put = cache::put;
+      }
+      case CONCURRENT -> {
+        var cache = new ConcurrentLruCache<Integer, Integer>(LIMIT);
+        get = cache::get;
+        put = cache::put;
+      }
+    }
+    cumulative = zipfCumulative(KEY_SPACE, zipfExponent);
+  }
+
+  @Benchmark
+  public Integer readThrough(ThreadKeys keys, HitCounters counters) {
+    Integer key = keys.next();
+    Integer value = get.apply(key);
+    if (value != null) {
+      counters.hits++;
+    } else {
+      counters.misses++;
+      value = key;
+      put.accept(key, value);
+    }
+    return value;
+  }
+
+  /** The keys of one thread. */
+  @State(Scope.Thread)
+  public static class ThreadKeys {
+
+    @Setup(Level.Trial)
+    public void setUp(ConcurrentLruCacheBenchmark benchmark) {
+      Random random = new Random(SEEDS.getAndIncrement());
+      keys = new Integer[KEYS_PER_THREAD];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = sample(benchmark.cumulative, random.nextDouble());
+      }
+    }
+
+    Integer next() {
+      Integer key = keys[index];
+      index = (index + 1) & (KEYS_PER_THREAD - 1);
+      return key;
+    }
+
+    private static final AtomicInteger SEEDS = new AtomicInteger();
+
+    private Integer[] keys;
+    private int index;
+  }
+
+  /** Reported by JMH per iteration; the hit rate is {@code hits / (hits + misses)}. */
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class HitCounters {
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      hits = 0;
+      misses = 0;
+    }
+
+    public long hits;
+    public long misses;
+  }
+
+  /** Returns the cumulative distribution of a Zipf distribution over {@code n} keys. */
+  private static double[] zipfCumulative(int n, double exponent) {
+    double[] cumulative = new double[n];
+    double sum = 0;
+    for (int k = 0; k < n; k++) {
+      sum += 1 / Math.pow(k + 1, exponent);
+      cumulative[k] = sum;
+    }
+    for (int k = 0; k < n; k++) {
+      cumulative[k] /= sum;
+    }
+    return cumulative;
+  }
+
+  /** Returns the key at which the cumulative distribution reaches {@code u}. */
+  private static int sample(double[] cumulative, double u) {
+    int low = 0;
+    int high = cumulative.length - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (cumulative[mid] < u) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private Function<Integer, Integer> get;
+  private BiConsumer<Integer, Integer> put;
+  private double[] cumulative;
+}
@@ -0,0 +1,59 @@
+package hyphanet.benchmarks;
+
+import hyphanet.base.lru.LruMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * {@link LruMap} used as a bounded cache: touching, inserting with eviction of the least recently
+ * used entry, and removing entries from the middle of the order.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class LruMapBenchmark {
+
+  @Param({"1000", "100000"})
+  public int size;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    map = new LruMap<>();
+    for (int i = 0; i < size; i++) {
+      map.addRecent(i, i);
+    }
+    nextKey = size;
+  }
+
+  @Benchmark
+  public Integer get() {
+    return map.get(ThreadLocalRandom.current().nextInt(nextKey - size, nextKey));
+  }
+
+  @Benchmark
+  public Integer touch() {
+    int key = ThreadLocalRandom.current().nextInt(nextKey - size, nextKey);
+    return map.addRecent(key, key);
+  }
+
+  @Benchmark
+  public Integer addAndEvict() {
+    map.addRecent(nextKey, nextKey);
+    nextKey++;
+    return map.takeLeastRecentValue();
+  }
+
+  @Benchmark
+  public boolean removeAndReinsert() {
+    int key = ThreadLocalRandom.current().nextInt(nextKey - size, nextKey);
+    boolean removed = map.removeKey(key);
+    map.addRecent(key, key);
+    return removed;
+  }
+
+  private LruMap<Integer, Integer> map;
+
+  /** One more than the newest key; the map holds the keys {@code [nextKey - size, nextKey)}. */
+  private int nextKey;
+}
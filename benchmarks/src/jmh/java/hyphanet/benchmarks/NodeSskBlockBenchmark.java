@@ -0,0 +1,84 @@
+package hyphanet.benchmarks;
+
+import hyphanet.access.KeyVerifyException;
+import hyphanet.access.block.node.NodeKeyBlock;
+import hyphanet.access.block.node.NodeSskBlock;
+import hyphanet.access.key.client.ClientKsk;
+import hyphanet.access.key.node.NodeSsk;
+import hyphanet.crypt.Global;
+import hyphanet.crypt.hash.Sha256;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.interfaces.DSAPrivateKey;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.crypto.params.DSAPrivateKeyParameters;
+import org.bouncycastle.crypto.signers.DSASigner;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Signature verification of {@link NodeSskBlock}, which dominates the cost of accepting an SSK from
+ * the network.
+ *
+ * <p>There is no SSK encoder in the tree yet, so the fixture signs a block of random data itself,
+ * following the header layout documented in {@link NodeSskBlock}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class NodeSskBlockBenchmark {
+
+  private static final int SIGNATURE_OFFSET = 2 + 2 + 32 + NodeSskBlock.ENCRYPTED_HEADERS_LENGTH;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    ClientKsk clientKey = ClientKsk.create("benchmark");
+    nodeKey = clientKey.getNodeKey();
+    Random r = new Random(42);
+    data = new byte[NodeSskBlock.DATA_LENGTH];
+    r.nextBytes(data);
+    headers = new byte[NodeSskBlock.TOTAL_HEADERS_LENGTH];
+    headers[1] = (byte) NodeKeyBlock.HASH_SHA256;
+    byte[] ehDocname = nodeKey.getEhDocname();
+    System.arraycopy(ehDocname, 0, headers, 4, ehDocname.length);
+    byte[] encryptedHeaders = new byte[NodeSskBlock.ENCRYPTED_HEADERS_LENGTH];
+    r.nextBytes(encryptedHeaders);
+    System.arraycopy(encryptedHeaders, 0, headers, 4 + ehDocname.length, encryptedHeaders.length);
+
+    MessageDigest md = Sha256.getMessageDigest();
+    byte[] dataHash = md.digest(data);
+    md.update(headers, 0, SIGNATURE_OFFSET);
+    md.update(dataHash);
+    byte[] overallHash = md.digest();
+    var signer = new DSASigner();
+    signer.init(
+        true,
+        new DSAPrivateKeyParameters(
+            ((DSAPrivateKey) clientKey.getPrivateKey()).getX(),
+            Global.getDSAgroupBigAParameters()));
+    BigInteger[] signature = signer.generateSignature(Global.truncateHash(overallHash));
+    writeUnsigned(signature[0], headers, SIGNATURE_OFFSET);
+    writeUnsigned(signature[1], headers, SIGNATURE_OFFSET + 32);
+  }
+
+  @Benchmark
+  public NodeSskBlock verify() throws KeyVerifyException {
+    return new NodeSskBlock(data, headers, nodeKey, true);
+  }
+
+  @Benchmark
+  public NodeSskBlock parseWithoutVerify() throws KeyVerifyException {
+    return new NodeSskBlock(data, headers, nodeKey, false);
+  }
+
+  /** Writes {@code value} as a 32 byte unsigned big-endian number. */
+  private static void writeUnsigned(BigInteger value, byte[] buf, int offset) {
+    byte[] bytes = value.toByteArray();
+    int length = Math.min(bytes.length, 32);
+    System.arraycopy(bytes, bytes.length - length, buf, offset + 32 - length, length);
+  }
+
+  private NodeSsk nodeKey;
+  private byte[] data;
+  private byte[] headers;
+}
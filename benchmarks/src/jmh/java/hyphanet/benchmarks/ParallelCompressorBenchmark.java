@@ -0,0 +1,71 @@
+package hyphanet.benchmarks;
+
+import hyphanet.support.compress.Bzip2Compressor;
+import hyphanet.support.compress.Compressor;
+import hyphanet.support.compress.CompressorType;
+import hyphanet.support.compress.GzipCompressor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compressing 16 MiB of text-like data with the parallel gzip and bzip2 compressors at different
+ * parallelism levels. Compare the scores against {@code threads=1} to see how compression scales
+ * with cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ParallelCompressorBenchmark {
+
+  private static final int SIZE = 16 * 1024 * 1024;
+
+  @Param({"GZIP", "BZIP2"})
+  public CompressorType type;
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(threads);
+    compressor =
+        switch (type) {
+          case GZIP -> new GzipCompressor(executor, threads);
+          case BZIP2 -> new Bzip2Compressor(executor, threads);
+          default -> throw new IllegalArgumentException("No parallel compressor for " + type);
+        };
+    data = text();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Benchmark
+  public long compress() throws IOException {
+    var out = new ByteArrayOutputStream(SIZE / 2);
+    return compressor.compress(new ByteArrayInputStream(data), out, SIZE, Long.MAX_VALUE);
+  }
+
+  private static byte[] text() {
+    Random r = new Random(42);
+    var sb = new StringBuilder(SIZE + 16);
+    while (sb.length() < SIZE) {
+      sb.append("block").append(r.nextInt(1000)).append(r.nextInt(8) == 0 ? ".\n" : " ");
+    }
+    sb.setLength(SIZE);
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private ExecutorService executor;
+  private Compressor compressor;
+  private byte[] data;
+}
@@ -0,0 +1,94 @@
+package hyphanet.benchmarks;
+
+import hyphanet.crypt.key.MasterSecret;
+import hyphanet.support.io.storage.Storage;
+import hyphanet.support.io.storage.rab.EncryptedRab;
+import hyphanet.support.io.storage.rab.PooledFileRab;
+import hyphanet.support.io.storage.rab.Rab;
+import hyphanet.support.io.util.FileSystem;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Random positional reads and writes on a {@link PooledFileRab}, optionally wrapped in an {@link
+ * EncryptedRab}. Run with {@code -t} greater than one to measure contention; {@code
+ * ENCRYPTED_SHARED} serializes accesses on one cipher, {@code ENCRYPTED} uses pooled ciphers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class RabBenchmark {
+
+  private static final long FILE_SIZE = 64L * 1024 * 1024;
+
+  static {
+    Security.addProvider(new BouncyCastleProvider());
+  }
+
+  @Param({"POOLED", "ENCRYPTED", "ENCRYPTED_SHARED"})
+  public String kind;
+
+  @Param({"4096", "65536"})
+  public int blockSize;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, GeneralSecurityException {
+    dir = Files.createTempDirectory("rab-benchmark");
+    Rab file = new PooledFileRab(Files.createFile(dir.resolve("data")), false, FILE_SIZE, -1, true);
+    rab =
+        switch (kind) {
+          case "ENCRYPTED" -> new EncryptedRab(Storage.CRYPT_TYPE, file, new MasterSecret(), true);
+          case "ENCRYPTED_SHARED" ->
+              new EncryptedRab(Storage.CRYPT_TYPE, file, new MasterSecret(), true, false);
+          default -> file;
+        };
+    byte[] block = new byte[1024 * 1024];
+    ThreadLocalRandom.current().nextBytes(block);
+    for (long offset = 0; offset + block.length <= rab.size(); offset += block.length) {
+      rab.pwrite(offset, block, 0, block.length);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    rab.dispose();
+    FileSystem.removeAll(dir);
+  }
+
+  @Benchmark
+  public byte[] pread(Buffer buffer) throws IOException {
+    rab.pread(randomOffset(), buffer.bytes, 0, blockSize);
+    return buffer.bytes;
+  }
+
+  @Benchmark
+  public void pwrite(Buffer buffer) throws IOException {
+    rab.pwrite(randomOffset(), buffer.bytes, 0, blockSize);
+  }
+
+  private long randomOffset() {
+    return ThreadLocalRandom.current().nextLong(rab.size() / blockSize) * blockSize;
+  }
+
+  /** A per-thread transfer buffer. */
+  @State(Scope.Thread)
+  public static class Buffer {
+    @Setup(Level.Trial)
+    public void setUp(RabBenchmark benchmark) {
+      bytes = new byte[benchmark.blockSize];
+      ThreadLocalRandom.current().nextBytes(bytes);
+    }
+
+    byte[] bytes;
+  }
+
+  private Path dir;
+  private Rab rab;
+}
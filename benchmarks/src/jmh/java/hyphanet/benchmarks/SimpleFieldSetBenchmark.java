@@ -0,0 +1,59 @@
+package hyphanet.benchmarks;
+
+import hyphanet.support.SimpleFieldSet;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing and serializing a {@link SimpleFieldSet} shaped like a node reference: a few dozen
+ * top-level values plus nested subsets.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SimpleFieldSetBenchmark {
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Random r = new Random(42);
+    fieldSet = new SimpleFieldSet(false);
+    fieldSet.putSingle("identity", "Wc0Vd4cSOhqUaDAEoGNnPWGL1ZJzaNGsWLzLwPoSLBM");
+    fieldSet.putSingle("version", "Fred,0.7,1.0,1505");
+    fieldSet.putSingle("myName", "Benchmark node");
+    fieldSet.put("location", r.nextDouble());
+    fieldSet.put("opennet", true);
+    for (int i = 0; i < 32; i++) {
+      fieldSet.put("physical.udp" + i, r.nextInt(65536));
+      fieldSet.put("stats.counter" + i, r.nextLong());
+    }
+    for (int i = 0; i < 8; i++) {
+      fieldSet.putSingle("peers.peer" + i + ".name", "peer-" + i);
+      fieldSet.put("peers.peer" + i + ".location", r.nextDouble());
+      fieldSet.put("peers.peer" + i + ".lastSeen", System.currentTimeMillis() - r.nextInt());
+    }
+    serialized = fieldSet.toOrderedString();
+  }
+
+  @Benchmark
+  public SimpleFieldSet parse() throws IOException {
+    return new SimpleFieldSet(serialized, false, false);
+  }
+
+  @Benchmark
+  public String serialize() throws IOException {
+    var writer = new StringWriter(serialized.length());
+    fieldSet.writeTo(writer);
+    return writer.toString();
+  }
+
+  @Benchmark
+  public String serializeOrdered() {
+    return fieldSet.toOrderedString();
+  }
+
+  private SimpleFieldSet fieldSet;
+  private String serialized;
+}
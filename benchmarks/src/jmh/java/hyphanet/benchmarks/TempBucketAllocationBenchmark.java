@@ -0,0 +1,100 @@
+package hyphanet.benchmarks;
+
+import hyphanet.crypt.key.MasterSecret;
+import hyphanet.support.io.FilenameGenerator;
+import hyphanet.support.io.storage.Storage;
+import hyphanet.support.io.storage.TempStorageManager;
+import hyphanet.support.io.storage.TempStorageTracker;
+import hyphanet.support.io.storage.bucket.ArrayBucket;
+import hyphanet.support.io.storage.bucket.TempBucket;
+import hyphanet.support.io.storage.bucket.TempBucketFactory;
+import hyphanet.support.io.storage.bucket.TempFileBucketFactory;
+import hyphanet.support.io.storage.rab.TempRabFactory;
+import hyphanet.support.io.util.FileSystem;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Creating and disposing one million small RAM buckets, through {@link TempBucketFactory} and by
+ * constructing {@link TempBucket}s directly. Run with {@code -prof gc} and compare {@code
+ * gc.alloc.rate.norm}: the difference is what the factory allocates per bucket on top of the bucket
+ * itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class TempBucketAllocationBenchmark {
+
+  private static final int SMALL_BUCKETS = 1_000_000;
+  private static final long RAM_POOL_SIZE = 16 * 1024 * 1024;
+
+  static {
+    Security.addProvider(new BouncyCastleProvider());
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("temp-bucket-allocation-benchmark");
+    executor = Executors.newSingleThreadExecutor();
+    var secret = new MasterSecret();
+    filenameGenerator = new FilenameGenerator(new Random(), false, dir, "bench-");
+    var manager =
+        new TempStorageManager(
+            executor, filenameGenerator, 64 * 1024, RAM_POOL_SIZE, RAM_POOL_SIZE, false, secret);
+    ramTracker = manager.getRamTracker();
+    rabFactory = manager.getRabFactory();
+    factory = manager.getBucketFactory();
+    factory.setCreateRam(true);
+    fileBucketFactory =
+        new TempFileBucketFactory(filenameGenerator, false, Storage.CRYPT_TYPE, secret);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdownNow();
+    FileSystem.removeAll(dir);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SMALL_BUCKETS)
+  public void viaFactory() throws IOException {
+    for (int i = 0; i < SMALL_BUCKETS; i++) {
+      factory.makeBucket(16).dispose();
+    }
+  }
+
+  /** The cost of the buckets themselves, as a baseline for {@link #viaFactory()}. */
+  @Benchmark
+  @OperationsPerInvocation(SMALL_BUCKETS)
+  public void constructed() {
+    for (int i = 0; i < SMALL_BUCKETS; i++) {
+      new TempBucket(
+              ramTracker,
+              System.currentTimeMillis(),
+              new ArrayBucket(),
+              filenameGenerator.getDir(),
+              64 * 1024,
+              RAM_POOL_SIZE,
+              RAM_POOL_SIZE,
+              fileBucketFactory,
+              rabFactory)
+          .dispose();
+    }
+  }
+
+  private Path dir;
+  private ExecutorService executor;
+  private FilenameGenerator filenameGenerator;
+  private TempStorageTracker ramTracker;
+  private TempRabFactory rabFactory;
+  private TempBucketFactory factory;
+  private TempFileBucketFactory fileBucketFactory;
+}
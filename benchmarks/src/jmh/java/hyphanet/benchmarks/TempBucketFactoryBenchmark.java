@@ -0,0 +1,73 @@
+package hyphanet.benchmarks;
+
+import hyphanet.crypt.key.MasterSecret;
+import hyphanet.support.io.FilenameGenerator;
+import hyphanet.support.io.storage.TempStorageManager;
+import hyphanet.support.io.storage.bucket.TempBucket;
+import hyphanet.support.io.storage.bucket.TempBucketFactory;
+import hyphanet.support.io.util.FileSystem;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Security;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+/** Creating and disposing small temporary buckets through {@link TempBucketFactory#makeBucket}. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class TempBucketFactoryBenchmark {
+
+  private static final long RAM_POOL_SIZE = 16 * 1024 * 1024;
+
+  static {
+    Security.addProvider(new BouncyCastleProvider());
+  }
+
+  /** Whether new buckets start in RAM or on disk. */
+  @Param({"true", "false"})
+  public boolean createRam;
+
+  @Param({"false", "true"})
+  public boolean encrypt;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("temp-bucket-factory-benchmark");
+    executor = Executors.newSingleThreadExecutor();
+    var manager =
+        new TempStorageManager(
+            executor,
+            new FilenameGenerator(new Random(), false, dir, "bench-"),
+            64 * 1024,
+            RAM_POOL_SIZE,
+            // The RAB factory reserves the RAM pool on top of this, so it must not be smaller.
+            RAM_POOL_SIZE,
+            encrypt,
+            new MasterSecret());
+    factory = manager.getBucketFactory();
+    factory.setCreateRam(createRam);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    executor.shutdownNow();
+    FileSystem.removeAll(dir);
+  }
+
+  @Benchmark
+  public TempBucket makeBucket() throws IOException {
+    TempBucket bucket = factory.makeBucket(1024);
+    bucket.dispose();
+    return bucket;
+  }
+
+  private Path dir;
+  private ExecutorService executor;
+  private TempBucketFactory factory;
+}
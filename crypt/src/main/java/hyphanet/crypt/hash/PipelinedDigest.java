@@ -0,0 +1,231 @@
+package hyphanet.crypt.hash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Feeds a {@link MessageDigest} from a data source while the next chunk is being read, so that
+ * hashing large data costs about the larger of the time to read it and the time to digest it,
+ * rather than their sum.
+ *
+ * <p>The data is read in chunks of {@link #CHUNK_SIZE} bytes into a pair of buffers. The calling
+ * thread digests one buffer while a virtual thread fills the other. Data which fits in a single
+ * chunk is read and digested on the calling thread alone.
+ */
+public final class PipelinedDigest {
+
+  /** The size of the chunks read at a time. */
+  public static final int CHUNK_SIZE = 1024 * 1024;
+
+  private static final Queue<SoftReference<byte[]>> buffers = new ConcurrentLinkedQueue<>();
+
+  /** Stands in for a buffer in failed chunks, and wakes up the prefetcher when it should stop. */
+  private static final byte[] NO_BUFFER = new byte[0];
+
+  private PipelinedDigest() {
+    throw new UnsupportedOperationException("Utility class");
+  }
+
+  /**
+   * Digests everything a source provides until its end.
+   *
+   * <p>The source is read from another thread than the caller, but never from two threads at once,
+   * and not any more once this method returns.
+   *
+   * @param md The digest to update. It is not reset before or after.
+   * @param source Where to read the data from.
+   * @return The number of bytes digested.
+   * @throws IOException If reading from the source fails.
+   */
+  public static long update(MessageDigest md, Source source) throws IOException {
+    byte[] first = takeBuffer();
+    try {
+      int length = fill(source, first);
+      md.update(first, 0, length);
+      if (length < first.length) {
+        return length;
+      }
+      return length + pipeline(md, source);
+    } finally {
+      returnBuffer(first);
+    }
+  }
+
+  /**
+   * Digests everything an input stream provides until its end, without closing it.
+   *
+   * @param md The digest to update. It is not reset before or after.
+   * @param is The stream to read from.
+   * @return The number of bytes digested.
+   * @throws IOException If reading from the stream fails.
+   * @see #update(MessageDigest, Source)
+   */
+  public static long update(MessageDigest md, InputStream is) throws IOException {
+    return update(md, is::read);
+  }
+
+  /**
+   * Reads the rest of the data with a prefetching thread, while digesting on this one.
+   *
+   * @return The number of bytes digested.
+   */
+  private static long pipeline(MessageDigest md, Source source) throws IOException {
+    var prefetcher = new Prefetcher(source);
+    byte[] a = takeBuffer();
+    byte[] b = takeBuffer();
+    prefetcher.free.add(a);
+    prefetcher.free.add(b);
+    Thread thread = Thread.ofVirtual().name("digest-prefetch").start(prefetcher);
+    try {
+      long total = 0;
+      while (true) {
+        Chunk chunk = prefetcher.filled.take();
+        Throwable failure = chunk.failure;
+        if (failure != null) {
+          throw rethrow(failure);
+        }
+        md.update(chunk.buffer, 0, chunk.length);
+        total += chunk.length;
+        if (chunk.length < chunk.buffer.length) {
+          return total;
+        }
+        prefetcher.free.add(chunk.buffer);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while hashing");
+    } finally {
+      prefetcher.cancelled = true;
+      // Wakes the prefetcher up if it is waiting for a buffer.
+      prefetcher.free.offer(NO_BUFFER);
+      joinUninterruptibly(thread);
+      returnBuffer(a);
+      returnBuffer(b);
+    }
+  }
+
+  /** Reads until the buffer is full or the source ends, returning the number of bytes read. */
+  private static int fill(Source source, byte[] buffer) throws IOException {
+    int length = 0;
+    while (length < buffer.length) {
+      int read = source.read(buffer, length, buffer.length - length);
+      if (read < 0) {
+        break;
+      }
+      length += read;
+    }
+    return length;
+  }
+
+  private static IOException rethrow(Throwable failure) {
+    if (failure instanceof IOException e) {
+      return e;
+    }
+    if (failure instanceof RuntimeException e) {
+      throw e;
+    }
+    if (failure instanceof Error e) {
+      throw e;
+    }
+    return new IOException(failure);
+  }
+
+  private static void joinUninterruptibly(Thread thread) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        thread.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static byte[] takeBuffer() {
+    SoftReference<byte[]> ref;
+    while ((ref = buffers.poll()) != null) {
+      byte[] buffer = ref.get();
+      if (buffer != null) {
+        return buffer;
+      }
+    }
+    return new byte[CHUNK_SIZE];
+  }
+
+  private static void returnBuffer(byte[] buffer) {
+    buffers.add(new SoftReference<>(buffer));
+  }
+
+  /** Something to read data from, in the manner of {@link InputStream#read(byte[], int, int)}. */
+  @FunctionalInterface
+  public interface Source {
+
+    /**
+     * Reads up to {@code length} bytes.
+     *
+     * @param buffer The buffer to read into.
+     * @param offset The offset in the buffer to start at.
+     * @param length The maximum number of bytes to read.
+     * @return The number of bytes read, or -1 at the end of the data.
+     * @throws IOException If reading fails.
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+  }
+
+  /**
+   * A chunk read by the prefetcher. The data ends with the first chunk which does not fill its
+   * buffer.
+   */
+  private record Chunk(byte[] buffer, int length, @Nullable Throwable failure) {}
+
+  /** Fills the free buffers and hands them over as chunks, until the end of the source. */
+  private static final class Prefetcher implements Runnable {
+
+    Prefetcher(Source source) {
+      this.source = source;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          byte[] buffer = free.take();
+          if (cancelled) {
+            return;
+          }
+          int length = fill(source, buffer);
+          filled.put(new Chunk(buffer, length, null));
+          if (length < buffer.length) {
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        filled.offer(new Chunk(NO_BUFFER, 0, new InterruptedIOException()));
+      } catch (Throwable t) {
+        filled.offer(new Chunk(NO_BUFFER, 0, t));
+      }
+    }
+
+    private final Source source;
+
+    /** Buffers waiting to be filled; at most the two buffers and the wake-up marker. */
+    final BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(3);
+
+    /** Chunks waiting to be digested; at most the two buffers and a failure. */
+    final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(3);
+
+    volatile boolean cancelled;
+  }
+}
@@ -51,8 +51,9 @@ public final class Sha256 {
     }
 
     /**
-     * Computes hash from input stream using provided MessageDigest. The digest will not be
-     * reset automatically.
+     * Computes hash from input stream using provided MessageDigest, then closes the stream. The
+     * digest will not be reset automatically. Large streams are read ahead in another thread
+     * while hashing, see {@link PipelinedDigest}.
      *
      * @param is Input stream to hash
      * @param md MessageDigest instance to use
@@ -61,11 +62,7 @@ public final class Sha256 {
      */
     public static void hash(InputStream is, MessageDigest md) throws IOException {
         try (InputStream input = is) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = input.read(buffer)) != -1) {
-                md.update(buffer, 0, bytesRead);
-            }
+            PipelinedDigest.update(md, input);
         }
     }
 
@@ -0,0 +1,62 @@
+package hyphanet.crypt.hash;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class PipelinedDigestTest {
+
+  @Test
+  void testSameHashForAnySize() throws IOException {
+    int chunk = PipelinedDigest.CHUNK_SIZE;
+    for (int size : new int[] {0, 1, chunk - 1, chunk, chunk + 1, 2 * chunk, 5 * chunk + 17}) {
+      byte[] data = new byte[size];
+      new Random(size).nextBytes(data);
+      MessageDigest md = Sha256.getMessageDigest();
+      try {
+        assertEquals(size, PipelinedDigest.update(md, new ByteArrayInputStream(data)));
+        assertArrayEquals(Sha256.digest(data), md.digest(), "size " + size);
+      } finally {
+        Sha256.returnMessageDigest(md);
+      }
+    }
+  }
+
+  @Test
+  void testShortReads() throws IOException {
+    byte[] data = new byte[3 * PipelinedDigest.CHUNK_SIZE];
+    new Random(1).nextBytes(data);
+    var is = new ByteArrayInputStream(data);
+    MessageDigest md = Sha256.getMessageDigest();
+    try {
+      PipelinedDigest.update(md, (buf, off, len) -> is.read(buf, off, Math.min(len, 1000)));
+      assertArrayEquals(Sha256.digest(data), md.digest());
+    } finally {
+      Sha256.returnMessageDigest(md);
+    }
+  }
+
+  @Test
+  void testFailureIsPropagated() {
+    long[] read = {0};
+    PipelinedDigest.Source failing =
+        (buf, off, len) -> {
+          if (read[0] > 2L * PipelinedDigest.CHUNK_SIZE) {
+            throw new IOException("Disk on fire");
+          }
+          read[0] += len;
+          return len;
+        };
+    MessageDigest md = Sha256.getMessageDigest();
+    try {
+      var e = assertThrows(IOException.class, () -> PipelinedDigest.update(md, failing));
+      assertEquals("Disk on fire", e.getMessage());
+    } finally {
+      Sha256.returnMessageDigest(md);
+    }
+  }
+}
@@ -16,3 +16,4 @@ include("access")
 include("support")
 include("crypt")
 include("base")
+include("benchmarks")
@@ -8,6 +8,7 @@ dependencies {
     implementation("net.java.dev.jna:jna-jpms:latest.release")
     implementation("net.java.dev.jna:jna-platform-jpms:latest.release")
     implementation("org.apache.commons:commons-compress:latest.release")
+    implementation("org.tukaani:xz:latest.release")
 
     implementation(project(":base"))
     implementation(project(":crypt"))
@@ -123,24 +123,18 @@ abstract class AbstractCompressor implements Compressor {
 
   @Override
   public int decompress(byte[] dbuf, int i, int j, byte[] output) throws IOException {
-    ByteArrayInputStream bais = new ByteArrayInputStream(dbuf, i, j);
-    ByteArrayOutputStream baos =
-        new ByteArrayOutputStream(output.length); // Or a suitable initial size
-    int bytes;
-    // The stream-based decompress is the one concrete classes *must* implement
-    decompress(bais, baos, output.length, -1); // Or pass appropriate maxCheckSizeBytes
-    bytes = baos.size();
-
-    if (bytes > output.length) {
-      throw new CompressionOutputSizeException(bytes);
+    // Read straight into the output, rather than through a buffer and a ByteArrayOutputStream
+    try (InputStream decompressorIs =
+        createDecompressorInputStream(new ByteArrayInputStream(dbuf, i, j))) {
+      int bytes = decompressorIs.readNBytes(output, 0, output.length);
+      if (bytes == output.length && decompressorIs.read() != -1) {
+        throw new CompressionOutputSizeException();
+      }
+      return bytes;
     }
-
-    byte[] buf = baos.toByteArray();
-    System.arraycopy(buf, 0, output, 0, bytes);
-    return bytes;
   }
 
-  void checkCompressionEffect(
+  static void checkCompressionEffect(
       long rawDataVolume, long compressedDataVolume, int minimumCompressionPercentage)
       throws CompressionRatioException {
     assert rawDataVolume != 0;
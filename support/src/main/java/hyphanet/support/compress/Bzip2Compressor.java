@@ -5,13 +5,17 @@ package hyphanet.support.compress;
 
 import hyphanet.support.io.storage.bucket.Bucket;
 import hyphanet.support.io.storage.bucket.BucketFactory;
+import hyphanet.support.io.stream.CountedOutputStream;
 import hyphanet.support.io.stream.HeaderStreams;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.jspecify.annotations.Nullable;
 
 /**
  * * {@link Compressor} for BZip2 streams. * * Due to historical reasons (we used to use the
@@ -22,6 +26,27 @@ public class Bzip2Compressor extends AbstractCompressor {
 
   private static final byte[] BZ_HEADER = "BZ".getBytes(StandardCharsets.ISO_8859_1);
 
+  /** Creates a compressor which compresses on the calling thread. */
+  public Bzip2Compressor() {
+    parallel = null;
+  }
+
+  /**
+   * Creates a compressor which compresses the blocks of inputs larger than a block on several
+   * threads, see {@link ParallelBzip2}. The output is the same as that of the single threaded
+   * compressor.
+   *
+   * @param executor Runs the block compression tasks.
+   * @param parallelism The maximum number of blocks one call compresses at the same time.
+   * @throws IllegalArgumentException If {@code parallelism} is not positive.
+   */
+  public Bzip2Compressor(Executor executor, int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+    }
+    parallel = new ParallelBzip2(executor, parallelism);
+  }
+
   @Override
   public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength)
       throws IOException {
@@ -33,11 +58,67 @@ public class Bzip2Compressor extends AbstractCompressor {
     return output;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>If this compressor was created with an {@link Executor} and the input fills more than a
+   * block, the blocks are compressed in parallel. The compression ratio is then checked after the
+   * first block which ends past {@code amountOfDataToCheckCompressionRatio}.
+   */
+  @Override
+  public long compress(
+      InputStream is,
+      OutputStream os,
+      long maxReadLength,
+      long maxWriteLength,
+      long amountOfDataToCheckCompressionRatio,
+      int minimumCompressionPercentage)
+      throws IOException, CompressionRatioException {
+    ParallelBzip2 engine = parallel;
+    if (engine == null) {
+      return super.compress(
+          is,
+          os,
+          maxReadLength,
+          maxWriteLength,
+          amountOfDataToCheckCompressionRatio,
+          minimumCompressionPercentage);
+    }
+    if (maxReadLength <= 0) {
+      throw new IllegalArgumentException();
+    }
+
+    var reader = new ParallelBzip2.ChunkReader(is, maxReadLength);
+    ParallelBzip2.Chunk first = reader.next();
+    if (first == null || reader.ended()) {
+      // A single block, so there is nothing to parallelize.
+      return super.compress(
+          first == null
+              ? InputStream.nullInputStream()
+              : new ByteArrayInputStream(first.data(), 0, first.length()),
+          os,
+          maxReadLength,
+          maxWriteLength,
+          amountOfDataToCheckCompressionRatio,
+          minimumCompressionPercentage);
+    }
+    try (var cos = new CountedOutputStream(os)) {
+      return engine.compress(
+          reader,
+          first,
+          HeaderStreams.dimOutput(BZ_HEADER, cos),
+          cos::written,
+          maxWriteLength,
+          amountOfDataToCheckCompressionRatio,
+          minimumCompressionPercentage);
+    }
+  }
+
   @Override
   protected OutputStream createCompressorOutputStream(OutputStream underlyingOutputStream)
       throws IOException {
     return new BZip2CompressorOutputStream(
-        HeaderStreams.dimOutput(BZ_HEADER, underlyingOutputStream));
+        HeaderStreams.dimOutput(BZ_HEADER, underlyingOutputStream), ParallelBzip2.BLOCK_SIZE_100K);
   }
 
   @Override
@@ -45,4 +126,7 @@ public class Bzip2Compressor extends AbstractCompressor {
       throws IOException {
     return new BZip2CompressorInputStream(HeaderStreams.augInput(BZ_HEADER, underlyingInputStream));
   }
+
+  /** Compresses large inputs in parallel, or null to compress on the calling thread. */
+  private final @Nullable ParallelBzip2 parallel;
 }
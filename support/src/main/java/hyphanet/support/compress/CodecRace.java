@@ -0,0 +1,197 @@
+package hyphanet.support.compress;
+
+import hyphanet.support.io.storage.bucket.Bucket;
+import hyphanet.support.io.storage.bucket.BucketFactory;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Compresses the same data with several codecs at once and keeps the smallest output.
+ *
+ * <p>Every codec writes into its own bucket through a stream which knows the size of the smallest
+ * output finished so far, starting with the write limit. As soon as a codec has written more than
+ * that, it cannot win any more, so its stream fails with a {@link CompressionOutputSizeException}
+ * and the codec stops. The race therefore takes about as long as the slowest codec which is still
+ * in the running, rather than as long as all of them together.
+ *
+ * <p>Outputs of the same size are ranked in the order in which the codecs were given, so the result
+ * does not depend on which codec finishes first.
+ */
+final class CodecRace {
+
+  CodecRace(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Races the codecs.
+   *
+   * @param data The data to compress. Every codec opens its own input stream on it, concurrently.
+   * @param compressors The codecs, from the most to the least preferred.
+   * @param bf Makes the buckets the codecs write into.
+   * @param maxReadLength The maximum number of bytes to read from the data.
+   * @param maxWriteLength The maximum size of the output.
+   * @return The index of the winning codec and its output, or null if no codec compressed the data
+   *     to at most {@code maxWriteLength} bytes.
+   * @throws IOException If a codec fails other than by writing too much. The outputs of the other
+   *     codecs are then disposed of.
+   */
+  @Nullable Winner race(
+      Bucket data,
+      List<Compressor> compressors,
+      BucketFactory bf,
+      long maxReadLength,
+      long maxWriteLength)
+      throws IOException {
+    var best = new AtomicLong(maxWriteLength);
+    List<Bucket> outputs = new ArrayList<>(compressors.size());
+    List<CompletableFuture<Long>> runs = new ArrayList<>(compressors.size());
+    @Nullable Winner kept = null;
+    try {
+      for (Compressor compressor : compressors) {
+        Bucket output = bf.makeBucket(maxWriteLength);
+        outputs.add(output);
+        runs.add(
+            CompletableFuture.supplyAsync(
+                () -> run(compressor, data, output, maxReadLength, best), executor));
+      }
+
+      @Nullable Winner winner = null;
+      long winnerSize = Long.MAX_VALUE;
+      @Nullable IOException failure = null;
+      for (int i = 0; i < runs.size(); i++) {
+        try {
+          long size = await(runs.get(i));
+          if (size < winnerSize) {
+            winner = new Winner(i, outputs.get(i));
+            winnerSize = size;
+          }
+        } catch (CompressionOutputSizeException _) {
+          // Lost the race, or did not fit at all
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+            // Stop the others early, their results are of no use any more.
+            best.set(-1);
+          } else {
+            failure.addSuppressed(e);
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      kept = winner;
+      return winner;
+    } finally {
+      if (kept == null) {
+        // Stop codecs still running after a failure
+        best.set(-1);
+      }
+      for (int i = 0; i < runs.size(); i++) {
+        runs.get(i).cancel(false);
+        if (kept == null || i != kept.index()) {
+          outputs.get(i).dispose();
+        }
+      }
+      // The bucket of a codec which could not be started
+      for (int i = runs.size(); i < outputs.size(); i++) {
+        outputs.get(i).dispose();
+      }
+    }
+  }
+
+  private static long run(
+      Compressor compressor, Bucket data, Bucket output, long maxReadLength, AtomicLong best) {
+    try {
+      long size =
+          compressor.compress(
+              data,
+              new RacingOutputStream(output.getOutputStream(), best),
+              maxReadLength,
+              best.get());
+      best.accumulateAndGet(size, Math::min);
+      return size;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static long await(CompletableFuture<Long> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException | CancellationException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException uioe) {
+        throw uioe.getCause();
+      }
+      if (cause instanceof RuntimeException re) {
+        throw re;
+      }
+      if (cause instanceof Error error) {
+        throw error;
+      }
+      throw new IOException("Compression failed", cause == null ? e : cause);
+    }
+  }
+
+  /**
+   * The codec which won a race.
+   *
+   * @param index The index of the codec in the list raced.
+   * @param output The compressed data.
+   */
+  record Winner(int index, Bucket output) {}
+
+  /** Fails as soon as more has been written than the smallest output finished so far. */
+  private static final class RacingOutputStream extends FilterOutputStream {
+
+    RacingOutputStream(OutputStream out, AtomicLong best) {
+      super(out);
+      this.best = best;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      count(1);
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      count(len);
+      out.write(b, off, len);
+    }
+
+    /**
+     * Counts bytes about to be written. Losing is reported unchecked, because the LZMA encoder
+     * keeps an {@link IOException} from its output and throws the same instance again when closed,
+     * which try-with-resources cannot suppress.
+     */
+    private void count(int length) {
+      written += length;
+      if (written > best.get()) {
+        throw new UncheckedIOException(new CompressionOutputSizeException(written));
+      }
+    }
+
+    private final AtomicLong best;
+    private long written;
+  }
+
+  private final Executor executor;
+}
@@ -0,0 +1,247 @@
+package hyphanet.support.compress;
+
+import hyphanet.support.io.storage.bucket.Bucket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Guesses from a few samples whether data is worth compressing, so that data which is already
+ * compressed, such as most audio, video and archives, is not run through every codec in vain.
+ *
+ * <p>Up to {@link #SAMPLE_COUNT} samples of {@link #SAMPLE_SIZE} bytes are taken at evenly spaced
+ * offsets. Each is measured in two ways:
+ *
+ * <ul>
+ *   <li>the Shannon entropy of its bytes, which bounds what an entropy coder such as the Huffman
+ *       stage of gzip or bzip2 can save, and
+ *   <li>the size a greedy LZ4 style matcher would shrink it to, which catches repetitions that the
+ *       byte entropy does not see.
+ * </ul>
+ *
+ * <p>Data whose samples look random in both ways is not worth compressing. Data which repeats
+ * itself or has a skewed byte distribution is worth the full search. Data in between is only worth
+ * trying with the cheapest codec. The {@link Prediction#confidence() confidence} is the share of
+ * the samples which, taken on their own, lead to the same decision as all of them together.
+ *
+ * <p>Data shorter than {@link #MIN_SIZE} is always worth the full search, since compressing it
+ * costs next to nothing.
+ */
+public final class CompressibilityPredictor {
+
+  /** The number of samples taken from large data. */
+  public static final int SAMPLE_COUNT = 8;
+
+  /** The size of a sample. */
+  public static final int SAMPLE_SIZE = 4096;
+
+  /** The size below which data is not sampled at all. */
+  public static final int MIN_SIZE = 1024;
+
+  /**
+   * The entropy, in bits per byte, above which a sample looks random. Random samples of {@link
+   * #SAMPLE_SIZE} bytes measure about 7.95 because of the small sample.
+   */
+  static final double RANDOM_ENTROPY = 7.9;
+
+  /** The entropy below which an entropy coder alone saves more than an eighth. */
+  static final double SKEWED_ENTROPY = 7.0;
+
+  /** The LZ ratio above which a sample has no repetitions worth mentioning. */
+  static final double RANDOM_LZ_RATIO = 0.97;
+
+  /** The LZ ratio below which a sample has enough repetitions for the full search. */
+  static final double REPETITIVE_LZ_RATIO = 0.9;
+
+  private static final int HASH_BITS = 12;
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_DISTANCE = 65535;
+
+  /** The estimated size of a match: a token and a 16 bit offset, as in LZ4. */
+  private static final int MATCH_COST = 3;
+
+  private CompressibilityPredictor() {
+    throw new UnsupportedOperationException("Utility class");
+  }
+
+  /** What to do with data. */
+  public enum Decision {
+    /** Store the data as it is. */
+    SKIP,
+    /** Only try the cheapest codec. */
+    CHEAPEST,
+    /** Try every codec. */
+    FULL
+  }
+
+  /**
+   * A prediction.
+   *
+   * @param decision What to do with the data.
+   * @param confidence The share of the samples which agree with the decision, from 0 to 1.
+   * @param entropy The byte entropy of all the samples together, in bits per byte.
+   * @param lzRatio The size all the samples would shrink to with an LZ4 style matcher, relative to
+   *     their size.
+   */
+  public record Prediction(Decision decision, double confidence, double entropy, double lzRatio) {
+
+    /** The prediction for data too small to be worth sampling. */
+    static final Prediction TOO_SMALL = new Prediction(Decision.FULL, 1, 0, 0);
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s (confidence %.2f, entropy %.2f bits/byte, LZ ratio %.2f)",
+          decision, confidence, entropy, lzRatio);
+    }
+  }
+
+  /**
+   * Predicts whether the contents of a bucket are worth compressing.
+   *
+   * @param data The data.
+   * @return The prediction.
+   * @throws IOException If reading the bucket fails.
+   */
+  public static Prediction predict(Bucket data) throws IOException {
+    long size = data.size();
+    if (size < MIN_SIZE) {
+      return Prediction.TOO_SMALL;
+    }
+    int count = sampleCount(size);
+    int sampleSize = (int) Math.min(SAMPLE_SIZE, size);
+    byte[] samples = new byte[count * sampleSize];
+    try (InputStream is = data.getInputStreamUnbuffered()) {
+      long position = 0;
+      for (int i = 0; i < count; i++) {
+        long offset = sampleOffset(i, count, size, sampleSize);
+        is.skipNBytes(offset - position);
+        is.readNBytes(samples, i * sampleSize, sampleSize);
+        position = offset + sampleSize;
+      }
+    }
+    return predictSamples(samples, count, sampleSize);
+  }
+
+  /**
+   * Predicts whether data in memory is worth compressing.
+   *
+   * @param data The array holding the data.
+   * @param offset The offset of the data in the array.
+   * @param length The length of the data.
+   * @return The prediction.
+   */
+  public static Prediction predict(byte[] data, int offset, int length) {
+    if (length < MIN_SIZE) {
+      return Prediction.TOO_SMALL;
+    }
+    int count = sampleCount(length);
+    int sampleSize = Math.min(SAMPLE_SIZE, length);
+    byte[] samples = new byte[count * sampleSize];
+    for (int i = 0; i < count; i++) {
+      long sampleOffset = sampleOffset(i, count, length, sampleSize);
+      System.arraycopy(data, offset + (int) sampleOffset, samples, i * sampleSize, sampleSize);
+    }
+    return predictSamples(samples, count, sampleSize);
+  }
+
+  private static Prediction predictSamples(byte[] samples, int count, int sampleSize) {
+    int[] histogram = new int[256];
+    int[] totalHistogram = new int[256];
+    int[] hashTable = new int[1 << HASH_BITS];
+    Decision[] decisions = new Decision[count];
+    long lzTotal = 0;
+    for (int i = 0; i < count; i++) {
+      int start = i * sampleSize;
+      Arrays.fill(histogram, 0);
+      for (int j = start; j < start + sampleSize; j++) {
+        histogram[samples[j] & 0xFF]++;
+      }
+      for (int b = 0; b < 256; b++) {
+        totalHistogram[b] += histogram[b];
+      }
+      int lzSize = lzSize(samples, start, sampleSize, hashTable);
+      lzTotal += lzSize;
+      decisions[i] = decide(entropy(histogram, sampleSize), (double) lzSize / sampleSize);
+    }
+    int total = count * sampleSize;
+    double entropy = entropy(totalHistogram, total);
+    double lzRatio = (double) lzTotal / total;
+    Decision decision = decide(entropy, lzRatio);
+    int agreeing = 0;
+    for (Decision d : decisions) {
+      if (d == decision) {
+        agreeing++;
+      }
+    }
+    return new Prediction(decision, (double) agreeing / count, entropy, lzRatio);
+  }
+
+  static Decision decide(double entropy, double lzRatio) {
+    if (entropy >= RANDOM_ENTROPY && lzRatio >= RANDOM_LZ_RATIO) {
+      return Decision.SKIP;
+    }
+    if (entropy < SKEWED_ENTROPY || lzRatio < REPETITIVE_LZ_RATIO) {
+      return Decision.FULL;
+    }
+    return Decision.CHEAPEST;
+  }
+
+  /** Returns the Shannon entropy of a byte histogram, in bits per byte. */
+  private static double entropy(int[] histogram, int total) {
+    double entropy = 0;
+    for (int count : histogram) {
+      if (count > 0) {
+        double p = (double) count / total;
+        entropy -= p * Math.log(p);
+      }
+    }
+    return entropy / Math.log(2);
+  }
+
+  /**
+   * Estimates the size of data after greedy LZ4 style matching: literals cost a byte each, and
+   * matches of at least four bytes within 64 KiB cost {@link #MATCH_COST} bytes.
+   */
+  private static int lzSize(byte[] data, int start, int length, int[] hashTable) {
+    Arrays.fill(hashTable, -1);
+    int end = start + length;
+    int size = 0;
+    int i = start;
+    while (i + MIN_MATCH <= end) {
+      int sequence = readInt(data, i);
+      int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+      int candidate = hashTable[hash];
+      hashTable[hash] = i;
+      if (candidate >= start
+          && i - candidate <= MAX_DISTANCE
+          && readInt(data, candidate) == sequence) {
+        int matchLength = MIN_MATCH;
+        while (i + matchLength < end && data[candidate + matchLength] == data[i + matchLength]) {
+          matchLength++;
+        }
+        size += MATCH_COST;
+        i += matchLength;
+      } else {
+        size++;
+        i++;
+      }
+    }
+    return size + (end - i);
+  }
+
+  private static int readInt(byte[] data, int i) {
+    return (data[i] & 0xFF)
+        | (data[i + 1] & 0xFF) << 8
+        | (data[i + 2] & 0xFF) << 16
+        | (data[i + 3] & 0xFF) << 24;
+  }
+
+  private static int sampleCount(long size) {
+    return (int) Math.max(1, Math.min(SAMPLE_COUNT, size / SAMPLE_SIZE));
+  }
+
+  private static long sampleOffset(int index, int count, long size, int sampleSize) {
+    return count == 1 ? 0 : index * (size - sampleSize) / (count - 1);
+  }
+}
@@ -30,6 +30,27 @@ public interface Compressor {
   Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength)
       throws IOException, CompressionOutputSizeException;
 
+  /**
+   * Compress the data of a bucket into a stream, writing the same bytes that {@link
+   * #compress(Bucket, BucketFactory, long, long)} writes into the bucket it returns.
+   *
+   * @param data The bucket to read from.
+   * @param output The OutputStream to write to. It is closed when done.
+   * @param maxReadLength The maximum number of bytes to read from the input bucket.
+   * @param maxWriteLength The maximum number of bytes to write to the output stream. If this is
+   *     exceeded, throw a CompressionOutputSizeException.
+   * @return The number of bytes written.
+   * @throws IOException If an error occurs reading or writing data.
+   * @throws CompressionOutputSizeException If the compressed data is larger than maxWriteLength.
+   */
+  default long compress(Bucket data, OutputStream output, long maxReadLength, long maxWriteLength)
+      throws IOException {
+    try (InputStream is = data.getInputStream();
+        output) {
+      return compress(is, output, maxReadLength, maxWriteLength);
+    }
+  }
+
   /**
    * Compress the data.
    *
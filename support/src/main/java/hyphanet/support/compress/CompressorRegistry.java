@@ -1,6 +1,11 @@
 package hyphanet.support.compress;
 
+import hyphanet.support.io.storage.bucket.Bucket;
+import hyphanet.support.io.storage.bucket.BucketFactory;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,7 +23,13 @@ public final class CompressorRegistry {
     // Instantiate and register each compressor
     // Important: Ensure the concrete classes have public constructors if needed outside the package
     register(CompressorType.GZIP, new GzipCompressor(), compressors, names, ids);
-    register(CompressorType.BZIP2, new Bzip2Compressor(), compressors, names, ids);
+    // Parallel bzip2 writes the same bytes as the single threaded compressor, so keys don't change
+    register(
+        CompressorType.BZIP2,
+        new Bzip2Compressor(ForkJoinPool.commonPool(), Runtime.getRuntime().availableProcessors()),
+        compressors,
+        names,
+        ids);
     register(CompressorType.LZMA_NEW, new NewLzmaCompressor(), compressors, names, ids);
 
     // Make maps and list immutable for safety
@@ -177,6 +188,61 @@ public final class CompressorRegistry {
     return result;
   }
 
+  /**
+   * Narrows a list of codecs to those worth trying on data, according to a {@link
+   * CompressibilityPredictor} prediction. Data predicted to be incompressible gets no codec, data
+   * predicted to be barely compressible only the cheapest codec of the list, and anything else all
+   * of them.
+   *
+   * @param types The codecs to choose from, for example from {@link #parseDescriptor(String)}.
+   * @param prediction The prediction for the data.
+   * @return The codecs to try, in the order of {@code types}.
+   */
+  public List<CompressorType> select(
+      List<CompressorType> types, CompressibilityPredictor.Prediction prediction) {
+    return switch (prediction.decision()) {
+      case SKIP -> List.of();
+      // The types are declared from the cheapest to the most expensive codec
+      case CHEAPEST -> types.stream().min(Comparator.naturalOrder()).stream().toList();
+      case FULL -> types;
+    };
+  }
+
+  /**
+   * Compresses data with all the given codecs at the same time and returns the smallest output. A
+   * codec is stopped as soon as it has written more than the smallest output finished so far, or
+   * than {@code maxWriteLength}, see {@link CodecRace}.
+   *
+   * <p>This picks the smallest output, not the first one which fits, so it may pick a different
+   * codec than trying the codecs one after another and stopping at the first which fits.
+   *
+   * @param data The data to compress. The codecs read it concurrently, each through its own input
+   *     stream.
+   * @param types The codecs to race. Outputs of the same size are ranked in this order.
+   * @param bf Makes the buckets the codecs write into. The buckets of the losers are disposed of.
+   * @param maxReadLength The maximum number of bytes to read from the data.
+   * @param maxWriteLength The maximum size of the output.
+   * @param executor Runs the codecs.
+   * @return The winning codec and its output, or null if no codec compressed the data to at most
+   *     {@code maxWriteLength} bytes.
+   * @throws IOException If reading the data, or a codec, fails.
+   */
+  public @Nullable Compressed race(
+      Bucket data,
+      List<CompressorType> types,
+      BucketFactory bf,
+      long maxReadLength,
+      long maxWriteLength,
+      Executor executor)
+      throws IOException {
+    List<Compressor> compressors = new ArrayList<>(types.size());
+    for (CompressorType type : types) {
+      compressors.add(Objects.requireNonNull(getCompressor(type)));
+    }
+    var winner = new CodecRace(executor).race(data, compressors, bf, maxReadLength, maxWriteLength);
+    return winner == null ? null : new Compressed(types.get(winner.index()), winner.output());
+  }
+
   /**
    * Generates a compressor descriptor string from a list of algorithm types.
    *
@@ -214,6 +280,14 @@ public final class CompressorRegistry {
     ids.put(type.getMetadataId(), type);
   }
 
+  /**
+   * Data compressed by a codec.
+   *
+   * @param type The codec.
+   * @param data The compressed data.
+   */
+  public record Compressed(CompressorType type, Bucket data) {}
+
   private static final class SingletonHolder {
     static final CompressorRegistry INSTANCE = new CompressorRegistry();
   }
@@ -0,0 +1,165 @@
+package hyphanet.support.compress;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses gzip data from an array straight into another array, with this thread's pooled
+ * {@link Inflater}, so that decompressing a block allocates nothing.
+ *
+ * <p>It accepts what {@link java.util.zip.GZIPInputStream} accepts: optional header fields, a
+ * header CRC, and several members one after another, each checked against its CRC32 and length.
+ * Bytes after the last member which do not start another member are ignored.
+ */
+final class GzipArrayDecoder {
+
+  private static final int MAGIC_0 = 0x1f;
+  private static final int MAGIC_1 = 0x8b;
+  private static final int FIXED_HEADER_SIZE = 10;
+  private static final int TRAILER_SIZE = 8;
+
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private GzipArrayDecoder() {
+    throw new UnsupportedOperationException("Utility class");
+  }
+
+  /**
+   * Decompresses gzip data.
+   *
+   * @param input The array holding the gzip data.
+   * @param offset The offset of the gzip data.
+   * @param length The length of the gzip data.
+   * @param output Where to write the decompressed data, from its start.
+   * @return The number of bytes written to {@code output}.
+   * @throws CompressionOutputSizeException If the decompressed data does not fit into {@code
+   *     output}.
+   * @throws EOFException If the gzip data is truncated.
+   * @throws ZipException If the gzip data is corrupt.
+   */
+  static int decode(byte[] input, int offset, int length, byte[] output) throws IOException {
+    Objects.checkFromIndexSize(offset, length, input.length);
+    int end = offset + length;
+    int position = offset;
+    int written = 0;
+    do {
+      position = skipHeader(input, position, end);
+      int start = written;
+      Inflater inflater = ZlibPool.inflater();
+      inflater.setInput(input, position, end - position);
+      try {
+        while (!inflater.finished()) {
+          int n;
+          if (written < output.length) {
+            n = inflater.inflate(output, written, output.length - written);
+          } else {
+            // The output is full, so anything but the end of the deflate stream is too much.
+            n = inflater.inflate(SCRATCH.get());
+            if (n > 0) {
+              throw new CompressionOutputSizeException();
+            }
+          }
+          if (n == 0 && !inflater.finished()) {
+            if (inflater.needsDictionary()) {
+              throw new ZipException("Deflate stream needs a dictionary");
+            }
+            if (inflater.needsInput()) {
+              throw new EOFException("Unexpected end of gzip data");
+            }
+          }
+          written += n;
+        }
+      } catch (DataFormatException e) {
+        throw new ZipException(e.getMessage() == null ? "Invalid gzip data" : e.getMessage());
+      }
+      position = end - inflater.getRemaining();
+
+      if (end - position < TRAILER_SIZE) {
+        throw new EOFException("Unexpected end of gzip data");
+      }
+      CRC32 crc = ZlibPool.crc32();
+      crc.update(output, start, written - start);
+      if (readIntLe(input, position) != (int) crc.getValue()
+          || readIntLe(input, position + 4) != written - start) {
+        throw new ZipException("Corrupt GZIP trailer");
+      }
+      position += TRAILER_SIZE;
+    } while (end - position >= FIXED_HEADER_SIZE && isMagic(input, position));
+    return written;
+  }
+
+  /** Checks a member header and returns the offset of the deflate data after it. */
+  private static int skipHeader(byte[] input, int offset, int end) throws IOException {
+    if (end - offset < FIXED_HEADER_SIZE) {
+      throw new EOFException("Unexpected end of gzip header");
+    }
+    if (!isMagic(input, offset)) {
+      throw new ZipException("Not in GZIP format");
+    }
+    if (input[offset + 2] != Deflater.DEFLATED) {
+      throw new ZipException("Unsupported compression method");
+    }
+    int flags = input[offset + 3] & 0xFF;
+    int position = offset + FIXED_HEADER_SIZE;
+    if ((flags & FEXTRA) != 0) {
+      require(position, 2, end);
+      position += 2 + readUShortLe(input, position);
+    }
+    if ((flags & FNAME) != 0) {
+      position = skipString(input, position, end);
+    }
+    if ((flags & FCOMMENT) != 0) {
+      position = skipString(input, position, end);
+    }
+    if ((flags & FHCRC) != 0) {
+      require(position, 2, end);
+      CRC32 crc = ZlibPool.crc32();
+      crc.update(input, offset, position - offset);
+      if (readUShortLe(input, position) != ((int) crc.getValue() & 0xFFFF)) {
+        throw new ZipException("Corrupt GZIP header");
+      }
+      position += 2;
+    }
+    require(position, 0, end);
+    return position;
+  }
+
+  private static int skipString(byte[] input, int offset, int end) throws EOFException {
+    for (int i = offset; i < end; i++) {
+      if (input[i] == 0) {
+        return i + 1;
+      }
+    }
+    throw new EOFException("Unexpected end of gzip header");
+  }
+
+  private static void require(int position, int length, int end) throws EOFException {
+    if (position > end - length) {
+      throw new EOFException("Unexpected end of gzip header");
+    }
+  }
+
+  private static boolean isMagic(byte[] input, int offset) {
+    return (input[offset] & 0xFF) == MAGIC_0 && (input[offset + 1] & 0xFF) == MAGIC_1;
+  }
+
+  private static int readUShortLe(byte[] input, int offset) {
+    return (input[offset] & 0xFF) | (input[offset + 1] & 0xFF) << 8;
+  }
+
+  private static int readIntLe(byte[] input, int offset) {
+    return readUShortLe(input, offset) | readUShortLe(input, offset + 2) << 16;
+  }
+
+  /** Takes the byte which tells whether a full output would have had to hold more. */
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1]);
+}
@@ -3,28 +3,127 @@ package hyphanet.support.compress;
 import hyphanet.support.io.storage.bucket.Bucket;
 import hyphanet.support.io.storage.bucket.BucketFactory;
 import hyphanet.support.io.storage.bucket.RandomAccessBucket;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Executor;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import org.jspecify.annotations.Nullable;
 
+/**
+ * Compresses with gzip, on a single thread through {@link GZIPOutputStream} by default.
+ *
+ * <p>A compressor created with an {@link Executor} deflates inputs of at least {@link
+ * ParallelGzip#CHUNK_SIZE} bytes in chunks on several threads, see {@link ParallelGzip}. Its output
+ * is still a single standard gzip member, so it decompresses the same way, but it is not byte for
+ * byte the same as that of the single threaded compressor. Smaller inputs, such as single blocks,
+ * are compressed exactly as by the single threaded compressor.
+ */
 public class GzipCompressor extends AbstractCompressor {
 
+  /** Creates a compressor which compresses on the calling thread. */
+  public GzipCompressor() {
+    parallel = null;
+  }
+
+  /**
+   * Creates a compressor which deflates large inputs on several threads.
+   *
+   * @param executor Runs the deflate tasks.
+   * @param parallelism The maximum number of chunks one call deflates at the same time.
+   * @throws IllegalArgumentException If {@code parallelism} is not positive.
+   */
+  public GzipCompressor(Executor executor, int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+    }
+    parallel = new ParallelGzip(executor, parallelism);
+  }
+
   @Override
   public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength)
       throws IOException {
     RandomAccessBucket output = bf.makeBucket(maxWriteLength);
+    compress(data, output.getOutputStream(), maxReadLength, maxWriteLength);
+    return output;
+  }
+
+  @Override
+  public long compress(Bucket data, OutputStream os, long maxReadLength, long maxWriteLength)
+      throws IOException {
     try (var is = data.getInputStream();
-        var os = output.getOutputStream()) {
+        os) {
 
       // force OS byte to 0 regardless of Java version (java 16 changed to setting 255 which would
       // break hashes)
       SingleOffsetReplacingOutputStream osByteFixingOs =
           new SingleOffsetReplacingOutputStream(os, 9, 0);
-      compress(is, osByteFixingOs, maxReadLength, maxWriteLength);
+      return compress(is, osByteFixingOs, maxReadLength, maxWriteLength);
     }
-    return output;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>If this compressor was created with an {@link Executor} and the input fills at least a
+   * chunk, the chunks are deflated in parallel. The compression ratio is then checked after the
+   * first chunk which ends past {@code amountOfDataToCheckCompressionRatio}.
+   */
+  @Override
+  public long compress(
+      InputStream is,
+      OutputStream os,
+      long maxReadLength,
+      long maxWriteLength,
+      long amountOfDataToCheckCompressionRatio,
+      int minimumCompressionPercentage)
+      throws IOException, CompressionRatioException {
+    ParallelGzip engine = parallel;
+    if (engine == null || maxReadLength < ParallelGzip.CHUNK_SIZE) {
+      return super.compress(
+          is,
+          os,
+          maxReadLength,
+          maxWriteLength,
+          amountOfDataToCheckCompressionRatio,
+          minimumCompressionPercentage);
+    }
+
+    byte[] first = new byte[ParallelGzip.CHUNK_SIZE];
+    int length = is.readNBytes(first, 0, first.length);
+    if (length < first.length) {
+      // Fits in a single chunk, so compress it like the single threaded compressor does.
+      return super.compress(
+          new ByteArrayInputStream(first, 0, length),
+          os,
+          maxReadLength,
+          maxWriteLength,
+          amountOfDataToCheckCompressionRatio,
+          minimumCompressionPercentage);
+    }
+    try (os) {
+      return engine.compress(
+          first,
+          is,
+          os,
+          maxReadLength,
+          maxWriteLength,
+          amountOfDataToCheckCompressionRatio,
+          minimumCompressionPercentage);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This inflates straight from {@code dbuf} into {@code output} with a per-thread {@link
+   * java.util.zip.Inflater}, so it allocates nothing.
+   */
+  @Override
+  public int decompress(byte[] dbuf, int i, int j, byte[] output) throws IOException {
+    return GzipArrayDecoder.decode(dbuf, i, j, output);
   }
 
   @Override
@@ -43,4 +142,7 @@ public class GzipCompressor extends AbstractCompressor {
   protected void finalizeCompression(OutputStream compressorOs) throws IOException {
     ((GZIPOutputStream) compressorOs).finish();
   }
+
+  /** Deflates large inputs in parallel, or null to compress on the calling thread. */
+  private final @Nullable ParallelGzip parallel;
 }
@@ -8,10 +8,19 @@ import hyphanet.support.io.storage.bucket.BucketFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import org.apache.commons.compress.compressors.lzma.LZMACompressorInputStream;
-import org.apache.commons.compress.compressors.lzma.LZMACompressorOutputStream;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.BasicArrayCache;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.LZMAInputStream;
+import org.tukaani.xz.LZMAOutputStream;
 
-/** * {@link Compressor} for BZip2 streams */
+/**
+ * {@link Compressor} for LZMA streams.
+ *
+ * <p>The encoder and decoder take their dictionary and probability arrays from a shared {@link
+ * BasicArrayCache} and give them back when closed, so that compressing and decompressing block
+ * after block does not allocate megabytes every time.
+ */
 public class NewLzmaCompressor extends AbstractCompressor {
 
   @Override
@@ -28,12 +37,15 @@ public class NewLzmaCompressor extends AbstractCompressor {
   @Override
   protected OutputStream createCompressorOutputStream(OutputStream underlyingOutputStream)
       throws IOException {
-    return new LZMACompressorOutputStream(underlyingOutputStream);
+    // What LZMACompressorOutputStream writes: .lzma with an end marker, as the size is not known
+    return new LZMAOutputStream(underlyingOutputStream, new LZMA2Options(), -1, ARRAY_CACHE);
   }
 
   @Override
   protected InputStream createDecompressorInputStream(InputStream underlyingInputStream)
       throws IOException {
-    return new LZMACompressorInputStream(underlyingInputStream);
+    return new LZMAInputStream(underlyingInputStream, -1, ARRAY_CACHE);
   }
+
+  private static final ArrayCache ARRAY_CACHE = BasicArrayCache.getInstance();
 }
@@ -0,0 +1,398 @@
+package hyphanet.support.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Writes a bzip2 stream whose blocks are compressed in parallel.
+ *
+ * <p>The blocks of a bzip2 stream are independent of each other, apart from the stream CRC which
+ * combines their CRCs. The input is cut where {@link BZip2CompressorOutputStream} would start a new
+ * block, by running its first run-length encoding stage on the reading thread, see {@link
+ * ChunkReader}. Each chunk is then compressed into a stream of its own, and the block is taken out
+ * of it bit for bit and appended to the output, followed at the end by the stream CRC. The result
+ * is the same, byte for byte, as if the whole input had been written to a single {@link
+ * BZip2CompressorOutputStream}.
+ */
+final class ParallelBzip2 {
+
+  /** The block size, in units of 100 kB, used by {@link Bzip2Compressor}. */
+  static final int BLOCK_SIZE_100K = BZip2CompressorOutputStream.MAX_BLOCKSIZE;
+
+  /** The size of the run-length encoded data at which a block is full. */
+  private static final int ALLOWABLE_BLOCK_SIZE = BLOCK_SIZE_100K * 100_000 - 20;
+
+  /** The size of the stream header, "BZh" and the block size digit. */
+  private static final int HEADER_BITS = 32;
+
+  private static final long END_OF_STREAM_MAGIC = 0x177245385090L;
+
+  ParallelBzip2(Executor executor, int parallelism) {
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Compresses the input after a first chunk which has already been read.
+   *
+   * @param reader The rest of the input.
+   * @param first The first chunk.
+   * @param os Where to write the bzip2 stream, header included. It is not closed.
+   * @param written The number of bytes written so far, as counted for {@code maxWriteLength}.
+   * @return The number of bytes written.
+   * @see Compressor#compress(InputStream, OutputStream, long, long, long, int)
+   */
+  long compress(
+      ChunkReader reader,
+      Chunk first,
+      OutputStream os,
+      LongSupplier written,
+      long maxWriteLength,
+      long amountOfDataToCheckCompressionRatio,
+      int minimumCompressionPercentage)
+      throws IOException, CompressionRatioException {
+    var out = new BitOutput(os);
+    Deque<CompletableFuture<Block>> pending = new ArrayDeque<>();
+    boolean checkRatio =
+        minimumCompressionPercentage != 0 && amountOfDataToCheckCompressionRatio > 0;
+    int combinedCrc = 0;
+    boolean headerWritten = false;
+    try {
+      @Nullable Chunk chunk = first;
+      while (chunk != null || !pending.isEmpty()) {
+        if (chunk != null) {
+          Chunk input = chunk;
+          pending.add(CompletableFuture.supplyAsync(() -> compressBlock(input), executor));
+          chunk = reader.next();
+        }
+        while (pending.size() > (chunk == null ? 0 : parallelism)) {
+          Block block = await(pending.removeFirst());
+          if (!headerWritten) {
+            out.copy(block.stream, 0, HEADER_BITS);
+            headerWritten = true;
+          }
+          out.copy(block.stream, HEADER_BITS, block.endBit);
+          out.flushBytes();
+          combinedCrc = ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ block.crc;
+          if (written.getAsLong() > maxWriteLength) {
+            throw new CompressionOutputSizeException(written.getAsLong());
+          }
+          if (checkRatio && block.inputEnd >= amountOfDataToCheckCompressionRatio) {
+            checkRatio = false;
+            AbstractCompressor.checkCompressionEffect(
+                block.inputEnd, written.getAsLong(), minimumCompressionPercentage);
+          }
+        }
+      }
+      out.write(END_OF_STREAM_MAGIC, 48);
+      out.write(combinedCrc & 0xFFFFFFFFL, 32);
+      out.finish();
+      if (written.getAsLong() > maxWriteLength) {
+        throw new CompressionOutputSizeException(written.getAsLong());
+      }
+      return written.getAsLong();
+    } finally {
+      for (var future : pending) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  /** Compresses a chunk into a stream of its own, and finds the block in it. */
+  private static Block compressBlock(Chunk chunk) {
+    var bos = new ByteArrayOutputStream(chunk.length / 3 + 64);
+    try (var bzip2 = new BZip2CompressorOutputStream(bos, BLOCK_SIZE_100K)) {
+      bzip2.write(chunk.data, 0, chunk.length);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    byte[] stream = bos.toByteArray();
+    long totalBits = stream.length * 8L;
+    // The stream ends with the end of stream magic, the CRC and up to 7 bits of padding. The magic
+    // does not overlap itself when shifted by less than 8 bits, so only one padding length fits.
+    for (int padding = 0; padding < 8; padding++) {
+      long magicBit = totalBits - padding - 80;
+      if (magicBit >= HEADER_BITS && readBits(stream, magicBit, 48) == END_OF_STREAM_MAGIC) {
+        int crc = (int) readBits(stream, magicBit + 48, 32);
+        return new Block(stream, magicBit, crc, chunk.inputEnd);
+      }
+    }
+    throw new IllegalStateException("No end of stream marker in a compressed block");
+  }
+
+  /** Reads up to 57 bits, most significant first, starting at any bit. */
+  private static long readBits(byte[] data, long bit, int count) {
+    int index = (int) (bit >>> 3);
+    int skip = (int) (bit & 7);
+    long value = 0;
+    int have = -skip;
+    while (have < count) {
+      value = (value << 8) | (data[index++] & 0xFF);
+      have += 8;
+    }
+    return (value >>> (have - count)) & ((1L << count) - 1);
+  }
+
+  private static Block await(CompletableFuture<Block> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException | CancellationException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException uioe) {
+        throw uioe.getCause();
+      }
+      if (cause instanceof RuntimeException re) {
+        throw re;
+      }
+      if (cause instanceof Error error) {
+        throw error;
+      }
+      throw new IOException("Compression failed", cause == null ? e : cause);
+    }
+  }
+
+  /**
+   * Input for a single block.
+   *
+   * @param data The input, starting at 0.
+   * @param length The length of the input.
+   * @param inputEnd The offset of the end of the chunk in the whole input.
+   */
+  record Chunk(byte[] data, int length, long inputEnd) {}
+
+  /**
+   * A compressed chunk: a stream holding a single block.
+   *
+   * @param stream The stream.
+   * @param endBit The bit at which the block ends and the end of stream marker starts.
+   * @param crc The CRC of the block.
+   * @param inputEnd The offset of the end of the chunk in the whole input.
+   */
+  private record Block(byte[] stream, long endBit, int crc, long inputEnd) {}
+
+  /**
+   * Cuts the input into chunks which fill exactly one block each.
+   *
+   * <p>This mirrors the first stage of {@link BZip2CompressorOutputStream}: runs of up to 255
+   * identical bytes take one to three bytes when shorter than four, and five bytes otherwise. A run
+   * which starts when the block holds {@link #ALLOWABLE_BLOCK_SIZE} bytes or more goes into the
+   * next block.
+   */
+  static final class ChunkReader {
+
+    ChunkReader(InputStream is, long maxReadLength) {
+      this.is = is;
+      this.remaining = maxReadLength;
+    }
+
+    /**
+     * Reads the next chunk.
+     *
+     * @return The chunk, or null at the end of the input.
+     */
+    @Nullable Chunk next() throws IOException {
+      while (true) {
+        if (position == limit) {
+          int read = ended || remaining == 0 ? -1 : is.read(buffer, 0, readLength());
+          if (read == -1) {
+            return finish();
+          }
+          if (read == 0) {
+            throw new IOException("Returned zero from read()");
+          }
+          remaining -= read;
+          position = 0;
+          limit = read;
+        }
+        byte b = buffer[position++];
+        long boundary = step(b & 0xFF);
+        append(b);
+        offset++;
+        if (boundary >= 0) {
+          return split(boundary);
+        }
+      }
+    }
+
+    private int readLength() {
+      return (int) Math.min(buffer.length, remaining);
+    }
+
+    /** Whether the whole input has been returned. */
+    boolean ended() {
+      return ended && length == 0;
+    }
+
+    /** Handles the run-length encoding of one byte, returning the start of a new block or -1. */
+    private long step(int b) {
+      long boundary = -1;
+      if (currentChar != -1) {
+        if (currentChar == b) {
+          if (++runLength > 254) {
+            boundary = writeRun();
+            currentChar = -1;
+            runLength = 0;
+          }
+        } else {
+          boundary = writeRun();
+          runLength = 1;
+          currentChar = b;
+          runStart = offset;
+        }
+      } else {
+        currentChar = b;
+        runLength++;
+        runStart = offset;
+      }
+      return boundary;
+    }
+
+    /** Adds a finished run to the block, returning its start if it starts a new block, or -1. */
+    private long writeRun() {
+      int size = runLength < 4 ? runLength : 5;
+      if (blockSize < ALLOWABLE_BLOCK_SIZE) {
+        blockSize += size;
+        return -1;
+      }
+      blockSize = -1 + size;
+      return runStart;
+    }
+
+    private @Nullable Chunk finish() {
+      if (!ended) {
+        ended = true;
+        if (runLength > 0) {
+          long boundary = writeRun();
+          runLength = 0;
+          if (boundary >= 0) {
+            return split(boundary);
+          }
+        }
+      }
+      if (length == 0) {
+        return null;
+      }
+      var chunk = new Chunk(data, length, offset);
+      data = new byte[0];
+      length = 0;
+      return chunk;
+    }
+
+    /** Returns the data before {@code boundary}, keeping the rest for the next chunk. */
+    private Chunk split(long boundary) {
+      int cut = (int) (boundary - chunkStart);
+      byte[] rest = new byte[Math.max(INITIAL_CHUNK_CAPACITY, length - cut)];
+      System.arraycopy(data, cut, rest, 0, length - cut);
+      var chunk = new Chunk(data, cut, boundary);
+      data = rest;
+      length -= cut;
+      chunkStart = boundary;
+      return chunk;
+    }
+
+    private void append(byte b) {
+      if (length == data.length) {
+        data = Arrays.copyOf(data, Math.max(INITIAL_CHUNK_CAPACITY, data.length * 2));
+      }
+      data[length++] = b;
+    }
+
+    private static final int INITIAL_CHUNK_CAPACITY = 1024 * 1024;
+
+    private final InputStream is;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position;
+    private int limit;
+    private long remaining;
+    private boolean ended;
+
+    /** The data of the current chunk. */
+    private byte[] data = new byte[INITIAL_CHUNK_CAPACITY];
+
+    private int length;
+
+    /** The offset in the input of the current chunk, and of the next byte. */
+    private long chunkStart;
+
+    private long offset;
+
+    /** The run-length encoding state, as in {@link BZip2CompressorOutputStream}. */
+    private int currentChar = -1;
+
+    private int runLength;
+    private long runStart;
+    private int blockSize = -1;
+  }
+
+  /** Writes bits, most significant first, to an output stream. */
+  private static final class BitOutput {
+
+    BitOutput(OutputStream os) {
+      this.os = os;
+    }
+
+    /** Writes the lowest {@code count} bits of {@code value}, at most 56. */
+    void write(long value, int count) throws IOException {
+      bits = (bits << count) | (value & ((1L << count) - 1));
+      bitCount += count;
+      while (bitCount >= 8) {
+        bitCount -= 8;
+        if (length == buffer.length) {
+          flushBytes();
+        }
+        buffer[length++] = (byte) (bits >>> bitCount);
+      }
+    }
+
+    /** Copies the bits from {@code from} up to {@code to} of {@code data}. */
+    void copy(byte[] data, long from, long to) throws IOException {
+      for (long bit = from; bit < to; ) {
+        int count = (int) Math.min(32, to - bit);
+        write(readBits(data, bit, count), count);
+        bit += count;
+      }
+    }
+
+    /** Writes out the whole bytes written so far. */
+    void flushBytes() throws IOException {
+      os.write(buffer, 0, length);
+      length = 0;
+    }
+
+    /** Pads the last byte with zeros and writes it out. */
+    void finish() throws IOException {
+      if (bitCount > 0) {
+        write(0, 8 - bitCount);
+      }
+      flushBytes();
+    }
+
+    private final OutputStream os;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int length;
+    private long bits;
+    private int bitCount;
+  }
+
+  private final Executor executor;
+
+  /** The number of blocks compressed at the same time, besides the one being read. */
+  private final int parallelism;
+}
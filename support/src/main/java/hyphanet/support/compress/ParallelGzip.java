@@ -0,0 +1,187 @@
+package hyphanet.support.compress;
+
+import hyphanet.support.io.stream.CountedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Writes a single gzip member whose chunks of input are deflated in parallel, in the manner of
+ * pigz.
+ *
+ * <p>The input is cut into chunks of {@link #CHUNK_SIZE} bytes. Each chunk is deflated on its own,
+ * primed with the last {@link #DICTIONARY_SIZE} bytes of the chunk before it so that matches across
+ * the boundary are not lost, and ends with a sync flush so that the raw deflate streams can be
+ * concatenated. Only the last chunk ends the deflate stream. The CRC32 of the whole input is
+ * computed while reading it, so the result is a standard gzip member which any gzip decoder reads.
+ *
+ * <p>The output only depends on the input and the chunk size, not on the number of threads or the
+ * order in which they finish.
+ */
+final class ParallelGzip {
+
+  /** The size of the chunks deflated on their own. */
+  static final int CHUNK_SIZE = 128 * 1024;
+
+  /** The size of the deflate window, and so of the dictionary taken from the previous chunk. */
+  static final int DICTIONARY_SIZE = 32 * 1024;
+
+  /** A gzip header without name, time or extra fields, with the OS byte set to 0. */
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+  ParallelGzip(Executor executor, int parallelism) {
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Compresses the rest of the input, after a first chunk which has already been read.
+   *
+   * @param first The first chunk, which must be full.
+   * @param is The rest of the input.
+   * @param os Where to write the gzip member. It is not closed.
+   * @return The number of bytes written.
+   * @see Compressor#compress(InputStream, OutputStream, long, long, long, int)
+   */
+  long compress(
+      byte[] first,
+      InputStream is,
+      OutputStream os,
+      long maxReadLength,
+      long maxWriteLength,
+      long amountOfDataToCheckCompressionRatio,
+      int minimumCompressionPercentage)
+      throws IOException, CompressionRatioException {
+    var cos = new CountedOutputStream(os);
+    var crc = new CRC32();
+    Deque<CompletableFuture<Block>> pending = new ArrayDeque<>();
+    boolean checkRatio =
+        minimumCompressionPercentage != 0 && amountOfDataToCheckCompressionRatio > 0;
+    try {
+      cos.write(HEADER);
+      byte[] chunk = first;
+      int length = first.length;
+      byte @Nullable [] previous = null;
+      long read = length;
+      crc.update(chunk, 0, length);
+      while (true) {
+        // Read ahead to know whether this chunk is the last one.
+        byte[] next = new byte[CHUNK_SIZE];
+        int nextLength = is.readNBytes(next, 0, (int) Math.min(CHUNK_SIZE, maxReadLength - read));
+        crc.update(next, 0, nextLength);
+        read += nextLength;
+        boolean last = nextLength == 0;
+
+        byte @Nullable [] dictionary = previous;
+        byte[] input = chunk;
+        int inputLength = length;
+        long inputEnd = read - nextLength;
+        pending.add(
+            CompletableFuture.supplyAsync(
+                () -> new Block(deflate(input, inputLength, dictionary, last), inputEnd),
+                executor));
+
+        while (pending.size() > (last ? 0 : parallelism)) {
+          Block block = await(pending.removeFirst());
+          cos.write(block.data);
+          if (cos.written() > maxWriteLength) {
+            throw new CompressionOutputSizeException(cos.written());
+          }
+          if (checkRatio && block.inputEnd >= amountOfDataToCheckCompressionRatio) {
+            checkRatio = false;
+            AbstractCompressor.checkCompressionEffect(
+                block.inputEnd, cos.written(), minimumCompressionPercentage);
+          }
+        }
+        if (last) {
+          break;
+        }
+        previous = chunk;
+        chunk = next;
+        length = nextLength;
+      }
+      writeIntLe(cos, (int) crc.getValue());
+      writeIntLe(cos, (int) read);
+      if (cos.written() > maxWriteLength) {
+        throw new CompressionOutputSizeException(cos.written());
+      }
+      return cos.written();
+    } finally {
+      for (var future : pending) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Deflates a chunk into raw deflate data which ends on a byte boundary, and which ends the
+   * deflate stream only if this is the last chunk.
+   */
+  static byte[] deflate(byte[] input, int length, byte @Nullable [] dictionary, boolean last) {
+    Deflater deflater = ZlibPool.deflater();
+    if (dictionary != null) {
+      deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+    }
+    deflater.setInput(input, 0, length);
+    if (last) {
+      deflater.finish();
+    }
+    byte[] out = new byte[length + (length >> 3) + 64];
+    int written = 0;
+    while (true) {
+      written +=
+          deflater.deflate(
+              out, written, out.length - written, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+      if (last ? deflater.finished() : written < out.length) {
+        return Arrays.copyOf(out, written);
+      }
+      if (written == out.length) {
+        out = Arrays.copyOf(out, out.length * 2);
+      }
+    }
+  }
+
+  private static Block await(CompletableFuture<Block> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException | CancellationException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException re) {
+        throw re;
+      }
+      if (cause instanceof Error error) {
+        throw error;
+      }
+      throw new IOException("Compression failed", cause == null ? e : cause);
+    }
+  }
+
+  private static void writeIntLe(OutputStream os, int value) throws IOException {
+    os.write(value);
+    os.write(value >>> 8);
+    os.write(value >>> 16);
+    os.write(value >>> 24);
+  }
+
+  /** The deflated data of a chunk, and the offset of the end of the chunk in the input. */
+  private record Block(byte[] data, long inputEnd) {}
+
+  private final Executor executor;
+
+  /** The number of chunks deflated at the same time, besides the one being read. */
+  private final int parallelism;
+}
@@ -0,0 +1,52 @@
+package hyphanet.support.compress;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Hands out one raw {@link Inflater}, {@link Deflater} and {@link CRC32} per thread, so that
+ * compressing or decompressing a block does not set up a new zlib stream, with its native memory,
+ * every time.
+ *
+ * <p>The instances are reset before they are handed out. A caller must be done with an instance
+ * before anything on the same thread asks for another one of the same kind, and must not end it.
+ */
+final class ZlibPool {
+
+  private ZlibPool() {
+    throw new UnsupportedOperationException("Utility class");
+  }
+
+  /** Returns this thread's inflater for raw deflate data, without a zlib header. */
+  static Inflater inflater() {
+    Inflater inflater = INFLATERS.get();
+    inflater.reset();
+    return inflater;
+  }
+
+  /**
+   * Returns this thread's deflater at the default level, writing raw deflate data without a zlib
+   * header.
+   */
+  static Deflater deflater() {
+    Deflater deflater = DEFLATERS.get();
+    deflater.reset();
+    return deflater;
+  }
+
+  /** Returns this thread's CRC32. */
+  static CRC32 crc32() {
+    CRC32 crc = CRCS.get();
+    crc.reset();
+    return crc;
+  }
+
+  private static final ThreadLocal<Inflater> INFLATERS =
+      ThreadLocal.withInitial(() -> new Inflater(true));
+
+  private static final ThreadLocal<Deflater> DEFLATERS =
+      ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+  private static final ThreadLocal<CRC32> CRCS = ThreadLocal.withInitial(CRC32::new);
+}
@@ -0,0 +1,301 @@
+package hyphanet.support.io;
+
+import hyphanet.support.io.stream.InsufficientDiskSpaceException;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps an estimate of the free space of each {@link FileStore}, so that disk space checks do not
+ * have to ask the filesystem every time.
+ *
+ * <p>The usable space of a store is read from the filesystem, then lowered by every allocation made
+ * through the ledger. It is read again once {@link #getRefreshInterval() the refresh interval} has
+ * elapsed or {@link #getRefreshBytes() enough bytes} have been allocated since, and whenever a
+ * check fails on an estimate that may be stale, so that space freed in the meantime is not missed.
+ *
+ * <p>Space for a buffer that is being created is held by a {@link Reservation}, so that concurrent
+ * allocations cannot together take more than is available. Each store has its own lock, which is
+ * only held to update the estimate; allocations on different filesystems never wait for each other.
+ */
+public final class DiskSpaceLedger {
+
+  /** How long a reading of the usable space is trusted by default. */
+  public static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofSeconds(1);
+
+  /** How many bytes may be allocated by default before the usable space is read again. */
+  public static final long DEFAULT_REFRESH_BYTES = 64L * 1024 * 1024;
+
+  private static final Logger logger = LoggerFactory.getLogger(DiskSpaceLedger.class);
+
+  private static final DiskSpaceLedger DEFAULT =
+      new DiskSpaceLedger(DEFAULT_REFRESH_INTERVAL, DEFAULT_REFRESH_BYTES);
+
+  /**
+   * Creates a ledger.
+   *
+   * @param refreshInterval How long a reading of the usable space of a store is trusted.
+   * @param refreshBytes How many bytes may be allocated on a store before its usable space is read
+   *     again.
+   * @throws IllegalArgumentException if {@code refreshInterval} or {@code refreshBytes} is
+   *     negative.
+   */
+  public DiskSpaceLedger(Duration refreshInterval, long refreshBytes) {
+    this(refreshInterval, refreshBytes, System::nanoTime);
+  }
+
+  DiskSpaceLedger(Duration refreshInterval, long refreshBytes, LongSupplier nanoTime) {
+    if (refreshInterval.isNegative() || refreshBytes < 0) {
+      throw new IllegalArgumentException("Refresh interval and bytes must be non-negative");
+    }
+    this.refreshInterval = refreshInterval;
+    this.refreshIntervalNanos = refreshInterval.toNanos();
+    this.refreshBytes = refreshBytes;
+    this.nanoTime = nanoTime;
+  }
+
+  /**
+   * Returns the ledger shared by the whole JVM. Every component allocating on the same filesystem
+   * should use it, so that they see each other's allocations.
+   *
+   * @return The shared ledger.
+   */
+  public static DiskSpaceLedger getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Reserves space on a store for a buffer that is about to be created.
+   *
+   * <p>The reservation must be {@linkplain Reservation#commit() committed} once the buffer exists,
+   * or {@linkplain Reservation#close() closed} if it could not be created; closing after committing
+   * does nothing, so it can be used in a try-with-resources statement.
+   *
+   * @param store The store the buffer will be created on.
+   * @param bytes The size of the buffer in bytes.
+   * @param minFree The number of bytes which must remain free after the reservation.
+   * @return The reservation.
+   * @throws InsufficientDiskSpaceException if more than {@code bytes + minFree} bytes are not
+   *     available, or the usable space cannot be read.
+   */
+  public Reservation reserve(FileStore store, long bytes, long minFree)
+      throws InsufficientDiskSpaceException {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Cannot reserve a negative number of bytes");
+    }
+    Account account = account(store);
+    account.lock.lock();
+    try {
+      if (account.hasRoom(bytes, minFree, false)) {
+        account.reserved += bytes;
+        return new Reservation(account, bytes);
+      }
+      throw new InsufficientDiskSpaceException();
+    } finally {
+      account.lock.unlock();
+    }
+  }
+
+  /**
+   * Checks that a store has room for data that is about to be written, and if so counts it as
+   * allocated.
+   *
+   * @param store The store the data will be written to.
+   * @param bytes The number of bytes to be written.
+   * @param minFree The number of bytes which must remain free after writing.
+   * @return {@code true} if at least {@code bytes + minFree} bytes are available, {@code false}
+   *     otherwise or if the usable space cannot be read.
+   */
+  public boolean allocate(FileStore store, long bytes, long minFree) {
+    Account account = account(store);
+    account.lock.lock();
+    try {
+      if (account.hasRoom(bytes, minFree, true)) {
+        account.allocated(bytes);
+        return true;
+      }
+      return false;
+    } finally {
+      account.lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the estimated number of bytes available on a store, after deducting outstanding
+   * reservations.
+   *
+   * @param store The store.
+   * @return The available space in bytes, or -1 if the usable space cannot be read.
+   */
+  public long getAvailableSpace(FileStore store) {
+    Account account = account(store);
+    account.lock.lock();
+    try {
+      account.refreshIfStale();
+      return account.usable < 0 ? -1 : account.available();
+    } finally {
+      account.lock.unlock();
+    }
+  }
+
+  /**
+   * Returns how long an estimate of the usable space of a store is trusted before it is read again.
+   *
+   * @return The refresh interval.
+   */
+  public Duration getRefreshInterval() {
+    return refreshInterval;
+  }
+
+  /**
+   * Returns how many bytes may be allocated on a store before its usable space is read again.
+   *
+   * @return The number of bytes.
+   */
+  public long getRefreshBytes() {
+    return refreshBytes;
+  }
+
+  private Account account(FileStore store) {
+    return accounts.computeIfAbsent(store, Account::new);
+  }
+
+  /**
+   * Space held on a store for a buffer being created. Reservations are not thread-safe; they are
+   * meant to be used by the thread which made them.
+   */
+  public static final class Reservation implements AutoCloseable {
+
+    private Reservation(Account account, long bytes) {
+      this.account = account;
+      this.bytes = bytes;
+    }
+
+    /**
+     * Records that the buffer has been created. The reserved bytes stay counted as allocated until
+     * the usable space of the store is read again.
+     */
+    public void commit() {
+      release(true);
+    }
+
+    /** Gives the reserved bytes back, unless the reservation was committed. */
+    @Override
+    public void close() {
+      release(false);
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    private void release(boolean allocated) {
+      if (released) {
+        return;
+      }
+      released = true;
+      account.lock.lock();
+      try {
+        account.reserved -= bytes;
+        if (allocated) {
+          account.allocated(bytes);
+        }
+      } finally {
+        account.lock.unlock();
+      }
+    }
+
+    private final Account account;
+    private final long bytes;
+    private boolean released;
+  }
+
+  /** The estimated state of one store. All fields but {@link #store} are guarded by the lock. */
+  private final class Account {
+
+    Account(FileStore store) {
+      this.store = store;
+    }
+
+    /**
+     * Returns whether {@code bytes} can be allocated while leaving {@code minFree} bytes free. If
+     * not, and the estimate assumes that nothing allocated since the last reading has been freed,
+     * the usable space is read again before giving up.
+     */
+    boolean hasRoom(long bytes, long minFree, boolean orEqual) {
+      refreshIfStale();
+      if (fits(bytes, minFree, orEqual)) {
+        return true;
+      }
+      if (allocatedSinceRefresh == 0) {
+        return false;
+      }
+      refresh();
+      return fits(bytes, minFree, orEqual);
+    }
+
+    /** Reads the usable space if it has never been read, or the last reading is too old. */
+    void refreshIfStale() {
+      if (usable < 0
+          || allocatedSinceRefresh >= refreshBytes
+          || nanoTime.getAsLong() - lastRefresh >= refreshIntervalNanos) {
+        refresh();
+      }
+    }
+
+    long available() {
+      return usable - reserved - allocatedSinceRefresh;
+    }
+
+    private boolean fits(long bytes, long minFree, boolean orEqual) {
+      if (usable < 0) {
+        return false;
+      }
+      long left = available() - bytes;
+      return orEqual ? left >= minFree : left > minFree;
+    }
+
+    void allocated(long bytes) {
+      allocatedSinceRefresh += bytes;
+    }
+
+    private void refresh() {
+      lastRefresh = nanoTime.getAsLong();
+      allocatedSinceRefresh = 0;
+      try {
+        usable = store.getUsableSpace();
+      } catch (IOException e) {
+        logger.error("Unable to check disk space on {}", store, e);
+        usable = -1;
+      }
+      logger.trace("Usable space on {} is {} bytes, {} reserved", store, usable, reserved);
+    }
+
+    final FileStore store;
+    final Lock lock = new ReentrantLock();
+
+    /** The usable space at the last reading, or -1 if it has not been read or could not be. */
+    long usable = -1;
+
+    /** Bytes held by outstanding reservations. */
+    long reserved;
+
+    /** Bytes allocated since the last reading, which the filesystem may not reflect yet. */
+    long allocatedSinceRefresh;
+
+    long lastRefresh;
+  }
+
+  private final Duration refreshInterval;
+  private final long refreshIntervalNanos;
+  private final long refreshBytes;
+  private final LongSupplier nanoTime;
+  private final Map<FileStore, Account> accounts = new ConcurrentHashMap<>();
+}
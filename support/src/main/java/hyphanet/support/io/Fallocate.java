@@ -1,27 +1,110 @@
 package hyphanet.support.io;
 
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.random.RandomGenerator;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Provides access to operating system-specific {@code fallocate} and {@code posix_fallocate}
- * functions.
- * https://stackoverflow.com/questions/18031841/pre-allocating-drive-space-for-file-storage
+ * Preallocates disk space for a file, using the operating system's {@code fallocate(2)} or {@code
+ * posix_fallocate(3)} through the Foreign Function and Memory API where available.
+ *
+ * <p>Strategies are tried in the following order:
+ *
+ * <ol>
+ *   <li>{@link Strategy#FALLOCATE}: Linux {@code fallocate(2)}. The filesystem reserves unwritten
+ *       extents; no data is written.
+ *   <li>{@link Strategy#POSIX_FALLOCATE}: {@code posix_fallocate(3)}. Usually implemented by the
+ *       filesystem as well; the C library's emulation touches a single byte per block at most.
+ *   <li>{@link Strategy#FILL}: writes random data from the requested offset up to the final size in
+ *       {@value #FILL_BUFFER_SIZE}-byte chunks. Already existing data before the offset is never
+ *       rewritten.
+ * </ol>
+ *
+ * <p>The native strategies need the path of the file, because a {@link FileChannel} does not expose
+ * its file descriptor. If the instance was created without a path, only {@link Strategy#FILL} is
+ * available.
+ *
+ * <p>https://stackoverflow.com/questions/18031841/pre-allocating-drive-space-for-file-storage
  */
-// TODO: Reimplement this class using the Foreign Function and Memory API (FFM) and without
-// reflection.
 public final class Fallocate {
+  /** Size of the buffer used by {@link Strategy#FILL}. */
+  public static final int FILL_BUFFER_SIZE = 1024 * 1024;
+
   private static final Logger logger = LoggerFactory.getLogger(Fallocate.class);
 
+  /** {@code O_WRONLY} has the same value on Linux, the BSDs and macOS. */
+  private static final int O_WRONLY = 1;
+
+  /** {@code EINTR} has the same value on Linux, the BSDs and macOS. */
+  private static final int EINTR = 4;
+
+  /**
+   * The way the space was actually allocated.
+   *
+   * @see #execute()
+   */
+  public enum Strategy {
+    /** Linux {@code fallocate(2)} with mode 0. */
+    FALLOCATE,
+    /** {@code posix_fallocate(3)}. */
+    POSIX_FALLOCATE,
+    /** Explicitly writing data up to the final size. */
+    FILL
+  }
+
+  /**
+   * Creates a new instance which can only use {@link Strategy#FILL}.
+   *
+   * @param channel the channel to write to, must be writable
+   * @param finalFileSize the size the file should have after {@link #execute()}
+   */
   public Fallocate(FileChannel channel, long finalFileSize) {
+    this(null, channel, finalFileSize);
+  }
+
+  /**
+   * Creates a new instance which tries the native strategies on {@code path} first.
+   *
+   * @param path the path of the file {@code channel} was opened on, or {@code null} to only use
+   *     {@link Strategy#FILL}
+   * @param channel the channel to write to if the native strategies fail, must be writable
+   * @param finalFileSize the size the file should have after {@link #execute()}
+   */
+  public Fallocate(@Nullable Path path, FileChannel channel, long finalFileSize) {
+    this.path = path;
     this.finalFileSize = finalFileSize;
     this.channel = channel;
   }
 
+  /**
+   * Returns whether the native strategies can be used on this platform at all.
+   *
+   * @return {@code true} if at least {@code posix_fallocate} was found in the C library
+   */
+  public static boolean isNativeAvailable() {
+    return Native.INSTANCE != null;
+  }
+
   public Fallocate fromOffset(long offset) {
     if (offset < 0 || offset > finalFileSize) {
       throw new IllegalArgumentException();
@@ -30,26 +113,183 @@ public final class Fallocate {
     return this;
   }
 
-  public void execute() throws IOException {
-    logger.info("fallocate using legacy method");
-    legacyFill(channel, finalFileSize, offset);
+  /**
+   * Allocates the space between the offset and the final file size.
+   *
+   * @return the strategy which succeeded
+   * @throws IOException if the fallback fill fails
+   */
+  public Strategy execute() throws IOException {
+    if (offset < finalFileSize && path != null && Native.INSTANCE != null) {
+      var nativeStrategy = Native.INSTANCE.allocate(path, offset, finalFileSize - offset);
+      if (nativeStrategy != null) {
+        strategy = nativeStrategy;
+        return nativeStrategy;
+      }
+    }
+    logger.info("fallocate using fill method for {}", path);
+    fill(channel, finalFileSize, offset);
+    strategy = Strategy.FILL;
+    return Strategy.FILL;
   }
 
-  private static void legacyFill(FileChannel fc, long newLength, long offset) throws IOException {
+  /**
+   * Returns the strategy used by the last {@link #execute()} call.
+   *
+   * @return the strategy, or {@code null} if {@link #execute()} has not been called yet
+   */
+  public @Nullable Strategy getStrategy() {
+    return strategy;
+  }
+
+  private static void fill(FileChannel fc, long newLength, long offset) throws IOException {
     var rng = RandomGenerator.getDefault();
-    byte[] b = new byte[4096];
-    ByteBuffer bb = ByteBuffer.wrap(b);
+    ByteBuffer bb = ByteBuffer.allocateDirect(FILL_BUFFER_SIZE);
+    byte[] b = new byte[FILL_BUFFER_SIZE];
     while (offset < newLength) {
-      bb.rewind();
       rng.nextBytes(b);
-      offset += fc.write(bb, offset);
-      if (offset % (1024 * 1024 * 1024L) == 0) {
-        rng = RandomGenerator.getDefault();
+      int chunk = (int) Math.min(FILL_BUFFER_SIZE, newLength - offset);
+      bb.clear().put(b, 0, chunk).flip();
+      while (bb.hasRemaining()) {
+        offset += fc.write(bb, offset);
+      }
+    }
+  }
+
+  /** Bindings to the C library, resolved once. */
+  private static final class Native {
+    private static final @Nullable Native INSTANCE = load();
+
+    private Native(
+        MethodHandle open,
+        MethodHandle close,
+        @Nullable MethodHandle fallocate,
+        MethodHandle posixFallocate,
+        StructLayout callState) {
+      this.open = open;
+      this.close = close;
+      this.fallocate = fallocate;
+      this.posixFallocate = posixFallocate;
+      this.callState = callState;
+      this.errnoOffset = callState.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+    }
+
+    private static @Nullable Native load() {
+      // off_t is only guaranteed to be 64 bits wide on 64-bit platforms.
+      if (ADDRESS.byteSize() != Long.BYTES) {
+        return null;
+      }
+      try {
+        Linker linker = Linker.nativeLinker();
+        SymbolLookup libc = linker.defaultLookup();
+        var posixFallocateSymbol = libc.find("posix_fallocate");
+        if (posixFallocateSymbol.isEmpty()) {
+          return null;
+        }
+        StructLayout callState = Linker.Option.captureStateLayout();
+        Linker.Option errno = Linker.Option.captureCallState("errno");
+        MethodHandle open =
+            linker.downcallHandle(
+                libc.find("open").orElseThrow(),
+                FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT),
+                errno);
+        MethodHandle close =
+            linker.downcallHandle(
+                libc.find("close").orElseThrow(), FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+        MethodHandle posixFallocate =
+            linker.downcallHandle(
+                posixFallocateSymbol.get(),
+                FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_LONG, JAVA_LONG));
+        MethodHandle fallocate =
+            libc.find("fallocate")
+                .map(
+                    symbol ->
+                        linker.downcallHandle(
+                            symbol,
+                            FunctionDescriptor.of(
+                                JAVA_INT, JAVA_INT, JAVA_INT, JAVA_LONG, JAVA_LONG),
+                            errno))
+                .orElse(null);
+        return new Native(open, close, fallocate, posixFallocate, callState);
+      } catch (RuntimeException | LinkageError e) {
+        logger.warn("Native fallocate is not available: {}", e.toString());
+        return null;
       }
     }
+
+    /**
+     * Tries the native strategies in order.
+     *
+     * @return the strategy which succeeded, or {@code null} if all of them failed
+     */
+    private @Nullable Strategy allocate(Path path, long offset, long length) {
+      try (Arena arena = Arena.ofConfined()) {
+        MemorySegment state = arena.allocate(callState);
+        int fd = (int) open.invokeExact(state, toCString(arena, path), O_WRONLY);
+        if (fd < 0) {
+          logger.warn("Unable to open {} for fallocate: errno {}", path, errno(state));
+          return null;
+        }
+        try {
+          if (fallocate != null) {
+            int result;
+            do {
+              result = (int) fallocate.invokeExact(state, fd, 0, offset, length);
+            } while (result != 0 && errno(state) == EINTR);
+            if (result == 0) {
+              return Strategy.FALLOCATE;
+            }
+            logger.debug("fallocate failed on {}: errno {}", path, errno(state));
+          }
+          int error;
+          do {
+            error = (int) posixFallocate.invokeExact(fd, offset, length);
+          } while (error == EINTR);
+          if (error == 0) {
+            return Strategy.POSIX_FALLOCATE;
+          }
+          logger.debug("posix_fallocate failed on {}: error {}", path, error);
+          return null;
+        } finally {
+          int ignored = (int) close.invokeExact(fd);
+        }
+      } catch (Throwable t) {
+        logger.warn("Native fallocate failed on {}", path, t);
+        return null;
+      }
+    }
+
+    private int errno(MemorySegment state) {
+      return state.get(JAVA_INT, errnoOffset);
+    }
+
+    /**
+     * Converts a path to a NUL-terminated string in the platform's file name encoding, which is not
+     * necessarily UTF-8.
+     */
+    private static MemorySegment toCString(Arena arena, Path path) {
+      var charset =
+          Charset.forName(
+              System.getProperty("sun.jnu.encoding", StandardCharsets.UTF_8.name()),
+              StandardCharsets.UTF_8);
+      byte[] bytes = path.toAbsolutePath().toString().getBytes(charset);
+      MemorySegment segment = arena.allocate(bytes.length + 1L);
+      MemorySegment.copy(bytes, 0, segment, JAVA_BYTE, 0, bytes.length);
+      segment.set(JAVA_BYTE, bytes.length, (byte) 0);
+      return segment;
+    }
+
+    private final MethodHandle open;
+    private final MethodHandle close;
+    private final @Nullable MethodHandle fallocate;
+    private final MethodHandle posixFallocate;
+    private final StructLayout callState;
+    private final long errnoOffset;
   }
 
+  private final @Nullable Path path;
   private final long finalFileSize;
   private final FileChannel channel;
   private long offset;
+  private @Nullable Strategy strategy;
 }
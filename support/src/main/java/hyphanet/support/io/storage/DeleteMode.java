@@ -0,0 +1,39 @@
+package hyphanet.support.io.storage;
+
+/**
+ * How the data of a file backed {@link Storage} is destroyed when it is disposed.
+ *
+ * @see Storage#getDeleteMode()
+ * @see ErasableStorage
+ */
+public enum DeleteMode {
+  /** The file is deleted. Its contents may be recoverable from the disk. */
+  DELETE,
+
+  /**
+   * The whole file is overwritten with random data and synced before it is deleted. This costs as
+   * much I/O as writing the file again.
+   */
+  OVERWRITE,
+
+  /**
+   * Only the key material at the start of the file is overwritten with random data and synced, then
+   * the file is deleted. The remaining ciphertext cannot be decrypted without the key, so this is
+   * as good as {@link #OVERWRITE} for a file which has only ever been written encrypted, at the
+   * cost of a single small write.
+   *
+   * <p>Must not be used for files which were written in plaintext, even in part: their contents
+   * would be left on the disk.
+   */
+  CRYPTO_SHRED;
+
+  /**
+   * Returns the mode to use for a file which may contain plaintext: {@link #CRYPTO_SHRED} is
+   * replaced by {@link #OVERWRITE}, other modes are kept.
+   *
+   * @return The mode to use for plaintext.
+   */
+  public DeleteMode forPlaintext() {
+    return this == CRYPTO_SHRED ? OVERWRITE : this;
+  }
+}
@@ -0,0 +1,22 @@
+package hyphanet.support.io.storage;
+
+/**
+ * A {@link Storage} backed by a file, whose {@link DeleteMode} can be chosen by whoever created it.
+ */
+public interface ErasableStorage extends Storage {
+
+  /**
+   * Sets how the file is destroyed when this storage is disposed.
+   *
+   * <p>{@link DeleteMode#CRYPTO_SHRED} may only be set by the creator of a file which is encrypted
+   * from its very first write, with the key material stored in its first {@code keyLength} bytes.
+   *
+   * @param mode The delete mode.
+   * @param keyLength The number of bytes at the start of the file holding the key material. Only
+   *     used for {@link DeleteMode#CRYPTO_SHRED}.
+   * @throws IllegalArgumentException if {@code mode} is {@link DeleteMode#CRYPTO_SHRED} and {@code
+   *     keyLength} is not positive.
+   * @see Erasure
+   */
+  void setDeleteMode(DeleteMode mode, int keyLength);
+}
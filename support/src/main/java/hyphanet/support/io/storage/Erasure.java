@@ -0,0 +1,100 @@
+package hyphanet.support.io.storage;
+
+import hyphanet.support.io.util.FileSystem;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serial;
+import java.io.Serializable;
+import java.nio.file.Path;
+
+/**
+ * How the file of an {@link ErasableStorage} is destroyed when it is disposed: a {@link DeleteMode}
+ * and, for {@link DeleteMode#CRYPTO_SHRED}, the length of the key material at the start of the
+ * file.
+ *
+ * <p>Instances are immutable, so a storage can hold one in a single field and replace it as a whole
+ * when its delete mode changes.
+ *
+ * @param mode The delete mode.
+ * @param keyLength The number of bytes at the start of the file holding the key material, or 0 if
+ *     the mode is not {@link DeleteMode#CRYPTO_SHRED}.
+ */
+public record Erasure(DeleteMode mode, int keyLength) implements Serializable {
+
+  /** Plainly deletes the file. */
+  public static final Erasure DELETE = new Erasure(DeleteMode.DELETE, 0);
+
+  /** Overwrites the whole file before deleting it. */
+  public static final Erasure OVERWRITE = new Erasure(DeleteMode.OVERWRITE, 0);
+
+  @Serial private static final long serialVersionUID = 1L;
+
+  /**
+   * Creates an erasure. The key length is ignored unless the mode is {@link
+   * DeleteMode#CRYPTO_SHRED}.
+   *
+   * @throws IllegalArgumentException if {@code mode} is {@link DeleteMode#CRYPTO_SHRED} and {@code
+   *     keyLength} is not positive.
+   */
+  public Erasure {
+    if (mode != DeleteMode.CRYPTO_SHRED) {
+      keyLength = 0;
+    } else if (keyLength <= 0) {
+      throw new IllegalArgumentException("Key length must be positive");
+    }
+  }
+
+  /**
+   * Returns the erasure for the legacy secure delete flag.
+   *
+   * @param secureDelete Whether to overwrite the whole file.
+   * @return {@link #OVERWRITE} or {@link #DELETE}.
+   */
+  public static Erasure of(boolean secureDelete) {
+    return secureDelete ? OVERWRITE : DELETE;
+  }
+
+  /**
+   * Restores an erasure written by {@link #writeTo(DataOutputStream)}.
+   *
+   * @param dis The stream to read from.
+   * @param withKeyLength Whether the key length was stored. Formats older than crypto shredding
+   *     only stored the secure delete flag.
+   * @return The erasure.
+   * @throws IOException If an I/O error occurs.
+   * @throws StorageFormatException If the key length is negative.
+   */
+  public static Erasure readFrom(DataInputStream dis, boolean withKeyLength)
+      throws IOException, StorageFormatException {
+    boolean secureDelete = dis.readBoolean();
+    int keyLength = withKeyLength ? dis.readInt() : 0;
+    if (keyLength < 0) {
+      throw new StorageFormatException("Bad key length");
+    }
+    return keyLength > 0 ? new Erasure(DeleteMode.CRYPTO_SHRED, keyLength) : of(secureDelete);
+  }
+
+  /**
+   * Writes the secure delete flag followed by the key length.
+   *
+   * @param dos The stream to write to.
+   * @throws IOException If an I/O error occurs.
+   */
+  public void writeTo(DataOutputStream dos) throws IOException {
+    dos.writeBoolean(mode == DeleteMode.OVERWRITE);
+    dos.writeInt(keyLength);
+  }
+
+  /**
+   * Destroys a file in this way.
+   *
+   * @param path The file.
+   * @throws IOException If an I/O error occurs, including the file not existing for {@link
+   *     DeleteMode#DELETE}.
+   * @see FileSystem#delete(Path, DeleteMode, int)
+   */
+  public void delete(Path path) throws IOException {
+    FileSystem.delete(path, mode, keyLength);
+  }
+}
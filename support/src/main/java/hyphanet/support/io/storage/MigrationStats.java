@@ -0,0 +1,125 @@
+package hyphanet.support.io.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the migrations of temporary storages from RAM to disk.
+ *
+ * <p>A migration copies most of the data without holding the storage's lock; readers and writers
+ * only wait while the migration takes a snapshot and while it swaps in the disk storage. That wait
+ * is the stall time. {@link #getBytesCopied()} grows while a migration is in progress, so it can be
+ * polled to follow progress.
+ */
+public final class MigrationStats {
+
+  /** Records the start of a migration. */
+  public void started() {
+    inProgress.incrementAndGet();
+  }
+
+  /**
+   * Records bytes copied to disk without holding the storage's lock.
+   *
+   * @param bytes The number of bytes.
+   */
+  public void copied(long bytes) {
+    bytesCopied.add(bytes);
+  }
+
+  /**
+   * Records bytes copied to disk while holding the storage's lock.
+   *
+   * @param bytes The number of bytes.
+   */
+  public void copiedLocked(long bytes) {
+    bytesCopied.add(bytes);
+    bytesCopiedLocked.add(bytes);
+  }
+
+  /**
+   * Records a period during which the storage's lock was held by the migration.
+   *
+   * @param nanos The length of the period in nanoseconds.
+   */
+  public void stalled(long nanos) {
+    totalStallNanos.add(nanos);
+    maxStallNanos.accumulateAndGet(nanos, Math::max);
+  }
+
+  /**
+   * Records the end of a migration.
+   *
+   * @param success Whether the storage now lives on disk.
+   */
+  public void finished(boolean success) {
+    inProgress.decrementAndGet();
+    (success ? completed : failed).increment();
+  }
+
+  public long getInProgress() {
+    return inProgress.get();
+  }
+
+  public long getCompleted() {
+    return completed.sum();
+  }
+
+  /**
+   * Returns the number of migrations that did not complete, because of an error or because the
+   * storage was freed in the meantime. The storage stays in RAM.
+   *
+   * @return The number of failed migrations.
+   */
+  public long getFailed() {
+    return failed.sum();
+  }
+
+  /**
+   * Returns the total number of bytes written to disk by migrations, including those of migrations
+   * still in progress.
+   *
+   * @return The number of bytes copied.
+   */
+  public long getBytesCopied() {
+    return bytesCopied.sum();
+  }
+
+  /**
+   * Returns the part of {@link #getBytesCopied()} that was copied while holding the storage's lock.
+   *
+   * @return The number of bytes copied while holding the lock.
+   */
+  public long getBytesCopiedLocked() {
+    return bytesCopiedLocked.sum();
+  }
+
+  public long getTotalStallNanos() {
+    return totalStallNanos.sum();
+  }
+
+  public long getMaxStallNanos() {
+    return maxStallNanos.get();
+  }
+
+  @Override
+  public String toString() {
+    return "MigrationStats[inProgress=%d, completed=%d, failed=%d, bytesCopied=%d, bytesCopiedLocked=%d, totalStallNanos=%d, maxStallNanos=%d]"
+        .formatted(
+            getInProgress(),
+            getCompleted(),
+            getFailed(),
+            getBytesCopied(),
+            getBytesCopiedLocked(),
+            getTotalStallNanos(),
+            getMaxStallNanos());
+  }
+
+  private final AtomicLong inProgress = new AtomicLong();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder bytesCopied = new LongAdder();
+  private final LongAdder bytesCopiedLocked = new LongAdder();
+  private final LongAdder totalStallNanos = new LongAdder();
+  private final AtomicLong maxStallNanos = new AtomicLong();
+}
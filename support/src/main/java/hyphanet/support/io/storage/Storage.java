@@ -53,4 +53,14 @@ public interface Storage extends Resumable, AutoCloseable, Serializable {
   void dispose();
 
   boolean disposed();
+
+  /**
+   * Returns how the data of this Storage is destroyed when it is {@linkplain #dispose() disposed}.
+   * Wrappers report the mode of the storage they wrap.
+   *
+   * @return The delete mode; {@link DeleteMode#DELETE} for storages which are not file backed.
+   */
+  default DeleteMode getDeleteMode() {
+    return DeleteMode.DELETE;
+  }
 }
@@ -101,6 +101,18 @@ public class TempStorageManager implements RabFactory, BucketFactory {
     rabFactory.setEncrypt(encrypt);
   }
 
+  /**
+   * Sets how the files of temporary buckets and buffers created from now on are destroyed when they
+   * are disposed. {@link DeleteMode#CRYPTO_SHRED} only applies to encrypted files, plaintext ones
+   * are overwritten instead.
+   *
+   * @param deleteMode The delete mode.
+   */
+  public void setDeleteMode(DeleteMode deleteMode) {
+    bucketFactory.setDeleteMode(deleteMode);
+    rabFactory.setDeleteMode(deleteMode);
+  }
+
   public TempStorageTracker getRamTracker() {
     return ramTracker;
   }
@@ -261,6 +273,7 @@ public class TempStorageManager implements RabFactory, BucketFactory {
                     "An IOE occured while migrating long-lived buckets:{}", e.getMessage(), e);
               }
             }
+            logger.debug("Migration statistics: {}", ramTracker.getMigrationStats());
             return true;
           }
           return false;
@@ -1,29 +1,154 @@
 package hyphanet.support.io.storage;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.jspecify.annotations.Nullable;
 
+/**
+ * Keeps track of the temporary storages that hold their data in RAM.
+ *
+ * <p>The number of RAM bytes in use is a counter, updated whenever a tracked storage grows or is
+ * removed, so {@link #getRamBytesInUse()} does not depend on the number of live storages. The
+ * storages themselves are kept ordered by age, oldest first, for the RAM releaser to migrate.
+ *
+ * <p>Only storages that are in RAM when added are tracked; the others never use the pool.
+ */
 public class TempStorageTracker {
 
+  /**
+   * Starts tracking a storage, if it is in RAM. Its current size counts towards the RAM in use.
+   *
+   * <p>The caller must hold the storage's lock, or the storage must not be growing, so that its
+   * size is stable while it is read.
+   *
+   * @param storage The storage.
+   */
   public void addToQueue(TempStorage storage) {
-    storageQueue.add(storage);
+    if (!storage.isRamStorage()) {
+      return;
+    }
+    var entry = new Entry(storage, sequence.getAndIncrement());
+    if (entries.putIfAbsent(storage, entry) != null) {
+      return;
+    }
+    synchronized (entry) {
+      if (!entry.removed) {
+        // Read after publishing the entry, so that no change is lost, and added to whatever
+        // sizeChanged() has already counted. The storage's lock is already held by the caller, so
+        // taking it again in size() cannot deadlock with sizeChanged().
+        long size = storage.size();
+        entry.bytes += size;
+        ramBytesInUse.add(size);
+        byAge.add(entry);
+      }
+    }
   }
 
+  /**
+   * Stops tracking a storage, typically because it was migrated to disk or closed. Its bytes no
+   * longer count towards the RAM in use. Does nothing if the storage is not tracked.
+   *
+   * @param storage The storage.
+   */
   public void removeFromQueue(TempStorage storage) {
-    storageQueue.remove(storage);
+    var entry = entries.remove(storage);
+    if (entry == null) {
+      return;
+    }
+    synchronized (entry) {
+      entry.removed = true;
+      ramBytesInUse.add(-entry.bytes);
+      byAge.remove(entry);
+    }
+  }
+
+  /**
+   * Records that a tracked storage has grown or shrunk. Does nothing if the storage is not tracked,
+   * e.g. because it has just been migrated to disk.
+   *
+   * @param storage The storage.
+   * @param delta The change in size in bytes.
+   */
+  public void sizeChanged(TempStorage storage, long delta) {
+    var entry = entries.get(storage);
+    if (entry == null) {
+      return;
+    }
+    synchronized (entry) {
+      // Lost a race with removeFromQueue(), which has already settled the entry's bytes.
+      if (!entry.removed) {
+        entry.bytes += delta;
+        ramBytesInUse.add(delta);
+      }
+    }
   }
 
   public long getRamBytesInUse() {
-    return storageQueue.stream()
-        .filter(e -> !e.closed() && e.isRamStorage())
-        .mapToLong(e -> e.size())
-        .reduce(0L, Long::sum);
+    return ramBytesInUse.sum();
   }
 
+  /**
+   * Returns the oldest tracked storage, without removing it.
+   *
+   * @return The oldest storage, or {@code null} if none is tracked.
+   */
   public @Nullable TempStorage peakQueue() {
-    return storageQueue.peek();
+    var oldest = byAge.iterator();
+    return oldest.hasNext() ? oldest.next().storage : null;
+  }
+
+  /**
+   * Returns the number of tracked storages.
+   *
+   * @return The number of storages in RAM.
+   */
+  public int size() {
+    return entries.size();
   }
 
-  private final Queue<TempStorage> storageQueue = new ConcurrentLinkedQueue<>();
+  /**
+   * Returns the statistics of the RAM to disk migrations of the tracked storages.
+   *
+   * @return The statistics.
+   */
+  public MigrationStats getMigrationStats() {
+    return migrationStats;
+  }
+
+  /**
+   * A tracked storage. Ordered by creation time, then by the order of tracking, so that storages
+   * created in the same millisecond are still distinct.
+   */
+  private static final class Entry {
+    Entry(TempStorage storage, long sequence) {
+      this.storage = storage;
+      this.creationTime = storage.creationTime();
+      this.sequence = sequence;
+    }
+
+    final TempStorage storage;
+    final long creationTime;
+    final long sequence;
+
+    /** The bytes this storage counts for in {@code ramBytesInUse}. Guarded by {@code this}. */
+    long bytes;
+
+    /** Whether the entry has been removed, or its bytes taken off. Guarded by {@code this}. */
+    boolean removed;
+  }
+
+  private final Map<TempStorage, Entry> entries = new ConcurrentHashMap<>();
+
+  private final NavigableSet<Entry> byAge =
+      new ConcurrentSkipListSet<>(
+          Comparator.<Entry>comparingLong(e -> e.creationTime).thenComparingLong(e -> e.sequence));
+
+  private final AtomicLong sequence = new AtomicLong();
+  private final LongAdder ramBytesInUse = new LongAdder();
+  private final MigrationStats migrationStats = new MigrationStats();
 }
@@ -1,16 +1,20 @@
 package hyphanet.support.io.storage.bucket;
 
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
+import hyphanet.support.io.storage.ErasableStorage;
+import hyphanet.support.io.storage.Erasure;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.storage.rab.PooledFileRab;
 import hyphanet.support.io.storage.rab.Rab;
 import hyphanet.support.io.stream.NullInputStream;
 import hyphanet.support.io.util.FileSystem;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
@@ -25,12 +29,13 @@ import org.slf4j.LoggerFactory;
  * <p>This class provides common functionality for managing file-based buckets, including handling
  * temporary files, managing input/output streams, and performing basic file operations.
  */
-public abstract class BaseFileBucket extends AbstractStorage implements RandomAccessBucket {
+public abstract class BaseFileBucket extends AbstractStorage
+    implements RandomAccessBucket, ErasableStorage {
   /** Magic number to identify the file type. */
   public static final int MAGIC = 0xc4b7533d;
 
   /** Version number of the file format. */
-  static final int VERSION = 1;
+  static final int VERSION = 2;
 
   private static final Logger logger = LoggerFactory.getLogger(BaseFileBucket.class);
 
@@ -66,13 +71,16 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
       throw new StorageFormatException("Bad magic");
     }
     int version = dis.readInt();
-    if (version != VERSION) {
+    if (version != 1 && version != VERSION) {
       throw new StorageFormatException("Bad version");
     }
     var closed = dis.readBoolean();
     if (closed) {
       setClosed();
     }
+    if (version > 1) {
+      erasure = Erasure.readFrom(dis, true);
+    }
   }
 
   /**
@@ -250,34 +258,30 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
   }
 
   /**
-   * Splits the bucket into multiple read-only buckets of a specified size.
+   * Splits the bucket into multiple read-only buckets of a specified size. The buckets are {@link
+   * SliceBucket} views of the file, nothing is copied. This bucket must be kept until they are
+   * disposed.
    *
    * @param splitSize the size of each split bucket.
    * @return An array of read-only buckets.
    * @throws IllegalArgumentException if the total size is too large for the specified split size.
    */
-  public synchronized Bucket[] split(int splitSize) {
-    long length = size();
-    if (length > ((long) Integer.MAX_VALUE) * splitSize) {
-      throw new IllegalArgumentException("Way too big!: " + length + " for " + splitSize);
-    }
-    int bucketCount = (int) (length / splitSize);
-    if (length % splitSize > 0) {
-      bucketCount++;
-    }
-    var path = getPath();
-    return Arrays.stream(new int[bucketCount])
-        .mapToObj(
-            i -> {
-              long startAt = (long) i * splitSize;
-              long endAt = Math.min(startAt + splitSize, length);
-              try {
-                return new ReadOnlyFileSliceBucket(path, startAt, endAt - startAt);
-              } catch (IOException e) {
-                throw new IllegalStateException(e);
-              }
-            })
-        .toArray(Bucket[]::new);
+  public Bucket[] split(int splitSize) {
+    return split(splitSize, false);
+  }
+
+  /**
+   * Splits the bucket into multiple read-only {@link SliceBucket} views of the file, without
+   * copying it.
+   *
+   * @param splitSize the size of each split bucket.
+   * @param disposeWhenUnused if true, this bucket is disposed once all the returned buckets have
+   *     been disposed. The caller must not use or dispose it any more.
+   * @return An array of read-only buckets.
+   * @throws IllegalArgumentException if the total size is too large for the specified split size.
+   */
+  public synchronized Bucket[] split(int splitSize, boolean disposeWhenUnused) {
+    return SliceBucket.split(this, splitSize, disposeWhenUnused);
   }
 
   /** Closes the bucket and releases any associated resources. */
@@ -349,6 +353,7 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
     dos.writeInt(MAGIC);
     dos.writeInt(VERSION);
     dos.writeBoolean(closed());
+    erasure.writeTo(dos);
   }
 
   /**
@@ -372,7 +377,24 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
     if (size == 0) {
       throw new IOException("Must not be empty");
     }
-    return new PooledFileRab(getPath(), true, size, getPersistentTempID(), deleteOnDispose());
+    var rab = new PooledFileRab(getPath(), true, size, getPersistentTempID(), deleteOnDispose());
+    rab.setDeleteMode(erasure.mode(), erasure.keyLength());
+    return rab;
+  }
+
+  @Override
+  public void setDeleteMode(DeleteMode mode, int keyLength) {
+    erasure = new Erasure(mode, keyLength);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Only applies if the file is {@linkplain #deleteOnDispose() deleted on dispose}.
+   */
+  @Override
+  public DeleteMode getDeleteMode() {
+    return erasure.mode();
   }
 
   /**
@@ -436,7 +458,7 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
     logger.info("Deleting {} for {}", path, this);
 
     try {
-      Files.delete(path);
+      erasure.delete(path);
     } catch (Exception e) {
       logger.error("Delete failed on bucket {}", path, e);
     }
@@ -566,7 +588,7 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
    * createNewFile is atomic, the combination is not, so if we do it we are vulnerable to symlink
    * attacks.
    */
-  class FileBucketOutputStream extends OutputStream {
+  class FileBucketOutputStream extends OutputStream implements FileTransfer.Sink {
 
     /**
      * Constructs a new FileBucketOutputStream.
@@ -577,11 +599,20 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
      */
     protected FileBucketOutputStream(Path tempFilePath, long restartCount) throws IOException {
       super();
+      // The same options as Files.newOutputStream(), which this used to call.
       if (deleteOnExit()) {
-        outputStream = Files.newOutputStream(tempFilePath, StandardOpenOption.DELETE_ON_CLOSE);
+        channel =
+            FileChannel.open(
+                tempFilePath, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
       } else {
-        outputStream = Files.newOutputStream(tempFilePath);
+        channel =
+            FileChannel.open(
+                tempFilePath,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
       }
+      outputStream = Channels.newOutputStream(channel);
       logger
           .atInfo()
           .setMessage("Writing to {} for {} : {}")
@@ -644,6 +675,20 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
       }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Appends to the file through its channel, holding the lock of the bucket like the other
+     * writes.
+     */
+    @Override
+    public long transferFrom(FileTransfer.Source source, long count) throws IOException {
+      synchronized (BaseFileBucket.this) {
+        confirmWriteSynchronized();
+        return source.transferTo(channel, count);
+      }
+    }
+
     /**
      * Closes the output stream.
      *
@@ -731,7 +776,10 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
     /** The path to the temporary file. */
     private final Path tempFilePath;
 
-    /** The underlying output stream. */
+    /** The channel of the file being written. */
+    private final FileChannel channel;
+
+    /** The underlying output stream, writing to {@link #channel}. */
     private final OutputStream outputStream;
 
     /** Flag indicating whether the stream has been closed. */
@@ -739,7 +787,7 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
   }
 
   /** Internal InputStream implementation for BaseFile. */
-  class FileBucketInputStream extends InputStream {
+  class FileBucketInputStream extends InputStream implements FileTransfer.Source {
 
     /**
      * Constructs a new FileBucketInputStream.
@@ -749,7 +797,8 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
      */
     public FileBucketInputStream(Path path) throws IOException {
       super();
-      inputStream = Files.newInputStream(path);
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+      inputStream = Channels.newInputStream(channel);
     }
 
     /**
@@ -792,7 +841,27 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
         closed = true;
       }
       removeStream(this);
-      super.close();
+      inputStream.close();
+    }
+
+    @Override
+    public FileChannel channel() {
+      return channel;
+    }
+
+    @Override
+    public long position() throws IOException {
+      return channel.position();
+    }
+
+    @Override
+    public long remaining() {
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void advance(long bytes) throws IOException {
+      channel.position(channel.position() + bytes);
     }
 
     /**
@@ -805,7 +874,10 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
       return super.toString() + ":" + BaseFileBucket.this;
     }
 
-    /** The underlying input stream. */
+    /** The channel of the file being read. */
+    private final FileChannel channel;
+
+    /** The underlying input stream, reading from {@link #channel}. */
     private final InputStream inputStream;
 
     /** Flag indicating whether the stream has been closed. */
@@ -820,4 +892,7 @@ public abstract class BaseFileBucket extends AbstractStorage implements RandomAc
 
   /** Counter for output stream restarts. Incremented each time getOutputStream() is called. */
   protected volatile long fileRestartCounter;
+
+  /** How the file is destroyed when it is deleted. */
+  private volatile Erasure erasure = Erasure.DELETE;
 }
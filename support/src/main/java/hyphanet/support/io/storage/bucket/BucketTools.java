@@ -1,5 +1,6 @@
 package hyphanet.support.io.storage.bucket;
 
+import hyphanet.crypt.hash.PipelinedDigest;
 import hyphanet.crypt.hash.Sha256;
 import hyphanet.crypt.key.MasterSecret;
 import hyphanet.support.io.FilenameGenerator;
@@ -13,13 +14,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.random.RandomGeneratorFactory;
 
 /** Helper functions for working with Buckets. */
@@ -27,36 +26,25 @@ public class BucketTools {
 
   static final ArrayBucketFactory ARRAY_FACTORY = new ArrayBucketFactory();
   private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Copy buffers kept for reuse, so that copying does not allocate a new one every time. */
+  private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<>(16);
+
   private static final Logger logger = LoggerFactory.getLogger(BucketTools.class);
 
   /**
-   * Copy from the input stream of <code>src</code> to the output stream of <code>dest</code>.
+   * Copy from the input stream of <code>src</code> to the output stream of <code>dest</code>. If
+   * both are backed by files the data is moved with {@link java.nio.channels.FileChannel}
+   * transfers, without passing through the Java heap.
    *
    * @param src
    * @param dst
    * @throws IOException
    */
   public static void copy(Bucket src, Bucket dst) throws IOException {
-    OutputStream out = dst.getOutputStreamUnbuffered();
-    InputStream in = src.getInputStreamUnbuffered();
-    ReadableByteChannel readChannel = Channels.newChannel(in);
-    WritableByteChannel writeChannel = Channels.newChannel(out);
-    try {
-
-      // No benefit to allocateDirect() as we're wrapping streams anyway, and worse,
-      // it'd be a memory leak.
-      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-      while (readChannel.read(buffer) != -1) {
-        buffer.flip();
-        while (buffer.hasRemaining()) {
-          writeChannel.write(buffer);
-        }
-        buffer.clear();
-      }
-
-    } finally {
-      writeChannel.close();
-      readChannel.close();
+    try (OutputStream out = dst.getOutputStreamUnbuffered();
+        InputStream in = src.getInputStreamUnbuffered()) {
+      transfer(in, out, Long.MAX_VALUE);
     }
   }
 
@@ -263,24 +251,21 @@ public class BucketTools {
     return bucket;
   }
 
+  /**
+   * Computes the SHA-256 hash of the contents of a bucket. Large buckets are read ahead in another
+   * thread while hashing, see {@link PipelinedDigest}.
+   *
+   * @param data The bucket to hash.
+   * @return The hash.
+   * @throws IOException If the bucket cannot be read, or does not contain as many bytes as its
+   *     size.
+   */
   public static byte[] hash(Bucket data) throws IOException {
-    InputStream is = data.getInputStreamUnbuffered();
-    try {
+    try (InputStream is = data.getInputStreamUnbuffered()) {
       MessageDigest md = Sha256.getMessageDigest();
       try {
         long bucketLength = data.size();
-        long bytesRead = 0;
-        byte[] buf = new byte[BUFFER_SIZE];
-        while ((bytesRead < bucketLength) || (bucketLength == -1)) {
-          int readBytes = is.read(buf);
-          if (readBytes < 0) {
-            break;
-          }
-          bytesRead += readBytes;
-          if (readBytes > 0) {
-            md.update(buf, 0, readBytes);
-          }
-        }
+        long bytesRead = PipelinedDigest.update(md, is);
         if ((bytesRead < bucketLength) && (bucketLength > 0)) {
           throw new EOFException();
         }
@@ -288,15 +273,47 @@ public class BucketTools {
           throw new IOException(
               "Read " + bytesRead + " but bucket length " + bucketLength + " on " + data + '!');
         }
-        byte[] retval = md.digest();
-        return retval;
+        return md.digest();
       } finally {
         Sha256.returnMessageDigest(md);
       }
+    }
+  }
+
+  /**
+   * Computes the SHA-256 hash of a range of a {@link Rab}. Large ranges are read ahead in another
+   * thread while hashing, see {@link PipelinedDigest}.
+   *
+   * @param rab The buffer to read from.
+   * @param offset The position of the start of the range.
+   * @param length The length of the range.
+   * @return The hash.
+   * @throws IOException If the buffer cannot be read.
+   * @throws IllegalArgumentException If the range is not within the buffer.
+   */
+  public static byte[] hash(Rab rab, long offset, long length) throws IOException {
+    if (offset < 0 || length < 0 || offset + length > rab.size()) {
+      throw new IllegalArgumentException(
+          "Range " + offset + "+" + length + " is not within " + rab + " of size " + rab.size());
+    }
+    MessageDigest md = Sha256.getMessageDigest();
+    try {
+      long end = offset + length;
+      long[] position = {offset};
+      PipelinedDigest.update(
+          md,
+          (buf, off, len) -> {
+            int bytes = (int) Math.min(len, end - position[0]);
+            if (bytes <= 0) {
+              return -1;
+            }
+            rab.pread(position[0], buf, off, bytes);
+            position[0] += bytes;
+            return bytes;
+          });
+      return md.digest();
     } finally {
-      if (is != null) {
-        is.close();
-      }
+      Sha256.returnMessageDigest(md);
     }
   }
 
@@ -315,41 +332,8 @@ public class BucketTools {
     }
     InputStream is = decodedData.getInputStreamUnbuffered();
     try {
-      int bufferSize = BUFFER_SIZE;
-      if (truncateLength > 0 && truncateLength < bufferSize) {
-        bufferSize = (int) truncateLength;
-      }
-      byte[] buf = new byte[bufferSize];
-      long moved = 0;
-      while (moved < truncateLength) {
-        // DO NOT move the (int) inside the Math.min()! big numbers truncate to
-        // negative numbers.
-        int bytes = (int) Math.min(buf.length, truncateLength - moved);
-        if (bytes <= 0) {
-          throw new IllegalStateException(
-              "bytes=" + bytes + ", truncateLength=" + truncateLength + ", moved=" + moved);
-        }
-        bytes = is.read(buf, 0, bytes);
-        if (bytes <= 0) {
-          if (truncateLength == Long.MAX_VALUE) {
-            break;
-          }
-          IOException ioException =
-              new IOException(
-                  "Could not move required quantity of data in copyTo: "
-                      + bytes
-                      + " (moved "
-                      + moved
-                      + " of "
-                      + truncateLength
-                      + "): unable to read from "
-                      + is);
-          ioException.printStackTrace();
-          throw ioException;
-        }
-        os.write(buf, 0, bytes);
-        moved += bytes;
-      }
+      long moved = transfer(is, os, truncateLength);
+      checkMoved("copyTo", moved, truncateLength, is);
       return moved;
     } finally {
       is.close();
@@ -360,44 +344,12 @@ public class BucketTools {
   /** Copy data from an InputStream into a Bucket. */
   public static void copyFrom(Bucket bucket, InputStream is, long truncateLength)
       throws IOException {
-    OutputStream os = bucket.getOutputStreamUnbuffered();
-    byte[] buf = new byte[BUFFER_SIZE];
     if (truncateLength < 0) {
       truncateLength = Long.MAX_VALUE;
     }
-    try {
-      long moved = 0;
-      while (moved < truncateLength) {
-        // DO NOT move the (int) inside the Math.min()! big numbers truncate to
-        // negative numbers.
-        int bytes = (int) Math.min(buf.length, truncateLength - moved);
-        if (bytes <= 0) {
-          throw new IllegalStateException(
-              "bytes=" + bytes + ", truncateLength=" + truncateLength + ", moved=" + moved);
-        }
-        bytes = is.read(buf, 0, bytes);
-        if (bytes <= 0) {
-          if (truncateLength == Long.MAX_VALUE) {
-            break;
-          }
-          IOException ioException =
-              new IOException(
-                  "Could not move required quantity of data in copyFrom: "
-                      + bytes
-                      + " (moved "
-                      + moved
-                      + " of "
-                      + truncateLength
-                      + "): unable to read from "
-                      + is);
-          ioException.printStackTrace();
-          throw ioException;
-        }
-        os.write(buf, 0, bytes);
-        moved += bytes;
-      }
-    } finally {
-      os.close();
+    try (OutputStream os = bucket.getOutputStreamUnbuffered()) {
+      long moved = transfer(is, os, truncateLength);
+      checkMoved("copyFrom", moved, truncateLength, is);
     }
   }
 
@@ -406,11 +358,16 @@ public class BucketTools {
    *
    * @param origData The original data Bucket.
    * @param splitSize The number of bytes to put into each bucket.
-   *     <p>If the passed-in Bucket is a FileBucket, will be efficiently split into
-   *     ReadOnlyFileSliceBuckets, otherwise new buckets are created and the data written to them.
-   *     <p>Note that this method will allocate a buffer of size splitSize.
+   *     <p>If {@code freeData} is set and the passed-in Bucket is a {@link BaseFileBucket} or a
+   *     {@link RabBucket}, it is split into {@link SliceBucket} views without copying. The views
+   *     then own origData: it is disposed once all of them are disposed, and the caller must not
+   *     use or dispose it any more. Otherwise new buckets are created and the data copied into
+   *     them, so they do not depend on origData.
+   *     <p>Note that copying will allocate a buffer of size splitSize.
    * @param bf
-   * @param freeData
+   * @param freeData If true, origData is disposed; if it was split into views, once all of them are
+   *     disposed. Otherwise origData stays with the caller, who may dispose it as soon as this
+   *     method returns.
    * @param persistent If true, the data is persistent. This method is responsible for ensuring that
    *     the returned buckets HAVE ALREADY BEEN STORED TO THE DATABASE, using the provided handle.
    *     The point? SegmentedBCB's buckets have already been stored!!
@@ -420,16 +377,12 @@ public class BucketTools {
   public static Bucket[] split(
       Bucket origData, int splitSize, BucketFactory bf, boolean freeData, boolean persistent)
       throws IOException {
-    if (origData instanceof RegularFileBucket) {
-      if (freeData) {
-        logger.error(
-            "Asked to free data when splitting a FileBucket ?!?!? Not "
-                + "freeing as this would clobber the split result...");
-      }
-      Bucket[] buckets = ((RegularFileBucket) origData).split(splitSize);
-      if (persistent) {
-        return buckets;
-      }
+    // Views are only safe once the caller gives up origData.
+    if (freeData && origData instanceof BaseFileBucket fileBucket) {
+      return fileBucket.split(splitSize, true);
+    }
+    if (freeData && origData instanceof RabBucket) {
+      return SliceBucket.split(origData, splitSize, true);
     }
     long length = origData.size();
     if (length > ((long) Integer.MAX_VALUE) * splitSize) {
@@ -473,6 +426,19 @@ public class BucketTools {
     return buckets;
   }
 
+  /**
+   * Split a {@link Rab} into a series of read-only {@link SliceBucket} views, without copying it.
+   *
+   * @param rab The data to split.
+   * @param splitSize The number of bytes to put into each bucket.
+   * @param freeData If true, rab is disposed once all the returned buckets are disposed. Otherwise
+   *     the caller must keep it until they are no longer used.
+   * @return The buckets.
+   */
+  public static Bucket[] split(Rab rab, int splitSize, boolean freeData) {
+    return SliceBucket.split(rab, splitSize, freeData);
+  }
+
   /**
    * Pad a bucket with random data
    *
@@ -561,42 +527,27 @@ public class BucketTools {
     }
     InputStream is = bucket.getInputStreamUnbuffered();
     try {
-      int bufferSize = BUFFER_SIZE;
-      if (truncateLength > 0 && truncateLength < bufferSize) {
-        bufferSize = (int) truncateLength;
-      }
-      byte[] buf = new byte[bufferSize];
-      long moved = 0;
-      while (moved < truncateLength) {
-        // DO NOT move the (int) inside the Math.min()! big numbers truncate to
-        // negative numbers.
-        int bytes = (int) Math.min(buf.length, truncateLength - moved);
-        if (bytes <= 0) {
-          throw new IllegalStateException(
-              "bytes=" + bytes + ", truncateLength=" + truncateLength + ", moved=" + moved);
-        }
-        bytes = is.read(buf, 0, bytes);
-        if (bytes <= 0) {
-          if (truncateLength == Long.MAX_VALUE) {
-            break;
+      long moved;
+      FileTransfer.Source source = FileTransfer.sourceOf(is);
+      if (source != null && raf instanceof PooledFileRab fileRab) {
+        moved = FileTransfer.transfer(source, new RabSink(fileRab, fileOffset), truncateLength);
+      } else {
+        byte[] buf = borrowBuffer();
+        try {
+          moved = 0;
+          while (moved < truncateLength) {
+            int bytes = is.read(buf, 0, (int) Math.min(buf.length, truncateLength - moved));
+            if (bytes <= 0) {
+              break;
+            }
+            raf.pwrite(fileOffset + moved, buf, 0, bytes);
+            moved += bytes;
           }
-          IOException ioException =
-              new IOException(
-                  "Could not move required quantity of data in copyTo: "
-                      + bytes
-                      + " (moved "
-                      + moved
-                      + " of "
-                      + truncateLength
-                      + "): unable to read from "
-                      + is);
-          ioException.printStackTrace();
-          throw ioException;
+        } finally {
+          returnBuffer(buf);
         }
-        raf.pwrite(fileOffset, buf, 0, bytes);
-        moved += bytes;
-        fileOffset += bytes;
       }
+      checkMoved("copyTo", moved, truncateLength, is);
       return moved;
     } finally {
       is.close();
@@ -634,6 +585,7 @@ public class BucketTools {
       case PaddedRandomAccessBucket.MAGIC ->
           new PaddedRandomAccessBucket(dis, fg, persistentFileTracker, masterKey);
       case RabBucket.MAGIC -> new RabBucket(dis, fg, persistentFileTracker, masterKey);
+      case SliceBucket.MAGIC -> new SliceBucket(dis, fg, persistentFileTracker, masterKey);
       case EncryptedBucket.MAGIC -> new EncryptedBucket(dis, fg, persistentFileTracker, masterKey);
       default -> throw new StorageFormatException("Unknown magic value for bucket " + magic);
     };
@@ -653,6 +605,7 @@ public class BucketTools {
     return switch (magic) {
       case PooledFileRab.MAGIC -> new PooledFileRab(dis, fg, persistentFileTracker);
       case RegularFileRab.MAGIC -> new RegularFileRab(dis);
+      case MappedFileRab.MAGIC -> new MappedFileRab(dis, fg, persistentFileTracker);
       case ReadOnlyRab.MAGIC -> new ReadOnlyRab(dis, fg, persistentFileTracker, masterSecret);
       case DelayedDisposeRab.MAGIC ->
           new DelayedDisposeRab(dis, fg, persistentFileTracker, masterSecret);
@@ -678,4 +631,91 @@ public class BucketTools {
     bucket.dispose();
     return ret;
   }
+
+  /**
+   * Moves up to {@code length} bytes from a stream to another. Uses {@link FileTransfer} if both
+   * streams are backed by files, a pooled buffer otherwise.
+   *
+   * @return The number of bytes moved, which is less than {@code length} only if the end of the
+   *     input stream was reached.
+   */
+  private static long transfer(InputStream is, OutputStream os, long length) throws IOException {
+    FileTransfer.Source source = FileTransfer.sourceOf(is);
+    FileTransfer.Sink sink = source == null ? null : FileTransfer.sinkOf(os);
+    if (source != null && sink != null) {
+      return FileTransfer.transfer(source, sink, length);
+    }
+    byte[] buf = borrowBuffer();
+    try {
+      long moved = 0;
+      while (moved < length) {
+        // DO NOT move the (int) inside the Math.min()! big numbers truncate to
+        // negative numbers.
+        int bytes = is.read(buf, 0, (int) Math.min(buf.length, length - moved));
+        if (bytes <= 0) {
+          break;
+        }
+        os.write(buf, 0, bytes);
+        moved += bytes;
+      }
+      return moved;
+    } finally {
+      returnBuffer(buf);
+    }
+  }
+
+  private static void checkMoved(String operation, long moved, long length, InputStream is)
+      throws IOException {
+    if (moved < length && length != Long.MAX_VALUE) {
+      throw new IOException(
+          "Could not move required quantity of data in "
+              + operation
+              + ": moved "
+              + moved
+              + " of "
+              + length
+              + ": unable to read from "
+              + is);
+    }
+  }
+
+  private static byte[] borrowBuffer() {
+    byte[] buf = BUFFERS.poll();
+    return buf != null ? buf : new byte[BUFFER_SIZE];
+  }
+
+  private static void returnBuffer(byte[] buf) {
+    BUFFERS.offer(buf);
+  }
+
+  /** Writes to a {@link PooledFileRab} from a {@link FileTransfer.Source}, from an offset on. */
+  private static final class RabSink implements FileTransfer.Sink {
+
+    RabSink(PooledFileRab rab, long fileOffset) {
+      this.rab = rab;
+      this.fileOffset = fileOffset;
+    }
+
+    @Override
+    public long transferFrom(FileTransfer.Source source, long count) throws IOException {
+      long room = rab.size() - fileOffset;
+      count = Math.min(count, source.remaining());
+      if (count > room) {
+        if (room <= 0 && source.position() < source.channel().size()) {
+          throw new IndexOutOfBoundsException("Write past end of file");
+        }
+        count = Math.max(0, room);
+      }
+      long start = source.position();
+      long bytes = rab.transferFrom(source.channel(), fileOffset, count);
+      // transferFrom() moved the channel already, advance() expects it where it was.
+      source.channel().position(start);
+      source.advance(bytes);
+      fileOffset += bytes;
+      return bytes;
+    }
+
+    private final PooledFileRab rab;
+    private long fileOffset;
+  }
 }
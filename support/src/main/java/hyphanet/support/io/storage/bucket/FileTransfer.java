@@ -0,0 +1,173 @@
+package hyphanet.support.io.storage.bucket;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Copies data between file backed streams with {@link FileChannel#transferTo} and {@link
+ * FileChannel#transferFrom}, so that it does not pass through the Java heap. On Linux these use
+ * {@code copy_file_range} or {@code sendfile}.
+ *
+ * <p>Streams take part by implementing {@link Source} or {@link Sink}; wrappers which hand out the
+ * streams of the bucket they wrap, such as {@link
+ * hyphanet.support.io.storage.bucket.wrapper.NoDisposeBucket}, take part without doing anything.
+ * Plain {@link FileInputStream}s and {@link FileOutputStream}s are recognised too.
+ */
+final class FileTransfer {
+
+  /**
+   * The most bytes moved by a single call to a {@link Sink}, so that a sink holding a lock while
+   * transferring does not hold it for the whole copy.
+   */
+  static final long MAX_CHUNK = 8L * 1024 * 1024;
+
+  private FileTransfer() {}
+
+  /**
+   * Returns a {@link Source} reading from a stream, if the stream is backed by a file.
+   *
+   * @param is The stream.
+   * @return The source, or {@code null} if the stream is not backed by a file.
+   */
+  static @Nullable Source sourceOf(InputStream is) {
+    if (is instanceof Source source) {
+      return source;
+    }
+    if (is instanceof FileInputStream fis) {
+      return new ChannelSource(fis.getChannel());
+    }
+    return null;
+  }
+
+  /**
+   * Returns a {@link Sink} writing to a stream, if the stream is backed by a file.
+   *
+   * @param os The stream.
+   * @return The sink, or {@code null} if the stream is not backed by a file.
+   */
+  static @Nullable Sink sinkOf(OutputStream os) {
+    if (os instanceof Sink sink) {
+      return sink;
+    }
+    if (os instanceof FileOutputStream fos) {
+      FileChannel channel = fos.getChannel();
+      return (source, count) -> source.transferTo(channel, count);
+    }
+    return null;
+  }
+
+  /**
+   * Moves up to {@code length} bytes from a source to a sink.
+   *
+   * @param source Where to read from.
+   * @param sink Where to write to.
+   * @param length The maximum number of bytes to move, or {@link Long#MAX_VALUE} to move everything
+   *     until the end of the source.
+   * @return The number of bytes moved, which is less than {@code length} only if the end of the
+   *     source was reached.
+   * @throws IOException If reading or writing fails.
+   */
+  static long transfer(Source source, Sink sink, long length) throws IOException {
+    long moved = 0;
+    while (moved < length) {
+      long bytes = sink.transferFrom(source, Math.min(MAX_CHUNK, length - moved));
+      if (bytes <= 0) {
+        break;
+      }
+      moved += bytes;
+    }
+    return moved;
+  }
+
+  /**
+   * A stream reading from a file through a {@link FileChannel}. Reading through the channel
+   * directly must be followed by {@link #advance(long)}, so that the stream carries on after the
+   * bytes read.
+   */
+  interface Source {
+
+    /**
+     * Returns the channel of the file.
+     *
+     * @return The channel.
+     */
+    FileChannel channel();
+
+    /**
+     * Returns the position in the file of the next byte the stream would read.
+     *
+     * @return The position in the file.
+     * @throws IOException If the position cannot be determined.
+     */
+    long position() throws IOException;
+
+    /**
+     * Returns how many bytes the stream may read before it ends, not counting the end of the file.
+     *
+     * @return The number of bytes, or {@link Long#MAX_VALUE} if the stream ends with the file.
+     */
+    long remaining();
+
+    /**
+     * Records that {@code bytes} bytes have been read through the channel.
+     *
+     * @param bytes The number of bytes read.
+     * @throws IOException If the channel cannot be repositioned.
+     */
+    void advance(long bytes) throws IOException;
+
+    /**
+     * Transfers bytes from the stream to a channel.
+     *
+     * @param target The channel to write to.
+     * @param count The maximum number of bytes to transfer.
+     * @return The number of bytes transferred, 0 at the end of the stream.
+     * @throws IOException If reading or writing fails.
+     */
+    default long transferTo(WritableByteChannel target, long count) throws IOException {
+      long bytes = channel().transferTo(position(), Math.min(count, remaining()), target);
+      advance(bytes);
+      return bytes;
+    }
+  }
+
+  /** Something data can be transferred into from a {@link Source}. */
+  @FunctionalInterface
+  interface Sink {
+
+    /**
+     * Transfers bytes from a source.
+     *
+     * @param source The source to read from.
+     * @param count The maximum number of bytes to transfer.
+     * @return The number of bytes transferred, 0 at the end of the source.
+     * @throws IOException If reading or writing fails.
+     */
+    long transferFrom(Source source, long count) throws IOException;
+  }
+
+  /** A source reading a channel from its current position until the end of the file. */
+  private record ChannelSource(FileChannel channel) implements Source {
+
+    @Override
+    public long position() throws IOException {
+      return channel.position();
+    }
+
+    @Override
+    public long remaining() {
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void advance(long bytes) throws IOException {
+      channel.position(channel.position() + bytes);
+    }
+  }
+}
@@ -216,7 +216,7 @@ public class PersistentTempFileBucket extends TempFileBucket implements Serializ
   @Override
   protected void innerResume(ResumeContext context) throws ResumeFailedException {
     super.innerResume(context);
-    logger.info("Resuming {}", this, new Exception("debug"));
+    logger.debug("Resuming {}", this);
     tracker = context.getPersistentFileTracker();
     tracker.register(getPath());
   }
@@ -8,6 +8,7 @@ import hyphanet.support.io.DiskSpaceChecker;
 import hyphanet.support.io.FilenameGenerator;
 import hyphanet.support.io.PersistentFileTracker;
 import hyphanet.support.io.storage.DelayedDisposable;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.bucket.wrapper.DelayedDisposeRandomAccessBucket;
 import hyphanet.support.io.storage.bucket.wrapper.EncryptedBucket;
 import hyphanet.support.io.storage.bucket.wrapper.PaddedRandomAccessBucket;
@@ -17,6 +18,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -87,23 +89,19 @@ public class PersistentTempFileBucketFactory implements BucketFactory, Persisten
       throw new IOException("Directory is not a directory: " + dir);
     }
 
-    originalPaths = new HashSet<>();
+    // Only the names are needed, so that listing the directory costs no syscall per file.
+    originalFiles = new HashMap<>();
+    Path tmpDir = fg.getDir();
     try (var stream =
         Files.newDirectoryStream(
-            dir,
-            entry ->
-                Files.exists(entry)
-                    && !Files.isDirectory(entry)
-                    && entry.getFileName().toString().startsWith(prefix))) {
-
+            tmpDir, entry -> entry.getFileName().toString().startsWith(prefix))) {
       for (Path path : stream) {
-        var realPath = path.toRealPath();
-        logger.info("Found {}", realPath);
-        originalPaths.add(realPath);
+        originalFiles.put(path.getFileName().toString(), path);
       }
-    } catch (IOException e) {
-      logger.warn("Unable to list files in {}", dir, e);
+    } catch (IOException | DirectoryIteratorException e) {
+      logger.warn("Unable to list files in {}", tmpDir, e);
     }
+    logger.info("Found {} persistent temp files in {}", originalFiles.size(), tmpDir);
 
     bucketsToFree = new ArrayList<>();
     commitID = 1; // Must start > 0.
@@ -158,26 +156,37 @@ public class PersistentTempFileBucketFactory implements BucketFactory, Persisten
    */
   @Override
   public void register(Path path) {
+    // Paths in the directory are matched by name, which spares canonicalizing them.
+    Path dir = fg.getDir();
+    if (!dir.equals(path.getParent())) {
+      path = FilePath.getCanonicalFile(path);
+    }
     synchronized (this) {
-      if (originalPaths == null) {
+      if (originalFiles == null) {
         throw new IllegalStateException("completed Init has already been called!");
       }
-      Path canonicalPath = FilePath.getCanonicalFile(path);
-      logger.info("Preserving {}", canonicalPath, new Exception("debug"));
+      logger.debug("Preserving {}", path);
 
-      if (!originalPaths.remove(canonicalPath)) {
-        logger.error("Preserving {} but it wasn't found!", canonicalPath, new Exception("error"));
+      Path fileName = path.getFileName();
+      if (!dir.equals(path.getParent())
+          || fileName == null
+          || originalFiles.remove(fileName.toString()) == null) {
+        logger.error("Preserving {} but it wasn't found!", path, new Exception("error"));
       }
     }
   }
 
   /** Called when boot-up is complete. Deletes any old temp files still unclaimed. */
   public synchronized void completedInit() {
-    if (originalPaths == null) {
+    if (originalFiles == null) {
       logger.error("Completed init called twice", new Exception("error"));
       return;
     }
-    for (Path path : originalPaths) {
+    logger.info("Deleting {} unclaimed persistent temp files", originalFiles.size());
+    for (Path path : originalFiles.values()) {
+      if (Files.isDirectory(path) || !Files.exists(path)) {
+        continue;
+      }
       logger.info("Deleting old temp file {}", path);
       try {
         Files.delete(path);
@@ -185,7 +194,7 @@ public class PersistentTempFileBucketFactory implements BucketFactory, Persisten
         logger.warn("Unable to delete old temp file {}", path, e);
       }
     }
-    originalPaths = null;
+    originalFiles = null;
   }
 
   /**
@@ -213,12 +222,16 @@ public class PersistentTempFileBucketFactory implements BucketFactory, Persisten
    */
   @Override
   public RandomAccessBucket makeBucket(long size) throws IOException {
-    RandomAccessBucket rawBucket = new PersistentTempFileBucket(fg.makeRandomFilename(), fg, this);
+    var file = new PersistentTempFileBucket(fg.makeRandomFilename(), fg, this);
+    RandomAccessBucket rawBucket = file;
 
     synchronized (encryptLock) {
       if (encrypt && secret != null) {
         rawBucket = new PaddedRandomAccessBucket(rawBucket);
         rawBucket = new EncryptedBucket(CRYPT_TYPE, rawBucket, secret);
+        file.setDeleteMode(deleteMode, CRYPT_TYPE.headerLen);
+      } else {
+        file.setDeleteMode(deleteMode.forPlaintext(), 0);
       }
     }
     return new DelayedDisposeRandomAccessBucket(this, rawBucket);
@@ -358,6 +371,27 @@ public class PersistentTempFileBucketFactory implements BucketFactory, Persisten
     }
   }
 
+  public DeleteMode getDeleteMode() {
+    synchronized (encryptLock) {
+      return deleteMode;
+    }
+  }
+
+  /**
+   * Sets how the files of new persistent temp buckets are destroyed when they are disposed.
+   *
+   * <p>{@link DeleteMode#CRYPTO_SHRED} only applies to buckets which are encrypted when they are
+   * created; the files of unencrypted buckets are overwritten instead. Like {@link
+   * #setEncryption(boolean)}, this only affects buckets created <em>after</em> it is called.
+   *
+   * @param deleteMode The delete mode for new buckets.
+   */
+  public void setDeleteMode(DeleteMode deleteMode) {
+    synchronized (encryptLock) {
+      this.deleteMode = deleteMode;
+    }
+  }
+
   /**
    * Disposes of the buckets that were scheduled for delayed disposal in the previous transaction.
    *
@@ -444,15 +478,15 @@ public class PersistentTempFileBucketFactory implements BucketFactory, Persisten
   /**
    * Original contents of directory at startup.
    *
-   * <p>This set stores the canonical paths of all files found in the persistent temporary file
-   * directory at the time of factory initialization. It is used during the {@link #completedInit()}
-   * phase to identify and delete any temporary files that were present in the directory at startup
-   * but were not registered as active temporary files.
+   * <p>This map holds the files found in the persistent temporary file directory at the time of
+   * factory initialization, by file name. It is used during the {@link #completedInit()} phase to
+   * identify and delete any temporary files that were present in the directory at startup but were
+   * not registered as active temporary files.
    *
    * <p>After the initial cleanup in {@link #completedInit()}, this field is set to {@code null} to
    * indicate that the cleanup process is complete and to prevent further modifications.
    */
-  private @Nullable Set<Path> originalPaths;
+  private @Nullable Map<String, Path> originalFiles;
 
   /**
    * Should we encrypt temporary files?
@@ -465,6 +499,12 @@ public class PersistentTempFileBucketFactory implements BucketFactory, Persisten
    */
   private boolean encrypt;
 
+  /**
+   * How the files of new buckets are destroyed when they are disposed. Guarded by {@link
+   * #encryptLock}, as it depends on whether they are encrypted.
+   */
+  private DeleteMode deleteMode = DeleteMode.DELETE;
+
   /**
    * Master secret for encryption.
    *
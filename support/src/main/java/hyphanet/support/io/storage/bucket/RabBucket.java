@@ -6,6 +6,7 @@ import hyphanet.support.io.PersistentFileTracker;
 import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.ResumeFailedException;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.storage.rab.Rab;
 import hyphanet.support.io.stream.RabInputStream;
@@ -200,6 +201,11 @@ public class RabBucket extends AbstractStorage implements RandomAccessBucket {
     underlying.dispose();
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return underlying.getDeleteMode();
+  }
+
   /**
    * {@inheritDoc}
    *
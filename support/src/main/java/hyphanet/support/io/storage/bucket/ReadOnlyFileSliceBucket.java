@@ -8,7 +8,7 @@ import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.stream.NullInputStream;
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -213,7 +213,7 @@ public class ReadOnlyFileSliceBucket extends AbstractStorage implements Bucket {
    * Provides stream access to the file slice. This implementation ensures that only the specified
    * portion of the file is accessible through the stream.
    */
-  private class SliceInputStream extends InputStream {
+  private class SliceInputStream extends InputStream implements FileTransfer.Source {
 
     /**
      * Creates a new input stream for reading the slice.
@@ -222,7 +222,7 @@ public class ReadOnlyFileSliceBucket extends AbstractStorage implements Bucket {
      */
     SliceInputStream() throws IOException {
       try {
-        channel = Files.newByteChannel(path, StandardOpenOption.READ);
+        channel = FileChannel.open(path, StandardOpenOption.READ);
         channel.position(startAt);
         position = 0;
         singleByteBuffer = ByteBuffer.allocate(1);
@@ -273,11 +273,32 @@ public class ReadOnlyFileSliceBucket extends AbstractStorage implements Bucket {
       channel.close();
     }
 
+    @Override
+    public FileChannel channel() {
+      return channel;
+    }
+
+    @Override
+    public long position() {
+      return startAt + position;
+    }
+
+    @Override
+    public long remaining() {
+      return Math.max(0, length - position);
+    }
+
+    @Override
+    public void advance(long bytes) throws IOException {
+      position += bytes;
+      channel.position(startAt + position);
+    }
+
     /**
      * The channel for reading from the underlying file. Provides random access capabilities for
      * efficient slice reading.
      */
-    private final SeekableByteChannel channel;
+    private final FileChannel channel;
 
     /**
      * Buffer used for single-byte read operations. Allocated once and reused to improve
@@ -0,0 +1,369 @@
+package hyphanet.support.io.storage.bucket;
+
+import hyphanet.crypt.key.MasterSecret;
+import hyphanet.support.io.FilenameGenerator;
+import hyphanet.support.io.PersistentFileTracker;
+import hyphanet.support.io.ResumeContext;
+import hyphanet.support.io.ResumeFailedException;
+import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.Storage;
+import hyphanet.support.io.storage.StorageFormatException;
+import hyphanet.support.io.storage.rab.Rab;
+import hyphanet.support.io.stream.RabInputStream;
+import java.io.*;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A read-only view of a range of a file backed {@link BaseFileBucket}, a {@link RabBucket} or a
+ * {@link Rab}, as returned by {@link BaseFileBucket#split(int, boolean)} and {@link
+ * BucketTools#split(Rab, int, boolean)}. Nothing is copied: reading a slice reads the parent.
+ *
+ * <p>The slices of a parent share a reference count. If the parent was split with {@code
+ * disposeParent} set, it is disposed when the last of its slices is disposed, so that the parent
+ * can be given up as soon as it is split. Otherwise the parent stays with the caller, who must keep
+ * it until the slices are no longer used.
+ *
+ * <p>Each slice stores its parent along with its own range, so that it can be restored on its own.
+ * Slices of the same parent restored in the same run share a single parent again. Parents are only
+ * found again through weak references, so slices which are dropped without being disposed do not
+ * keep their parent alive.
+ */
+public class SliceBucket extends AbstractStorage implements Bucket {
+
+  /** Magic number used to identify {@link SliceBucket} data in serialized form. */
+  static final int MAGIC = 0x51ce3b7a;
+
+  /** The version number for serialization format. */
+  static final int VERSION = 1;
+
+  private static final Logger logger = LoggerFactory.getLogger(SliceBucket.class);
+
+  /** Parents with slices still alive, by {@link Parent#id}. */
+  private static final Map<Long, ParentReference> parents = new ConcurrentHashMap<>();
+
+  /** Where the references of parents which became unreachable are queued. */
+  private static final ReferenceQueue<Parent> unreachable = new ReferenceQueue<>();
+
+  private SliceBucket(Parent parent, long offset, long length) {
+    this.parent = parent;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * Restores a slice from its serialized form, as written by {@link #storeTo(DataOutputStream)}.
+   *
+   * @param dis The {@link DataInputStream} to read from.
+   * @param fg The {@link FilenameGenerator} used to restore the parent.
+   * @param persistentFileTracker The {@link PersistentFileTracker} used to restore the parent.
+   * @param masterKey The {@link MasterSecret} used to restore the parent.
+   * @throws IOException If an I/O error occurs.
+   * @throws StorageFormatException If the data is not a valid slice.
+   * @throws ResumeFailedException If the parent cannot be restored.
+   */
+  SliceBucket(
+      DataInputStream dis,
+      FilenameGenerator fg,
+      PersistentFileTracker persistentFileTracker,
+      MasterSecret masterKey)
+      throws IOException, StorageFormatException, ResumeFailedException {
+    int version = dis.readInt();
+    if (version != VERSION) {
+      throw new StorageFormatException("Bad version");
+    }
+    long id = dis.readLong();
+    boolean disposeParent = dis.readBoolean();
+    offset = dis.readLong();
+    length = dis.readLong();
+    Storage storage =
+        dis.readBoolean()
+            ? BucketTools.restoreRabFrom(dis, fg, persistentFileTracker, masterKey)
+            : BucketTools.restoreFrom(dis, fg, persistentFileTracker, masterKey);
+    if (offset < 0 || length < 0 || offset + length > storage.size()) {
+      throw new StorageFormatException("Slice is not within its parent");
+    }
+    parent = join(new Parent(id, storage, disposeParent, 1));
+  }
+
+  /**
+   * Splits a parent into slices of {@code splitSize} bytes, the last one possibly shorter.
+   *
+   * @param storage The parent, a {@link BaseFileBucket}, a {@link RabBucket} or a {@link Rab}.
+   * @param splitSize The size of each slice.
+   * @param disposeParent Whether to dispose the parent once all the slices are disposed.
+   * @return The slices.
+   * @throws IllegalArgumentException If the parent is too large for the split size.
+   */
+  static Bucket[] split(Storage storage, int splitSize, boolean disposeParent) {
+    long length = storage.size();
+    if (length > ((long) Integer.MAX_VALUE) * splitSize) {
+      throw new IllegalArgumentException("Way too big!: " + length + " for " + splitSize);
+    }
+    int bucketCount = (int) (length / splitSize);
+    if (length % splitSize > 0) {
+      bucketCount++;
+    }
+    var parent = new Parent(ThreadLocalRandom.current().nextLong(), storage, disposeParent, 0);
+    Bucket[] buckets = new Bucket[bucketCount];
+    for (int i = 0; i < bucketCount; i++) {
+      long startAt = (long) i * splitSize;
+      parent.retain();
+      buckets[i] = new SliceBucket(parent, startAt, Math.min(splitSize, length - startAt));
+    }
+    if (bucketCount > 0) {
+      expungeUnreachable();
+      parents.put(parent.id, parent.reference);
+    } else if (disposeParent) {
+      storage.dispose();
+    }
+    return buckets;
+  }
+
+  /**
+   * Returns the parent a restored slice belongs to: the one restored with an earlier slice of the
+   * same split if there is one, otherwise the one just restored.
+   */
+  private static Parent join(Parent restored) {
+    expungeUnreachable();
+    while (true) {
+      ParentReference reference = parents.putIfAbsent(restored.id, restored.reference);
+      if (reference == null) {
+        return restored;
+      }
+      Parent existing = reference.get();
+      if (existing != null && existing.retain()) {
+        // The copy just restored is not needed.
+        restored.storage.close();
+        return existing;
+      }
+      parents.remove(restored.id, reference);
+    }
+  }
+
+  /** Removes the entries of parents whose slices were all dropped without being disposed. */
+  static void expungeUnreachable() {
+    Reference<? extends Parent> reference;
+    while ((reference = unreachable.poll()) != null) {
+      parents.remove(((ParentReference) reference).id, reference);
+    }
+  }
+
+  /**
+   * Returns whether a parent is registered for restored slices to join. Exposed for testing.
+   *
+   * @param id The {@link Parent#id} of the parent.
+   * @return True if the parent is registered.
+   */
+  static boolean isRegistered(long id) {
+    return parents.containsKey(id);
+  }
+
+  /**
+   * Returns the weak reference by which the parent of this slice is registered. Exposed for
+   * testing.
+   *
+   * @return The reference.
+   */
+  ParentReference parentReference() {
+    return parent.reference;
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    throw new IOException("Bucket is read-only");
+  }
+
+  @Override
+  public OutputStream getOutputStreamUnbuffered() throws IOException {
+    throw new IOException("Bucket is read-only");
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return new BufferedInputStream(getInputStreamUnbuffered());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Slices of a file read it directly, so they can be copied with {@link BucketTools#copy}
+   * without passing through the heap.
+   */
+  @Override
+  public InputStream getInputStreamUnbuffered() throws IOException {
+    if (disposed()) {
+      throw new IOException("Already disposed: " + this);
+    }
+    Path path = parent.path;
+    if (path != null) {
+      return new ReadOnlyFileSliceBucket(path, offset, length).getInputStreamUnbuffered();
+    }
+    return new RabInputStream(Objects.requireNonNull(parent.rab), offset, length);
+  }
+
+  @Override
+  public String getName() {
+    return "Slice:" + parent.storage + ':' + offset + ':' + length;
+  }
+
+  @Override
+  public long size() {
+    return length;
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return true;
+  }
+
+  @Override
+  public void setReadOnly() {
+    // Already read-only
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The shadow is another slice of the same range, holding its own reference to the parent.
+   */
+  @Override
+  public Bucket createShadow() {
+    if (disposed() || !parent.retain()) {
+      return new NullBucket();
+    }
+    return new SliceBucket(parent, offset, length);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Releases the reference of this slice to its parent, disposing the parent if this was the
+   * last one and the parent was split with {@code disposeParent} set.
+   */
+  @Override
+  public void dispose() {
+    if (!setDisposed()) {
+      return;
+    }
+    close();
+    parent.release();
+  }
+
+  @Override
+  public void onResume(ResumeContext context) throws ResumeFailedException {
+    parent.onResume(context);
+  }
+
+  @Override
+  public void storeTo(DataOutputStream dos) throws IOException {
+    dos.writeInt(MAGIC);
+    dos.writeInt(VERSION);
+    dos.writeLong(parent.id);
+    dos.writeBoolean(parent.disposeParent);
+    dos.writeLong(offset);
+    dos.writeLong(length);
+    dos.writeBoolean(parent.storage instanceof Rab);
+    parent.storage.storeTo(dos);
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + ":" + getName();
+  }
+
+  /** The storage shared by the slices of a split, with the count of slices still using it. */
+  private static final class Parent {
+
+    Parent(long id, Storage storage, boolean disposeParent, int refs) {
+      this.id = id;
+      this.storage = storage;
+      this.disposeParent = disposeParent;
+      this.refs = refs;
+      this.reference = new ParentReference(this);
+      if (storage instanceof BaseFileBucket fileBucket) {
+        path = fileBucket.getPath();
+        rab = null;
+      } else if (storage instanceof Rab r) {
+        path = null;
+        rab = r;
+      } else if (storage instanceof RabBucket rabBucket) {
+        path = null;
+        rab = rabBucket.toRandomAccessBuffer();
+      } else {
+        throw new IllegalArgumentException("Cannot slice " + storage);
+      }
+    }
+
+    /**
+     * Adds a reference.
+     *
+     * @return False if the parent has already been released by all its slices.
+     */
+    synchronized boolean retain() {
+      if (released) {
+        return false;
+      }
+      refs++;
+      return true;
+    }
+
+    void release() {
+      synchronized (this) {
+        if (--refs > 0) {
+          return;
+        }
+        released = true;
+      }
+      parents.remove(id, reference);
+      if (disposeParent) {
+        logger.debug("Disposing {} after its last slice", storage);
+        storage.dispose();
+      }
+    }
+
+    void onResume(ResumeContext context) throws ResumeFailedException {
+      synchronized (this) {
+        if (resumed) {
+          return;
+        }
+        resumed = true;
+      }
+      storage.onResume(context);
+    }
+
+    final long id;
+    final Storage storage;
+    final boolean disposeParent;
+    final @Nullable Path path;
+    final @Nullable Rab rab;
+    final ParentReference reference;
+    private int refs;
+    private boolean released;
+    private boolean resumed;
+  }
+
+  /** A weak reference to a parent, which remembers its id for removal once it is cleared. */
+  static final class ParentReference extends WeakReference<Parent> {
+
+    ParentReference(Parent parent) {
+      super(parent, unreachable);
+      this.id = parent.id;
+    }
+
+    final long id;
+  }
+
+  private final Parent parent;
+  private final long offset;
+  private final long length;
+}
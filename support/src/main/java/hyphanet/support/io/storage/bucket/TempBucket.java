@@ -6,6 +6,8 @@ import hyphanet.base.SizeUtil;
 import hyphanet.support.GlobalCleaner;
 import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
+import hyphanet.support.io.storage.MigrationStats;
 import hyphanet.support.io.storage.TempStorage;
 import hyphanet.support.io.storage.TempStorageTracker;
 import hyphanet.support.io.storage.rab.TempRab;
@@ -25,6 +27,17 @@ import org.slf4j.LoggerFactory;
 public class TempBucket extends AbstractStorage implements TempStorage, RandomAccessBucket {
   private static final Logger logger = LoggerFactory.getLogger(TempBucket.class);
 
+  /** The largest delta a migration copies while holding the lock. */
+  private static final int MAX_LOCKED_DELTA = 64 * 1024;
+
+  /**
+   * How many times a migration copies the delta without the lock before giving up on getting it
+   * below {@link #MAX_LOCKED_DELTA}. Bounds the migration when writes outpace the disk.
+   */
+  private static final int MAX_DELTA_ROUNDS = 8;
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
   public TempBucket(
       TempStorageTracker ramTracker,
       long now,
@@ -53,58 +66,135 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
 
     this.osIndex = 0;
     this.tbis = new ArrayList<>(1);
-    logger.info("Created {}", this);
+    logger.debug("Created {}", this);
 
     ramTracker.addToQueue(this);
 
     registerCleaner();
   }
 
-  /** A blocking method to force-migrate from a RAMBucket to a FileBucket */
+  /**
+   * Migrates this bucket from RAM to a file, blocking until done.
+   *
+   * <p>The bucket's lock is only held briefly: the current contents are snapshotted and copied to
+   * the file without the lock, while writes go to a small in-memory delta. The delta is copied in
+   * turn until it is small, and then, under the lock, the rest of the delta is copied and the file
+   * takes the place of the RAM bucket. If the migration fails, the delta is put back into RAM. See
+   * {@link TempStorageTracker#getMigrationStats()} for progress and stall times.
+   *
+   * @return {@code true} if this call migrated the bucket, {@code false} if it was already on disk
+   *     or has been freed.
+   * @throws IOException If the file cannot be written. The bucket stays in RAM.
+   */
   @Override
   public final boolean migrateToDisk() throws IOException {
-    Bucket toMigrate;
-    long size;
+    var stats = ramTracker.getMigrationStats();
+    RandomAccessBucket ram;
+    ByteArrayOutputStream delta;
     synchronized (this) {
+      awaitMigration();
       if (!isRamStorage() || disposed()) {
         // Nothing to migrate! We don't want to switch back to ram, do we?
         return false;
       }
-      toMigrate = underlyingBucket;
-      RandomAccessBucket tempFB = fileBucketFactory.makeBucket(underlyingBucket.size());
-      size = currentSize;
+      long stallStart = System.nanoTime();
+      ram = underlyingBucket;
+      delta = new ByteArrayOutputStream();
+      migrationDelta = delta;
       if (os != null) {
-        os.flush();
+        // Closing publishes the written data in the RAM bucket, which is immutable from then on.
         os.close();
-        // DO NOT INCREMENT THE osIndex HERE!
-        os = tempFB.getOutputStreamUnbuffered();
-        if (size > 0) {
-          BucketTools.copyTo(toMigrate, os, size);
-        }
-      } else {
-        if (size > 0) {
-          try (OutputStream temp = tempFB.getOutputStreamUnbuffered()) {
-            BucketTools.copyTo(toMigrate, temp, size);
+        os = delta;
+      }
+      stats.started();
+      stats.stalled(System.nanoTime() - stallStart);
+    }
+
+    RandomAccessBucket tempFB = null;
+    OutputStream fileOs = null;
+    boolean migrated = false;
+    try {
+      tempFB = fileBucketFactory.makeBucket(ram.size());
+      fileOs = tempFB.getOutputStreamUnbuffered();
+      copySnapshot(ram, fileOs, stats);
+      for (int round = 0; round < MAX_DELTA_ROUNDS; round++) {
+        ByteArrayOutputStream full;
+        synchronized (this) {
+          if (delta.size() <= MAX_LOCKED_DELTA || disposed()) {
+            break;
+          }
+          full = delta;
+          delta = new ByteArrayOutputStream();
+          migrationDelta = delta;
+          if (os == full) {
+            os = delta;
           }
         }
-      }
-      if (toMigrate.isReadOnly()) {
-        tempFB.setReadOnly();
+        full.writeTo(fileOs);
+        stats.copied(full.size());
       }
 
-      closeInputStreams(false);
+      synchronized (this) {
+        if (disposed()) {
+          return false;
+        }
+        long stallStart = System.nanoTime();
+        delta.writeTo(fileOs);
+        stats.copiedLocked(delta.size());
+        if (os != null) {
+          // DO NOT INCREMENT THE osIndex HERE!
+          fileOs.flush();
+          os = fileOs;
+        } else {
+          fileOs.close();
+        }
+        fileOs = null;
+        if (ram.isReadOnly()) {
+          tempFB.setReadOnly();
+        }
 
-      ramTracker.removeFromQueue(this);
+        ramTracker.removeFromQueue(this);
 
-      underlyingBucket = tempFB;
-      // We need streams to be reset to point to the new bucket
+        underlyingBucket = tempFB;
+        // We need streams to be reset to point to the new bucket
+        closeInputStreams(false);
 
-      registerCleaner();
+        registerCleaner();
+        migrated = true;
+        stats.stalled(System.nanoTime() - stallStart);
+      }
+    } catch (IOException e) {
+      if (disposed()) {
+        // Freed while copying: the RAM bucket is closed under our feet.
+        return false;
+      }
+      throw e;
+    } finally {
+      synchronized (this) {
+        if (!migrated && !disposed()) {
+          restoreDelta(ram, delta);
+        }
+        migrationDelta = null;
+        notifyAll();
+      }
+      if (!migrated) {
+        if (fileOs != null) {
+          try {
+            fileOs.close();
+          } catch (IOException e) {
+            logger.warn("Failed to close {} after failed migration", tempFB, e);
+          }
+        }
+        if (tempFB != null) {
+          tempFB.dispose();
+        }
+      }
+      stats.finished(migrated);
     }
-    logger.info("We have migrated {}", toMigrate.hashCode());
+    logger.info("We have migrated {}", ram.hashCode());
 
     // We can free it on-thread as it's a rambucket
-    toMigrate.dispose();
+    ram.dispose();
     // Might have changed already so we can't rely on currentSize!
     return true;
   }
@@ -122,6 +212,8 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
     if (disposed()) {
       throw new IOException("Already freed");
     }
+    // A new stream would start a new RAM buffer under the migration's feet.
+    awaitMigration();
     // Hence we don't need to reset currentSize / _hasTaken() if a bucket is reused.
     // FIXME we should migrate to disk rather than throwing.
     hasWritten = true;
@@ -179,9 +271,15 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
 
     close();
 
+    cleaningAction.freed = true;
     GlobalCleaner.getInstance().clean(cleanable);
   }
 
+  @Override
+  public synchronized DeleteMode getDeleteMode() {
+    return underlyingBucket.getDeleteMode();
+  }
+
   @Override
   public void close() {
     if (!setClosed()) {
@@ -215,6 +313,7 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
   @Override
   public TempRab toRandomAccessBuffer() throws IOException {
     synchronized (this) {
+      awaitMigration();
       if (disposed()) {
         throw new IOException("Already disposed");
       }
@@ -243,10 +342,61 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
     return underlyingBucket;
   }
 
+  /**
+   * Waits until no migration is in progress. Must be called with the lock held.
+   *
+   * @throws IOException If interrupted while waiting.
+   */
+  private void awaitMigration() throws IOException {
+    while (migrationDelta != null) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for migration of " + this, e);
+      }
+    }
+  }
+
+  /** Copies the immutable snapshot of the RAM bucket, without holding the lock. */
+  private static void copySnapshot(Bucket ram, OutputStream out, MigrationStats stats)
+      throws IOException {
+    byte[] buf = new byte[COPY_BUFFER_SIZE];
+    try (InputStream in = ram.getInputStreamUnbuffered()) {
+      int read;
+      while ((read = in.read(buf)) > 0) {
+        out.write(buf, 0, read);
+        stats.copied(read);
+      }
+    }
+  }
+
+  /**
+   * Puts what was written during a failed migration back into the RAM bucket, and the bucket back
+   * into the RAM tracker. Must be called with the lock held.
+   */
+  private void restoreDelta(RandomAccessBucket ram, ByteArrayOutputStream delta) {
+    if (os == delta || delta.size() > 0) {
+      try {
+        OutputStream ramOs = ram.getOutputStreamUnbuffered();
+        BucketTools.copyTo(ram, ramOs, ram.size());
+        delta.writeTo(ramOs);
+        if (os == delta) {
+          os = ramOs;
+        } else {
+          ramOs.close();
+        }
+      } catch (IOException e) {
+        logger.error(
+            "Lost {} bytes written to {} during a failed migration", delta.size(), this, e);
+      }
+    }
+    ramTracker.addToQueue(this);
+  }
+
   private void registerCleaner() {
-    cleanable =
-        GlobalCleaner.getInstance()
-            .register(this, new CleaningAction(this.underlyingBucket, tbis, os));
+    cleaningAction = new CleaningAction(this.underlyingBucket, tbis, os);
+    cleanable = GlobalCleaner.getInstance().register(this, cleaningAction);
   }
 
   private synchronized void closeInputStreams(boolean forFree) {
@@ -291,13 +441,15 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
         return;
       }
 
-      var size = currentBucket.size();
+      if (!freed) {
+        var size = currentBucket.size();
 
-      String msg = "TempBucket not freed, size={} : {}";
-      if (TRACE_STORAGE_LEAKS) {
-        logger.error(msg, size, this, new Throwable());
-      } else {
-        logger.error(msg, size, this);
+        String msg = "TempBucket not freed, size={} : {}";
+        if (TRACE_STORAGE_LEAKS) {
+          logger.error(msg, size, this, new Throwable());
+        } else {
+          logger.error(msg, size, this);
+        }
       }
 
       // Close input and output streams
@@ -323,6 +475,9 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
     private final Bucket currentBucket;
     private final List<TempBucketInputStream> inputStreams;
     private final @Nullable OutputStream outputStream;
+
+    /** Set when the bucket is disposed explicitly, so that running the action is not a leak. */
+    volatile boolean freed;
   }
 
   private class TempBucketOutputStream extends OutputStream {
@@ -332,44 +487,43 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
       if (os == null) {
         os = underlyingBucket.getOutputStreamUnbuffered();
       }
-      underlyingOs = os;
     }
 
+    // Always write to os rather than caching it: a migration on another thread may switch it to
+    // its delta buffer, and then to the file.
+
     @Override
     public final void write(int b) throws IOException {
+      maybeMigrateRamBucket(1);
       synchronized (TempBucket.this) {
-        if (disposed()) {
-          throw new IOException("Already disposed");
-        }
         long futureSize = currentSize + 1;
-        maybeMigrateRamBucket(futureSize);
-        underlyingOs.write(b);
+        checkWritable(futureSize).write(b);
         currentSize = futureSize;
+        // A no-op once migrated to disk.
+        ramTracker.sizeChanged(TempBucket.this, 1);
       }
     }
 
     @Override
     public final void write(byte[] b, int off, int len) throws IOException {
+      maybeMigrateRamBucket(len);
       synchronized (TempBucket.this) {
-        if (disposed()) {
-          throw new IOException("Already disposed");
-        }
         long futureSize = currentSize + len;
-        maybeMigrateRamBucket(futureSize);
-        underlyingOs.write(b, off, len);
+        checkWritable(futureSize).write(b, off, len);
         currentSize = futureSize;
+        ramTracker.sizeChanged(TempBucket.this, len);
       }
     }
 
     @Override
     public final void flush() throws IOException {
+      maybeMigrateRamBucket(0);
       synchronized (TempBucket.this) {
         if (disposed()) {
           return;
         }
-        maybeMigrateRamBucket(currentSize);
-        if (!closed) {
-          underlyingOs.flush();
+        if (!closed && os != null) {
+          os.flush();
         }
       }
     }
@@ -380,68 +534,99 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
         if (closed) {
           return;
         }
-        maybeMigrateRamBucket(currentSize);
-        underlyingOs.flush();
-        underlyingOs.close();
+      }
+      maybeMigrateRamBucket(0);
+      synchronized (TempBucket.this) {
+        if (closed) {
+          return;
+        }
+        if (os != null) {
+          os.flush();
+          os.close();
+        }
         os = null;
         closed = true;
       }
     }
 
-    private void maybeMigrateRamBucket(long futureSize) throws IOException {
-      if (closed) {
-        return;
-      }
-      if (isRamStorage()) {
-        boolean shouldMigrate = false;
-        boolean isOversized = false;
-
-        if (futureSize >= Math.min(Integer.MAX_VALUE, maxRamSize)) {
-          isOversized = true;
-          shouldMigrate = true;
-        } else if ((futureSize - currentSize) + ramTracker.getRamBytesInUse()
-            >= ramStoragePoolSize) {
-          shouldMigrate = true;
+    /**
+     * Migrates the bucket to disk if writing {@code toWrite} more bytes would make it too big for
+     * RAM. Called without the lock, so that the migration does not hold it while copying.
+     */
+    private void maybeMigrateRamBucket(long toWrite) throws IOException {
+      boolean isOversized;
+      synchronized (TempBucket.this) {
+        if (closed || disposed() || !isRamStorage()) {
+          return;
         }
-
-        if (shouldMigrate) {
-          if (isOversized) {
-            logger
-                .atInfo()
-                .setMessage("The bucket {} is over {}: we will " + "force-migrate it to disk.")
-                .addArgument(TempBucket.this)
-                .addArgument(() -> SizeUtil.formatSize(maxRamSize))
-                .log();
-          } else {
-            logger.info("The bucketpool is full: force-migrate before " + "we go over the limit");
-          }
-          migrateToDisk();
-          underlyingOs = os;
+        long futureSize = currentSize + toWrite;
+        isOversized = futureSize >= Math.min(Integer.MAX_VALUE, maxRamSize);
+        if (!isOversized && toWrite + ramTracker.getRamBytesInUse() < ramStoragePoolSize) {
+          return;
         }
+      }
+
+      if (isOversized) {
+        logger
+            .atInfo()
+            .setMessage("The bucket {} is over {}: we will " + "force-migrate it to disk.")
+            .addArgument(TempBucket.this)
+            .addArgument(() -> SizeUtil.formatSize(maxRamSize))
+            .log();
       } else {
-        // Check for excess disk usage.
-        if (futureSize - lastCheckedSize >= CHECK_DISK_EVERY) {
-          if (Files.getFileStore(tempFileDir).getUsableSpace() - (futureSize - currentSize)
-              < minDiskSpace) {
-            throw new InsufficientDiskSpaceException();
-          }
-          lastCheckedSize = futureSize;
+        logger.info("The bucketpool is full: force-migrate before " + "we go over the limit");
+      }
+      migrateToDisk();
+    }
+
+    /**
+     * Checks that a write is possible, and for excess disk usage. Called with the lock held.
+     *
+     * @return The stream to write to.
+     */
+    private OutputStream checkWritable(long futureSize) throws IOException {
+      if (disposed()) {
+        throw new IOException("Already disposed");
+      }
+      var out = os;
+      if (closed || out == null) {
+        throw new IOException("Already closed");
+      }
+      if (!isRamStorage() && futureSize - lastCheckedSize >= CHECK_DISK_EVERY) {
+        if (Files.getFileStore(tempFileDir).getUsableSpace() - (futureSize - currentSize)
+            < minDiskSpace) {
+          throw new InsufficientDiskSpaceException();
         }
+        lastCheckedSize = futureSize;
       }
+      return out;
     }
 
     long lastCheckedSize = 0;
     boolean closed = false;
-    OutputStream underlyingOs;
   }
 
+  /**
+   * An input stream on the bucket.
+   *
+   * <p>On a bucket that is read-only when the stream is opened, the contents can no longer change,
+   * so the stream reads without taking the bucket's lock and many readers do not contend. A
+   * migration does not touch such a stream: the old RAM data stays valid, and the stream notices
+   * the new underlying bucket on its next read and moves over to it, so the RAM can be freed. Other
+   * streams synchronize on the bucket, and migrations reposition them.
+   */
   private class TempBucketInputStream extends InputStream {
     TempBucketInputStream(short idx) throws IOException {
       this.idx = idx;
-      this.currentIS = underlyingBucket.getInputStreamUnbuffered();
+      this.source = underlyingBucket;
+      this.currentIS = source.getInputStreamUnbuffered();
+      this.lockFree = source.isReadOnly() && os == null;
     }
 
     public void maybeResetInputStream() throws IOException {
+      if (lockFree) {
+        return;
+      }
       if (idx != osIndex) {
         close();
       } else {
@@ -450,7 +635,8 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
         } catch (IOException e) {
           logger.warn("Failed to close input stream", e);
         }
-        currentIS = underlyingBucket.getInputStreamUnbuffered();
+        source = underlyingBucket;
+        currentIS = source.getInputStreamUnbuffered();
         long toSkip = index;
         while (toSkip > 0) {
           toSkip -= currentIS.skip(toSkip);
@@ -460,6 +646,13 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
 
     @Override
     public final int read() throws IOException {
+      if (lockFree) {
+        int toReturn = lockFreeStream().read();
+        if (toReturn != -1) {
+          index++;
+        }
+        return toReturn;
+      }
       synchronized (TempBucket.this) {
         if (disposed()) {
           throw new IOException("Already disposed");
@@ -474,16 +667,18 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
 
     @Override
     public int read(byte[] b) throws IOException {
-      synchronized (TempBucket.this) {
-        if (disposed()) {
-          throw new IOException("Already disposed");
-        }
-        return read(b, 0, b.length);
-      }
+      return read(b, 0, b.length);
     }
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
+      if (lockFree) {
+        int toReturn = lockFreeStream().read(b, off, len);
+        if (toReturn > 0) {
+          index += toReturn;
+        }
+        return toReturn;
+      }
       synchronized (TempBucket.this) {
         if (disposed()) {
           throw new IOException("Already disposed");
@@ -498,6 +693,11 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
 
     @Override
     public long skip(long n) throws IOException {
+      if (lockFree) {
+        long skipped = lockFreeStream().skip(n);
+        index += skipped;
+        return skipped;
+      }
       synchronized (TempBucket.this) {
         if (disposed()) {
           throw new IOException("Already disposed");
@@ -510,6 +710,9 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
 
     @Override
     public int available() throws IOException {
+      if (lockFree) {
+        return lockFreeStream().available();
+      }
       synchronized (TempBucket.this) {
         if (disposed()) {
           throw new IOException("Already disposed");
@@ -526,9 +729,34 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
       }
     }
 
+    /**
+     * Returns the stream to read from without the lock, moving to the current underlying bucket
+     * first if the bucket has been migrated.
+     */
+    private InputStream lockFreeStream() throws IOException {
+      if (disposed()) {
+        throw new IOException("Already disposed");
+      }
+      Bucket current = underlyingBucket;
+      if (current != source) {
+        InputStream moved = current.getInputStreamUnbuffered();
+        moved.skipNBytes(index);
+        currentIS.close();
+        source = current;
+        currentIS = moved;
+      }
+      return currentIS;
+    }
+
     /** Will change if a new OutputStream is openned: used to detect deprecation */
     private final short idx;
 
+    /** Whether the bucket was read-only when this stream was opened, see the class comment. */
+    private final boolean lockFree;
+
+    /** The underlying bucket {@link #currentIS} reads from */
+    private Bucket source;
+
     /** The current InputStream we use from the underlying bucket */
     private InputStream currentIS;
 
@@ -557,9 +785,14 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
   private final BucketFactory fileBucketFactory;
   private final TempRabFactory rabMigrateToFactory;
   private Cleaner.Cleanable cleanable;
+  private CleaningAction cleaningAction;
 
-  /** The underlying bucket itself */
-  private RandomAccessBucket underlyingBucket;
+  /**
+   * The underlying bucket itself. Written with the lock held; volatile for the lock-free readers of
+   * read-only buckets.
+   */
+  @SuppressWarnings("java:S3077")
+  private volatile RandomAccessBucket underlyingBucket;
 
   /**
    * We have to account the size of the underlying bucket ourselves in order to be able to access it
@@ -575,4 +808,10 @@ public class TempBucket extends AbstractStorage implements TempStorage, RandomAc
 
   /** An identifier used to know when to deprecate the InputStreams */
   private short osIndex;
+
+  /**
+   * Where writes go while a migration copies the RAM bucket to disk, or {@code null} if no
+   * migration is in progress.
+   */
+  private @Nullable ByteArrayOutputStream migrationDelta;
 }
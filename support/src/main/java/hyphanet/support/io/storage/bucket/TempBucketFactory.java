@@ -1,14 +1,19 @@
 package hyphanet.support.io.storage.bucket;
 
 import hyphanet.crypt.key.MasterSecret;
+import hyphanet.support.io.DiskSpaceLedger;
 import hyphanet.support.io.FilenameGenerator;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.EncryptType;
 import hyphanet.support.io.storage.RamStorageCapableFactory;
 import hyphanet.support.io.storage.TempStorageTracker;
 import hyphanet.support.io.storage.rab.TempRabFactory;
 import hyphanet.support.io.stream.InsufficientDiskSpaceException;
 import java.io.IOException;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import org.jspecify.annotations.Nullable;
 
 public class TempBucketFactory implements BucketFactory, RamStorageCapableFactory {
 
@@ -42,34 +47,31 @@ public class TempBucketFactory implements BucketFactory, RamStorageCapableFactor
    */
   @Override
   public TempBucket makeBucket(long size) throws IOException {
-    RandomAccessBucket realBucket;
     long now = System.currentTimeMillis();
+    var context = storageContext();
 
-    var tempFileBucketFactory =
-        new TempFileBucketFactory(filenameGenerator, encrypt, encryptType, secret);
-
-    // Do we want a RAMBucket or a FileBucket?
-    realBucket = (createRam ? new ArrayBucket() : tempFileBucketFactory.makeBucket(size));
-
-    var toReturn =
-        new TempBucket(
-            ramTracker,
-            now,
-            realBucket,
-            filenameGenerator.getDir(),
-            maxRamSize,
-            ramStoragePoolSize,
-            minDiskSpace,
-            tempFileBucketFactory,
-            rabMigrateToFactory);
     if (!createRam // No need to consider them for migration if they can't be migrated
         && size != -1
         && size != Long.MAX_VALUE // If we know the disk space requirement in advance, check it.
-        && Files.getFileStore(filenameGenerator.getDir()).getUsableSpace() + size < minDiskSpace) {
+        && DiskSpaceLedger.getDefault().getAvailableSpace(context.getFileStore()) - size
+            < minDiskSpace) {
       throw new InsufficientDiskSpaceException();
     }
 
-    return toReturn;
+    // Do we want a RAMBucket or a FileBucket?
+    RandomAccessBucket realBucket =
+        (createRam ? new ArrayBucket() : context.fileBucketFactory.makeBucket(size));
+
+    return new TempBucket(
+        ramTracker,
+        now,
+        realBucket,
+        context.dir,
+        maxRamSize,
+        ramStoragePoolSize,
+        minDiskSpace,
+        context.fileBucketFactory,
+        rabMigrateToFactory);
   }
 
   public boolean isCreateRam() {
@@ -81,6 +83,32 @@ public class TempBucketFactory implements BucketFactory, RamStorageCapableFactor
     this.createRam = createRam;
   }
 
+  /**
+   * Returns the storage context for the current temporary directory, encryption setting and delete
+   * mode, creating a new one only if any of them has changed since the last call.
+   *
+   * @return The storage context.
+   */
+  StorageContext storageContext() {
+    var context = storageContext;
+    Path dir = filenameGenerator.getDir();
+    boolean encryptNow = encrypt;
+    DeleteMode deleteModeNow = deleteMode;
+    if (context == null
+        || context.encrypt != encryptNow
+        || context.fileBucketFactory.getDeleteMode() != deleteModeNow
+        || !context.dir.equals(dir)) {
+      context =
+          new StorageContext(
+              dir,
+              encryptNow,
+              new TempFileBucketFactory(
+                  filenameGenerator, encryptNow, encryptType, secret, deleteModeNow));
+      storageContext = context;
+    }
+    return context;
+  }
+
   public boolean isEncrypt() {
     return encrypt;
   }
@@ -89,6 +117,56 @@ public class TempBucketFactory implements BucketFactory, RamStorageCapableFactor
     this.encrypt = encrypt;
   }
 
+  public DeleteMode getDeleteMode() {
+    return deleteMode;
+  }
+
+  /**
+   * Sets how the files of buckets created from now on are destroyed when they are disposed. See
+   * {@link TempFileBucketFactory#TempFileBucketFactory(FilenameGenerator, boolean, EncryptType,
+   * MasterSecret, DeleteMode)}.
+   *
+   * @param deleteMode The delete mode.
+   */
+  public void setDeleteMode(DeleteMode deleteMode) {
+    this.deleteMode = deleteMode;
+  }
+
+  /**
+   * What {@link #makeBucket(long)} needs to know about where temporary files go. Resolved once and
+   * shared by all buckets, so that creating a bucket neither allocates a factory nor queries the
+   * filesystem.
+   */
+  static final class StorageContext {
+    StorageContext(Path dir, boolean encrypt, TempFileBucketFactory fileBucketFactory) {
+      this.dir = dir;
+      this.encrypt = encrypt;
+      this.fileBucketFactory = fileBucketFactory;
+    }
+
+    /**
+     * Returns the filesystem of the temporary directory, looking it up on first use.
+     *
+     * @return The filesystem.
+     * @throws IOException If the filesystem cannot be determined.
+     */
+    FileStore getFileStore() throws IOException {
+      var store = fileStore;
+      if (store == null) {
+        store = Files.getFileStore(dir);
+        fileStore = store;
+      }
+      return store;
+    }
+
+    final Path dir;
+    final boolean encrypt;
+    final TempFileBucketFactory fileBucketFactory;
+
+    @SuppressWarnings("java:S3077")
+    private volatile @Nullable FileStore fileStore;
+  }
+
   private final TempStorageTracker ramTracker;
   private final FilenameGenerator filenameGenerator;
   private final EncryptType encryptType;
@@ -105,4 +183,9 @@ public class TempBucketFactory implements BucketFactory, RamStorageCapableFactor
   private final TempRabFactory rabMigrateToFactory;
   private boolean encrypt;
   private boolean createRam;
+  private DeleteMode deleteMode = DeleteMode.DELETE;
+
+  /** The storage context of the current settings, or {@code null} before the first bucket. */
+  @SuppressWarnings("java:S3077")
+  private volatile @Nullable StorageContext storageContext;
 }
@@ -2,6 +2,7 @@ package hyphanet.support.io.storage.bucket;
 
 import hyphanet.crypt.key.MasterSecret;
 import hyphanet.support.io.FilenameGenerator;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.EncryptType;
 import hyphanet.support.io.storage.bucket.wrapper.EncryptedBucket;
 import hyphanet.support.io.storage.bucket.wrapper.PaddedRandomAccessBucket;
@@ -15,26 +16,49 @@ public class TempFileBucketFactory implements BucketFactory {
       boolean encrypt,
       EncryptType encryptType,
       MasterSecret secret) {
+    this(filenameGenerator, encrypt, encryptType, secret, DeleteMode.DELETE);
+  }
+
+  /**
+   * Creates a factory whose files are destroyed in {@code deleteMode} when the buckets are
+   * disposed. {@link DeleteMode#CRYPTO_SHRED} is only used if {@code encrypt} is set, otherwise the
+   * files are overwritten instead.
+   */
+  public TempFileBucketFactory(
+      FilenameGenerator filenameGenerator,
+      boolean encrypt,
+      EncryptType encryptType,
+      MasterSecret secret,
+      DeleteMode deleteMode) {
     this.filenameGenerator = filenameGenerator;
     this.encrypt = encrypt;
     this.encryptType = encryptType;
     this.secret = secret;
+    this.deleteMode = deleteMode;
   }
 
   @Override
   public RandomAccessBucket makeBucket(long size) throws IOException {
-    RandomAccessBucket ret =
-        new TempFileBucket(filenameGenerator.makeRandomFilename(), filenameGenerator, true);
+    var file = new TempFileBucket(filenameGenerator.makeRandomFilename(), filenameGenerator, true);
+    RandomAccessBucket ret = file;
     // Do we want it to be encrypted?
     if (encrypt) {
       ret = new PaddedRandomAccessBucket(ret);
       ret = new EncryptedBucket(encryptType, ret, secret);
+      file.setDeleteMode(deleteMode, encryptType.headerLen);
+    } else {
+      file.setDeleteMode(deleteMode.forPlaintext(), 0);
     }
     return ret;
   }
 
+  public DeleteMode getDeleteMode() {
+    return deleteMode;
+  }
+
   private final FilenameGenerator filenameGenerator;
   private final boolean encrypt;
   private final EncryptType encryptType;
   private final MasterSecret secret;
+  private final DeleteMode deleteMode;
 }
@@ -11,6 +11,7 @@ import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.ResumeFailedException;
 import hyphanet.support.io.storage.AbstractStorage;
 import hyphanet.support.io.storage.DelayedDisposable;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.storage.bucket.Bucket;
 import hyphanet.support.io.storage.bucket.BucketTools;
@@ -213,6 +214,11 @@ public class DelayedDisposeBucket extends AbstractStorage implements Bucket, Del
     this.factory.delayedDispose(this, createdCommitID);
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return bucket.getDeleteMode();
+  }
+
   @Override
   public String toString() {
     return super.toString() + ":" + bucket;
@@ -11,6 +11,7 @@ import hyphanet.support.io.PersistentFileTracker;
 import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.ResumeFailedException;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.EncryptType;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.storage.bucket.BucketTools;
@@ -231,6 +232,11 @@ public class EncryptedBucket extends AbstractStorage implements RandomAccessBuck
     underlying.dispose();
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return underlying.getDeleteMode();
+  }
+
   /**
    * Creates a read-only shadow copy of this encrypted bucket. The copy shares the same underlying
    * storage but has its own encryption state.
@@ -430,8 +436,9 @@ public class EncryptedBucket extends AbstractStorage implements RandomAccessBuck
    */
   private SkippingStreamCipher setup(InputStream is) throws IOException, GeneralSecurityException {
     byte[] fullHeader = new byte[type.headerLen];
-    try (DataInputStream dis = new DataInputStream(is)) {
-      dis.readFully(fullHeader);
+    // Not closed: the caller carries on reading the data after the header.
+    try {
+      new DataInputStream(is).readFully(fullHeader);
     } catch (EOFException e) {
       throw new IOException(
           "Underlying RandomAccessBuffer is not long enough to include the " + "footer.");
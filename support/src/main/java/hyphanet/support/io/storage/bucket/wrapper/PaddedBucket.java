@@ -6,6 +6,7 @@ import hyphanet.support.io.PersistentFileTracker;
 import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.ResumeFailedException;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.storage.bucket.Bucket;
 import hyphanet.support.io.storage.bucket.BucketTools;
@@ -208,6 +209,11 @@ public class PaddedBucket extends AbstractStorage implements Bucket {
     underlying.dispose();
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return underlying.getDeleteMode();
+  }
+
   /**
    * {@inheritDoc}
    *
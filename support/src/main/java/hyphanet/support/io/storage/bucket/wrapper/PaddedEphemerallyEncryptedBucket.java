@@ -10,6 +10,7 @@ import hyphanet.support.io.PersistentFileTracker;
 import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.ResumeFailedException;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.storage.bucket.Bucket;
 import hyphanet.support.io.storage.bucket.BucketTools;
@@ -276,6 +277,11 @@ public class PaddedEphemerallyEncryptedBucket extends AbstractStorage implements
     bucket.dispose();
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return bucket.getDeleteMode();
+  }
+
   /**
    * {@inheritDoc}
    *
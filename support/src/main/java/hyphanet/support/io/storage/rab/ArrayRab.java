@@ -14,7 +14,8 @@ import java.util.Arrays;
  * thread-safe random access operations through synchronization.
  *
  * <p>The buffer can be set to read-only mode, after which write operations will throw an {@link
- * IOException}. All operations are synchronized to ensure thread safety.
+ * IOException}. Writes, and reads while the buffer is writable, are synchronized; reads from a
+ * read-only buffer take no lock.
  *
  * @see Rab
  */
@@ -72,14 +73,20 @@ public class ArrayRab extends AbstractStorage implements Rab, RamStorage, Serial
   /**
    * {@inheritDoc}
    *
-   * <p>Performs a synchronized read operation from the internal buffer.
+   * <p>Reads from the internal buffer, synchronized while the buffer is writable. Once the buffer
+   * is read-only its contents can no longer change, so reads skip the lock and concurrent readers
+   * do not contend.
    */
   @Override
-  public synchronized void pread(long fileOffset, byte[] buf, int bufOffset, int length)
-      throws IOException {
-    validateState();
-    validateReadOperation(fileOffset, length);
-    System.arraycopy(data, (int) fileOffset, buf, bufOffset, length);
+  public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+    // The volatile read of readOnly makes all writes before setReadOnly() visible.
+    if (readOnly) {
+      copyOut(fileOffset, buf, bufOffset, length);
+    } else {
+      synchronized (this) {
+        copyOut(fileOffset, buf, bufOffset, length);
+      }
+    }
   }
 
   /**
@@ -177,6 +184,13 @@ public class ArrayRab extends AbstractStorage implements Rab, RamStorage, Serial
     }
   }
 
+  /** Copies a validated range of the internal buffer into {@code buf}. */
+  private void copyOut(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+    validateState();
+    validateReadOperation(fileOffset, length);
+    System.arraycopy(data, (int) fileOffset, buf, bufOffset, length);
+  }
+
   /**
    * Validates read operation parameters.
    *
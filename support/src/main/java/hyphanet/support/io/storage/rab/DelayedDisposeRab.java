@@ -7,9 +7,11 @@ import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.ResumeFailedException;
 import hyphanet.support.io.storage.AbstractStorage;
 import hyphanet.support.io.storage.DelayedDisposable;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.storage.bucket.BucketTools;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Implements delayed disposal functionality for RandomAccessBuffer instances.
@@ -98,6 +100,36 @@ public class DelayedDisposeRab extends AbstractStorage
     underlying.pwrite(fileOffset, buf, bufOffset, length);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IOException if the buffer has been disposed or if an I/O error occurs
+   */
+  @Override
+  public void pread(long fileOffset, ByteBuffer dst) throws IOException {
+    synchronized (this) {
+      if (disposed()) {
+        throw new IOException("Already disposed");
+      }
+    }
+    underlying.pread(fileOffset, dst);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IOException if the buffer has been disposed or if an I/O error occurs
+   */
+  @Override
+  public void pwrite(long fileOffset, ByteBuffer src) throws IOException {
+    synchronized (this) {
+      if (disposed()) {
+        throw new IOException("Already disposed");
+      }
+    }
+    underlying.pwrite(fileOffset, src);
+  }
+
   @Override
   public void close() {
     if (!setClosed()) {
@@ -114,6 +146,11 @@ public class DelayedDisposeRab extends AbstractStorage
     this.factory.delayedDispose(this, createdCommitID);
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return underlying.getDeleteMode();
+  }
+
   /**
    * {@inheritDoc}
    *
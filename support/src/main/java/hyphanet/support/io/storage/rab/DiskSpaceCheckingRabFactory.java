@@ -1,14 +1,15 @@
 package hyphanet.support.io.storage.rab;
 
 import hyphanet.support.io.DiskSpaceChecker;
+import hyphanet.support.io.DiskSpaceLedger;
 import hyphanet.support.io.stream.InsufficientDiskSpaceException;
 import hyphanet.support.io.util.FilePath;
 import java.io.IOException;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Random;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,26 +22,13 @@ import org.slf4j.LoggerFactory;
  * during write operations. It uses a {@link DiskSpaceChecker} interface (implemented by itself) to
  * perform these checks.
  *
- * <p>Thread safety is ensured by using a {@link ReentrantLock} to synchronize disk space checks and
- * buffer creations, preventing race conditions and ensuring accurate free space estimations.
+ * <p>Free space is tracked by a {@link DiskSpaceLedger}, which caches the usable space of each
+ * filesystem and reserves the size of a buffer while it is being created, so that concurrent
+ * allocations cannot together overcommit the disk. Allocations on different filesystems do not wait
+ * for each other, and most checks do not need to ask the filesystem.
  */
 public class DiskSpaceCheckingRabFactory implements RabFactory, DiskSpaceChecker {
 
-  /**
-   * Global lock used to synchronize disk space checks and prevent fragmentation.
-   *
-   * <p>This lock is acquired before any disk space check or {@link Rab} creation to ensure that
-   * operations are performed atomically and that free space estimations are accurate.
-   *
-   * <p><b>LOCKING:</b> This lock is used to synchronize operations across the entire factory.
-   *
-   * <p>TODO: Ideally, locking would be per-filesystem to improve concurrency, but current
-   * implementation uses a single global lock for simplicity and correctness.
-   *
-   * @see ReentrantLock
-   */
-  private static final Lock lock = new ReentrantLock(true);
-
   private static final Logger logger = LoggerFactory.getLogger(DiskSpaceCheckingRabFactory.class);
 
   /**
@@ -54,6 +42,21 @@ public class DiskSpaceCheckingRabFactory implements RabFactory, DiskSpaceChecker
    * @throws NullPointerException if {@code underlying} or {@code dir} is {@code null}.
    */
   public DiskSpaceCheckingRabFactory(RabFactory underlying, Path dir, long minDiskSpace) {
+    this(underlying, dir, minDiskSpace, DiskSpaceLedger.getDefault());
+  }
+
+  /**
+   * Constructs a {@link DiskSpaceCheckingRabFactory} which accounts for free space in the given
+   * ledger instead of the {@linkplain DiskSpaceLedger#getDefault() shared one}.
+   *
+   * @param underlying The underlying {@link RabFactory} to delegate buffer creation to.
+   * @param dir The directory to check for disk space.
+   * @param minDiskSpace The minimum disk space in bytes that must be available. Must be
+   *     non-negative.
+   * @param ledger The ledger keeping track of the free space of {@code dir}'s filesystem.
+   */
+  public DiskSpaceCheckingRabFactory(
+      RabFactory underlying, Path dir, long minDiskSpace, DiskSpaceLedger ledger) {
     if (minDiskSpace < 0) {
       throw new IllegalArgumentException("Minimum disk space must be non-negative");
     }
@@ -61,6 +64,7 @@ public class DiskSpaceCheckingRabFactory implements RabFactory, DiskSpaceChecker
     this.underlying = underlying;
     this.dir = dir;
     this.minDiskSpace = minDiskSpace;
+    this.ledger = ledger;
   }
 
   /**
@@ -80,24 +84,18 @@ public class DiskSpaceCheckingRabFactory implements RabFactory, DiskSpaceChecker
    * {@inheritDoc}
    *
    * @throws InsufficientDiskSpaceException if there is not enough disk space available.
-   * @implSpec This implementation first checks if there is enough disk space available in the
-   *     directory specified during construction. If sufficient space is available ({@code size} +
-   *     {@link #minDiskSpace}), it delegates the {@link Rab} creation to the underlying {@link
-   *     RabFactory}. The disk space check and buffer creation are performed under a global lock to
-   *     ensure atomicity.
-   * @see #lock
-   * @see #getUsableSpace(Path)
+   * @implSpec This implementation reserves {@code size} bytes in the {@link DiskSpaceLedger} of the
+   *     directory specified during construction, which succeeds if more than {@code size} + {@link
+   *     #minDiskSpace} bytes are available. It then delegates the {@link Rab} creation to the
+   *     underlying {@link RabFactory}, and commits the reservation if that succeeds.
+   * @see #reserve(long)
    */
   @Override
   public Rab makeRab(long size) throws IOException {
-    lock.lock();
-    try {
-      if (getUsableSpace(dir) > size + minDiskSpace) {
-        return underlying.makeRab(size);
-      }
-      throw new InsufficientDiskSpaceException();
-    } finally {
-      lock.unlock();
+    try (var reservation = reserve(size)) {
+      Rab rab = underlying.makeRab(size);
+      reservation.commit();
+      return rab;
     }
   }
 
@@ -105,25 +103,19 @@ public class DiskSpaceCheckingRabFactory implements RabFactory, DiskSpaceChecker
    * {@inheritDoc}
    *
    * @throws InsufficientDiskSpaceException if there is not enough disk space available.
-   * @implSpec This implementation first checks if there is enough disk space available in the
-   *     directory specified during construction. If sufficient space is available ({@code size} +
-   *     {@link #minDiskSpace}), it delegates the {@link Rab} creation to the underlying {@link
-   *     RabFactory}. The disk space check and buffer creation are performed under a global lock to
-   *     ensure atomicity.
-   * @see #lock
-   * @see #getUsableSpace(Path)
+   * @implSpec This implementation reserves {@code size} bytes in the {@link DiskSpaceLedger} of the
+   *     directory specified during construction, which succeeds if more than {@code size} + {@link
+   *     #minDiskSpace} bytes are available. It then delegates the {@link Rab} creation to the
+   *     underlying {@link RabFactory}, and commits the reservation if that succeeds.
+   * @see #reserve(long)
    */
   @Override
   public Rab makeRab(byte[] initialContents, int offset, int size, boolean readOnly)
       throws IOException {
-    lock.lock();
-    try {
-      if (getUsableSpace(dir) > size + minDiskSpace) {
-        return underlying.makeRab(initialContents, offset, size, readOnly);
-      }
-      throw new InsufficientDiskSpaceException();
-    } finally {
-      lock.unlock();
+    try (var reservation = reserve(size)) {
+      Rab rab = underlying.makeRab(initialContents, offset, size, readOnly);
+      reservation.commit();
+      return rab;
     }
   }
 
@@ -154,11 +146,9 @@ public class DiskSpaceCheckingRabFactory implements RabFactory, DiskSpaceChecker
    * @throws InsufficientDiskSpaceException If there is not enough disk space available.
    * @throws IOException If the file does not exist, is not zero bytes long, or if some other disk
    *     I/O error occurs.
-   * @see #lock
-   * @see #getUsableSpace(Path)
+   * @see #reserve(long)
    */
   public PooledFileRab createFileRab(Path path, long size, Random random) throws IOException {
-    lock.lock();
     PooledFileRab ret = null;
     try {
       if (!Files.exists(path)) {
@@ -167,17 +157,15 @@ public class DiskSpaceCheckingRabFactory implements RabFactory, DiskSpaceChecker
       if (Files.size(path) != 0) {
         throw new IOException("File is wrong length");
       }
-      // FIXME ideally we would have separate locks for each filesystem ...
-      if (getUsableSpace(dir) > size + minDiskSpace) {
+      try (var reservation = reserve(size)) {
         ret = new PooledFileRab(path, false, size, -1, true);
+        reservation.commit();
         return ret;
       }
-      throw new InsufficientDiskSpaceException();
     } finally {
       if (ret == null) {
         Files.delete(path);
       }
-      lock.unlock();
     }
   }
 
@@ -186,13 +174,10 @@ public class DiskSpaceCheckingRabFactory implements RabFactory, DiskSpaceChecker
    *
    * @implSpec This method checks if the given {@code path} is a child of the configured directory
    *     {@link #dir}. If it is not a child, it logs an error and returns {@code true} (disk space
-   *     check is bypassed). Otherwise, it acquires the global {@link #lock}, retrieves the usable
-   *     disk space using {@link #getUsableSpace(Path)}, and checks if there is enough space
-   *     available considering {@code toWrite}, {@code bufferSize}, and {@link #minDiskSpace}. The
-   *     result of the disk space check is then returned. The global lock is always released in a
-   *     {@code finally} block.
-   * @see #lock
-   * @see #getUsableSpace(Path)
+   *     check is bypassed). Otherwise, it asks the {@link DiskSpaceLedger} of {@link #dir}'s
+   *     filesystem whether {@code toWrite} + {@code bufferSize} bytes can be written while leaving
+   *     {@link #minDiskSpace} free, and if so, counts them as allocated.
+   * @see DiskSpaceLedger#allocate(FileStore, long, long)
    * @see FilePath#isParent(Path, Path)
    */
   @Override
@@ -201,35 +186,47 @@ public class DiskSpaceCheckingRabFactory implements RabFactory, DiskSpaceChecker
       logger.error("Not checking disk space because {} is not child of {}", path, dir);
       return true;
     }
-    lock.lock();
-    try {
-      var usableSpace = getUsableSpace(path);
-      if (usableSpace == -1) {
-        return false;
-      }
-      return usableSpace - (toWrite + bufferSize) >= minDiskSpace;
-    } finally {
-      lock.unlock();
+    FileStore fileStore = getFileStore();
+    if (fileStore == null) {
+      return false;
+    }
+    return ledger.allocate(fileStore, (long) toWrite + bufferSize, minDiskSpace);
+  }
+
+  /**
+   * Reserves space for a new buffer on the filesystem of {@link #dir}.
+   *
+   * @param size The size of the buffer in bytes.
+   * @return The reservation, to be committed once the buffer is created.
+   * @throws InsufficientDiskSpaceException if more than {@code size} + {@link #minDiskSpace} bytes
+   *     are not available, or the filesystem cannot be determined.
+   */
+  private DiskSpaceLedger.Reservation reserve(long size) throws InsufficientDiskSpaceException {
+    FileStore fileStore = getFileStore();
+    if (fileStore == null) {
+      throw new InsufficientDiskSpaceException();
     }
+    return ledger.reserve(fileStore, size, minDiskSpace);
   }
 
   /**
-   * Gets the usable disk space for the filesystem containing the given path.
+   * Gets the filesystem containing {@link #dir}. It is looked up once and then cached, as looking
+   * it up is about as expensive as reading its free space.
    *
-   * @param path The path to the file or directory for which to check disk space. Must not be {@code
-   *     null}.
-   * @return The usable disk space in bytes, or -1 if an {@link IOException} occurs while retrieving
-   *     disk space information.
+   * @return The filesystem, or {@code null} if an {@link IOException} occurs while looking it up.
    * @see Files#getFileStore(Path)
-   * @see java.nio.file.FileStore#getUsableSpace()
    */
-  private static long getUsableSpace(Path path) {
-    try {
-      return Files.getFileStore(path).getUsableSpace();
-    } catch (IOException e) {
-      logger.error("Unable to check disk space for {}", path, e);
-      return -1;
+  private @Nullable FileStore getFileStore() {
+    FileStore fileStore = store;
+    if (fileStore == null) {
+      try {
+        fileStore = Files.getFileStore(dir);
+        store = fileStore;
+      } catch (IOException e) {
+        logger.error("Unable to check disk space for {}", dir, e);
+      }
     }
+    return fileStore;
   }
 
   /**
@@ -250,4 +247,11 @@ public class DiskSpaceCheckingRabFactory implements RabFactory, DiskSpaceChecker
    * below this threshold, {@link InsufficientDiskSpaceException} will be thrown.
    */
   private volatile long minDiskSpace;
+
+  /** The ledger keeping track of the free space of {@link #dir}'s filesystem. */
+  private final DiskSpaceLedger ledger;
+
+  /** The filesystem containing {@link #dir}, once it has been looked up. */
+  @SuppressWarnings("java:S3077")
+  private volatile @Nullable FileStore store;
 }
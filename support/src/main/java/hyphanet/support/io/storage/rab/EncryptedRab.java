@@ -14,19 +14,24 @@ import hyphanet.support.io.PersistentFileTracker;
 import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.ResumeFailedException;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.EncryptType;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.storage.bucket.BucketTools;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.ReentrantLock;
 import javax.crypto.SecretKey;
 import org.bouncycastle.crypto.SkippingStreamCipher;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.jspecify.annotations.Nullable;
 
 /**
  * A thread-safe implementation of RandomAccessBuffer that provides encryption using a
@@ -43,6 +48,16 @@ import org.bouncycastle.crypto.params.ParametersWithIV;
  *   <li>Thread-safe read/write operations
  * </ul>
  *
+ * <h2>Concurrency:</h2>
+ *
+ * <p>By default each read and write positions its own cipher instance at the requested offset with
+ * {@link SkippingStreamCipher#seekTo(long)}, which is a constant-time counter adjustment for
+ * ChaCha. Cipher instances are borrowed from a small per-buffer pool, so reads and writes at
+ * different offsets run in parallel, and reads decrypt in place in the caller's buffer. The
+ * original mode with one shared read cipher and one shared write cipher, each guarded by a lock,
+ * can still be selected with {@link #EncryptedRab(EncryptType, Rab, MasterSecret, boolean,
+ * boolean)}; both modes produce identical ciphertext.
+ *
  * @author unixninja92
  * @see Rab
  * @see Serializable
@@ -79,6 +94,12 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
   /** Length of version and magic number fields in bytes */
   private static final int VERSION_AND_MAGIC_LENGTH = 12;
 
+  /** Maximum size of the per-cipher scratch buffer used to encrypt writes */
+  private static final int MAX_WRITE_CHUNK = 32 * 1024;
+
+  /** Maximum number of idle cipher instances kept per buffer */
+  private static final int MAX_POOLED_CIPHERS = Runtime.getRuntime().availableProcessors();
+
   /**
    * Creates an instance of Encrypted Random Access Buffer wrapping an underlying buffer. Keys for
    * key encryption and MAC generation are derived from the MasterSecret. If this is a new Encrypted
@@ -95,8 +116,34 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
    */
   public EncryptedRab(EncryptType type, Rab underlying, MasterSecret masterKey, boolean newBuffer)
       throws IOException, GeneralSecurityException {
+    this(type, underlying, masterKey, newBuffer, true);
+  }
+
+  /**
+   * Creates an instance of Encrypted Random Access Buffer, choosing how concurrent accesses are
+   * handled.
+   *
+   * @param type The encryption configuration to use
+   * @param underlying The underlying buffer that will be storing the data. Must be larger than the
+   *     footer size specified in type.
+   * @param masterKey The MasterSecret that will be used to derive various keys.
+   * @param newBuffer If true, initializes a new encrypted buffer; if false, reads existing header
+   * @param concurrent If true, every access seeks a pooled cipher instance to its own offset and
+   *     accesses run in parallel; if false, all reads share one cipher and all writes share
+   *     another, and accesses of the same kind are serialized
+   * @throws IOException If I/O errors occur
+   * @throws GeneralSecurityException If cryptographic operations fail
+   */
+  public EncryptedRab(
+      EncryptType type,
+      Rab underlying,
+      MasterSecret masterKey,
+      boolean newBuffer,
+      boolean concurrent)
+      throws IOException, GeneralSecurityException {
     this.type = type;
     this.underlyingBuffer = underlying;
+    this.concurrent = concurrent;
 
     setup(masterKey, newBuffer);
   }
@@ -142,8 +189,9 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
   }
 
   /**
-   * Reads and decrypts data from the buffer in a thread-safe manner. The operation uses the read
-   * cipher instance with proper position tracking.
+   * Reads and decrypts data from the buffer in a thread-safe manner. In concurrent mode the
+   * ciphertext is read straight into {@code buf} and decrypted in place with a pooled cipher, so
+   * nothing is allocated and reads do not block each other.
    *
    * @param fileOffset Starting position in the buffer to read from
    * @param buf Destination array for decrypted data
@@ -172,6 +220,18 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
               + size());
     }
 
+    if (concurrent) {
+      underlyingBuffer.pread(fileOffset + type.headerLen, buf, bufOffset, length);
+      CipherContext context = borrowCipher();
+      try {
+        context.cipher.seekTo(fileOffset);
+        context.cipher.processBytes(buf, bufOffset, length, buf, bufOffset);
+      } finally {
+        releaseCipher(context);
+      }
+      return;
+    }
+
     byte[] cipherText = new byte[length];
     underlyingBuffer.pread(fileOffset + type.headerLen, cipherText, 0, length);
 
@@ -192,8 +252,9 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
   }
 
   /**
-   * Encrypts and writes data to the buffer in a thread-safe manner. The operation uses the write
-   * cipher instance with proper position tracking.
+   * Encrypts and writes data to the buffer in a thread-safe manner. In concurrent mode the data is
+   * encrypted in chunks into the scratch buffer of a pooled cipher, so writes do not block each
+   * other.
    *
    * @param fileOffset Starting position in the buffer to write to
    * @param buf Source array containing data to encrypt
@@ -222,6 +283,23 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
               + size());
     }
 
+    if (concurrent) {
+      CipherContext context = borrowCipher();
+      try {
+        context.cipher.seekTo(fileOffset);
+        byte[] scratch = context.scratch(length);
+        for (int done = 0; done < length; ) {
+          int chunk = Math.min(scratch.length, length - done);
+          context.cipher.processBytes(buf, bufOffset + done, chunk, scratch, 0);
+          underlyingBuffer.pwrite(fileOffset + type.headerLen + done, scratch, 0, chunk);
+          done += chunk;
+        }
+      } finally {
+        releaseCipher(context);
+      }
+      return;
+    }
+
     byte[] cipherText = new byte[length];
 
     writeLock.lock();
@@ -241,6 +319,94 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
     underlyingBuffer.pwrite(fileOffset + type.headerLen, cipherText, 0, length);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Heap buffers are decrypted in place like arrays. In concurrent mode, other buffers are read
+   * in chunks into the scratch buffer of a pooled cipher, decrypted there and copied out, which
+   * needs no temporary arrays. The ciphers only work on arrays, so this copy cannot be avoided.
+   */
+  @Override
+  public void pread(long fileOffset, ByteBuffer dst) throws IOException {
+    if (!concurrent || dst.hasArray()) {
+      Rab.super.pread(fileOffset, dst);
+      return;
+    }
+    if (dst.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+    int length = dst.remaining();
+    checkRange(fileOffset, length, "read");
+    CipherContext context = borrowCipher();
+    try {
+      context.cipher.seekTo(fileOffset);
+      byte[] scratch = context.scratch(length);
+      for (int done = 0; done < length; ) {
+        int chunk = Math.min(scratch.length, length - done);
+        underlyingBuffer.pread(fileOffset + type.headerLen + done, scratch, 0, chunk);
+        context.cipher.processBytes(scratch, 0, chunk, scratch, 0);
+        dst.put(scratch, 0, chunk);
+        done += chunk;
+      }
+    } finally {
+      releaseCipher(context);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Heap buffers are encrypted like arrays. In concurrent mode, other buffers are copied in
+   * chunks into the scratch buffer of a pooled cipher and encrypted there, which needs no temporary
+   * arrays.
+   */
+  @Override
+  public void pwrite(long fileOffset, ByteBuffer src) throws IOException {
+    if (!concurrent || src.hasArray()) {
+      Rab.super.pwrite(fileOffset, src);
+      return;
+    }
+    int length = src.remaining();
+    checkRange(fileOffset, length, "write");
+    CipherContext context = borrowCipher();
+    try {
+      context.cipher.seekTo(fileOffset);
+      byte[] scratch = context.scratch(length);
+      for (int done = 0; done < length; ) {
+        int chunk = Math.min(scratch.length, length - done);
+        src.get(scratch, 0, chunk);
+        context.cipher.processBytes(scratch, 0, chunk, scratch, 0);
+        underlyingBuffer.pwrite(fileOffset + type.headerLen + done, scratch, 0, chunk);
+        done += chunk;
+      }
+    } finally {
+      releaseCipher(context);
+    }
+  }
+
+  private void checkRange(long fileOffset, int length, String operation) throws IOException {
+    if (closed()) {
+      throw new IOException(
+          "This RandomAccessBuffer has already been closed. It can no longer be used.");
+    }
+    if (fileOffset < 0) {
+      throw new IllegalArgumentException("Cannot " + operation + " before zero");
+    }
+    if (fileOffset + length > size()) {
+      throw new IOException(
+          "Cannot "
+              + operation
+              + " after end: trying to "
+              + operation
+              + " from "
+              + fileOffset
+              + " to "
+              + (fileOffset + length)
+              + " on block length "
+              + size());
+    }
+  }
+
   /**
    * Closes the encrypted buffer and its underlying storage. Once closed, no further read or write
    * operations are allowed.
@@ -261,6 +427,11 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
     underlyingBuffer.dispose();
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return underlyingBuffer.getDeleteMode();
+  }
+
   /**
    * Acquires a lock on the underlying buffer to prevent premature closure.
    *
@@ -331,7 +502,7 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
    * @throws IOException If I/O operations fail
    * @throws GeneralSecurityException If cryptographic operations fail
    */
-  @EnsuresNonNull({"unencryptedBaseKey", "headerEncIV"})
+  @EnsuresNonNull({"unencryptedBaseKey", "headerEncIV", "cipherParams", "ciphers"})
   private void setup(MasterSecret masterKey, boolean newFile)
       throws IOException, GeneralSecurityException {
     this.cipherRead = this.type.get();
@@ -399,6 +570,31 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
     cipherRead.init(false, cipherParams);
     assert cipherWrite != null;
     cipherWrite.init(true, cipherParams);
+    this.cipherParams = cipherParams;
+    this.ciphers = new ConcurrentLinkedQueue<>();
+  }
+
+  /**
+   * Takes an idle cipher from the pool, or creates a new one if all are in use.
+   *
+   * @return a cipher initialized with this buffer's key, at an unspecified position
+   */
+  private CipherContext borrowCipher() {
+    CipherContext context = ciphers.poll();
+    if (context != null) {
+      return context;
+    }
+    SkippingStreamCipher cipher = type.get();
+    // ChaCha is symmetric: the direction does not matter.
+    cipher.init(true, cipherParams);
+    return new CipherContext(cipher);
+  }
+
+  /** Returns a cipher to the pool, unless enough idle ciphers are pooled already. */
+  private void releaseCipher(CipherContext context) {
+    if (ciphers.size() < MAX_POOLED_CIPHERS) {
+      ciphers.offer(context);
+    }
   }
 
   /**
@@ -501,6 +697,31 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
     return authCode.verifyData(mac, headerEncIV, unencryptedBaseKey.getEncoded(), ver);
   }
 
+  /** A cipher instance which is used by one thread at a time, and its write buffer. */
+  private static final class CipherContext {
+    CipherContext(SkippingStreamCipher cipher) {
+      this.cipher = cipher;
+    }
+
+    /** Returns a scratch buffer for encrypting up to {@code length} bytes at once. */
+    byte[] scratch(int length) {
+      int wanted = Math.min(length, MAX_WRITE_CHUNK);
+      if (scratch == null || scratch.length < wanted) {
+        scratch = new byte[wanted];
+      }
+      return scratch;
+    }
+
+    final SkippingStreamCipher cipher;
+    private byte @Nullable [] scratch;
+  }
+
+  /** Idle cipher instances for concurrent mode */
+  private transient Queue<CipherContext> ciphers;
+
+  /** Whether accesses use pooled cipher instances instead of the shared ones */
+  private final boolean concurrent;
+
   /** Lock for synchronizing read operations */
   private final ReentrantLock readLock = new ReentrantLock();
 
@@ -519,6 +740,9 @@ public final class EncryptedRab extends AbstractStorage implements Rab, Serializ
   /** Cipher instance for write operations */
   private transient SkippingStreamCipher cipherWrite;
 
+  /** Key and IV of the data ciphers, used to initialize pooled cipher instances */
+  private transient ParametersWithIV cipherParams;
+
   /** Key used for MAC generation */
   private transient SecretKey headerMacKey;
 
@@ -0,0 +1,463 @@
+package hyphanet.support.io.storage.rab;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of open {@link FileChannel}s shared by {@link PooledFileRab} instances.
+ *
+ * <p>All {@link PooledFileRab}s pointing at the same file with the same access mode share a single
+ * channel, so reads and writes through different instances go through the same file descriptor. A
+ * channel that is not locked by any user is <i>idle</i> and may be closed to make room for another
+ * file once the pool has reached its limit. Idle channels are evicted in least recently used order.
+ *
+ * <p><b>Thread Safety:</b> There is no global monitor. Opening, locking and closing a channel only
+ * synchronizes on the per-file entry; the open-channel limit is a {@link Semaphore} and the idle
+ * list is a {@link ConcurrentSkipListMap} ordered by release time. Threads only block on a shared
+ * lock when the pool is exhausted and every open channel is locked.
+ *
+ * @see PooledFileRab
+ */
+public final class FileChannelPool {
+  private static final Logger logger = LoggerFactory.getLogger(FileChannelPool.class);
+
+  /**
+   * Snapshot of the pool counters.
+   *
+   * @param hits number of locks served by an already open channel
+   * @param misses number of locks which had to open a channel
+   * @param evictions number of idle channels closed to make room for another file
+   * @param waits number of locks which had to wait because every open channel was locked
+   * @param waitNanos total time spent waiting, in nanoseconds
+   * @param open number of currently open channels
+   * @param idle number of currently open but unlocked channels
+   * @param maxOpen the current limit of open channels
+   */
+  public record Stats(
+      long hits,
+      long misses,
+      long evictions,
+      long waits,
+      long waitNanos,
+      int open,
+      int idle,
+      int maxOpen) {}
+
+  /**
+   * Creates a new pool.
+   *
+   * @param maxOpen maximum number of channels open at the same time
+   * @throws IllegalArgumentException if {@code maxOpen} is not positive
+   */
+  public FileChannelPool(int maxOpen) {
+    if (maxOpen <= 0) {
+      throw new IllegalArgumentException("maxOpen must be positive");
+    }
+    this.maxOpen = maxOpen;
+    this.slots = new Slots(maxOpen);
+  }
+
+  /**
+   * Changes the maximum number of open channels. Lowering the limit does not close any channel
+   * immediately; the pool shrinks as channels become idle and are evicted.
+   *
+   * @param max the new limit
+   * @throws IllegalArgumentException if {@code max} is not positive
+   */
+  public synchronized void setMaxOpen(int max) {
+    if (max <= 0) {
+      throw new IllegalArgumentException();
+    }
+    int delta = max - maxOpen;
+    maxOpen = max;
+    if (delta > 0) {
+      slots.release(delta);
+      signalWaiters();
+    } else if (delta < 0) {
+      slots.reducePermits(-delta);
+    }
+  }
+
+  /** Returns the maximum number of open channels. */
+  public int getMaxOpen() {
+    return maxOpen;
+  }
+
+  /** Returns the number of currently open channels. Mainly for tests but also for stats. */
+  public int getOpen() {
+    return open.get();
+  }
+
+  /** Returns the number of open channels which are not locked and may be evicted. */
+  public int getIdle() {
+    return idleCount.get();
+  }
+
+  /**
+   * Returns a snapshot of the pool counters.
+   *
+   * @return the current statistics
+   */
+  public Stats getStats() {
+    return new Stats(
+        hits.sum(),
+        misses.sum(),
+        evictions.sum(),
+        waits.sum(),
+        waitNanos.sum(),
+        open.get(),
+        idleCount.get(),
+        maxOpen);
+  }
+
+  /**
+   * Registers a user of the channel for {@code path}. Every call must be balanced by {@link
+   * #detach(Entry)}.
+   *
+   * @param path the file
+   * @param writable whether the channel must be opened for writing
+   * @return the shared entry for this file and mode
+   */
+  Entry attach(Path path, boolean writable) {
+    var key = new Key(path.toAbsolutePath().normalize(), writable);
+    return entries.compute(
+        key,
+        (k, entry) -> {
+          if (entry == null) {
+            entry = new Entry(k);
+          }
+          entry.users++;
+          return entry;
+        });
+  }
+
+  /**
+   * Unregisters a user. The channel is closed once the last user has detached.
+   *
+   * @param entry an entry returned by {@link #attach(Path, boolean)}
+   */
+  void detach(Entry entry) {
+    var last = new boolean[1];
+    entries.computeIfPresent(
+        entry.key,
+        (k, current) -> {
+          if (current != entry) {
+            return current;
+          }
+          last[0] = --current.users == 0;
+          return last[0] ? null : current;
+        });
+    if (last[0]) {
+      synchronized (entry) {
+        entry.detached = true;
+        removeIdle(entry);
+        closeLocked(entry);
+      }
+      signalWaiters();
+    }
+  }
+
+  /**
+   * Locks the channel of {@code entry} open, opening it if necessary. Blocks if the pool is full
+   * and no channel can be evicted.
+   *
+   * @param entry the entry to lock
+   * @param forceWrite whether to open the channel for writing even if the entry is read-only
+   * @return the open channel, which stays open until {@link #unlock(Entry)} is called
+   * @throws IOException if the channel cannot be opened
+   */
+  FileChannel lock(Entry entry, boolean forceWrite) throws IOException {
+    while (true) {
+      synchronized (entry) {
+        if (entry.detached) {
+          throw new IOException("Already closed " + entry.key.path);
+        }
+        var channel = entry.channel;
+        if (channel != null) {
+          if (!forceWrite || entry.channelWritable) {
+            if (entry.locks++ == 0) {
+              removeIdle(entry);
+            }
+            hits.increment();
+            return channel;
+          }
+          if (entry.locks != 0) {
+            throw new IOException("Channel is locked read-only: " + entry.key.path);
+          }
+          // Reopen below with write access.
+          removeIdle(entry);
+          closeLocked(entry);
+          signalWaiters();
+        }
+      }
+
+      acquireSlot();
+      synchronized (entry) {
+        if (entry.detached || entry.channel != null) {
+          // Closed or opened by somebody else in the meantime.
+          releaseSlot();
+          continue;
+        }
+        boolean write = entry.key.writable || forceWrite;
+        try {
+          entry.channel =
+              write
+                  ? FileChannel.open(
+                      entry.key.path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                  : FileChannel.open(entry.key.path, StandardOpenOption.READ);
+        } catch (IOException e) {
+          releaseSlot();
+          throw e;
+        }
+        entry.channelWritable = write;
+        entry.locks++;
+        open.incrementAndGet();
+        misses.increment();
+        return entry.channel;
+      }
+    }
+  }
+
+  /**
+   * Releases a lock obtained with {@link #lock(Entry, boolean)}. The channel stays open but becomes
+   * evictable once nobody holds a lock on it.
+   *
+   * @param entry the locked entry
+   */
+  void unlock(Entry entry) {
+    synchronized (entry) {
+      if (entry.locks <= 0) {
+        throw new IllegalStateException("Not locked");
+      }
+      if (--entry.locks != 0 || entry.channel == null) {
+        return;
+      }
+      entry.idleTicket = clock.incrementAndGet();
+      idle.put(entry.idleTicket, entry);
+      idleCount.incrementAndGet();
+    }
+    signalWaiters();
+  }
+
+  /**
+   * Closes the channel of {@code entry} if nobody has locked it.
+   *
+   * @param entry the entry to close
+   * @throws IllegalStateException if the entry is locked
+   */
+  void close(Entry entry) {
+    synchronized (entry) {
+      if (entry.locks != 0) {
+        throw new IllegalStateException("Channel is locked");
+      }
+      removeIdle(entry);
+      closeLocked(entry);
+    }
+    signalWaiters();
+  }
+
+  boolean isOpen(Entry entry) {
+    synchronized (entry) {
+      return entry.channel != null;
+    }
+  }
+
+  /**
+   * Takes an open-channel slot, evicting idle channels or waiting for one to become idle if the
+   * pool is full.
+   */
+  private void acquireSlot() throws IOException {
+    long waitStart = 0;
+    try {
+      while (!slots.tryAcquire()) {
+        if (evictOne()) {
+          continue;
+        }
+        waitLock.lock();
+        try {
+          waiters.incrementAndGet();
+          try {
+            // Re-check after announcing ourselves, so a concurrent release cannot be missed.
+            if (slots.availablePermits() <= 0 && idle.isEmpty()) {
+              if (waitStart == 0) {
+                waitStart = System.nanoTime();
+                waits.increment();
+              }
+              available.await();
+            }
+          } finally {
+            waiters.decrementAndGet();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for a file descriptor", e);
+        } finally {
+          waitLock.unlock();
+        }
+      }
+    } finally {
+      if (waitStart != 0) {
+        waitNanos.add(System.nanoTime() - waitStart);
+      }
+    }
+  }
+
+  private void releaseSlot() {
+    slots.release();
+    signalWaiters();
+  }
+
+  /**
+   * Closes the least recently used idle channel.
+   *
+   * @return {@code true} if a channel was closed, {@code false} if there was no idle channel
+   */
+  private boolean evictOne() {
+    Map.Entry<Long, Entry> eldest;
+    while ((eldest = idle.pollFirstEntry()) != null) {
+      idleCount.decrementAndGet();
+      var entry = eldest.getValue();
+      synchronized (entry) {
+        // The entry may have been locked, or locked and released again, since it was polled.
+        if (entry.idleTicket != eldest.getKey() || entry.locks != 0) {
+          continue;
+        }
+        entry.idleTicket = 0;
+        if (closeLocked(entry)) {
+          evictions.increment();
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Must be called while synchronized on {@code entry}. */
+  private void removeIdle(Entry entry) {
+    if (entry.idleTicket != 0) {
+      if (idle.remove(entry.idleTicket, entry)) {
+        idleCount.decrementAndGet();
+      }
+      entry.idleTicket = 0;
+    }
+  }
+
+  /**
+   * Closes the channel and gives its slot back. Must be called while synchronized on {@code entry}.
+   *
+   * @return {@code true} if a channel was open
+   */
+  private boolean closeLocked(Entry entry) {
+    var channel = entry.channel;
+    if (channel == null) {
+      return false;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.error("Error closing {} : {}", entry.key.path, e, e);
+    } finally {
+      entry.channel = null;
+      open.decrementAndGet();
+      slots.release();
+    }
+    return true;
+  }
+
+  private void signalWaiters() {
+    if (waiters.get() > 0) {
+      waitLock.lock();
+      try {
+        available.signalAll();
+      } finally {
+        waitLock.unlock();
+      }
+    }
+  }
+
+  /** A {@link Semaphore} whose number of permits can also be lowered. */
+  private static final class Slots extends Semaphore {
+    @java.io.Serial private static final long serialVersionUID = 1L;
+
+    Slots(int permits) {
+      super(permits);
+    }
+
+    @Override
+    protected void reducePermits(int reduction) {
+      super.reducePermits(reduction);
+    }
+  }
+
+  /** Identifies a shared channel: the same file opened with the same access mode. */
+  private record Key(Path path, boolean writable) {}
+
+  /**
+   * The shared state of one file. All fields are guarded by the entry's own monitor, except {@link
+   * #users} which is guarded by the {@link #entries} map.
+   */
+  static final class Entry {
+    private Entry(Key key) {
+      this.key = key;
+    }
+
+    private final Key key;
+
+    private @Nullable FileChannel channel;
+
+    /** Whether {@link #channel} was opened for writing. */
+    private boolean channelWritable;
+
+    /** Number of outstanding locks, across all users. */
+    private int locks;
+
+    /** Key of this entry in {@link #idle}, or 0 if it is not idle. */
+    private long idleTicket;
+
+    /** Number of attached {@link PooledFileRab}s. */
+    private int users;
+
+    /** Set once the last user has detached; the entry must not be reopened afterwards. */
+    private boolean detached;
+  }
+
+  private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+
+  /** Idle entries, ordered by the time they became idle. */
+  private final ConcurrentSkipListMap<Long, Entry> idle = new ConcurrentSkipListMap<>();
+
+  private final AtomicLong clock = new AtomicLong();
+  private final AtomicInteger idleCount = new AtomicInteger();
+  private final AtomicInteger open = new AtomicInteger();
+
+  /** One permit per channel that may still be opened. */
+  private final Slots slots;
+
+  /** Only used by threads waiting for a slot when every open channel is locked. */
+  private final ReentrantLock waitLock = new ReentrantLock();
+
+  private final Condition available = waitLock.newCondition();
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder waits = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+
+  private volatile int maxOpen;
+}
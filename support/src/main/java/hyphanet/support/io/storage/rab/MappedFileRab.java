@@ -0,0 +1,836 @@
+package hyphanet.support.io.storage.rab;
+
+import hyphanet.support.io.Fallocate;
+import hyphanet.support.io.FilenameGenerator;
+import hyphanet.support.io.PersistentFileTracker;
+import hyphanet.support.io.ResumeContext;
+import hyphanet.support.io.ResumeFailedException;
+import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
+import hyphanet.support.io.storage.ErasableStorage;
+import hyphanet.support.io.storage.Erasure;
+import hyphanet.support.io.storage.StorageFormatException;
+import java.io.*;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Rab} backed by a memory-mapped file.
+ *
+ * <p>The file is divided into fixed-size windows which are mapped lazily, on first access, as
+ * {@link MemorySegment}s of their own shared {@link Arena}. Reads and writes are plain memory
+ * copies and do not need a system call once the window is mapped; {@link #pread} and {@link
+ * #pwrite} may be called concurrently from any number of threads.
+ *
+ * <p>At most {@code maxWindows} windows are mapped at the same time. When another window is needed
+ * the one mapped first is unmapped, after the threads currently copying from or to it are done.
+ * Unmapping happens deterministically by closing the window's arena rather than when the garbage
+ * collector gets around to it.
+ *
+ * <p>Writes go to the page cache like with {@link PooledFileRab}. They are forced to the storage
+ * device when the last {@link RabLock} returned by {@link #lockOpen()} is released, when a dirty
+ * window is unmapped, on {@link #force()} and on {@link #close()}.
+ *
+ * <p>The file must not be truncated by anyone else while it is mapped: accessing a mapping beyond
+ * the end of the file crashes the JVM on some platforms.
+ */
+public class MappedFileRab extends AbstractStorage implements Rab, ErasableStorage, Serializable {
+
+  /** Magic number used to identify serialized {@link MappedFileRab} objects. */
+  public static final int MAGIC = 0x4d617046;
+
+  /** Version number of the serialized format. */
+  public static final int VERSION = 2;
+
+  /** Default size of a mapped window in bytes. */
+  public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /** Default number of windows which may be mapped at the same time. */
+  public static final int DEFAULT_MAX_WINDOWS = 16;
+
+  @Serial private static final long serialVersionUID = 1L;
+  private static final Logger logger = LoggerFactory.getLogger(MappedFileRab.class);
+
+  /**
+   * Opens or creates a mapped file with the default window size and window limit.
+   *
+   * @param path The path to the file
+   * @param readOnly Whether the file should be mapped read-only
+   * @param forceLength The required length of the file, or -1 to use its current length
+   * @param persistentTempID The temporary file ID for persistence, or -1
+   * @param deleteOnFree Whether to delete the file when freed
+   * @throws IOException If the file cannot be opened or resized
+   */
+  public MappedFileRab(
+      Path path, boolean readOnly, long forceLength, long persistentTempID, boolean deleteOnFree)
+      throws IOException {
+    this(
+        path,
+        readOnly,
+        forceLength,
+        persistentTempID,
+        deleteOnFree,
+        DEFAULT_WINDOW_SIZE,
+        DEFAULT_MAX_WINDOWS);
+  }
+
+  /**
+   * Opens or creates a mapped file.
+   *
+   * <p>If the file is shorter than {@code forceLength} the missing space is preallocated, see
+   * {@link Fallocate}.
+   *
+   * @param path The path to the file
+   * @param readOnly Whether the file should be mapped read-only
+   * @param forceLength The required length of the file, or -1 to use its current length
+   * @param persistentTempID The temporary file ID for persistence, or -1
+   * @param deleteOnFree Whether to delete the file when freed
+   * @param windowSize The size of a mapped window in bytes
+   * @param maxWindows The maximum number of windows mapped at the same time
+   * @throws IOException If the file cannot be opened or resized
+   * @throws IllegalArgumentException If {@code windowSize} or {@code maxWindows} is not positive
+   */
+  public MappedFileRab(
+      Path path,
+      boolean readOnly,
+      long forceLength,
+      long persistentTempID,
+      boolean deleteOnFree,
+      int windowSize,
+      int maxWindows)
+      throws IOException {
+    checkWindowParameters(windowSize, maxWindows);
+    this.path = path;
+    this.readOnly = readOnly;
+    this.persistentTempID = persistentTempID;
+    this.deleteOnFree = deleteOnFree;
+    this.windowSize = windowSize;
+    this.maxWindows = maxWindows;
+    FileChannel fc = openChannel();
+    long currentLength;
+    try {
+      currentLength = fc.size();
+      if (forceLength >= 0 && forceLength != currentLength) {
+        if (readOnly) {
+          throw new IOException("Read only but wrong length");
+        }
+        if (forceLength < currentLength) {
+          fc.truncate(forceLength);
+        } else {
+          var strategy = new Fallocate(path, fc, forceLength).fromOffset(currentLength).execute();
+          logger.debug("Preallocated {} using {}", path, strategy);
+        }
+        currentLength = forceLength;
+      }
+    } catch (IOException | RuntimeException e) {
+      fc.close();
+      throw e;
+    }
+    this.length = currentLength;
+    this.channel = fc;
+    initWindows();
+  }
+
+  /**
+   * Creates a mapped file with initial contents and the default window size and window limit.
+   *
+   * @param path The path to create the file at
+   * @param initialContents The initial contents to write
+   * @param offset The offset in initialContents to start from
+   * @param size The number of bytes to write
+   * @param persistentTempID The temporary file ID for persistence, or -1
+   * @param deleteOnFree Whether to delete the file when freed
+   * @param readOnly Whether the file should be mapped read-only afterwards
+   * @throws IOException If file operations fail
+   */
+  public MappedFileRab(
+      Path path,
+      byte[] initialContents,
+      int offset,
+      int size,
+      long persistentTempID,
+      boolean deleteOnFree,
+      boolean readOnly)
+      throws IOException {
+    this(
+        path,
+        initialContents,
+        offset,
+        size,
+        persistentTempID,
+        deleteOnFree,
+        readOnly,
+        DEFAULT_WINDOW_SIZE,
+        DEFAULT_MAX_WINDOWS);
+  }
+
+  /**
+   * Creates a mapped file with initial contents.
+   *
+   * @param path The path to create the file at
+   * @param initialContents The initial contents to write
+   * @param offset The offset in initialContents to start from
+   * @param size The number of bytes to write
+   * @param persistentTempID The temporary file ID for persistence, or -1
+   * @param deleteOnFree Whether to delete the file when freed
+   * @param readOnly Whether the file should be mapped read-only afterwards
+   * @param windowSize The size of a mapped window in bytes
+   * @param maxWindows The maximum number of windows mapped at the same time
+   * @throws IOException If file operations fail
+   * @throws IllegalArgumentException If {@code windowSize} or {@code maxWindows} is not positive
+   */
+  public MappedFileRab(
+      Path path,
+      byte[] initialContents,
+      int offset,
+      int size,
+      long persistentTempID,
+      boolean deleteOnFree,
+      boolean readOnly,
+      int windowSize,
+      int maxWindows)
+      throws IOException {
+    checkWindowParameters(windowSize, maxWindows);
+    this.path = path;
+    this.readOnly = readOnly;
+    this.length = size;
+    this.persistentTempID = persistentTempID;
+    this.deleteOnFree = deleteOnFree;
+    this.windowSize = windowSize;
+    this.maxWindows = maxWindows;
+    // Small initial contents are cheaper to write than to map.
+    try (var fc =
+        FileChannel.open(
+            path,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      var byteBuffer = ByteBuffer.wrap(initialContents, offset, size);
+      while (byteBuffer.hasRemaining()) {
+        //noinspection ResultOfMethodCallIgnored
+        fc.write(byteBuffer, byteBuffer.position() - offset);
+      }
+    }
+    initWindows();
+  }
+
+  /**
+   * Constructor used during resumption of stored files.
+   *
+   * @param dis Data input stream containing serialized data
+   * @param fg Filename generator for temporary files
+   * @param persistentFileTracker Tracker for persistent files
+   * @throws StorageFormatException If the stored format is invalid
+   * @throws IOException If I/O operations fail
+   * @throws ResumeFailedException If resumption fails
+   */
+  public MappedFileRab(
+      DataInputStream dis, FilenameGenerator fg, PersistentFileTracker persistentFileTracker)
+      throws StorageFormatException, IOException, ResumeFailedException {
+    int version = dis.readInt();
+    if (version != 1 && version != VERSION) {
+      throw new StorageFormatException("Bad version");
+    }
+    var tmpPath = Path.of(dis.readUTF());
+    readOnly = dis.readBoolean();
+    length = dis.readLong();
+    persistentTempID = dis.readLong();
+    deleteOnFree = dis.readBoolean();
+    if (deleteOnFree) {
+      erasure = Erasure.readFrom(dis, version > 1);
+    }
+    windowSize = dis.readInt();
+    maxWindows = dis.readInt();
+    if (length < 0) {
+      throw new StorageFormatException("Bad length");
+    }
+    try {
+      checkWindowParameters(windowSize, maxWindows);
+    } catch (IllegalArgumentException e) {
+      throw new StorageFormatException("Bad window parameters");
+    }
+    if (persistentTempID != -1 && !Files.exists(tmpPath)) {
+      // Maybe moved after the last checkpoint?
+      var moved = fg.getPath(persistentTempID);
+      if (Files.exists(moved)) {
+        persistentFileTracker.register(moved);
+        tmpPath = moved;
+      }
+    } else if (persistentTempID != -1) {
+      tmpPath = fg.maybeMove(tmpPath, persistentTempID);
+    }
+    if (!Files.exists(tmpPath)) {
+      throw new ResumeFailedException("Lost file " + tmpPath);
+    }
+    if (length > Files.size(tmpPath)) {
+      throw new ResumeFailedException("Bad length");
+    }
+    this.path = tmpPath;
+    initWindows();
+  }
+
+  @Override
+  public long size() {
+    return length;
+  }
+
+  /**
+   * Reads data from the mapped windows at the specified position.
+   *
+   * @param fileOffset position in the file to start reading from
+   * @param buf buffer to read the data into
+   * @param bufOffset starting position in the buffer
+   * @param readLength number of bytes to read
+   * @throws IOException if the file is closed or cannot be mapped
+   * @throws IllegalArgumentException if fileOffset is negative
+   * @throws IndexOutOfBoundsException if buffer parameters are invalid or read extends past EOF
+   */
+  @Override
+  public void pread(long fileOffset, byte[] buf, int bufOffset, int readLength) throws IOException {
+    if (fileOffset < 0) {
+      throw new IllegalArgumentException("fileOffset cannot be negative");
+    }
+    if (bufOffset < 0 || readLength < 0 || bufOffset + readLength > buf.length) {
+      throw new IndexOutOfBoundsException("Invalid buffer parameters");
+    }
+    pread(fileOffset, MemorySegment.ofArray(buf).asSlice(bufOffset, readLength));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Copies straight from the mapped windows into the buffer.
+   *
+   * @throws IndexOutOfBoundsException if the read extends past EOF
+   */
+  @Override
+  public void pread(long fileOffset, ByteBuffer dst) throws IOException {
+    if (dst.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+    int length = dst.remaining();
+    pread(fileOffset, MemorySegment.ofBuffer(dst));
+    dst.position(dst.position() + length);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Copies straight from the mapped windows into the segment.
+   *
+   * @throws IndexOutOfBoundsException if the read extends past EOF
+   */
+  @Override
+  public void pread(long fileOffset, MemorySegment dst) throws IOException {
+    if (fileOffset < 0) {
+      throw new IllegalArgumentException("fileOffset cannot be negative");
+    }
+    long readLength = dst.byteSize();
+    if (fileOffset + readLength > this.length) {
+      throw new IndexOutOfBoundsException("Read past end of file");
+    }
+    long done = 0;
+    while (done < readLength) {
+      int index = (int) (fileOffset / windowSize);
+      long windowOffset = fileOffset % windowSize;
+      long chunk = Math.min(readLength - done, windowSize - windowOffset);
+      Window window = acquire(index);
+      try {
+        MemorySegment.copy(window.segment, windowOffset, dst, done, chunk);
+      } finally {
+        window.release();
+      }
+      fileOffset += chunk;
+      done += chunk;
+    }
+  }
+
+  /**
+   * Writes data to the mapped windows at the specified position.
+   *
+   * <p>The data is visible to other readers of the file immediately, but only guaranteed to be on
+   * the storage device after the next force, see the class documentation.
+   *
+   * @param fileOffset position in the file to write to
+   * @param buf buffer containing the data to write
+   * @param bufOffset starting position in the buffer
+   * @param writeLength number of bytes to write
+   * @throws IOException if the file is closed, read-only or cannot be mapped
+   * @throws IllegalArgumentException if fileOffset is negative
+   * @throws IndexOutOfBoundsException if buffer parameters are invalid or write extends past EOF
+   */
+  @Override
+  public void pwrite(long fileOffset, byte[] buf, int bufOffset, int writeLength)
+      throws IOException {
+    if (fileOffset < 0) {
+      throw new IllegalArgumentException("fileOffset cannot be negative");
+    }
+    if (readOnly) {
+      throw new IOException("Read only");
+    }
+    if (bufOffset < 0 || writeLength < 0 || bufOffset + writeLength > buf.length) {
+      throw new IndexOutOfBoundsException("Invalid buffer parameters");
+    }
+    pwrite(fileOffset, MemorySegment.ofArray(buf).asSlice(bufOffset, writeLength));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Copies straight from the buffer into the mapped windows.
+   *
+   * @throws IndexOutOfBoundsException if the write extends past EOF
+   */
+  @Override
+  public void pwrite(long fileOffset, ByteBuffer src) throws IOException {
+    int length = src.remaining();
+    pwrite(fileOffset, MemorySegment.ofBuffer(src));
+    src.position(src.position() + length);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Copies straight from the segment into the mapped windows.
+   *
+   * @throws IndexOutOfBoundsException if the write extends past EOF
+   */
+  @Override
+  public void pwrite(long fileOffset, MemorySegment src) throws IOException {
+    if (fileOffset < 0) {
+      throw new IllegalArgumentException("fileOffset cannot be negative");
+    }
+    if (readOnly) {
+      throw new IOException("Read only");
+    }
+    long writeLength = src.byteSize();
+    if (fileOffset + writeLength > this.length) {
+      throw new IndexOutOfBoundsException("Write past end of file");
+    }
+    long done = 0;
+    while (done < writeLength) {
+      int index = (int) (fileOffset / windowSize);
+      long windowOffset = fileOffset % windowSize;
+      long chunk = Math.min(writeLength - done, windowSize - windowOffset);
+      Window window = acquire(index);
+      try {
+        MemorySegment.copy(src, done, window.segment, windowOffset, chunk);
+        // Only after the copy: a force running during the copy clears the flag, and the window
+        // must still be forced again afterwards.
+        window.dirty = true;
+      } finally {
+        window.release();
+      }
+      fileOffset += chunk;
+      done += chunk;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Keeps the file channel open. Releasing the last lock forces all writes made so far to the
+   * storage device.
+   */
+  @Override
+  public RabLock lockOpen() throws IOException {
+    synchronized (this) {
+      openChannelIfNeeded();
+      lockLevel++;
+    }
+    return new RabLock() {
+      @Override
+      protected void innerUnlock() {
+        boolean last;
+        synchronized (MappedFileRab.this) {
+          last = --lockLevel == 0;
+        }
+        if (last) {
+          force();
+        }
+      }
+    };
+  }
+
+  /**
+   * Forces all writes made through this instance to the storage device. Does nothing for windows
+   * that have not been written to since the last force.
+   */
+  public void force() {
+    var ws = windows;
+    for (int i = 0; i < ws.length(); i++) {
+      Window window = ws.get(i);
+      if (window != null && window.acquire()) {
+        try {
+          window.force();
+        } finally {
+          window.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Forces outstanding writes, unmaps all windows and closes the file channel. Windows still in use
+   * by another thread are unmapped as soon as that thread is done with them.
+   */
+  @Override
+  public void close() {
+    if (!setClosed()) {
+      return;
+    }
+    synchronized (this) {
+      for (int i = 0; i < windows.length(); i++) {
+        Window window = windows.getAndSet(i, null);
+        if (window != null) {
+          window.retire();
+        }
+      }
+      mapOrder.clear();
+      var fc = channel;
+      channel = null;
+      if (fc != null) {
+        try {
+          fc.close();
+        } catch (IOException e) {
+          logger.error("Could not close channel for {}: {}", path, e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets whether this file should be securely deleted when disposed.
+   *
+   * @param secureDelete true to enable secure deletion, false for normal deletion
+   */
+  public void setSecureDelete(boolean secureDelete) {
+    erasure = Erasure.of(secureDelete);
+  }
+
+  @Override
+  public void setDeleteMode(DeleteMode mode, int keyLength) {
+    erasure = new Erasure(mode, keyLength);
+  }
+
+  @Override
+  public DeleteMode getDeleteMode() {
+    return erasure.mode();
+  }
+
+  /**
+   * Closes and, if deleteOnFree is true, deletes the file according to the {@linkplain
+   * #getDeleteMode() delete mode}.
+   */
+  @Override
+  public void dispose() {
+    if (!setDisposed()) {
+      return;
+    }
+
+    close();
+    if (!deleteOnFree) {
+      return;
+    }
+    try {
+      erasure.delete(path);
+    } catch (IOException e) {
+      logger.error("Unable to delete temporary file {} : {}", path, e.getMessage());
+    }
+  }
+
+  @Override
+  public void onResume(ResumeContext context) throws ResumeFailedException {
+    if (!Files.exists(path)) {
+      throw new ResumeFailedException("File does not exist: " + path);
+    }
+    try {
+      if (length > Files.size(path)) {
+        throw new ResumeFailedException("Bad length");
+      }
+    } catch (IOException e) {
+      throw new ResumeFailedException("Bad length");
+    }
+    if (persistentTempID != -1) {
+      context.getPersistentFileTracker().register(path);
+    }
+  }
+
+  @Override
+  public void storeTo(DataOutputStream dos) throws IOException {
+    dos.writeInt(MAGIC);
+    dos.writeInt(VERSION);
+    dos.writeUTF(path.toString());
+    dos.writeBoolean(readOnly);
+    dos.writeLong(length);
+    dos.writeLong(persistentTempID);
+    dos.writeBoolean(deleteOnFree);
+    if (deleteOnFree) {
+      erasure.writeTo(dos);
+    }
+    dos.writeInt(windowSize);
+    dos.writeInt(maxWindows);
+  }
+
+  /**
+   * Returns the path of the mapped file.
+   *
+   * @return the path
+   */
+  public Path getPath() {
+    return path;
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + ":" + path;
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + (deleteOnFree ? 1231 : 1237);
+    result = prime * result + path.hashCode();
+    result = prime * result + Long.hashCode(length);
+    result = prime * result + Long.hashCode(persistentTempID);
+    result = prime * result + (readOnly ? 1231 : 1237);
+    result = prime * result + erasure.hashCode();
+    result = prime * result + windowSize;
+    return result;
+  }
+
+  @Override
+  public boolean equals(@Nullable Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof MappedFileRab other)) {
+      return false;
+    }
+    return deleteOnFree == other.deleteOnFree
+        && path.equals(other.path)
+        && length == other.length
+        && persistentTempID == other.persistentTempID
+        && readOnly == other.readOnly
+        && erasure.equals(other.erasure)
+        && windowSize == other.windowSize;
+  }
+
+  /**
+   * Returns the number of windows currently mapped. Exposed for testing.
+   *
+   * @return the number of mapped windows
+   */
+  synchronized int mappedWindows() {
+    return mapOrder.size();
+  }
+
+  private static void checkWindowParameters(int windowSize, int maxWindows) {
+    if (windowSize <= 0) {
+      throw new IllegalArgumentException("Window size must be positive");
+    }
+    if (maxWindows <= 0) {
+      throw new IllegalArgumentException("Window limit must be positive");
+    }
+  }
+
+  private void initWindows() {
+    long count = (length + windowSize - 1) / windowSize;
+    if (count > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Window size too small for " + length + " bytes");
+    }
+    windows = new AtomicReferenceArray<>((int) count);
+    mapOrder = new ArrayDeque<>();
+  }
+
+  private FileChannel openChannel() throws IOException {
+    return readOnly
+        ? FileChannel.open(path, StandardOpenOption.READ)
+        : FileChannel.open(
+            path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+  }
+
+  /** Opens the channel after construction from a stream or after deserialization. */
+  private synchronized FileChannel openChannelIfNeeded() throws IOException {
+    if (closed()) {
+      throw new IOException("Already closed " + this);
+    }
+    var fc = channel;
+    if (fc == null) {
+      fc = openChannel();
+      channel = fc;
+    }
+    return fc;
+  }
+
+  /**
+   * Returns the window with the given index, mapping it if necessary. Every call must be followed
+   * by {@link Window#release()}.
+   */
+  private Window acquire(int index) throws IOException {
+    while (true) {
+      Window window = windows.get(index);
+      if (window == null) {
+        window = map(index);
+      }
+      if (window.acquire()) {
+        return window;
+      }
+      // Unmapped concurrently, try again.
+    }
+  }
+
+  private synchronized Window map(int index) throws IOException {
+    Window window = windows.get(index);
+    if (window != null) {
+      return window;
+    }
+    FileChannel fc = openChannelIfNeeded();
+    long start = (long) index * windowSize;
+    long size = Math.min(windowSize, length - start);
+    Arena arena = Arena.ofShared();
+    try {
+      var mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+      window = new Window(arena, fc.map(mode, start, size, arena));
+    } catch (IOException | RuntimeException e) {
+      arena.close();
+      throw e;
+    }
+    windows.set(index, window);
+    mapOrder.addLast(index);
+    while (mapOrder.size() > maxWindows) {
+      int oldest = mapOrder.removeFirst();
+      Window evicted = windows.getAndSet(oldest, null);
+      if (evicted != null) {
+        evicted.retire();
+      }
+    }
+    return window;
+  }
+
+  @Serial
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeUTF(path.toString());
+  }
+
+  @Serial
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    path = Path.of(in.readUTF());
+    initWindows();
+  }
+
+  /**
+   * A mapped window. Threads copying from or to the segment hold a reference; the arena is closed
+   * once the window has been retired and the last reference is released.
+   */
+  private static final class Window {
+    private Window(Arena arena, MemorySegment segment) {
+      this.arena = arena;
+      this.segment = segment;
+    }
+
+    /**
+     * Takes a reference.
+     *
+     * @return false if the window has been retired and must not be used
+     */
+    private boolean acquire() {
+      users.incrementAndGet();
+      if (retired) {
+        release();
+        return false;
+      }
+      return true;
+    }
+
+    private void release() {
+      if (users.decrementAndGet() == 0 && retired) {
+        unmap();
+      }
+    }
+
+    private void retire() {
+      retired = true;
+      if (users.get() == 0) {
+        unmap();
+      }
+    }
+
+    private void force() {
+      if (dirty) {
+        dirty = false;
+        segment.force();
+      }
+    }
+
+    private void unmap() {
+      if (unmapped.compareAndSet(false, true)) {
+        try {
+          force();
+        } catch (UncheckedIOException e) {
+          logger.error("Unable to force mapped window: {}", e.getMessage(), e);
+        }
+        arena.close();
+      }
+    }
+
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final AtomicInteger users = new AtomicInteger();
+    private final AtomicBoolean unmapped = new AtomicBoolean();
+    private volatile boolean retired;
+    private volatile boolean dirty;
+  }
+
+  /** The length of the file in bytes. */
+  private final long length;
+
+  /** Whether the file is mapped read-only. */
+  private final boolean readOnly;
+
+  /** The temporary file ID for persistence, or -1. */
+  private final long persistentTempID;
+
+  /** Whether to delete the file on {@link #dispose()}. */
+  private final boolean deleteOnFree;
+
+  /** The size of a mapped window in bytes. */
+  private final int windowSize;
+
+  /** The maximum number of windows mapped at the same time. */
+  private final int maxWindows;
+
+  /** The path to the file. */
+  private transient Path path;
+
+  /** The channel the windows are mapped from, opened lazily. Guarded by {@code this}. */
+  private transient @Nullable FileChannel channel;
+
+  /** The windows, {@code null} where not mapped. */
+  private transient AtomicReferenceArray<@Nullable Window> windows;
+
+  /** Indices of the mapped windows, oldest first. Guarded by {@code this}. */
+  private transient ArrayDeque<Integer> mapOrder;
+
+  /** Number of {@link RabLock}s not yet released. Guarded by {@code this}. */
+  private transient int lockLevel;
+
+  /** How the file is destroyed on {@link #dispose()}, if {@link #deleteOnFree} is set. */
+  private Erasure erasure = Erasure.DELETE;
+}
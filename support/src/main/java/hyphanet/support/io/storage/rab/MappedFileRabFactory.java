@@ -0,0 +1,101 @@
+package hyphanet.support.io.storage.rab;
+
+import hyphanet.support.io.FilenameGenerator;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * A factory for creating memory-mapped temporary files.
+ *
+ * <p>Like {@link PooledFileRabFactory}, this factory uses a {@link FilenameGenerator} to create
+ * unique filenames, but it produces {@link MappedFileRab} instances. It can be plugged into a
+ * {@link TempRabFactory} in place of the default pooled factory, which suits workloads doing many
+ * small random reads and writes on large temporary files.
+ *
+ * @see MappedFileRab
+ * @see FilenameGenerator
+ * @see RabFactory
+ */
+public class MappedFileRabFactory implements RabFactory {
+
+  /**
+   * Constructs a new {@link MappedFileRabFactory} using the default window size and window limit.
+   *
+   * @param filenameGenerator The {@link FilenameGenerator} to use for creating temporary filenames.
+   */
+  public MappedFileRabFactory(FilenameGenerator filenameGenerator) {
+    this(filenameGenerator, MappedFileRab.DEFAULT_WINDOW_SIZE, MappedFileRab.DEFAULT_MAX_WINDOWS);
+  }
+
+  /**
+   * Constructs a new {@link MappedFileRabFactory}.
+   *
+   * @param filenameGenerator The {@link FilenameGenerator} to use for creating temporary filenames.
+   * @param windowSize The size of a mapped window in bytes
+   * @param maxWindows The maximum number of windows each file maps at the same time
+   * @throws IllegalArgumentException if {@code windowSize} or {@code maxWindows} is not positive
+   */
+  public MappedFileRabFactory(FilenameGenerator filenameGenerator, int windowSize, int maxWindows) {
+    if (windowSize <= 0 || maxWindows <= 0) {
+      throw new IllegalArgumentException("Window size and limit must be positive");
+    }
+    fg = filenameGenerator;
+    this.windowSize = windowSize;
+    this.maxWindows = maxWindows;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IOException if an I/O error occurs during file creation or deletion.
+   */
+  @Override
+  public Rab makeRab(long size) throws IOException {
+    long id = fg.makeRandomFilename();
+    var path = fg.getPath(id);
+    Rab ret = null;
+    try {
+      ret = new MappedFileRab(path, false, size, id, true, windowSize, maxWindows);
+      return ret;
+    } finally {
+      if (ret == null) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The contents are written with a plain write; the windows are only mapped once the buffer is
+   * accessed.
+   *
+   * @throws IOException if an I/O error occurs during file creation or deletion.
+   */
+  @Override
+  public Rab makeRab(byte[] initialContents, int offset, int size, boolean readOnly)
+      throws IOException {
+    long id = fg.makeRandomFilename();
+    var path = fg.getPath(id);
+    Rab ret = null;
+    try {
+      ret =
+          new MappedFileRab(
+              path, initialContents, offset, size, id, true, readOnly, windowSize, maxWindows);
+      return ret;
+    } finally {
+      if (ret == null) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  /** The {@link FilenameGenerator} used by this factory to generate unique filenames. */
+  private final FilenameGenerator fg;
+
+  /** The window size passed to every {@link MappedFileRab}. */
+  private final int windowSize;
+
+  /** The window limit passed to every {@link MappedFileRab}. */
+  private final int maxWindows;
+}
@@ -6,9 +6,11 @@ import hyphanet.support.io.PersistentFileTracker;
 import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.ResumeFailedException;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.storage.bucket.BucketTools;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /**
@@ -139,6 +141,50 @@ public class PaddedRab extends AbstractStorage implements Rab, Serializable {
     rab.pwrite(fileOffset, buf, bufOffset, length);
   }
 
+  /**
+   * Reads data from the padded buffer into a {@link ByteBuffer}, ensuring operations don't exceed
+   * the real size.
+   *
+   * @param fileOffset position in the buffer to read from
+   * @param dst buffer to read the data into
+   * @throws IOException if the read operation fails or exceeds the size limit
+   * @throws IllegalArgumentException if fileOffset is negative
+   */
+  @Override
+  public void pread(long fileOffset, ByteBuffer dst) throws IOException {
+    if (fileOffset < 0) {
+      throw new IllegalArgumentException("Negative file offset: " + fileOffset);
+    }
+    if (fileOffset + dst.remaining() > realSize) {
+      throw new IOException(
+          "Read operation exceeds size limit: offset=%d, length=%d, limit=%d"
+              .formatted(fileOffset, dst.remaining(), realSize));
+    }
+    rab.pread(fileOffset, dst);
+  }
+
+  /**
+   * Writes data from a {@link ByteBuffer} to the padded buffer, ensuring operations don't exceed
+   * the real size.
+   *
+   * @param fileOffset position in the buffer to write to
+   * @param src buffer containing the data
+   * @throws IOException if the write operation fails or exceeds the size limit
+   * @throws IllegalArgumentException if fileOffset is negative
+   */
+  @Override
+  public void pwrite(long fileOffset, ByteBuffer src) throws IOException {
+    if (fileOffset < 0) {
+      throw new IllegalArgumentException("Negative file offset: " + fileOffset);
+    }
+    if (fileOffset + src.remaining() > realSize) {
+      throw new IOException(
+          "Write operation exceeds size limit: offset=%d, length=%d, limit=%d"
+              .formatted(fileOffset, src.remaining(), realSize));
+    }
+    rab.pwrite(fileOffset, src);
+  }
+
   /** Closes the underlying buffer. */
   @Override
   public void close() {
@@ -157,6 +203,11 @@ public class PaddedRab extends AbstractStorage implements Rab, Serializable {
     rab.dispose();
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return rab.getDeleteMode();
+  }
+
   /**
    * Acquires a lock on the underlying buffer.
    *
@@ -1,20 +1,18 @@
 package hyphanet.support.io.storage.rab;
 
-import com.uber.nullaway.annotations.EnsuresNonNull;
 import hyphanet.support.io.*;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
+import hyphanet.support.io.storage.ErasableStorage;
+import hyphanet.support.io.storage.Erasure;
 import hyphanet.support.io.storage.StorageFormatException;
-import hyphanet.support.io.util.FileSystem;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import org.apache.commons.lang3.ArrayUtils;
 import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,10 +24,12 @@ import org.slf4j.LoggerFactory;
  *
  * <p>The pooling mechanism helps prevent reaching system limits on open file descriptors by
  * automatically closing least recently used files when necessary. Files are reopened on demand when
- * accessed.
+ * accessed. Instances pointing at the same file with the same access mode share one channel; see
+ * {@link FileChannelPool}.
  *
- * <p><b>Thread Safety:</b> This class is thread-safe. All file operations are synchronized to
- * prevent concurrent access issues. The file descriptor pool is also synchronized.
+ * <p><b>Thread Safety:</b> This class is thread-safe. Reads and writes use positional I/O on the
+ * shared channel and need no further synchronization; opening and closing is coordinated by the
+ * {@link FileChannelPool}.
  *
  * <p><b>Usage Example:</b>
  *
@@ -43,18 +43,18 @@ import org.slf4j.LoggerFactory;
  *
  * @see Rab
  */
-public class PooledFileRab extends AbstractStorage implements Rab, Serializable {
+public class PooledFileRab extends AbstractStorage implements Rab, ErasableStorage, Serializable {
 
   /** Magic number for serialization validation */
   public static final int MAGIC = 0x297c550a;
 
   /** Version number for serialization format */
-  public static final int VERSION = 1;
+  public static final int VERSION = 2;
 
   @Serial private static final long serialVersionUID = 1L;
 
-  /** Default file descriptor tracker with a pool size of 100 */
-  private static final FdTracker DEFAULT_FDTRACKER = new FdTracker(100);
+  /** Default channel pool with a limit of 100 open files */
+  private static final FileChannelPool DEFAULT_POOL = new FileChannelPool(100);
 
   private static final Logger logger = LoggerFactory.getLogger(PooledFileRab.class);
 
@@ -71,7 +71,7 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
   public PooledFileRab(
       Path path, boolean readOnly, long forceLength, long persistentTempID, boolean deleteOnFree)
       throws IOException {
-    this(path, readOnly, forceLength, persistentTempID, deleteOnFree, DEFAULT_FDTRACKER);
+    this(path, readOnly, forceLength, persistentTempID, deleteOnFree, DEFAULT_POOL);
   }
 
   /**
@@ -100,17 +100,16 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
     this.length = size;
     this.persistentTempID = persistentTempID;
     this.deleteOnFree = deleteOnFree;
-    this.fds = DEFAULT_FDTRACKER;
-    lockLevel = 0;
-    RabLock lock = lockOpen(true);
+    this.pool = DEFAULT_POOL;
+    FileChannel channel = acquire(true);
     try {
       var byteBuffer = ByteBuffer.wrap(initialContents, offset, size);
       while (byteBuffer.remaining() > 0) {
         //noinspection ResultOfMethodCallIgnored
-        channel.write(byteBuffer, 0);
+        channel.write(byteBuffer, byteBuffer.position() - offset);
       }
     } finally {
-      lock.unlock();
+      unlock();
     }
   }
 
@@ -128,7 +127,7 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
       DataInputStream dis, FilenameGenerator fg, PersistentFileTracker persistentFileTracker)
       throws StorageFormatException, IOException, ResumeFailedException {
     int version = dis.readInt();
-    if (version != VERSION) {
+    if (version != 1 && version != VERSION) {
       throw new StorageFormatException("Bad version");
     }
     var tmpPath = Path.of(dis.readUTF());
@@ -136,8 +135,10 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
     length = dis.readLong();
     persistentTempID = dis.readLong();
     deleteOnFree = dis.readBoolean();
-    secureDelete = deleteOnFree && dis.readBoolean();
-    fds = DEFAULT_FDTRACKER;
+    if (deleteOnFree) {
+      erasure = Erasure.readFrom(dis, version > 1);
+    }
+    pool = DEFAULT_POOL;
     if (length < 0) {
       throw new StorageFormatException("Bad length");
     }
@@ -165,14 +166,14 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
   }
 
   /**
-   * Creates a new PooledFile with a custom FdTracker.
+   * Creates a new PooledFile with a custom channel pool.
    *
    * @param path The file path
    * @param readOnly Whether the file is read-only
    * @param forceLength Required length or -1
    * @param persistentTempID Temporary file ID
    * @param deleteOnFree Whether to delete on free
-   * @param fds Custom file descriptor tracker
+   * @param pool Custom channel pool
    * @throws IOException If file operations fail
    */
   PooledFileRab(
@@ -181,17 +182,16 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
       long forceLength,
       long persistentTempID,
       boolean deleteOnFree,
-      FdTracker fds)
+      FileChannelPool pool)
       throws IOException {
     this.path = path;
     this.readOnly = readOnly;
     this.persistentTempID = persistentTempID;
     this.deleteOnFree = deleteOnFree;
-    this.fds = fds;
-    lockLevel = 0;
+    this.pool = pool;
     // Check the parameters and get the length.
-    // Also, unlock() adds to the closeables queue, which is essential.
-    RabLock lock = lockOpen();
+    // Also, unlock() makes the channel evictable, which is essential.
+    FileChannel channel = acquire(false);
     try {
       long currentLength = channel.size();
       if (forceLength >= 0 && forceLength != currentLength) {
@@ -204,17 +204,15 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
         //                try (WrapperKeepalive wrapperKeepalive = new
         //                WrapperKeepalive()) {
         //                    wrapperKeepalive.start();
-        // freenet-mobile-changed: Passing file descriptor to avoid using
-        // reflection
-        try (var fis = new FileInputStream(path.toFile())) {
-          new Fallocate(channel, forceLength).fromOffset(currentLength).execute();
-        }
+        var strategy =
+            new Fallocate(path, channel, forceLength).fromOffset(currentLength).execute();
+        logger.debug("Preallocated {} using {}", path, strategy);
         //                }
         currentLength = forceLength;
       }
       this.length = currentLength;
     } finally {
-      lock.unlock();
+      unlock();
     }
   }
 
@@ -226,8 +224,19 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
     length = 0;
     persistentTempID = -1;
     deleteOnFree = false;
-    // use the default fdtracker to avoid having one fd tracker per P F R A Buffer
-    fds = DEFAULT_FDTRACKER;
+    // use the default pool to avoid having one pool per P F R A Buffer
+    pool = DEFAULT_POOL;
+  }
+
+  /**
+   * Returns the channel pool used by instances that were not given a custom pool. Its limit can be
+   * changed with {@link FileChannelPool#setMaxOpen(int)} and its counters read with {@link
+   * FileChannelPool#getStats()}.
+   *
+   * @return the default pool
+   */
+  public static FileChannelPool getDefaultPool() {
+    return DEFAULT_POOL;
   }
 
   /**
@@ -243,8 +252,8 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
   /**
    * Reads data from the file at the specified position.
    *
-   * <p>This method ensures thread safety through synchronization and proper file channel
-   * management.
+   * <p>The read is a positional read on the shared channel, so concurrent reads do not block each
+   * other.
    *
    * @param fileOffset position in the file to read from
    * @param buf buffer to store the read data
@@ -262,32 +271,48 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
     if (bufOffset < 0 || readLength < 0 || bufOffset + readLength > buf.length) {
       throw new IndexOutOfBoundsException("Invalid buffer parameters");
     }
-    if (fileOffset + readLength > this.length) {
+    pread(fileOffset, ByteBuffer.wrap(buf, bufOffset, readLength));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Reads from the shared channel like {@link #pread(long, byte[], int, int)}, so a direct
+   * buffer is filled without a copy through the heap.
+   *
+   * @throws IndexOutOfBoundsException if the read extends past EOF
+   */
+  @Override
+  public void pread(long fileOffset, ByteBuffer dst) throws IOException {
+    if (fileOffset < 0) {
+      throw new IllegalArgumentException("fileOffset cannot be negative");
+    }
+    if (dst.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+    if (fileOffset + dst.remaining() > this.length) {
       throw new IndexOutOfBoundsException("Read past end of file");
     }
 
-    RabLock lock = lockOpen();
+    FileChannel channel = acquire(false);
     try {
-      // FIXME: If two PooledFile's are reading from and writing to the same file, the
-      //  data might be corrupted, as they're using different channels. The synchronized
-      //  block below only synchronizes on the same channel object.
-      var byteBuffer = ByteBuffer.wrap(buf, bufOffset, readLength);
-      while (byteBuffer.hasRemaining()) {
-        var bytesRead = channel.read(byteBuffer, fileOffset + byteBuffer.position());
+      for (long position = fileOffset; dst.hasRemaining(); ) {
+        var bytesRead = channel.read(dst, position);
         if (bytesRead < 0) {
           throw new IOException("Unexpected end of file");
         }
+        position += bytesRead;
       }
     } finally {
-      lock.unlock();
+      unlock();
     }
   }
 
   /**
    * Writes data to the file at the specified position.
    *
-   * <p>This method ensures thread safety through synchronization and proper file channel
-   * management.
+   * <p>The write is a positional write on the shared channel, so other instances pointing at the
+   * same file see it immediately.
    *
    * @param fileOffset position in the file to write to
    * @param buf buffer containing the data to write
@@ -309,24 +334,72 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
     if (bufOffset < 0 || writeLength < 0 || bufOffset + writeLength > buf.length) {
       throw new IndexOutOfBoundsException("Invalid buffer parameters");
     }
-    if (fileOffset + writeLength > this.length) {
+    pwrite(fileOffset, ByteBuffer.wrap(buf, bufOffset, writeLength));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Writes to the shared channel like {@link #pwrite(long, byte[], int, int)}, so a direct
+   * buffer is written without a copy through the heap.
+   *
+   * @throws IndexOutOfBoundsException if the write extends past EOF
+   */
+  @Override
+  public void pwrite(long fileOffset, ByteBuffer src) throws IOException {
+    if (fileOffset < 0) {
+      throw new IllegalArgumentException("fileOffset cannot be negative");
+    }
+    if (readOnly) {
+      throw new IOException("Read only");
+    }
+    if (fileOffset + src.remaining() > this.length) {
       throw new IndexOutOfBoundsException("Write past end of file");
     }
 
-    RabLock lock = lockOpen();
+    FileChannel channel = acquire(false);
     try {
-      // FIXME: If two PooledFile's are reading from and writing to the same file, the
-      //  data might be corrupted, as they're using different channels. The synchronized
-      //  block below only synchronizes on the same channel object.
-      var byteBuffer = ByteBuffer.wrap(buf, bufOffset, writeLength);
-      while (byteBuffer.hasRemaining()) {
-        var bytesWritten = channel.write(byteBuffer, fileOffset);
+      for (long position = fileOffset; src.hasRemaining(); ) {
+        var bytesWritten = channel.write(src, position);
         if (bytesWritten == 0) {
           throw new IOException("Failed to write to file. Should not happen.");
         }
+        position += bytesWritten;
       }
     } finally {
-      lock.unlock();
+      unlock();
+    }
+  }
+
+  /**
+   * Writes data read from a file channel, without copying it through the Java heap where the
+   * platform allows. Reads from the current position of {@code src} and advances it.
+   *
+   * @param src The channel to read from
+   * @param fileOffset The position in this file to start writing at
+   * @param count The maximum number of bytes to write
+   * @return The number of bytes written, less than {@code count} if the end of {@code src} was
+   *     reached
+   * @throws IOException If the file is read only or an I/O error occurs
+   * @throws IllegalArgumentException If fileOffset or count is negative
+   * @throws IndexOutOfBoundsException If the write would extend beyond the end of the file
+   */
+  public long transferFrom(FileChannel src, long fileOffset, long count) throws IOException {
+    if (fileOffset < 0 || count < 0) {
+      throw new IllegalArgumentException();
+    }
+    if (readOnly) {
+      throw new IOException("Read only");
+    }
+    if (fileOffset + count > this.length) {
+      throw new IndexOutOfBoundsException("Write past end of file");
+    }
+
+    FileChannel channel = acquire(false);
+    try {
+      return channel.transferFrom(src, fileOffset, count);
+    } finally {
+      unlock();
     }
   }
 
@@ -337,8 +410,7 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
    *
    * <ul>
    *   <li>Checking lock status
-   *   <li>Removing from the closables collection
-   *   <li>Closing the channel
+   *   <li>Detaching from the channel pool, which closes the channel if no other instance shares it
    * </ul>
    *
    * <p>Multiple calls to close() are safe and will not throw exceptions.
@@ -352,22 +424,42 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
     }
 
     logger.info("Closing {}", this);
-    synchronized (fds) {
+    synchronized (this) {
       if (lockLevel != 0) {
         throw new IllegalStateException("Must unlock first!");
       }
-      // Essential to avoid memory leak!
-      // Potentially slow but only happens on close(). Plus the size of closables is
-      // bounded anyway by the fd limit.
-      fds.closables.remove(this);
-      closeChannel();
+      // Essential to avoid leaking the pool entry!
+      var e = entry;
+      if (e != null) {
+        pool.detach(e);
+      }
     }
   }
 
+  /**
+   * Acquires a lock on the file to keep it open and prevent closure by the pool.
+   *
+   * <p>This lock isn't a concurrency lock for the file contents, but rather a lock to control the
+   * opening and closing of the underlying {@link FileChannel}.
+   *
+   * <p><b>Important:</b> The caller MUST call {@code unlock()} on the returned lock when finished
+   * to prevent resource leaks and allow proper pool management.
+   *
+   * <p>If the pool has reached its maximum open files limit, this method will block until a file
+   * descriptor becomes available.
+   *
+   * @return A {@link RabLock} instance that must be unlocked when operations are complete
+   * @throws IOException If the file cannot be opened or locked
+   */
   @Override
-  @EnsuresNonNull({"channel"})
   public RabLock lockOpen() throws IOException {
-    return lockOpen(false);
+    acquire(false);
+    return new RabLock() {
+      @Override
+      protected void innerUnlock() {
+        PooledFileRab.this.unlock();
+      }
+    };
   }
 
   /**
@@ -376,14 +468,24 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
    * @param secureDelete true to enable secure deletion, false for normal deletion
    */
   public void setSecureDelete(boolean secureDelete) {
-    this.secureDelete = secureDelete;
+    erasure = Erasure.of(secureDelete);
+  }
+
+  @Override
+  public void setDeleteMode(DeleteMode mode, int keyLength) {
+    erasure = new Erasure(mode, keyLength);
+  }
+
+  @Override
+  public DeleteMode getDeleteMode() {
+    return erasure.mode();
   }
 
   /**
    * Disposes of this file, optionally deleting it from disk.
    *
-   * <p>If deleteOnFree is true, the file will be deleted using either secure or normal deletion
-   * based on the secureDelete setting.
+   * <p>If deleteOnFree is true, the file will be deleted according to the {@linkplain
+   * #getDeleteMode() delete mode}.
    */
   @Override
   public void dispose() {
@@ -396,11 +498,7 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
       return;
     }
     try {
-      if (secureDelete) {
-        FileSystem.secureDelete(path);
-      } else {
-        Files.delete(path);
-      }
+      erasure.delete(path);
     } catch (IOException e) {
       logger.error("Unable to delete temporary file {} : {}", path, e.getMessage());
     }
@@ -452,7 +550,7 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
     dos.writeLong(persistentTempID);
     dos.writeBoolean(deleteOnFree);
     if (deleteOnFree) {
-      dos.writeBoolean(secureDelete);
+      erasure.writeTo(dos);
     }
   }
 
@@ -470,7 +568,7 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
     result = prime * result + Long.hashCode(length);
     result = prime * result + Long.hashCode(persistentTempID);
     result = prime * result + (readOnly ? 1231 : 1237);
-    result = prime * result + (secureDelete ? 1231 : 1237);
+    result = prime * result + erasure.hashCode();
     return result;
   }
 
@@ -496,7 +594,7 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
         && length == other.length
         && persistentTempID == other.persistentTempID
         && readOnly == other.readOnly
-        && secureDelete == other.secureDelete;
+        && erasure.equals(other.erasure);
   }
 
   public Path getPath() {
@@ -509,9 +607,8 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
    * @return true if the file channel is open, false otherwise
    */
   boolean isOpen() {
-    synchronized (fds) {
-      return channel != null;
-    }
+    var e = entry;
+    return e != null && pool.isOpen(e);
   }
 
   /**
@@ -520,133 +617,70 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
    * @return true if the lock level is greater than 0, false otherwise
    * @see #lockOpen()
    */
-  boolean isLocked() {
-    synchronized (fds) {
-      return lockLevel != 0;
-    }
+  synchronized boolean isLocked() {
+    return lockLevel != 0;
   }
 
   /**
    * Closes the underlying file channel. This method is exposed for testing purposes only.
    *
-   * <p>The file must not be locked when calling this method.
+   * <p>The file must not be locked when calling this method, neither through this instance nor
+   * through another one sharing the channel.
    *
    * @throws IllegalStateException if the file is currently locked
    */
   protected void closeChannel() {
-    synchronized (fds) {
+    synchronized (this) {
       if (lockLevel != 0) {
         throw new IllegalStateException();
       }
-      if (channel == null) {
-        return;
-      }
-      try {
-        channel.close();
-      } catch (IOException e) {
-        logger.error("Error closing {} : {}", this, e, e);
-      } finally {
-        channel = null;
-        fds.totalOpenFDs--;
-      }
+    }
+    var e = entry;
+    if (e != null) {
+      pool.close(e);
     }
   }
 
   /**
-   * Acquires a file lock on the file to keep it open and prevent closure by the pool.
-   *
-   * <p>This lock isn't a concurrency lock for the file contents (that's handled by synchronization
-   * within {@link #pread} and {@link #pwrite}), but rather a lock to control the opening and
-   * closing of the underlying {@link FileChannel}.
-   *
-   * <p><b>Important:</b> The caller MUST call {@code unlock()} on the returned lock when finished
-   * to prevent resource leaks and allow proper pool management.
-   *
-   * <p>If the pool has reached its maximum open files limit, this method will block until a file
-   * descriptor becomes available.
+   * Locks the shared channel open, opening it if necessary. Every call must be followed by {@link
+   * #unlock()}.
    *
    * @param forceWrite Whether to force write access even for read-only files
-   * @return A {@link RabLock} instance that must be unlocked when operations are complete
-   * @throws IOException If the file cannot be opened or locked
+   * @return the open channel
+   * @throws IOException If the file is closed or cannot be opened
    */
-  @EnsuresNonNull({"channel"})
-  private RabLock lockOpen(boolean forceWrite) throws IOException {
-    RabLock lock =
-        new RabLock() {
-          @Override
-          protected void innerUnlock() {
-            PooledFileRab.this.unlock();
-          }
-        };
-    synchronized (fds) {
-      while (true) {
-        fds.closables.remove(this);
-        if (closed()) {
-          throw new IOException("Already closed " + this);
-        }
-        if (channel != null) {
-          lockLevel++; // Already open, may or may not be already locked.
-          return lock;
-        } else if (fds.totalOpenFDs < fds.maxOpenFDs) {
-          StandardOpenOption[] openOptions = {StandardOpenOption.READ};
-          if (!readOnly || forceWrite) {
-            openOptions = ArrayUtils.add(openOptions, StandardOpenOption.WRITE);
-          }
-          channel = FileChannel.open(path, openOptions);
-          lockLevel++;
-          fds.totalOpenFDs++;
-          return lock;
-        }
-
-        PooledFileRab closable = pollFirstClosable();
-        if (closable != null) {
-          closable.closeChannel();
-          continue;
-        }
-
-        try {
-          fds.wait();
-        } catch (InterruptedException e) {
-          Thread.currentThread().interrupt();
-        }
+  private FileChannel acquire(boolean forceWrite) throws IOException {
+    FileChannelPool.Entry e;
+    synchronized (this) {
+      if (closed()) {
+        throw new IOException("Already closed " + this);
       }
+      e = entry;
+      if (e == null) {
+        e = pool.attach(path, !readOnly);
+        entry = e;
+      }
+      lockLevel++;
     }
-  }
-
-  /**
-   * Returns the first closeable file from the pool.
-   *
-   * <p>This method helps manage the pool of open file descriptors by identifying the least recently
-   * used file that can be closed.
-   *
-   * @return the first PooledFile that can be closed, or null if none available
-   */
-  private @Nullable PooledFileRab pollFirstClosable() {
-    synchronized (fds) {
-      Iterator<PooledFileRab> it = fds.closables.iterator();
-      if (it.hasNext()) {
-        PooledFileRab first = it.next();
-        it.remove();
-        return first;
+    try {
+      return pool.lock(e, forceWrite);
+    } catch (IOException | RuntimeException ex) {
+      synchronized (this) {
+        lockLevel--;
       }
-      return null;
+      throw ex;
     }
   }
 
-  /**
-   * Releases the lock on this file, allowing it to be closed by the pool if no other locks are
-   * held.
-   *
-   * <p>This method decrements the lock level and updates the file's position in the closables
-   * collection for pool management.
-   */
+  /** Releases a lock taken by {@link #acquire(boolean)}. */
   private void unlock() {
-    synchronized (fds) {
+    FileChannelPool.Entry e;
+    synchronized (this) {
       lockLevel--;
-      if (lockLevel == 0) {
-        fds.closables.add(this);
-        fds.notifyAll();
-      }
+      e = entry;
+    }
+    if (e != null) {
+      pool.unlock(e);
     }
   }
 
@@ -654,6 +688,7 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
   private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
     in.defaultReadObject();
     path = Paths.get(in.readUTF());
+    pool = DEFAULT_POOL;
   }
 
   @Serial
@@ -662,55 +697,6 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
     out.writeUTF(path.toString());
   }
 
-  /**
-   * Tracks the number of open file descriptors and manages the pool of files.
-   *
-   * <p>This class maintains:
-   *
-   * <ul>
-   *   <li>The total number of currently open file descriptors
-   *   <li>The maximum allowed open file descriptors
-   *   <li>A collection of closeable files ordered by last access
-   * </ul>
-   */
-  static class FdTracker implements Serializable {
-    /**
-     * Creates a new FdTracker with the specified limit.
-     *
-     * @param maxOpenFDs maximum number of open file descriptors allowed
-     */
-    FdTracker(int maxOpenFDs) {
-      this.maxOpenFDs = maxOpenFDs;
-    }
-
-    /** Set the size of the fd pool */
-    synchronized void setMaxFDs(int max) {
-      if (max <= 0) {
-        throw new IllegalArgumentException();
-      }
-      maxOpenFDs = max;
-      notifyAll();
-    }
-
-    /** How many fd's are open right now? Mainly for tests but also for stats. */
-    synchronized int getOpenFDs() {
-      return totalOpenFDs;
-    }
-
-    synchronized int getClosableFDs() {
-      return closables.size();
-    }
-
-    /** Collection of files that can be closed, ordered by last access time */
-    private final LinkedHashSet<PooledFileRab> closables = new LinkedHashSet<>();
-
-    /** Maximum number of file descriptors allowed to be open simultaneously */
-    private int maxOpenFDs;
-
-    /** Current count of open file descriptors */
-    private int totalOpenFDs = 0;
-  }
-
   /** Whether this file is read-only */
   private final boolean readOnly;
 
@@ -723,20 +709,21 @@ public class PooledFileRab extends AbstractStorage implements Rab, Serializable
   /** Whether to delete the file when the random access buffer is closed */
   private final boolean deleteOnFree;
 
-  /** The file descriptor tracker managing this file */
-  private final transient FdTracker fds;
+  /** The channel pool managing this file */
+  private transient FileChannelPool pool;
 
   /** The path to the file on disk */
   private transient Path path;
 
   /**
-   * Current lock level - number of active locks. > 0 means locked. Synchronized on {@link #fds}.
+   * Current lock level - number of active locks held through this instance. > 0 means locked.
+   * Synchronized on {@code this}.
    */
-  private int lockLevel;
+  private transient int lockLevel;
 
-  /** The underlying file channel for I/O operations */
-  private transient @Nullable FileChannel channel;
+  /** The shared channel entry, attached on first use. Synchronized on {@code this}. */
+  private transient volatile FileChannelPool.@Nullable Entry entry;
 
-  /** Whether to use secure deletion when freeing the file */
-  private boolean secureDelete;
+  /** How the file is destroyed when freed, if {@link #deleteOnFree} is set. */
+  private Erasure erasure = Erasure.DELETE;
 }
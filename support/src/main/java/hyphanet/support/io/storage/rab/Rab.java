@@ -10,6 +10,9 @@ import hyphanet.support.io.storage.bucket.BucketTools;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -32,6 +35,12 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public interface Rab extends Storage {
 
+  /** Size of the temporary array used to read into or write from buffers without an array. */
+  int BRIDGE_CHUNK_SIZE = 32 * 1024;
+
+  /** Largest part of a {@link MemorySegment} handed to the {@link ByteBuffer} overloads at once. */
+  long SEGMENT_CHUNK_SIZE = 1L << 30;
+
   /** Abstract base class for implementing RAB locking mechanisms. */
   abstract class RabLock {
 
@@ -111,6 +120,110 @@ public interface Rab extends Storage {
    */
   void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException;
 
+  /**
+   * Reads {@code dst.remaining()} bytes from a specific location in the buffer into a {@link
+   * ByteBuffer}, advancing its position to its limit.
+   *
+   * <p>The default implementation reads straight into the array of a heap buffer, and copies
+   * through a temporary array for other buffers. File backed implementations read into direct
+   * buffers without a copy.
+   *
+   * @param fileOffset the offset within the buffer to read from
+   * @param dst the buffer to read into
+   * @throws IOException if the required number of bytes cannot be read
+   * @throws IllegalArgumentException if fileOffset is negative
+   * @throws ReadOnlyBufferException if dst is read-only
+   * @see #pread(long, byte[], int, int)
+   */
+  default void pread(long fileOffset, ByteBuffer dst) throws IOException {
+    int length = dst.remaining();
+    if (dst.hasArray()) {
+      pread(fileOffset, dst.array(), dst.arrayOffset() + dst.position(), length);
+      dst.position(dst.limit());
+      return;
+    }
+    if (dst.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+    byte[] buf = new byte[Math.min(length, BRIDGE_CHUNK_SIZE)];
+    for (int done = 0; done < length; ) {
+      int chunk = Math.min(buf.length, length - done);
+      pread(fileOffset + done, buf, 0, chunk);
+      dst.put(buf, 0, chunk);
+      done += chunk;
+    }
+  }
+
+  /**
+   * Writes the {@code src.remaining()} bytes of a {@link ByteBuffer} to a specific location in the
+   * buffer, advancing its position to its limit.
+   *
+   * <p>The default implementation writes straight from the array of a heap buffer, and copies
+   * through a temporary array for other buffers. File backed implementations write direct buffers
+   * without a copy.
+   *
+   * @param fileOffset the offset within the buffer to write to
+   * @param src the buffer containing the data to write
+   * @throws IOException if the write operation fails
+   * @throws IllegalArgumentException if fileOffset is negative
+   * @see #pwrite(long, byte[], int, int)
+   */
+  default void pwrite(long fileOffset, ByteBuffer src) throws IOException {
+    int length = src.remaining();
+    if (src.hasArray()) {
+      pwrite(fileOffset, src.array(), src.arrayOffset() + src.position(), length);
+      src.position(src.limit());
+      return;
+    }
+    byte[] buf = new byte[Math.min(length, BRIDGE_CHUNK_SIZE)];
+    for (int done = 0; done < length; ) {
+      int chunk = Math.min(buf.length, length - done);
+      src.get(buf, 0, chunk);
+      pwrite(fileOffset + done, buf, 0, chunk);
+      done += chunk;
+    }
+  }
+
+  /**
+   * Reads {@code dst.byteSize()} bytes from a specific location in the buffer into a {@link
+   * MemorySegment}, which may be on or off the heap.
+   *
+   * <p>The default implementation reads through {@link #pread(long, ByteBuffer)}.
+   *
+   * @param fileOffset the offset within the buffer to read from
+   * @param dst the segment to read into
+   * @throws IOException if the required number of bytes cannot be read
+   * @throws IllegalArgumentException if fileOffset is negative
+   */
+  default void pread(long fileOffset, MemorySegment dst) throws IOException {
+    long length = dst.byteSize();
+    for (long done = 0; done < length; ) {
+      long chunk = Math.min(length - done, SEGMENT_CHUNK_SIZE);
+      pread(fileOffset + done, dst.asSlice(done, chunk).asByteBuffer());
+      done += chunk;
+    }
+  }
+
+  /**
+   * Writes the contents of a {@link MemorySegment}, which may be on or off the heap, to a specific
+   * location in the buffer.
+   *
+   * <p>The default implementation writes through {@link #pwrite(long, ByteBuffer)}.
+   *
+   * @param fileOffset the offset within the buffer to write to
+   * @param src the segment containing the data to write
+   * @throws IOException if the write operation fails
+   * @throws IllegalArgumentException if fileOffset is negative
+   */
+  default void pwrite(long fileOffset, MemorySegment src) throws IOException {
+    long length = src.byteSize();
+    for (long done = 0; done < length; ) {
+      long chunk = Math.min(length - done, SEGMENT_CHUNK_SIZE);
+      pwrite(fileOffset + done, src.asSlice(done, chunk).asByteBuffer());
+      done += chunk;
+    }
+  }
+
   /**
    * Closes this buffer and releases any system resources associated with it.
    *
@@ -6,11 +6,13 @@ import hyphanet.support.io.PersistentFileTracker;
 import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.ResumeFailedException;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.storage.bucket.BucketTools;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A decorator class that provides read-only access to an underlying {@link Rab}. This class
@@ -78,6 +80,21 @@ public class ReadOnlyRab extends AbstractStorage implements Rab {
     throw new IOException("Read only");
   }
 
+  @Override
+  public void pread(long fileOffset, ByteBuffer dst) throws IOException {
+    underlying.pread(fileOffset, dst);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @throws IOException always, as this is a read-only buffer
+   */
+  @Override
+  public void pwrite(long fileOffset, ByteBuffer src) throws IOException {
+    throw new IOException("Read only");
+  }
+
   @Override
   public void close() {
     if (!setClosed()) {
@@ -94,6 +111,11 @@ public class ReadOnlyRab extends AbstractStorage implements Rab {
     underlying.dispose();
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return underlying.getDeleteMode();
+  }
+
   @Override
   public RabLock lockOpen() throws IOException {
     return underlying.lockOpen();
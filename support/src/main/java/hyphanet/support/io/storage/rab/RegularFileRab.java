@@ -3,10 +3,12 @@ package hyphanet.support.io.storage.rab;
 import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.ResumeFailedException;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.StorageFormatException;
 import hyphanet.support.io.util.FileSystem;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -124,25 +126,48 @@ public class RegularFileRab extends AbstractStorage implements Rab, Serializable
 
   @Override
   public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
-    validateReadParameters(fileOffset, length);
-    ByteBuffer buffer = ByteBuffer.wrap(buf, bufOffset, length);
-    while (buffer.hasRemaining()) {
-      int read = channel.read(buffer, fileOffset + buffer.position());
+    pread(fileOffset, ByteBuffer.wrap(buf, bufOffset, length));
+  }
+
+  @Override
+  public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+    pwrite(fileOffset, ByteBuffer.wrap(buf, bufOffset, length));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Reads from the file channel directly, so a direct buffer is filled without a copy.
+   */
+  @Override
+  public void pread(long fileOffset, ByteBuffer dst) throws IOException {
+    if (dst.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+    validateReadParameters(fileOffset, dst.remaining());
+    for (long position = fileOffset; dst.hasRemaining(); ) {
+      int read = channel.read(dst, position);
       if (read < 0) {
         throw new IOException("Unexpected end of file");
       }
+      position += read;
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Writes to the file channel directly, so a direct buffer is written without a copy.
+   */
   @Override
-  public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
-    validateWriteParameters(fileOffset, length);
-    ByteBuffer buffer = ByteBuffer.wrap(buf, bufOffset, length);
-    while (buffer.hasRemaining()) {
-      var bytesWritten = channel.write(buffer, fileOffset);
+  public void pwrite(long fileOffset, ByteBuffer src) throws IOException {
+    validateWriteParameters(fileOffset, src.remaining());
+    for (long position = fileOffset; src.hasRemaining(); ) {
+      var bytesWritten = channel.write(src, position);
       if (bytesWritten == 0) {
         throw new IOException("Failed to write to file. Should not happen.");
       }
+      position += bytesWritten;
     }
   }
 
@@ -202,6 +227,11 @@ public class RegularFileRab extends AbstractStorage implements Rab, Serializable
     this.secureDelete = secureDelete;
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return secureDelete ? DeleteMode.OVERWRITE : DeleteMode.DELETE;
+  }
+
   @Override
   public void onResume(ResumeContext context) throws ResumeFailedException {
     if (!Files.exists(path)) {
@@ -6,14 +6,14 @@ import com.uber.nullaway.annotations.EnsuresNonNull;
 import hyphanet.support.GlobalCleaner;
 import hyphanet.support.io.ResumeContext;
 import hyphanet.support.io.storage.AbstractStorage;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.TempStorage;
 import hyphanet.support.io.storage.TempStorageTracker;
 import hyphanet.support.io.storage.bucket.TempBucket;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.ref.Cleaner;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,8 +27,10 @@ import org.slf4j.LoggerFactory;
  * the {@link TempRab} itself. This provides a level of indirection and flexibility, particularly
  * useful in scenarios where the backing storage might need to be dynamically altered.
  *
- * <p>Thread safety is ensured through a {@link ReadWriteLock}, protecting access to the underlying
- * buffer and related state variables.
+ * <p>Thread safety is ensured through a {@link StampedLock}, protecting access to the underlying
+ * buffer and related state variables. Reads take an optimistic stamp instead of the read lock, so
+ * concurrent readers do not contend with each other; they only fall back to the read lock when a
+ * migration or close overlaps with them.
  *
  * <p>Unlike a TempBucket, the size is fixed, so migrate only happens on the migration thread.
  */
@@ -126,8 +128,11 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
    * <p>Reads a sequence of bytes from this buffer starting at the given file offset into the
    * provided byte buffer.
    *
-   * <p>This operation is performed atomically with respect to migrations and freeing of the
-   * underlying buffer due to the read lock acquisition.
+   * <p>The read is first tried under an optimistic stamp, without locking. If a migration or close
+   * overlapped with it, the read is retried under the read lock, so the operation is still atomic
+   * with respect to migrations and freeing of the underlying buffer. Reading from the old
+   * underlying buffer during a migration is harmless: it holds the same data, and the result is
+   * discarded unless the stamp is still valid.
    *
    * @throws IOException If an I/O error occurs, such as reading past the end of the buffer, or if
    *     the buffer is already closed.
@@ -141,14 +146,31 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
     if (fileOffset + length > size) {
       throw new IOException("Tried to read past end of file");
     }
-    lock.readLock().lock();
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      Rab current = underlying;
+      if (current != null && !closed()) {
+        try {
+          current.pread(fileOffset, buf, bufOffset, length);
+          if (lock.validate(stamp)) {
+            return;
+          }
+        } catch (IOException e) {
+          if (lock.validate(stamp)) {
+            throw e;
+          }
+          // The underlying buffer was closed under our feet by a migration: retry below.
+        }
+      }
+    }
+    stamp = lock.readLock();
     try {
       if (underlying == null || closed()) {
         throw new IOException("Already closed");
       }
       underlying.pread(fileOffset, buf, bufOffset, length);
     } finally {
-      lock.readLock().unlock();
+      lock.unlockRead(stamp);
     }
   }
 
@@ -173,14 +195,14 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
     if (fileOffset + length > size) {
       throw new IOException("Tried to write past end of file");
     }
-    lock.readLock().lock();
+    long stamp = lock.readLock();
     try {
       if (underlying == null || closed()) {
         throw new IOException("Already closed");
       }
       underlying.pwrite(fileOffset, buf, bufOffset, length);
     } finally {
-      lock.readLock().unlock();
+      lock.unlockRead(stamp);
     }
   }
 
@@ -205,11 +227,11 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
       return;
     }
 
-    lock.writeLock().lock();
+    long stamp = lock.writeLock();
     try {
       underlying.close();
     } finally {
-      lock.writeLock().unlock();
+      lock.unlockWrite(stamp);
     }
 
     ramTracker.removeFromQueue(this);
@@ -229,7 +251,7 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
   @Override
   @EnsuresNonNull("underlyingLock")
   public RabLock lockOpen() throws IOException {
-    lock.writeLock().lock();
+    long stamp = lock.writeLock();
     try {
       if (closed() || underlying == null) {
         throw new IOException("Already closed");
@@ -247,7 +269,7 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
         }
       };
     } finally {
-      lock.writeLock().unlock();
+      lock.unlockWrite(stamp);
     }
   }
 
@@ -258,7 +280,7 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
     }
 
     close();
-    lock.writeLock().lock();
+    long stamp = lock.writeLock();
     try {
       // Write lock as we're going to change the underlying pointer.
       if (underlying == null) {
@@ -266,12 +288,17 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
       }
       GlobalCleaner.getInstance().clean(cleanable);
     } finally {
-      lock.writeLock().unlock();
+      lock.unlockWrite(stamp);
     }
 
     logger.info("Disposed {}", this);
   }
 
+  @Override
+  public DeleteMode getDeleteMode() {
+    return getUnderlying().getDeleteMode();
+  }
+
   @Override
   public long creationTime() {
     return creationTime;
@@ -306,17 +333,22 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
   /**
    * For unit tests only. Retrieves the currently underlying {@link Rab}.
    *
-   * <p><b>Thread Safety:</b> Uses a read lock to ensure thread-safe access.
+   * <p><b>Thread Safety:</b> Uses an optimistic read, falling back to the read lock.
    *
    * @return The current underlying {@link Rab} instance.
    */
   @Override
   public Rab getUnderlying() {
-    lock.readLock().lock();
+    long stamp = lock.tryOptimisticRead();
+    Rab current = underlying;
+    if (lock.validate(stamp)) {
+      return current;
+    }
+    stamp = lock.readLock();
     try {
       return underlying;
     } finally {
-      lock.readLock().unlock();
+      lock.unlockRead(stamp);
     }
   }
 
@@ -330,7 +362,7 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
    * {@code underlyingLock}.
    */
   protected void externalUnlock() {
-    lock.writeLock().lock();
+    long stamp = lock.writeLock();
     try {
       lockOpenCount--;
       if (lockOpenCount == 0 && underlyingLock != null) {
@@ -338,7 +370,7 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
       }
 
     } finally {
-      lock.writeLock().unlock();
+      lock.unlockWrite(stamp);
     }
   }
 
@@ -373,7 +405,7 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
    * @throws NullPointerException If {@link #innerMigrate(Rab)} returns {@code null}.
    */
   protected final void migrate() throws IOException {
-    lock.writeLock().lock();
+    long stamp = lock.writeLock();
     try {
       if (closed()) {
         return;
@@ -411,7 +443,7 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
 
       underlyingLock = newLock;
     } finally {
-      lock.writeLock().unlock();
+      lock.unlockWrite(stamp);
     }
   }
 
@@ -484,10 +516,10 @@ public class TempRab extends AbstractStorage implements Rab, TempStorage {
   private final long size;
 
   /**
-   * Read/write lock to protect concurrent access to the {@code underlying} {@link Rab}, {@code
-   * lockOpenCount}, and {@code closed} flag.
+   * Lock to protect concurrent access to the {@code underlying} {@link Rab}, {@code lockOpenCount},
+   * and {@code closed} flag. Not reentrant.
    */
-  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final StampedLock lock = new StampedLock();
 
   /**
    * The underlying {@link Rab} instance to which operations are delegated.
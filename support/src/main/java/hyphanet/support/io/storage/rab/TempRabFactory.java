@@ -2,15 +2,16 @@ package hyphanet.support.io.storage.rab;
 
 import hyphanet.crypt.key.MasterSecret;
 import hyphanet.support.io.FilenameGenerator;
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.EncryptType;
+import hyphanet.support.io.storage.ErasableStorage;
 import hyphanet.support.io.storage.RamStorageCapableFactory;
 import hyphanet.support.io.storage.TempStorageTracker;
 import hyphanet.support.io.storage.bucket.wrapper.PaddedEphemerallyEncryptedBucket;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class TempRabFactory implements RabFactory, RamStorageCapableFactory {
   private static final Logger logger = LoggerFactory.getLogger(TempRabFactory.class);
@@ -22,9 +23,32 @@ public class TempRabFactory implements RabFactory, RamStorageCapableFactory {
       boolean encrypt,
       EncryptType encryptType,
       MasterSecret secret) {
+    this(
+        ramTracker,
+        filenameGenerator,
+        new PooledFileRabFactory(filenameGenerator),
+        minDiskSpace,
+        encrypt,
+        encryptType,
+        secret);
+  }
+
+  /**
+   * Creates a factory which uses {@code underlyingDiskRabFactory} for buffers that are not kept in
+   * RAM, e.g. a {@link MappedFileRabFactory} instead of the default {@link PooledFileRabFactory}.
+   * The underlying factory should create its files in the directory of {@code filenameGenerator},
+   * because that is where free disk space is checked.
+   */
+  public TempRabFactory(
+      TempStorageTracker ramTracker,
+      FilenameGenerator filenameGenerator,
+      RabFactory underlyingDiskRabFactory,
+      long minDiskSpace,
+      boolean encrypt,
+      EncryptType encryptType,
+      MasterSecret secret) {
     this.ramTracker = ramTracker;
 
-    var underlyingDiskRabFactory = new PooledFileRabFactory(filenameGenerator);
     this.diskRabFactory =
         new DiskSpaceCheckingRabFactory(
             underlyingDiskRabFactory, filenameGenerator.getDir(), minDiskSpace);
@@ -40,7 +64,7 @@ public class TempRabFactory implements RabFactory, RamStorageCapableFactory {
       throw new IllegalArgumentException();
     }
     if (size > Integer.MAX_VALUE) {
-      return diskRabFactory.makeRab(size);
+      return plaintext(diskRabFactory.makeRab(size));
     }
 
     long now = System.currentTimeMillis();
@@ -56,16 +80,23 @@ public class TempRabFactory implements RabFactory, RamStorageCapableFactory {
             PaddedEphemerallyEncryptedBucket.paddedLength(
                 realSize, PaddedEphemerallyEncryptedBucket.MIN_PADDED_SIZE);
       }
-      Rab ret = diskRabFactory.makeRab(paddedSize);
-      if (encrypt) {
-        if (realSize != paddedSize) {
-          ret = new PaddedRab(ret, realSize);
-        }
-        try {
-          ret = new EncryptedRab(encryptType, ret, secret, true);
-        } catch (GeneralSecurityException e) {
-          logger.error("Cannot create encrypted tempfile: {}", e, e);
-        }
+      Rab file = diskRabFactory.makeRab(paddedSize);
+      if (!encrypt) {
+        return plaintext(file);
+      }
+      Rab ret = file;
+      if (realSize != paddedSize) {
+        ret = new PaddedRab(ret, realSize);
+      }
+      try {
+        ret = new EncryptedRab(encryptType, ret, secret, true);
+      } catch (GeneralSecurityException e) {
+        logger.error("Cannot create encrypted tempfile: {}", e, e);
+        return plaintext(file);
+      }
+      // A new, empty file encrypted from the start: its key is written at offset 0.
+      if (file instanceof ErasableStorage erasable) {
+        erasable.setDeleteMode(deleteMode, encryptType.headerLen);
       }
       return ret;
     }
@@ -92,13 +123,13 @@ public class TempRabFactory implements RabFactory, RamStorageCapableFactory {
         }
         return ret;
       }
-      return diskRabFactory.makeRab(initialContents, offset, size, readOnly);
+      return plaintext(diskRabFactory.makeRab(initialContents, offset, size, readOnly));
     }
   }
 
   public Rab makeDiskRab(byte[] initialContents, int offset, int size, boolean readOnly)
       throws IOException {
-    return diskRabFactory.makeRab(initialContents, offset, size, readOnly);
+    return plaintext(diskRabFactory.makeRab(initialContents, offset, size, readOnly));
   }
 
   public boolean isCreateRam() {
@@ -118,10 +149,33 @@ public class TempRabFactory implements RabFactory, RamStorageCapableFactory {
     this.encrypt = encrypt;
   }
 
+  public DeleteMode getDeleteMode() {
+    return deleteMode;
+  }
+
+  /**
+   * Sets how the files of disk based buffers created from now on are destroyed when they are
+   * disposed. {@link DeleteMode#CRYPTO_SHRED} is only used for encrypted buffers; files holding
+   * plaintext, including RAM buffers migrated to disk, are overwritten instead.
+   *
+   * @param deleteMode The delete mode.
+   */
+  public void setDeleteMode(DeleteMode deleteMode) {
+    this.deleteMode = deleteMode;
+  }
+
+  private Rab plaintext(Rab file) {
+    if (file instanceof ErasableStorage erasable) {
+      erasable.setDeleteMode(deleteMode.forPlaintext(), 0);
+    }
+    return file;
+  }
+
   private final TempStorageTracker ramTracker;
   private final DiskSpaceCheckingRabFactory diskRabFactory;
   private final EncryptType encryptType;
   private final MasterSecret secret;
   private boolean encrypt;
   private boolean createRam;
+  private DeleteMode deleteMode = DeleteMode.DELETE;
 }
@@ -27,7 +27,7 @@ public class RabInputStream extends InputStream {
     Objects.checkFromIndexSize(offset, size, data.size());
     underlying = data;
     rabOffset = offset;
-    rabLength = size;
+    rabEnd = offset + size;
   }
 
   /**
@@ -51,14 +51,14 @@ public class RabInputStream extends InputStream {
    * bytes. An attempt is made to read as many as {@code length} bytes, but a smaller number may be
    * read, possibly zero. The number of bytes actually read is returned as an integer.
    *
-   * <p>If {@code rabOffset} is greater than or equal to {@code rabLength}, then EOF is reached and
+   * <p>If {@code rabOffset} is greater than or equal to {@code rabEnd}, then EOF is reached and
    * {@code -1} is returned. If {@code length} is zero, then no bytes are read and {@code 0} is
    * returned. Otherwise, the method calculates the number of bytes to read, which is the minimum of
-   * {@code length} and the remaining bytes in the stream ({@code rabLength - rabOffset}). It then
-   * uses the {@link Rab#pread(long, byte[], int, int)} method to read data from the underlying
-   * buffer at the current {@code rabOffset}, into the provided buffer {@code buf} at the specified
-   * {@code offset}. Finally, it updates the {@code rabOffset} by the number of bytes read and
-   * returns the number of bytes read.
+   * {@code length} and the remaining bytes in the stream ({@code rabEnd - rabOffset}). It then uses
+   * the {@link Rab#pread(long, byte[], int, int)} method to read data from the underlying buffer at
+   * the current {@code rabOffset}, into the provided buffer {@code buf} at the specified {@code
+   * offset}. Finally, it updates the {@code rabOffset} by the number of bytes read and returns the
+   * number of bytes read.
    *
    * @throws IndexOutOfBoundsException if {@code offset} is negative, {@code length} is negative, or
    *     {@code offset + length} is greater than the length of the array {@code buf}.
@@ -66,14 +66,14 @@ public class RabInputStream extends InputStream {
   @Override
   public int read(byte[] buf, int offset, int length) throws IOException {
     Objects.checkFromIndexSize(offset, length, buf.length);
-    if (rabOffset >= rabLength) {
+    if (rabOffset >= rabEnd) {
       return -1; // Indicate EOF by returning -1 as per InputStream contract
     }
     if (length <= 0) {
       return 0; // No bytes requested to read
     }
 
-    int bytesToRead = (int) Math.min(length, rabLength - rabOffset);
+    int bytesToRead = (int) Math.min(length, rabEnd - rabOffset);
     if (bytesToRead <= 0) {
       return -1; // Should not reach here normally, but just in case, return EOF
     }
@@ -92,11 +92,8 @@ public class RabInputStream extends InputStream {
   /** A single-byte buffer used by the {@link #read()} method to avoid repeated allocation. */
   private final byte[] oneByte = new byte[1];
 
-  /**
-   * The total number of bytes available to read from the underlying {@link Rab}. This is the
-   * maximum size of the stream.
-   */
-  private final long rabLength;
+  /** The offset in the underlying {@link Rab} at which the stream ends. */
+  private final long rabEnd;
 
   /**
    * The current read offset within the underlying {@link Rab}. This offset is incremented as bytes
@@ -1,5 +1,6 @@
 package hyphanet.support.io.util;
 
+import hyphanet.support.io.storage.DeleteMode;
 import hyphanet.support.io.storage.bucket.BucketTools;
 import hyphanet.support.io.storage.bucket.RegularFileBucket;
 import java.io.File;
@@ -194,6 +195,52 @@ public final class FileSystem {
     Files.delete(path);
   }
 
+  /**
+   * Deletes a file whose contents are encrypted, by overwriting only the key material at its start
+   * with random data before deleting it. The rest of the file is not touched, so this is cheap
+   * regardless of the size of the file, but it only prevents recovery if the file has never held
+   * any plaintext.
+   *
+   * @param path The path to the file to be deleted.
+   * @param keyLength The number of bytes at the start of the file holding the key material.
+   * @throws IOException If an I/O error occurs during the deletion process.
+   * @see DeleteMode#CRYPTO_SHRED
+   */
+  public static void cryptoShred(Path path, int keyLength) throws IOException {
+    if (!Files.exists(path)) {
+      return;
+    }
+    long length = Math.min(keyLength, Files.size(path));
+    if (length > 0) {
+      try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        logger.debug("Shredding the key of {}", path);
+        channel.position(0);
+        Stream.fill(Channels.newOutputStream(channel), length);
+        // Otherwise the overwrite may never reach the disk once the file is deleted.
+        channel.force(false);
+      }
+    }
+    Files.delete(path);
+  }
+
+  /**
+   * Deletes a file in the given mode.
+   *
+   * @param path The path to the file to be deleted.
+   * @param mode How to delete it.
+   * @param keyLength The number of bytes at the start of the file holding the key material, for
+   *     {@link DeleteMode#CRYPTO_SHRED}.
+   * @throws IOException If an I/O error occurs during the deletion process, including the file not
+   *     existing for {@link DeleteMode#DELETE}.
+   */
+  public static void delete(Path path, DeleteMode mode, int keyLength) throws IOException {
+    switch (mode) {
+      case DELETE -> Files.delete(path);
+      case OVERWRITE -> secureDelete(path);
+      case CRYPTO_SHRED -> cryptoShred(path, keyLength);
+    }
+  }
+
   /**
    * Creates a temporary file with the specified prefix and suffix in the given directory. The
    * created file will be deleted when the JVM exits.
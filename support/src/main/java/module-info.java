@@ -10,6 +10,7 @@ module hyphanet.support {
   requires com.sun.jna.platform;
   requires nullaway.annotations;
   requires org.apache.commons.compress;
+  requires org.tukaani.xz;
 
   exports hyphanet.support;
   exports hyphanet.support.compress;
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package hyphanet.support.compress;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
@@ -11,7 +12,10 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
@@ -144,6 +148,74 @@ class Bzip2CompressorTest {
     }
   }
 
+  /** The parallel compressor must write exactly what the single threaded one writes. */
+  @Test
+  void testParallelCompressMatchesSerial() throws IOException {
+    var serial = new Bzip2Compressor();
+    var parallel = new Bzip2Compressor(ForkJoinPool.commonPool(), 4);
+    var r = new Random(1999);
+
+    byte[] random = new byte[2 * 1024 * 1024];
+    r.nextBytes(random);
+    // Runs of all lengths, including runs longer than the 255 bytes a single run can hold.
+    var runs = new ByteArrayOutputStream();
+    while (runs.size() < 6 * 1024 * 1024) {
+      byte[] run = new byte[1 + r.nextInt(r.nextBoolean() ? 6 : 600)];
+      Arrays.fill(run, (byte) r.nextInt(4));
+      runs.write(run);
+    }
+    var text = new StringBuilder();
+    while (text.length() < 2 * 1024 * 1024) {
+      text.append(UNCOMPRESSED_DATA_1, r.nextInt(100), 100 + r.nextInt(200)).append(r.nextInt());
+    }
+
+    for (byte[] data :
+        new byte[][] {
+          new byte[0], random, runs.toByteArray(), text.toString().getBytes(StandardCharsets.UTF_8)
+        }) {
+      byte[] expected = compress(serial, data, Long.MAX_VALUE);
+      assertArrayEquals(expected, compress(parallel, data, Long.MAX_VALUE));
+
+      var out = new ByteArrayOutputStream();
+      compressor.decompress(new ByteArrayInputStream(expected), out, Long.MAX_VALUE, -1);
+      assertArrayEquals(data, out.toByteArray());
+    }
+  }
+
+  @Test
+  void testParallelCompressLimits() throws IOException {
+    var parallel = new Bzip2Compressor(ForkJoinPool.commonPool(), 2);
+    byte[] data = new byte[3 * 1024 * 1024];
+    new Random(2000).nextBytes(data);
+
+    var out = new ByteArrayOutputStream();
+    parallel.compress(new ByteArrayInputStream(data), out, 2_000_000, Long.MAX_VALUE);
+    var decompressed = new ByteArrayOutputStream();
+    compressor.decompress(
+        new ByteArrayInputStream(out.toByteArray()), decompressed, Long.MAX_VALUE, -1);
+    assertArrayEquals(Arrays.copyOf(data, 2_000_000), decompressed.toByteArray());
+
+    assertThrows(
+        CompressionOutputSizeException.class, () -> compress(parallel, data, 1024 * 1024));
+    assertThrows(
+        CompressionRatioException.class,
+        () ->
+            parallel.compress(
+                new ByteArrayInputStream(data),
+                new ByteArrayOutputStream(),
+                Long.MAX_VALUE,
+                Long.MAX_VALUE,
+                1,
+                10));
+  }
+
+  private static byte[] compress(Compressor bzip2, byte[] data, long maxWriteLength)
+      throws IOException {
+    var out = new ByteArrayOutputStream();
+    bzip2.compress(new ByteArrayInputStream(data), out, Long.MAX_VALUE, maxWriteLength);
+    return out.toByteArray();
+  }
+
   private byte[] doBucketDecompress() throws IOException {
     try (ByteArrayInputStream decompressorInput =
             new ByteArrayInputStream(Bzip2CompressorTest.COMPRESSED_DATA_1);
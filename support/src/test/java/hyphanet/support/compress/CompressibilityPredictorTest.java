@@ -0,0 +1,174 @@
+package hyphanet.support.compress;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hyphanet.support.compress.CompressibilityPredictor.Decision;
+import hyphanet.support.compress.CompressibilityPredictor.Prediction;
+import hyphanet.support.io.storage.bucket.ArrayBucket;
+import hyphanet.support.io.storage.bucket.ArrayBucketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.Test;
+
+/** Test case for {@link CompressibilityPredictor} class. */
+class CompressibilityPredictorTest {
+
+  private static final int SIZE = 256 * 1024;
+
+  @Test
+  void testCorpus() throws IOException {
+    Map<String, byte[]> corpus = corpus();
+    Map<String, Decision> expected =
+        Map.of(
+            "random", Decision.SKIP,
+            "gzip", Decision.SKIP,
+            "text", Decision.FULL,
+            "zeros", Decision.FULL,
+            "repeated", Decision.FULL,
+            "base64", Decision.FULL);
+
+    for (var entry : corpus.entrySet()) {
+      String name = entry.getKey();
+      byte[] data = entry.getValue();
+      Prediction prediction = CompressibilityPredictor.predict(new ArrayBucket(data));
+      assertEquals(prediction, CompressibilityPredictor.predict(data, 0, data.length), name);
+      assertTrue(prediction.confidence() > 0 && prediction.confidence() <= 1, name);
+      if (expected.containsKey(name)) {
+        assertEquals(expected.get(name), prediction.decision(), name + ": " + prediction);
+        assertEquals(1, prediction.confidence(), name + ": " + prediction);
+      }
+
+      // Check the prediction against what the codecs actually achieve.
+      double best = bestRatio(data);
+      if (prediction.decision() == Decision.SKIP) {
+        assertTrue(best > 0.97, name + " compresses to " + best + " but " + prediction);
+      }
+      if (best < 0.9) {
+        assertNotEquals(Decision.SKIP, prediction.decision(), name + ": " + prediction);
+      }
+    }
+  }
+
+  @Test
+  void testMixed() {
+    // Half random, half text: the samples disagree, so the confidence is lower.
+    byte[] data = random(SIZE, 1);
+    byte[] text = text(SIZE / 2);
+    System.arraycopy(text, 0, data, SIZE / 2, text.length);
+
+    Prediction prediction = CompressibilityPredictor.predict(data, 0, data.length);
+    assertEquals(Decision.FULL, prediction.decision(), prediction.toString());
+    assertEquals(0.5, prediction.confidence(), prediction.toString());
+  }
+
+  @Test
+  void testSmallData() throws IOException {
+    byte[] random = random(CompressibilityPredictor.MIN_SIZE - 1, 2);
+    assertEquals(
+        Decision.FULL, CompressibilityPredictor.predict(random, 0, random.length).decision());
+    assertEquals(
+        Decision.FULL, CompressibilityPredictor.predict(new ArrayBucket(random)).decision());
+
+    // Shorter than a sample, so sampled whole
+    random = random(CompressibilityPredictor.SAMPLE_SIZE - 1, 3);
+    assertEquals(
+        Decision.SKIP, CompressibilityPredictor.predict(random, 0, random.length).decision());
+    assertEquals(
+        Decision.SKIP, CompressibilityPredictor.predict(new ArrayBucket(random)).decision());
+  }
+
+  @Test
+  void testOffset() {
+    byte[] data = new byte[SIZE + 100];
+    System.arraycopy(random(SIZE, 4), 0, data, 100, SIZE);
+    assertEquals(Decision.SKIP, CompressibilityPredictor.predict(data, 100, SIZE).decision());
+  }
+
+  @Test
+  void testSelect() {
+    var registry = CompressorRegistry.getInstance();
+    List<CompressorType> types = List.of(CompressorType.LZMA_NEW, CompressorType.BZIP2);
+
+    assertEquals(List.of(), registry.select(types, prediction(Decision.SKIP)));
+    assertEquals(
+        List.of(CompressorType.BZIP2), registry.select(types, prediction(Decision.CHEAPEST)));
+    assertEquals(types, registry.select(types, prediction(Decision.FULL)));
+    assertEquals(List.of(), registry.select(List.of(), prediction(Decision.CHEAPEST)));
+  }
+
+  private static Prediction prediction(Decision decision) {
+    return new Prediction(decision, 1, 0, 0);
+  }
+
+  private static double bestRatio(byte[] data) throws IOException {
+    var registry = CompressorRegistry.getInstance();
+    long best = Long.MAX_VALUE;
+    for (var type : CompressorType.values()) {
+      var compressed =
+          registry
+              .getCompressor(type)
+              .compress(
+                  new ArrayBucket(data), new ArrayBucketFactory(), Long.MAX_VALUE, Long.MAX_VALUE);
+      best = Math.min(best, compressed.size());
+      compressed.dispose();
+    }
+    return (double) best / data.length;
+  }
+
+  private static Map<String, byte[]> corpus() throws IOException {
+    Map<String, byte[]> corpus = new LinkedHashMap<>();
+    corpus.put("random", random(SIZE, 5));
+    var bos = new ByteArrayOutputStream();
+    try (var gos = new GZIPOutputStream(bos)) {
+      gos.write(text(4 * SIZE));
+    }
+    corpus.put("gzip", bos.toByteArray());
+    corpus.put("text", text(SIZE));
+    corpus.put("zeros", new byte[SIZE]);
+    byte[] block = random(1024, 6);
+    byte[] repeated = new byte[SIZE];
+    for (int i = 0; i < SIZE; i += block.length) {
+      System.arraycopy(block, 0, repeated, i, block.length);
+    }
+    corpus.put("repeated", repeated);
+    corpus.put(
+        "base64",
+        Base64.getEncoder()
+            .encodeToString(random(SIZE * 3 / 4, 7))
+            .getBytes(StandardCharsets.US_ASCII));
+    // Random bytes from a smaller alphabet: no repetitions, but a little entropy to save
+    byte[] skewed = new byte[SIZE];
+    var r = new Random(8);
+    for (int i = 0; i < SIZE; i++) {
+      skewed[i] = (byte) r.nextInt(200);
+    }
+    corpus.put("skewed", skewed);
+    return corpus;
+  }
+
+  private static byte[] random(int size, long seed) {
+    byte[] data = new byte[size];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] text(int size) {
+    var r = new Random(size);
+    var sb = new StringBuilder(size + 16);
+    while (sb.length() < size) {
+      sb.append(GzipCompressorTest.UNCOMPRESSED_DATA_1, r.nextInt(100), 100 + r.nextInt(200));
+      sb.append(r.nextInt(100_000));
+    }
+    sb.setLength(size);
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,178 @@
+package hyphanet.support.compress;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hyphanet.support.io.storage.bucket.ArrayBucket;
+import hyphanet.support.io.storage.bucket.ArrayBucketFactory;
+import hyphanet.support.io.storage.bucket.Bucket;
+import hyphanet.support.io.storage.bucket.BucketFactory;
+import hyphanet.support.io.storage.bucket.BucketTools;
+import hyphanet.support.io.storage.bucket.RandomAccessBucket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/** Test case for {@link CompressorRegistry} class. */
+class CompressorRegistryTest {
+
+  private static final List<CompressorType> ALL = List.of(CompressorType.values());
+
+  private static CompressorRegistry registry;
+  private static ExecutorService executor;
+
+  @BeforeAll
+  static void init() {
+    registry = CompressorRegistry.getInstance();
+    executor = Executors.newFixedThreadPool(3);
+  }
+
+  @AfterAll
+  static void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  void testRacePicksSmallest() throws IOException {
+    byte[] data = text(200_000);
+    var expected = sequential(data, ALL);
+
+    var bf = new TrackingBucketFactory();
+    var result = registry.race(new ArrayBucket(data), ALL, bf, Long.MAX_VALUE, 1 << 20, executor);
+    assertEquals(expected.type(), result.type());
+    assertArrayEquals(
+        BucketTools.toByteArray(expected.data()), BucketTools.toByteArray(result.data()));
+    // The losers' buckets are disposed of.
+    for (var bucket : bf.buckets) {
+      assertEquals(bucket != result.data(), bucket.disposed);
+    }
+
+    // Running the codecs one at a time on the calling thread gives the same result.
+    var direct =
+        registry.race(new ArrayBucket(data), ALL, bf, Long.MAX_VALUE, 1 << 20, Runnable::run);
+    assertEquals(expected.type(), direct.type());
+    assertArrayEquals(
+        BucketTools.toByteArray(expected.data()), BucketTools.toByteArray(direct.data()));
+  }
+
+  @Test
+  void testRaceTies() throws IOException {
+    byte[] data = text(10_000);
+    var gzip = List.of(CompressorType.GZIP, CompressorType.GZIP);
+    var result =
+        registry.race(
+            new ArrayBucket(data),
+            gzip,
+            new ArrayBucketFactory(),
+            Long.MAX_VALUE,
+            1 << 20,
+            executor);
+    assertEquals(CompressorType.GZIP, result.type());
+  }
+
+  @Test
+  void testRaceLimits() throws IOException {
+    byte[] random = new byte[100_000];
+    new Random(1).nextBytes(random);
+    var bf = new TrackingBucketFactory();
+    assertNull(registry.race(new ArrayBucket(random), ALL, bf, Long.MAX_VALUE, 90_000, executor));
+    for (var bucket : bf.buckets) {
+      assertTrue(bucket.disposed);
+    }
+
+    assertNull(
+        registry.race(new ArrayBucket(random), List.of(), bf, Long.MAX_VALUE, 90_000, executor));
+
+    // Only the first half is read.
+    byte[] data = text(100_000);
+    var result =
+        registry.race(
+            new ArrayBucket(data), ALL, new ArrayBucketFactory(), 50_000, 1 << 20, executor);
+    var out = new ArrayBucket();
+    try (var is = result.data().getInputStream();
+        var os = out.getOutputStream()) {
+      registry.getCompressor(result.type()).decompress(is, os, Long.MAX_VALUE, -1);
+    }
+    assertArrayEquals(Arrays.copyOf(data, 50_000), BucketTools.toByteArray(out));
+  }
+
+  @Test
+  void testRaceFailure() {
+    var failing =
+        new ArrayBucket(text(10_000)) {
+          @Override
+          public InputStream getInputStream() throws IOException {
+            throw new IOException("test");
+          }
+        };
+    var bf = new TrackingBucketFactory();
+    var e =
+        assertThrows(
+            IOException.class,
+            () -> registry.race(failing, ALL, bf, Long.MAX_VALUE, 1 << 20, executor));
+    assertEquals("test", e.getMessage());
+    for (var bucket : bf.buckets) {
+      assertTrue(bucket.disposed);
+    }
+  }
+
+  /** Tries the codecs one after another and keeps the smallest output. */
+  private static CompressorRegistry.Compressed sequential(byte[] data, List<CompressorType> types)
+      throws IOException {
+    CompressorRegistry.Compressed best = null;
+    for (var type : types) {
+      Bucket compressed =
+          registry
+              .getCompressor(type)
+              .compress(new ArrayBucket(data), new ArrayBucketFactory(), Long.MAX_VALUE, 1 << 20);
+      if (best == null || compressed.size() < best.data().size()) {
+        best = new CompressorRegistry.Compressed(type, compressed);
+      }
+    }
+    return best;
+  }
+
+  private static byte[] text(int size) {
+    var r = new Random(size);
+    var sb = new StringBuilder(size + 16);
+    while (sb.length() < size) {
+      sb.append(GzipCompressorTest.UNCOMPRESSED_DATA_1, r.nextInt(100), 100 + r.nextInt(200));
+      sb.append(r.nextInt(100_000));
+    }
+    sb.setLength(size);
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static final class TrackingBucketFactory implements BucketFactory {
+    @Override
+    public RandomAccessBucket makeBucket(long size) {
+      var bucket = new TrackingBucket();
+      buckets.add(bucket);
+      return bucket;
+    }
+
+    final List<TrackingBucket> buckets = new ArrayList<>();
+  }
+
+  private static final class TrackingBucket extends ArrayBucket {
+    @Override
+    public void dispose() {
+      disposed = true;
+      super.dispose();
+    }
+
+    volatile boolean disposed;
+  }
+}
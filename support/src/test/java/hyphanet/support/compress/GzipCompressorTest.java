@@ -21,7 +21,15 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipException;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -149,6 +157,193 @@ class GzipCompressorTest {
     }
   }
 
+  @Test
+  void testByteArrayDecompressLimits() throws IOException {
+    byte[] data = text(32 * 1024);
+    byte[] compressed = doCompress(data);
+
+    // Exactly fits
+    byte[] output = new byte[data.length];
+    assertEquals(data.length, compressor.decompress(compressed, 0, compressed.length, output));
+    assertArrayEquals(data, output);
+
+    // Larger than needed
+    output = new byte[data.length + 10];
+    assertEquals(data.length, compressor.decompress(compressed, 0, compressed.length, output));
+    assertArrayEquals(data, Arrays.copyOf(output, data.length));
+
+    // One byte short
+    assertThrows(
+        CompressionOutputSizeException.class,
+        () -> compressor.decompress(compressed, 0, compressed.length, new byte[data.length - 1]));
+    assertThrows(
+        CompressionOutputSizeException.class,
+        () -> compressor.decompress(compressed, 0, compressed.length, new byte[0]));
+
+    // Empty data
+    byte[] empty = doCompress(new byte[0]);
+    assertEquals(0, compressor.decompress(empty, 0, empty.length, new byte[0]));
+  }
+
+  @Test
+  void testByteArrayDecompressFormats() throws IOException {
+    byte[] first = text(10_000);
+    byte[] second = UNCOMPRESSED_DATA_1.getBytes(StandardCharsets.US_ASCII);
+
+    // Optional header fields, a second member, trailing garbage, and an offset into the array
+    var bos = new ByteArrayOutputStream();
+    bos.write(new byte[] {1, 2, 3});
+    bos.write(gzipMember(first, true));
+    bos.write(gzipMember(second, false));
+    bos.write(new byte[] {0, 0, 0});
+    byte[] compressed = bos.toByteArray();
+    int length = compressed.length - 3;
+
+    byte[] expected = new byte[first.length + second.length];
+    System.arraycopy(first, 0, expected, 0, first.length);
+    System.arraycopy(second, 0, expected, first.length, second.length);
+    try (var gis = new GZIPInputStream(new ByteArrayInputStream(compressed, 3, length))) {
+      assertArrayEquals(expected, gis.readAllBytes());
+    }
+    byte[] output = new byte[expected.length];
+    assertEquals(expected.length, compressor.decompress(compressed, 3, length, output));
+    assertArrayEquals(expected, output);
+  }
+
+  @Test
+  void testByteArrayDecompressCorrupt() throws IOException {
+    byte[] data = text(10_000);
+    byte[] compressed = doCompress(data);
+    byte[] output = new byte[data.length];
+
+    byte[] badCrc = compressed.clone();
+    badCrc[badCrc.length - 8]++;
+    assertThrows(ZipException.class, () -> compressor.decompress(badCrc, 0, badCrc.length, output));
+
+    byte[] badMagic = compressed.clone();
+    badMagic[0] = 0;
+    assertThrows(
+        ZipException.class, () -> compressor.decompress(badMagic, 0, badMagic.length, output));
+
+    byte[] badHeaderCrc = gzipMember(data, true);
+    badHeaderCrc[12]++;
+    assertThrows(
+        ZipException.class,
+        () -> compressor.decompress(badHeaderCrc, 0, badHeaderCrc.length, output));
+
+    for (int length : new int[] {0, 5, 20, compressed.length - 9, compressed.length - 1}) {
+      assertThrows(EOFException.class, () -> compressor.decompress(compressed, 0, length, output));
+    }
+  }
+
+  @Test
+  void testParallelCompress() throws IOException {
+    var parallel = new GzipCompressor(ForkJoinPool.commonPool(), 4);
+    var single = new GzipCompressor(ForkJoinPool.commonPool(), 1);
+    for (int size :
+        new int[] {
+          100, ParallelGzip.CHUNK_SIZE, 3 * ParallelGzip.CHUNK_SIZE, 5 * ParallelGzip.CHUNK_SIZE + 7
+        }) {
+      byte[] data = text(size);
+      byte[] compressed = parallelCompress(parallel, data, Long.MAX_VALUE);
+      // The output does not depend on the parallelism.
+      assertArrayEquals(compressed, parallelCompress(single, data, Long.MAX_VALUE));
+
+      try (var gis = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+        assertArrayEquals(data, gis.readAllBytes());
+      }
+      var out = new ByteArrayOutputStream();
+      assertEquals(
+          size,
+          compressor.decompress(new ByteArrayInputStream(compressed), out, Long.MAX_VALUE, -1));
+      assertArrayEquals(data, out.toByteArray());
+      if (size < ParallelGzip.CHUNK_SIZE) {
+        assertArrayEquals(
+            compressed, parallelCompress((GzipCompressor) compressor, data, Long.MAX_VALUE));
+      }
+    }
+  }
+
+  @Test
+  void testParallelCompressLimits() throws IOException {
+    var parallel = new GzipCompressor(ForkJoinPool.commonPool(), 4);
+    byte[] data = text(4 * ParallelGzip.CHUNK_SIZE);
+
+    var out = new ByteArrayOutputStream();
+    long written =
+        parallel.compress(
+            new ByteArrayInputStream(data), out, 2L * ParallelGzip.CHUNK_SIZE, 1L << 20);
+    assertEquals(out.size(), written);
+    try (var gis = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+      assertArrayEquals(Arrays.copyOf(data, 2 * ParallelGzip.CHUNK_SIZE), gis.readAllBytes());
+    }
+
+    assertThrows(
+        CompressionOutputSizeException.class,
+        () -> parallelCompress(parallel, data, ParallelGzip.CHUNK_SIZE / 10));
+
+    byte[] random = new byte[4 * ParallelGzip.CHUNK_SIZE];
+    new Random(21).nextBytes(random);
+    assertThrows(
+        CompressionRatioException.class,
+        () ->
+            parallel.compress(
+                new ByteArrayInputStream(random),
+                new ByteArrayOutputStream(),
+                Long.MAX_VALUE,
+                Long.MAX_VALUE,
+                ParallelGzip.CHUNK_SIZE,
+                10));
+  }
+
+  private static byte[] parallelCompress(GzipCompressor gzip, byte[] data, long maxWriteLength)
+      throws IOException {
+    var out = new ByteArrayOutputStream();
+    gzip.compress(new ByteArrayInputStream(data), out, Long.MAX_VALUE, maxWriteLength);
+    return out.toByteArray();
+  }
+
+  /** Builds a gzip member by hand, optionally with every optional header field. */
+  private static byte[] gzipMember(byte[] data, boolean optionalFields) throws IOException {
+    var bos = new ByteArrayOutputStream();
+    bos.write(new byte[] {0x1f, (byte) 0x8b, 8, (byte) (optionalFields ? 2 | 4 | 8 | 16 : 0)});
+    bos.write(new byte[] {1, 2, 3, 4, 0, 3});
+    if (optionalFields) {
+      bos.write(new byte[] {4, 0, 'a', 'b', 'c', 'd'});
+      bos.write("name\0comment\0".getBytes(StandardCharsets.US_ASCII));
+      var headerCrc = new CRC32();
+      headerCrc.update(bos.toByteArray());
+      bos.write((int) headerCrc.getValue());
+      bos.write((int) headerCrc.getValue() >>> 8);
+    }
+    var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try (var dos = new DeflaterOutputStream(bos, deflater)) {
+      dos.write(data);
+      dos.finish();
+      var crc = new CRC32();
+      crc.update(data);
+      for (int value : new int[] {(int) crc.getValue(), data.length}) {
+        for (int shift = 0; shift < 32; shift += 8) {
+          bos.write(value >>> shift);
+        }
+      }
+    } finally {
+      deflater.end();
+    }
+    return bos.toByteArray();
+  }
+
+  private static byte[] text(int size) {
+    var r = new Random(size);
+    var sb = new StringBuilder(size + 16);
+    while (sb.length() < size) {
+      sb.append(UNCOMPRESSED_DATA_1, r.nextInt(100), 100 + r.nextInt(200));
+      sb.append(r.nextInt(100_000));
+    }
+    sb.setLength(size);
+    return sb.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
   private byte[] doBucketDecompress() throws IOException {
     try (ByteArrayInputStream decompressorInput =
             new ByteArrayInputStream(GzipCompressorTest.COMPRESSED_DATA_1);
@@ -3,16 +3,21 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package hyphanet.support.compress;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import hyphanet.support.io.storage.bucket.ArrayBucket;
 import hyphanet.support.io.storage.bucket.ArrayBucketFactory;
 import hyphanet.support.io.storage.bucket.Bucket;
 import hyphanet.support.io.storage.bucket.BucketFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Random;
+import org.apache.commons.compress.compressors.lzma.LZMACompressorOutputStream;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
@@ -123,6 +128,40 @@ class NewLzmaCompressorTest {
     }
   }
 
+  @Test
+  void testMatchesCommonsCompress() throws IOException {
+    Compressor lzma = registry.getCompressor(CompressorType.LZMA_NEW);
+    Random random = new Random(4321);
+    for (int size : new int[] {0, 1, 1000, 100_000}) {
+      byte[] data = new byte[size];
+      for (int i = 0; i < size; i++) {
+        data[i] = (byte) ('a' + random.nextInt(4));
+      }
+
+      // The cached encoder arrays are reused from one stream to the next, which must not change
+      // the output.
+      for (int round = 0; round < 2; round++) {
+        var expected = new ByteArrayOutputStream();
+        try (var los = new LZMACompressorOutputStream(expected)) {
+          los.write(data);
+        }
+        var out = new ByteArrayOutputStream();
+        lzma.compress(new ByteArrayInputStream(data), out, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+
+        byte[] compressed = out.toByteArray();
+        byte[] output = new byte[size];
+        assertEquals(size, lzma.decompress(compressed, 0, compressed.length, output));
+        assertArrayEquals(data, output);
+        if (size > 0) {
+          assertThrows(
+              CompressionOutputSizeException.class,
+              () -> lzma.decompress(compressed, 0, compressed.length, new byte[size - 1]));
+        }
+      }
+    }
+  }
+
   //	@Test
   //	 void testCompressException() throws IOException {
   //
@@ -0,0 +1,234 @@
+package hyphanet.support.io;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hyphanet.support.io.stream.InsufficientDiskSpaceException;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class DiskSpaceLedgerTest {
+
+  @Test
+  void testReadsUsableSpaceOnlyWhenStale() throws IOException {
+    var store = new FakeFileStore(1_000_000);
+    var ledger = new DiskSpaceLedger(Duration.ofSeconds(1), 10_000, clock::get);
+
+    for (int i = 0; i < 9; i++) {
+      ledger.reserve(store, 1000, 0).commit();
+      assertTrue(ledger.allocate(store, 100, 0));
+    }
+    assertEquals(1, store.reads.get());
+    assertEquals(1_000_000 - 9 * 1100, ledger.getAvailableSpace(store));
+
+    // 9900 allocated, the next allocation crosses the threshold.
+    ledger.reserve(store, 1000, 0).commit();
+    assertEquals(1, store.reads.get());
+    ledger.getAvailableSpace(store);
+    assertEquals(2, store.reads.get());
+
+    clock.addAndGet(Duration.ofMillis(999).toNanos());
+    ledger.getAvailableSpace(store);
+    assertEquals(2, store.reads.get());
+    clock.addAndGet(Duration.ofMillis(1).toNanos());
+    ledger.getAvailableSpace(store);
+    assertEquals(3, store.reads.get());
+  }
+
+  @Test
+  void testReservationsHoldSpace() throws IOException {
+    var store = new FakeFileStore(1000);
+    var ledger = new DiskSpaceLedger(Duration.ofHours(1), Long.MAX_VALUE, clock::get);
+
+    var first = ledger.reserve(store, 600, 100);
+    assertEquals(400, ledger.getAvailableSpace(store));
+    // 400 - 300 is not more than 100.
+    assertThrows(InsufficientDiskSpaceException.class, () -> ledger.reserve(store, 300, 100));
+    assertFalse(ledger.allocate(store, 301, 100));
+    assertTrue(ledger.allocate(store, 300, 100));
+    assertEquals(100, ledger.getAvailableSpace(store));
+
+    first.close();
+    // Closing again, or committing after closing, changes nothing.
+    first.close();
+    first.commit();
+    assertEquals(700, ledger.getAvailableSpace(store));
+
+    try (var second = ledger.reserve(store, 500, 100)) {
+      second.commit();
+    }
+    assertEquals(200, ledger.getAvailableSpace(store));
+  }
+
+  @Test
+  void testFailedCheckRereadsIfAllocated() throws IOException {
+    var store = new FakeFileStore(1000);
+    var ledger = new DiskSpaceLedger(Duration.ofHours(1), Long.MAX_VALUE, clock::get);
+
+    ledger.reserve(store, 800, 0).commit();
+    assertEquals(1, store.reads.get());
+    // The buffer was freed without the ledger knowing.
+    assertTrue(ledger.allocate(store, 500, 0));
+    assertEquals(2, store.reads.get());
+
+    // Really full: nothing was allocated since, so the reading is not repeated.
+    store.usable.set(0);
+    clock.addAndGet(Duration.ofHours(1).toNanos());
+    assertFalse(ledger.allocate(store, 1, 0));
+    assertFalse(ledger.allocate(store, 1, 0));
+    assertThrows(InsufficientDiskSpaceException.class, () -> ledger.reserve(store, 1, 0));
+    assertEquals(3, store.reads.get());
+  }
+
+  @Test
+  void testUnreadableStoreHasNoSpace() {
+    var store = new FakeFileStore(1000);
+    store.broken = true;
+    var ledger = new DiskSpaceLedger(Duration.ofHours(1), Long.MAX_VALUE, clock::get);
+
+    assertFalse(ledger.allocate(store, 0, 0));
+    assertThrows(InsufficientDiskSpaceException.class, () -> ledger.reserve(store, 0, 0));
+    assertEquals(-1, ledger.getAvailableSpace(store));
+
+    store.broken = false;
+    assertTrue(ledger.allocate(store, 0, 0));
+  }
+
+  @Test
+  void testStoresAreIndependent() throws IOException {
+    var small = new FakeFileStore(100);
+    var large = new FakeFileStore(1000);
+    var ledger = new DiskSpaceLedger(Duration.ofHours(1), Long.MAX_VALUE, clock::get);
+
+    ledger.reserve(large, 500, 0).commit();
+    assertEquals(100, ledger.getAvailableSpace(small));
+    assertThrows(InsufficientDiskSpaceException.class, () -> ledger.reserve(small, 500, 0));
+    assertEquals(500, ledger.getAvailableSpace(large));
+  }
+
+  @Test
+  void testConcurrentReservationsDoNotOvercommit() throws Exception {
+    var store = new FakeFileStore(100_000);
+    var ledger = new DiskSpaceLedger(Duration.ofHours(1), Long.MAX_VALUE, clock::get);
+    int threads = 8;
+    var granted = new AtomicLong();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 1000; i++) {
+                    try (var reservation = ledger.reserve(store, 100, 0)) {
+                      granted.addAndGet(reservation.getBytes());
+                      // Written before committing, so a reading never misses it.
+                      store.usable.addAndGet(-reservation.getBytes());
+                      reservation.commit();
+                    } catch (InsufficientDiskSpaceException e) {
+                      // Expected once the store is full.
+                    }
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // Reservations must leave strictly more than minFree, so the last 100 bytes stay free. Bytes
+    // reserved by other threads when a failed check reads the usable space again may be counted
+    // twice, so a few reservations can fail early.
+    assertTrue(granted.get() <= 99_900, "granted " + granted);
+    assertTrue(granted.get() >= 99_900 - threads * 100, "granted " + granted);
+    assertEquals(100_000 - granted.get(), store.usable.get());
+  }
+
+  @Test
+  void testInvalidArguments() {
+    assertThrows(
+        IllegalArgumentException.class, () -> new DiskSpaceLedger(Duration.ofSeconds(-1), 0));
+    assertThrows(IllegalArgumentException.class, () -> new DiskSpaceLedger(Duration.ZERO, -1));
+    var ledger = new DiskSpaceLedger(Duration.ZERO, 0);
+    assertThrows(
+        IllegalArgumentException.class, () -> ledger.reserve(new FakeFileStore(10), -1, 0));
+  }
+
+  private static final class FakeFileStore extends FileStore {
+    FakeFileStore(long usable) {
+      this.usable.set(usable);
+    }
+
+    @Override
+    public String name() {
+      return "fake";
+    }
+
+    @Override
+    public String type() {
+      return "fake";
+    }
+
+    @Override
+    public boolean isReadOnly() {
+      return false;
+    }
+
+    @Override
+    public long getTotalSpace() {
+      return usable.get();
+    }
+
+    @Override
+    public long getUsableSpace() throws IOException {
+      reads.incrementAndGet();
+      if (broken) {
+        throw new IOException("Broken store");
+      }
+      return usable.get();
+    }
+
+    @Override
+    public long getUnallocatedSpace() {
+      return usable.get();
+    }
+
+    @Override
+    public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+      return false;
+    }
+
+    @Override
+    public boolean supportsFileAttributeView(String name) {
+      return false;
+    }
+
+    @Override
+    public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+      return null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) {
+      throw new UnsupportedOperationException(attribute);
+    }
+
+    final AtomicLong usable = new AtomicLong();
+    final AtomicInteger reads = new AtomicInteger();
+    volatile boolean broken;
+  }
+
+  private final AtomicLong clock = new AtomicLong();
+}
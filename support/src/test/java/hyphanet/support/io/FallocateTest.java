@@ -0,0 +1,103 @@
+package hyphanet.support.io;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import hyphanet.support.io.util.FileSystem;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class FallocateTest {
+
+  private static final long ONE_GIB = 1024 * 1024 * 1024L;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    Files.createDirectories(base);
+  }
+
+  @AfterEach
+  void tearDown() {
+    FileSystem.removeAll(base);
+  }
+
+  /**
+   * Native preallocation of 1 GiB must not write the data: the fill strategy writes random bytes,
+   * while fallocate leaves unwritten extents which read back as zeros.
+   */
+  @Test
+  void testNativePreallocationDoesNotWriteData() throws IOException {
+    assumeTrue(Fallocate.isNativeAvailable(), "no native fallocate on this platform");
+    Path file = Files.createTempFile(base, "fallocate", ".tmp");
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      var fallocate = new Fallocate(file, channel, ONE_GIB);
+      long start = System.nanoTime();
+      Fallocate.Strategy strategy = fallocate.execute();
+      long elapsed = System.nanoTime() - start;
+      // Some filesystems (e.g. ZFS) support neither syscall; there is nothing to check then.
+      assumeTrue(strategy != Fallocate.Strategy.FILL, "filesystem does not support fallocate");
+
+      assertEquals(strategy, fallocate.getStrategy());
+      assertEquals(ONE_GIB, channel.size());
+      assertZeros(channel, 0);
+      assertZeros(channel, ONE_GIB / 2);
+      assertZeros(channel, ONE_GIB - Fallocate.FILL_BUFFER_SIZE);
+      // Writing 1 GiB of random data takes far longer than this even on fast SSDs.
+      assertTrue(elapsed < 10_000_000_000L, "fallocate took " + elapsed + "ns");
+    }
+  }
+
+  @Test
+  void testFromOffsetKeepsExistingData() throws IOException {
+    assumeTrue(Fallocate.isNativeAvailable(), "no native fallocate on this platform");
+    Path file = Files.createTempFile(base, "fallocate", ".tmp");
+    byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+    Files.write(file, data);
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      new Fallocate(file, channel, 65536).fromOffset(data.length).execute();
+      assertEquals(65536, channel.size());
+      var buf = ByteBuffer.allocate(data.length);
+      channel.read(buf, 0);
+      assertArrayEquals(data, buf.array());
+    }
+  }
+
+  @Test
+  void testFillWithoutPath() throws IOException {
+    Path file = Files.createTempFile(base, "fallocate", ".tmp");
+    long size = Fallocate.FILL_BUFFER_SIZE * 2L + 1;
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      var fallocate = new Fallocate(channel, size);
+      assertNull(fallocate.getStrategy());
+      assertEquals(Fallocate.Strategy.FILL, fallocate.execute());
+      assertEquals(size, channel.size());
+    }
+  }
+
+  @Test
+  void testInvalidOffset() throws IOException {
+    Path file = Files.createTempFile(base, "fallocate", ".tmp");
+    try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      var fallocate = new Fallocate(file, channel, 1024);
+      assertThrows(IllegalArgumentException.class, () -> fallocate.fromOffset(-1));
+      assertThrows(IllegalArgumentException.class, () -> fallocate.fromOffset(1025));
+    }
+  }
+
+  private static void assertZeros(FileChannel channel, long position) throws IOException {
+    var buf = ByteBuffer.allocate(Fallocate.FILL_BUFFER_SIZE);
+    while (buf.hasRemaining()) {
+      assertTrue(channel.read(buf, position + buf.position()) > 0);
+    }
+    assertArrayEquals(new byte[Fallocate.FILL_BUFFER_SIZE], buf.array());
+  }
+
+  private final Path base = Path.of("tmp.fallocate-test");
+}
@@ -0,0 +1,204 @@
+package hyphanet.support.io.storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hyphanet.crypt.key.MasterSecret;
+import hyphanet.support.io.FilenameGenerator;
+import hyphanet.support.io.storage.bucket.TempBucket;
+import hyphanet.support.io.storage.rab.ArrayRab;
+import hyphanet.support.io.storage.rab.Rab;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TempStorageTrackerTest {
+
+  private static final MasterSecret secret = new MasterSecret();
+  private static final long RAM_POOL_SIZE = 1024 * 1024;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    var fg = new FilenameGenerator(new Random(1), false, null, "junit");
+    manager =
+        new TempStorageManager(
+            exec, fg, 64 * 1024, RAM_POOL_SIZE, 2 * RAM_POOL_SIZE, false, secret);
+    tracker = manager.getRamTracker();
+  }
+
+  @AfterEach
+  void tearDown() {
+    exec.shutdownNow();
+  }
+
+  @Test
+  void testAccountsWritesMigrationAndDispose() throws IOException {
+    TempBucket bucket = manager.makeBucket(1024);
+    assertTrue(bucket.isRamStorage());
+    assertEquals(0, tracker.getRamBytesInUse());
+    assertEquals(1, tracker.size());
+
+    try (OutputStream os = bucket.getOutputStreamUnbuffered()) {
+      os.write(new byte[1000]);
+      os.write(1);
+    }
+    assertEquals(1001, tracker.getRamBytesInUse());
+
+    assertTrue(bucket.migrateToDisk());
+    assertEquals(0, tracker.getRamBytesInUse());
+    assertEquals(0, tracker.size());
+    bucket.dispose();
+    assertEquals(0, tracker.getRamBytesInUse());
+
+    Rab rab = manager.makeRab(4096);
+    assertEquals(4096, tracker.getRamBytesInUse());
+    rab.dispose();
+    assertEquals(0, tracker.getRamBytesInUse());
+    assertNull(tracker.peakQueue());
+  }
+
+  /** A change reported while the storage is being added must be counted exactly once. */
+  @Test
+  void testSizeChangeWhileAdding() {
+    var standalone = new TempStorageTracker();
+    var storage =
+        new FakeRamStorage() {
+          @Override
+          public long size() {
+            // Grows right after the size is read, before the add has finished.
+            if (!grown) {
+              grown = true;
+              standalone.sizeChanged(this, 10);
+              return 100;
+            }
+            return 110;
+          }
+
+          private boolean grown;
+        };
+    standalone.addToQueue(storage);
+    assertEquals(110, standalone.getRamBytesInUse());
+    standalone.removeFromQueue(storage);
+    assertEquals(0, standalone.getRamBytesInUse());
+  }
+
+  @Test
+  void testBucketToRabMovesAccounting() throws IOException {
+    TempBucket bucket = manager.makeBucket(1024);
+    try (OutputStream os = bucket.getOutputStreamUnbuffered()) {
+      os.write(new byte[512]);
+    }
+    Rab rab = bucket.toRandomAccessBuffer();
+    assertEquals(512, tracker.getRamBytesInUse());
+    assertEquals(1, tracker.size());
+    assertSame(rab, tracker.peakQueue());
+    rab.dispose();
+    bucket.dispose();
+    assertEquals(0, tracker.getRamBytesInUse());
+  }
+
+  @Test
+  void testOldestFirst() throws IOException {
+    List<TempBucket> buckets = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      buckets.add(manager.makeBucket(16));
+    }
+    for (TempBucket bucket : buckets) {
+      assertSame(bucket, tracker.peakQueue());
+      tracker.removeFromQueue(bucket);
+      // Removing twice is harmless.
+      tracker.removeFromQueue(bucket);
+    }
+    assertNull(tracker.peakQueue());
+    for (TempBucket bucket : buckets) {
+      bucket.dispose();
+    }
+  }
+
+  @Test
+  void testConcurrentWritersBalance() throws Exception {
+    int threads = 8;
+    ExecutorService writers = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(
+            writers.submit(
+                () -> {
+                  for (int i = 0; i < 200; i++) {
+                    TempBucket bucket = manager.makeBucket(256);
+                    try (OutputStream os = bucket.getOutputStreamUnbuffered()) {
+                      for (int j = 0; j < 16; j++) {
+                        os.write(new byte[16]);
+                      }
+                    }
+                    if (i % 3 == 0) {
+                      bucket.migrateToDisk();
+                    }
+                    bucket.dispose();
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      writers.shutdown();
+    }
+    assertEquals(0, tracker.getRamBytesInUse());
+    assertEquals(0, tracker.size());
+    assertNull(tracker.peakQueue());
+  }
+
+  /** A storage which claims to be in RAM, for driving the tracker directly. */
+  private abstract static class FakeRamStorage implements TempStorage {
+    @Override
+    public long creationTime() {
+      return 0;
+    }
+
+    @Override
+    public boolean migrateToDisk() {
+      return false;
+    }
+
+    @Override
+    public Storage getUnderlying() {
+      return new ArrayRab(0);
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public boolean closed() {
+      return false;
+    }
+
+    @Override
+    public void dispose() {}
+
+    @Override
+    public boolean disposed() {
+      return false;
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private final ExecutorService exec = Executors.newSingleThreadExecutor();
+  private TempStorageManager manager;
+  private TempStorageTracker tracker;
+}
@@ -0,0 +1,147 @@
+package hyphanet.support.io.storage.bucket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hyphanet.crypt.hash.PipelinedDigest;
+import hyphanet.crypt.hash.Sha256;
+import hyphanet.support.io.storage.bucket.wrapper.NoDisposeBucket;
+import hyphanet.support.io.storage.rab.PooledFileRab;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BucketToolsTest {
+
+  // Larger than FileTransfer.MAX_CHUNK, so that transfers take several calls.
+  private static final int SIZE = (int) FileTransfer.MAX_CHUNK + 12345;
+
+  @Test
+  void testCopyBetweenFileBuckets() throws IOException {
+    byte[] data = randomData(SIZE);
+    var src = fileBucket("src", data);
+    var dst = new RegularFileBucket(dir.resolve("dst"), false, false, false, false);
+
+    try (InputStream is = src.getInputStreamUnbuffered();
+        OutputStream os = dst.getOutputStreamUnbuffered()) {
+      assertNotNull(FileTransfer.sourceOf(is));
+      assertNotNull(FileTransfer.sinkOf(os));
+    }
+
+    BucketTools.copy(src, dst);
+    assertArrayEquals(data, Files.readAllBytes(dir.resolve("dst")));
+    assertEquals(SIZE, dst.size());
+  }
+
+  @Test
+  void testCopyFromWrappedSlice() throws IOException {
+    byte[] data = randomData(SIZE);
+    fileBucket("src", data);
+    var slice = new NoDisposeBucket(new ReadOnlyFileSliceBucket(dir.resolve("src"), 1000, 5000));
+    var dst = new RegularFileBucket(dir.resolve("dst"), false, false, false, false);
+
+    BucketTools.copy(slice, dst);
+    assertArrayEquals(Arrays.copyOfRange(data, 1000, 6000), Files.readAllBytes(dir.resolve("dst")));
+  }
+
+  @Test
+  void testCopyFromFileInputStream() throws IOException {
+    byte[] data = randomData(SIZE);
+    fileBucket("src", data);
+    var dst = new RegularFileBucket(dir.resolve("dst"), false, false, false, false);
+
+    try (var fis = new FileInputStream(dir.resolve("src").toFile())) {
+      assertEquals(7, fis.skip(7));
+      BucketTools.copyFrom(dst, fis, 100);
+      // The stream carries on after the bytes copied.
+      assertEquals(data[107] & 0xFF, fis.read());
+    }
+    assertArrayEquals(Arrays.copyOfRange(data, 7, 107), BucketTools.toByteArray(dst));
+  }
+
+  @Test
+  void testCopyToFileRab() throws IOException {
+    byte[] data = randomData(SIZE);
+    var src = fileBucket("src", data);
+    var rab = new PooledFileRab(Files.createFile(dir.resolve("rab")), false, SIZE + 10, -1, true);
+
+    assertEquals(SIZE, BucketTools.copyTo(src, rab, 10, -1));
+    byte[] read = new byte[SIZE];
+    rab.pread(10, read, 0, SIZE);
+    assertArrayEquals(data, read);
+
+    var small = new PooledFileRab(Files.createFile(dir.resolve("small")), false, 100, -1, true);
+    assertThrows(IndexOutOfBoundsException.class, () -> BucketTools.copyTo(src, small, 0, -1));
+    rab.dispose();
+    small.dispose();
+  }
+
+  @Test
+  void testFallbackCopy() throws IOException {
+    byte[] data = randomData(100_000);
+    var src = new ArrayBucket(data);
+    var dst = new RegularFileBucket(dir.resolve("dst"), false, false, false, false);
+
+    BucketTools.copy(src, dst);
+    assertArrayEquals(data, Files.readAllBytes(dir.resolve("dst")));
+
+    var os = new ByteArrayOutputStream();
+    assertEquals(1000, BucketTools.copyTo(dst, os, 1000));
+    assertArrayEquals(Arrays.copyOf(data, 1000), os.toByteArray());
+  }
+
+  @Test
+  void testShortCopyFails() throws IOException {
+    var src = fileBucket("src", randomData(100));
+    var dst = new RegularFileBucket(dir.resolve("dst"), false, false, false, false);
+    var os = new ByteArrayOutputStream();
+
+    assertThrows(IOException.class, () -> BucketTools.copyTo(src, os, 101));
+    try (InputStream is = src.getInputStream()) {
+      assertThrows(IOException.class, () -> BucketTools.copyFrom(dst, is, 101));
+    }
+    assertEquals(100, BucketTools.copyTo(src, os, -1));
+  }
+
+  @Test
+  void testHash() throws IOException {
+    for (int size : new int[] {0, 100, 3 * PipelinedDigest.CHUNK_SIZE + 5}) {
+      byte[] data = randomData(size);
+      assertArrayEquals(Sha256.digest(data), BucketTools.hash(fileBucket("hash" + size, data)));
+      assertArrayEquals(Sha256.digest(data), BucketTools.hash(new ArrayBucket(data)));
+    }
+  }
+
+  @Test
+  void testHashRabRange() throws IOException {
+    byte[] data = randomData(SIZE);
+    var rab = new PooledFileRab(Files.write(dir.resolve("rab"), data), true, SIZE, -1, false);
+
+    assertArrayEquals(Sha256.digest(data), BucketTools.hash(rab, 0, SIZE));
+    assertArrayEquals(
+        Sha256.digest(Arrays.copyOfRange(data, 10, 1010)), BucketTools.hash(rab, 10, 1000));
+    assertArrayEquals(Sha256.digest(new byte[0]), BucketTools.hash(rab, SIZE, 0));
+    assertThrows(IllegalArgumentException.class, () -> BucketTools.hash(rab, 1, SIZE));
+    rab.close();
+  }
+
+  private RegularFileBucket fileBucket(String name, byte[] data) throws IOException {
+    Files.write(dir.resolve(name), data);
+    return new RegularFileBucket(dir.resolve(name), true, false, false, false);
+  }
+
+  private static byte[] randomData(int size) {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    return data;
+  }
+
+  @TempDir private Path dir;
+}
@@ -0,0 +1,83 @@
+package hyphanet.support.io.storage.bucket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PersistentTempFileBucketFactoryTest {
+
+  private static final String PREFIX = "ptemp-";
+
+  @Test
+  void testUnregisteredFilesAreDeleted() throws IOException {
+    Path kept = Files.createFile(dir.resolve(PREFIX + "1"));
+    Path keptViaOtherPath = Files.createFile(dir.resolve(PREFIX + "2"));
+    Path orphan = Files.createFile(dir.resolve(PREFIX + "3"));
+    Path notOurs = Files.createFile(dir.resolve("other-4"));
+    Path subdir = Files.createDirectory(dir.resolve(PREFIX + "dir"));
+
+    var factory = new PersistentTempFileBucketFactory(dir, PREFIX, new Random(1), false);
+    factory.register(kept);
+    // Not canonical, so it has to be canonicalized to be matched.
+    factory.register(dir.resolve("..").resolve(dir.getFileName()).resolve(PREFIX + "2"));
+    // Unknown files are reported, not fatal.
+    factory.register(dir.resolve(PREFIX + "5"));
+    // Created after startup, so not a candidate for deletion.
+    var bucket = factory.makeBucket(16);
+    try (OutputStream os = bucket.getOutputStream()) {
+      os.write(1);
+    }
+    factory.completedInit();
+
+    assertTrue(Files.exists(kept));
+    assertTrue(Files.exists(keptViaOtherPath));
+    assertFalse(Files.exists(orphan));
+    assertTrue(Files.exists(notOurs));
+    assertTrue(Files.isDirectory(subdir));
+    assertEquals(1, BucketTools.toByteArray(bucket).length);
+    bucket.dispose();
+  }
+
+  @Test
+  void testRegisterAfterInitFails() throws IOException {
+    var factory = new PersistentTempFileBucketFactory(dir, PREFIX, new Random(1), false);
+    factory.completedInit();
+    // Calling it twice is harmless.
+    factory.completedInit();
+    Path path = dir.resolve(PREFIX + "1");
+    assertThrows(IllegalStateException.class, () -> factory.register(path));
+  }
+
+  @Test
+  void testManyFiles() throws IOException {
+    List<Path> live = new ArrayList<>();
+    List<Path> dead = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      Path path = Files.createFile(dir.resolve(PREFIX + Integer.toHexString(i)));
+      (i % 3 == 0 ? dead : live).add(path);
+    }
+
+    var factory = new PersistentTempFileBucketFactory(dir, PREFIX, new Random(1), false);
+    for (Path path : live) {
+      factory.register(path);
+    }
+    factory.completedInit();
+
+    for (Path path : live) {
+      assertTrue(Files.exists(path), path.toString());
+    }
+    for (Path path : dead) {
+      assertFalse(Files.exists(path), path.toString());
+    }
+  }
+
+  @TempDir Path dir;
+}
@@ -0,0 +1,162 @@
+package hyphanet.support.io.storage.bucket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hyphanet.support.io.ResumeFailedException;
+import hyphanet.support.io.storage.StorageFormatException;
+import hyphanet.support.io.storage.rab.ArrayRab;
+import hyphanet.support.io.storage.rab.Rab;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SliceBucketTest {
+
+  @Test
+  void testSplitFileBucket() throws IOException {
+    byte[] data = randomData(10_000);
+    var parent = fileBucket(data);
+
+    Bucket[] slices = parent.split(4096, false);
+    assertEquals(3, slices.length);
+    for (int i = 0; i < slices.length; i++) {
+      assertInstanceOf(SliceBucket.class, slices[i]);
+      assertTrue(slices[i].isReadOnly());
+      assertArrayEquals(
+          Arrays.copyOfRange(data, i * 4096, Math.min(data.length, (i + 1) * 4096)),
+          BucketTools.toByteArray(slices[i]));
+      slices[i].dispose();
+    }
+    // The parent stays with the caller.
+    assertFalse(parent.disposed());
+    assertTrue(Files.exists(path));
+  }
+
+  @Test
+  void testSplitCopiesUnlessFreed() throws IOException {
+    byte[] data = randomData(10_000);
+    var parent = fileBucket(data);
+
+    Bucket[] copies = BucketTools.split(parent, 4096, ARRAY_FACTORY, false, false);
+    assertEquals(3, copies.length);
+    // The copies do not depend on the parent.
+    parent.dispose();
+    assertFalse(Files.exists(path));
+    for (int i = 0; i < copies.length; i++) {
+      assertFalse(copies[i] instanceof SliceBucket);
+      assertArrayEquals(
+          Arrays.copyOfRange(data, i * 4096, Math.min(data.length, (i + 1) * 4096)),
+          BucketTools.toByteArray(copies[i]));
+    }
+  }
+
+  @Test
+  void testParentDisposedWithLastSlice() throws IOException {
+    var parent = fileBucket(randomData(10_000));
+
+    Bucket[] slices = BucketTools.split(parent, 4096, ARRAY_FACTORY, true, false);
+    Bucket shadow = slices[0].createShadow();
+    slices[0].dispose();
+    slices[1].dispose();
+    // Disposing twice must not release the parent twice.
+    slices[1].dispose();
+    slices[2].dispose();
+    assertFalse(parent.disposed());
+    assertTrue(Files.exists(path));
+    assertThrows(IOException.class, slices[0]::getInputStreamUnbuffered);
+
+    shadow.dispose();
+    assertTrue(parent.disposed());
+    assertFalse(Files.exists(path));
+  }
+
+  @Test
+  void testSplitRab() throws IOException {
+    byte[] data = randomData(1000);
+    Rab rab = new ArrayRab(data.clone());
+
+    Bucket[] slices = BucketTools.split(rab, 300, true);
+    assertEquals(4, slices.length);
+    assertArrayEquals(Arrays.copyOfRange(data, 900, 1000), BucketTools.toByteArray(slices[3]));
+    for (Bucket slice : slices) {
+      slice.dispose();
+    }
+    assertTrue(rab.disposed());
+  }
+
+  @Test
+  void testSplitEmpty() throws IOException {
+    var parent = new RabBucket(new ArrayRab(new byte[0]));
+    assertEquals(0, BucketTools.split(parent, 300, ARRAY_FACTORY, true, false).length);
+    assertTrue(parent.disposed());
+  }
+
+  @Test
+  void testStoreTo() throws IOException, StorageFormatException, ResumeFailedException {
+    byte[] data = randomData(10_000);
+    var parent = fileBucket(data);
+    Bucket[] slices = parent.split(4096, true);
+
+    Bucket[] restored = new Bucket[slices.length];
+    for (int i = 0; i < slices.length; i++) {
+      var baos = new ByteArrayOutputStream();
+      slices[i].storeTo(new DataOutputStream(baos));
+      var dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+      restored[i] = BucketTools.restoreFrom(dis, null, null, null);
+      assertArrayEquals(BucketTools.toByteArray(slices[i]), BucketTools.toByteArray(restored[i]));
+    }
+
+    for (Bucket slice : slices) {
+      slice.dispose();
+    }
+    // The restored slices joined the same parent, so it is still needed.
+    assertTrue(Files.exists(path));
+    for (Bucket slice : restored) {
+      slice.dispose();
+    }
+    assertFalse(Files.exists(path));
+  }
+
+  @Test
+  void testDroppedSlicesReleaseParent() {
+    Bucket[] slices = BucketTools.split(new ArrayRab(randomData(1000)), 300, false);
+    var reference = ((SliceBucket) slices[0]).parentReference();
+    assertTrue(SliceBucket.isRegistered(reference.id));
+
+    // What the collector does once the slices are dropped without being disposed.
+    reference.clear();
+    reference.enqueue();
+    SliceBucket.expungeUnreachable();
+    assertFalse(SliceBucket.isRegistered(reference.id));
+  }
+
+  private RegularFileBucket fileBucket(byte[] data) throws IOException {
+    Files.write(path, data);
+    return new RegularFileBucket(path, true, false, false, true);
+  }
+
+  private static byte[] randomData(int size) {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    return data;
+  }
+
+  private static final ArrayBucketFactory ARRAY_FACTORY = new ArrayBucketFactory();
+
+  @TempDir private Path dir;
+  private Path path;
+
+  @BeforeEach
+  void setUp() {
+    path = dir.resolve("parent");
+  }
+}
@@ -0,0 +1,128 @@
+package hyphanet.support.io.storage.bucket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hyphanet.crypt.key.MasterSecret;
+import hyphanet.support.io.FilenameGenerator;
+import hyphanet.support.io.storage.DeleteMode;
+import hyphanet.support.io.storage.Storage;
+import hyphanet.support.io.storage.TempStorageTracker;
+import hyphanet.support.io.storage.rab.TempRabFactory;
+import hyphanet.support.io.stream.InsufficientDiskSpaceException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Security;
+import java.util.Random;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TempBucketFactoryTest {
+
+  private static final MasterSecret secret = new MasterSecret();
+
+  static {
+    Security.addProvider(new BouncyCastleProvider());
+  }
+
+  @BeforeEach
+  void setUp() throws IOException {
+    fg = new FilenameGenerator(new Random(1), false, null, "junit");
+    rabFactory = new TempRabFactory(tracker, fg, 0, false, Storage.CRYPT_TYPE, secret);
+  }
+
+  @Test
+  void testStorageContextIsReused() throws IOException {
+    var factory = makeFactory(0);
+    var context = factory.storageContext();
+    assertEquals(fg.getDir(), context.dir);
+    assertSame(context.getFileStore(), context.getFileStore());
+
+    factory.setCreateRam(true);
+    factory.makeBucket(16).dispose();
+    factory.setCreateRam(false);
+    factory.makeBucket(16).dispose();
+    assertSame(context, factory.storageContext());
+
+    factory.setEncrypt(true);
+    var encrypted = factory.storageContext();
+    assertNotSame(context, encrypted);
+    assertTrue(encrypted.encrypt);
+    assertSame(encrypted, factory.storageContext());
+  }
+
+  @Test
+  void testEncryptionSettingIsFollowed() throws IOException {
+    var factory = makeFactory(0);
+    factory.setCreateRam(false);
+    byte[] data = "Hello, world!".getBytes();
+    for (boolean encrypt : new boolean[] {false, true, false}) {
+      factory.setEncrypt(encrypt);
+      var bucket = factory.makeBucket(data.length);
+      try (OutputStream os = bucket.getOutputStreamUnbuffered()) {
+        os.write(data);
+      }
+      assertArrayEquals(data, BucketTools.toByteArray(bucket));
+      bucket.dispose();
+    }
+  }
+
+  @Test
+  void testChecksDiskSpaceOfKnownSize() throws IOException {
+    var factory = makeFactory(Long.MAX_VALUE);
+    factory.setCreateRam(false);
+    assertThrows(InsufficientDiskSpaceException.class, () -> factory.makeBucket(16));
+    // Unknown sizes are checked as they are written.
+    factory.makeBucket(-1).dispose();
+    // RAM buckets are not checked.
+    factory.setCreateRam(true);
+    factory.makeBucket(16).dispose();
+  }
+
+  @Test
+  void testDeleteModeDependsOnEncryption() throws IOException {
+    var factory = makeFactory(0);
+    factory.setCreateRam(false);
+    factory.setDeleteMode(DeleteMode.CRYPTO_SHRED);
+    for (boolean encrypt : new boolean[] {false, true}) {
+      factory.setEncrypt(encrypt);
+      var bucket = factory.makeBucket(16);
+      assertEquals(
+          encrypt ? DeleteMode.CRYPTO_SHRED : DeleteMode.OVERWRITE, bucket.getDeleteMode());
+      try (OutputStream os = bucket.getOutputStream()) {
+        os.write(new byte[16]);
+      }
+      var rab = bucket.toRandomAccessBuffer();
+      assertEquals(bucket.getDeleteMode(), rab.getDeleteMode());
+      rab.dispose();
+      bucket.dispose();
+    }
+    factory.setDeleteMode(DeleteMode.DELETE);
+    var bucket = factory.makeBucket(16);
+    assertEquals(DeleteMode.DELETE, bucket.getDeleteMode());
+    bucket.dispose();
+    // RAM buckets have no file.
+    factory.setCreateRam(true);
+    factory.setDeleteMode(DeleteMode.CRYPTO_SHRED);
+    bucket = factory.makeBucket(16);
+    assertEquals(DeleteMode.DELETE, bucket.getDeleteMode());
+    bucket.dispose();
+  }
+
+  private TempBucketFactory makeFactory(long minDiskSpace) {
+    return new TempBucketFactory(
+        tracker,
+        fg,
+        1024,
+        1024 * 1024,
+        minDiskSpace,
+        false,
+        Storage.CRYPT_TYPE,
+        secret,
+        rabFactory);
+  }
+
+  private final TempStorageTracker tracker = new TempStorageTracker();
+  private FilenameGenerator fg;
+  private TempRabFactory rabFactory;
+}
@@ -15,6 +15,7 @@ import java.security.Security;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
@@ -225,6 +226,107 @@ public class TempBucketTest {
       }
     }
 
+    /** Writes made while another thread migrates the bucket must all end up on disk. */
+    @Test
+    void testWritesDuringMigration() throws Exception {
+      int chunk = 1024;
+      int before = 4096;
+      int during = 2048;
+      TempStorageManager tsm =
+          new TempStorageManager(
+              exec, fg, 16L * 1024 * 1024, 16L * 1024 * 1024, 16L * 1024 * 1024, false, secret);
+      var stats = tsm.getRamTracker().getMigrationStats();
+      Random r = new Random(4242);
+      byte[] data = new byte[(before + during) * chunk];
+      r.nextBytes(data);
+
+      TempBucket bucket = tsm.makeBucket(1024);
+      try {
+        assertTrue(bucket.isRamStorage());
+        OutputStream os = bucket.getOutputStreamUnbuffered();
+        os.write(data, 0, before * chunk);
+
+        ExecutorService migrator = Executors.newSingleThreadExecutor();
+        try {
+          Future<Boolean> migrated = migrator.submit(bucket::migrateToDisk);
+          for (int i = before; i < before + during; i++) {
+            os.write(data, i * chunk, chunk);
+          }
+          assertTrue(migrated.get());
+        } finally {
+          migrator.shutdown();
+        }
+        os.close();
+
+        assertFalse(bucket.isRamStorage());
+        assertEquals(data.length, bucket.size());
+        assertArrayEquals(data, BucketTools.toByteArray(bucket));
+        assertEquals(0, tsm.getRamTracker().getRamBytesInUse());
+        assertEquals(1, stats.getCompleted());
+        assertEquals(0, stats.getInProgress());
+        // Writes after the swap go straight to the file and are not copied.
+        assertTrue(stats.getBytesCopied() >= (long) before * chunk);
+        assertTrue(stats.getBytesCopied() <= data.length);
+        assertTrue(stats.getMaxStallNanos() > 0);
+      } finally {
+        bucket.dispose();
+      }
+    }
+
+    @Test
+    void testMigrationStats() throws IOException {
+      TempStorageManager tsm =
+          new TempStorageManager(exec, fg, 1024, 65536, MIN_DISK_SPACE, false, secret);
+      TempBucket bucket = tsm.makeBucket(64);
+      try {
+        try (OutputStream os = bucket.getOutputStreamUnbuffered()) {
+          os.write(new byte[64]);
+        }
+        assertTrue(bucket.migrateToDisk());
+        assertFalse(bucket.migrateToDisk());
+        var stats = tsm.getRamTracker().getMigrationStats();
+        assertEquals(1, stats.getCompleted());
+        assertEquals(0, stats.getFailed());
+        assertEquals(64, stats.getBytesCopied());
+        assertEquals(0, stats.getBytesCopiedLocked());
+      } finally {
+        bucket.dispose();
+      }
+    }
+
+    /** Readers of a read-only bucket keep reading correctly across a migration to disk. */
+    @Test
+    void testReadOnlyReadersFollowMigration() throws IOException {
+      TempStorageManager tsm =
+          new TempStorageManager(exec, fg, 4096, 65536, MIN_DISK_SPACE, false, secret);
+      byte[] data = new byte[4000];
+      new Random(777).nextBytes(data);
+      TempBucket bucket = tsm.makeBucket(4000);
+      try {
+        try (OutputStream os = bucket.getOutputStreamUnbuffered()) {
+          os.write(data);
+        }
+        bucket.setReadOnly();
+        try (var first = new DataInputStream(bucket.getInputStreamUnbuffered());
+            var second = new DataInputStream(bucket.getInputStreamUnbuffered())) {
+          byte[] read1 = new byte[data.length];
+          byte[] read2 = new byte[data.length];
+          first.readFully(read1, 0, 1000);
+          second.readFully(read2, 0, 3000);
+          assertTrue(bucket.migrateToDisk());
+          assertFalse(bucket.isRamStorage());
+          first.readFully(read1, 1000, data.length - 1000);
+          second.readFully(read2, 3000, data.length - 3000);
+          assertEquals(-1, first.read());
+          assertArrayEquals(data, read1);
+          assertArrayEquals(data, read2);
+        }
+        assertEquals(0, tsm.getRamTracker().getRamBytesInUse());
+      } finally {
+        bucket.dispose();
+      }
+    }
+
     private final ExecutorService exec = Executors.newSingleThreadExecutor();
     private final FilenameGenerator fg;
   }
@@ -18,7 +18,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -297,5 +303,129 @@ class EncryptedRabTest {
     }
   }
 
+  /** Both modes must produce the same ciphertext, so they can read each other's data. */
+  @Test
+  void testConcurrentModeMatchesSharedMode() throws IOException, GeneralSecurityException {
+    for (var type : types) {
+      int size = 100_000;
+      byte[] data = new byte[size];
+      new Random(4711).nextBytes(data);
+      ArrayRab shared = new ArrayRab(size + type.headerLen);
+      EncryptedRab sharedRab = new EncryptedRab(type, shared, secret, true, false);
+      // Out of order, unaligned writes exercise seeking backwards and forwards.
+      sharedRab.pwrite(50_000, data, 50_000, size - 50_000);
+      sharedRab.pwrite(0, data, 0, 50_000);
+
+      ArrayRab copy = new ArrayRab(shared.toByteArray());
+      EncryptedRab concurrentRab = new EncryptedRab(type, copy, secret, false, true);
+      byte[] result = new byte[size];
+      concurrentRab.pread(77_777, result, 77_777, size - 77_777);
+      concurrentRab.pread(13, result, 13, 77_777 - 13);
+      concurrentRab.pread(0, result, 0, 13);
+      assertArrayEquals(data, result);
+
+      concurrentRab.pwrite(1, data, 1, size - 1);
+      concurrentRab.pwrite(0, data, 0, 1);
+      assertArrayEquals(shared.toByteArray(), copy.toByteArray());
+    }
+  }
+
+  /** Direct buffers take their own path in concurrent mode, through the pooled scratch buffer. */
+  @Test
+  void testConcurrentModeDirectBuffers() throws IOException, GeneralSecurityException {
+    for (var type : types) {
+      int size = 100_000;
+      byte[] data = new byte[size];
+      new Random(2026).nextBytes(data);
+      ArrayRab shared = new ArrayRab(size + type.headerLen);
+      EncryptedRab sharedRab = new EncryptedRab(type, shared, secret, true, false);
+      sharedRab.pwrite(0, data, 0, size);
+
+      ArrayRab copy = new ArrayRab(size + type.headerLen);
+      copy.pwrite(0, shared.toByteArray(), 0, type.headerLen);
+      EncryptedRab concurrentRab = new EncryptedRab(type, copy, secret, false, true);
+      ByteBuffer direct = ByteBuffer.allocateDirect(size);
+      direct.put(data).position(77_777);
+      concurrentRab.pwrite(77_777, direct);
+      direct.position(13).limit(77_777);
+      concurrentRab.pwrite(13, direct);
+      direct.position(0).limit(13);
+      concurrentRab.pwrite(0, direct);
+      assertArrayEquals(shared.toByteArray(), copy.toByteArray());
+
+      direct.clear().position(12_345);
+      concurrentRab.pread(12_345, direct);
+      direct.position(0).limit(12_345);
+      concurrentRab.pread(0, direct);
+      byte[] result = new byte[size];
+      direct.clear().get(result);
+      assertArrayEquals(data, result);
+
+      var thrown =
+          assertThrows(
+              IOException.class, () -> concurrentRab.pread(1, ByteBuffer.allocateDirect(size)));
+      assertTrue(thrown.getMessage().startsWith("Cannot read after end"));
+    }
+  }
+
+  /**
+   * Reads random ranges of a file-backed buffer from several threads at once. Every read must
+   * return its own range of the plaintext, whichever cipher mode is used and however the reads
+   * interleave on the underlying file.
+   */
+  @Test
+  void testConcurrentReads() throws Exception {
+    int size = 1024 * 1024;
+    byte[] data = new byte[size];
+    new Random(99).nextBytes(data);
+    for (boolean concurrent : new boolean[] {false, true}) {
+      Path file = Files.createTempFile(base, "concurrent-reads", ".tmp");
+      var underlying = new RegularFileRab(file, size + types[0].headerLen, false);
+      var rab = new EncryptedRab(types[0], underlying, secret, true, concurrent);
+      rab.pwrite(0, data, 0, size);
+      readRandomRanges(rab, 8, 500, data);
+      rab.close();
+    }
+  }
+
+  /**
+   * Reads random ranges of {@code rab} on {@code threads} threads, all started together, and checks
+   * each against {@code expected}.
+   */
+  private static void readRandomRanges(
+      EncryptedRab rab, int threads, int readsPerThread, byte[] expected) throws Exception {
+    var executor = Executors.newFixedThreadPool(threads);
+    try {
+      var start = new CountDownLatch(1);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        int seed = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  Random random = new Random(seed);
+                  start.await();
+                  for (int i = 0; i < readsPerThread; i++) {
+                    int length = 1 + random.nextInt(32 * 1024);
+                    int offset = random.nextInt(expected.length - length + 1);
+                    byte[] buf = new byte[length];
+                    rab.pread(offset, buf, 0, length);
+                    assertArrayEquals(
+                        Arrays.copyOfRange(expected, offset, offset + length),
+                        buf,
+                        "range " + offset + "+" + length);
+                  }
+                  return null;
+                }));
+      }
+      start.countDown();
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
   private final Path base = Path.of("tmp.encrypted-random-access-thing-test");
 }
@@ -0,0 +1,193 @@
+package hyphanet.support.io.storage.rab;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import hyphanet.support.io.ResumeFailedException;
+import hyphanet.support.io.storage.StorageFormatException;
+import hyphanet.support.io.storage.bucket.BucketTools;
+import hyphanet.support.io.util.FileSystem;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class MappedFileRabTest extends RabTestBase {
+
+  private static final int[] TEST_LIST =
+      new int[] {0, 1, 32, 64, 32768, 1024 * 1024, 1024 * 1024 + 1};
+
+  /** Small and odd, so that most accesses in the base tests span windows. */
+  private static final int WINDOW_SIZE = 10007;
+
+  private static final int MAX_WINDOWS = 4;
+
+  MappedFileRabTest() {
+    super(TEST_LIST);
+  }
+
+  @BeforeEach
+  void setUp() throws IOException {
+    Files.createDirectories(base);
+  }
+
+  @AfterEach
+  void tearDown() {
+    FileSystem.removeAll(base);
+  }
+
+  @Test
+  void testWindowsAreUnmapped() throws IOException {
+    var rab = (MappedFileRab) construct(WINDOW_SIZE * 10L);
+    byte[] buf = new byte[WINDOW_SIZE];
+    for (int i = 0; i < 10; i++) {
+      rab.pread((long) i * WINDOW_SIZE, buf, 0, buf.length);
+      assertTrue(rab.mappedWindows() <= MAX_WINDOWS);
+    }
+    assertEquals(MAX_WINDOWS, rab.mappedWindows());
+    rab.close();
+    assertEquals(0, rab.mappedWindows());
+    assertThrows(IOException.class, () -> rab.pread(0, buf, 0, 1));
+    rab.dispose();
+  }
+
+  @Test
+  void testWritesReachFile() throws IOException {
+    Path f = Files.createTempFile(base, "test-force", ".tmp");
+    byte[] buf = new byte[WINDOW_SIZE * 3];
+    new Random(4711).nextBytes(buf);
+    var rab = new MappedFileRab(f, false, buf.length, -1, true, WINDOW_SIZE, MAX_WINDOWS);
+    Rab.RabLock lock = rab.lockOpen();
+    rab.pwrite(0, buf, 0, buf.length);
+    lock.unlock();
+    assertArrayEquals(buf, Files.readAllBytes(f));
+    rab.dispose();
+    assertFalse(Files.exists(f));
+  }
+
+  @Test
+  void testSecondWriteReachesFileAfterForce() throws IOException {
+    Path f = Files.createTempFile(base, "test-force", ".tmp");
+    byte[] first = new byte[WINDOW_SIZE];
+    byte[] second = new byte[WINDOW_SIZE];
+    Random r = new Random(4712);
+    r.nextBytes(first);
+    r.nextBytes(second);
+    var rab = new MappedFileRab(f, false, WINDOW_SIZE, -1, true, WINDOW_SIZE, MAX_WINDOWS);
+    rab.pwrite(0, first, 0, first.length);
+    rab.force();
+    // The same window again, after its dirty flag was cleared.
+    rab.pwrite(0, second, 0, second.length);
+    rab.force();
+
+    ByteBuffer onDisk = ByteBuffer.allocate(WINDOW_SIZE);
+    try (var channel = FileChannel.open(f, StandardOpenOption.READ)) {
+      assertEquals(WINDOW_SIZE, channel.read(onDisk, 0));
+    }
+    assertArrayEquals(second, onDisk.array());
+    rab.dispose();
+  }
+
+  @Test
+  void testReadOnly() throws IOException {
+    Path f = Files.createTempFile(base, "test-readonly", ".tmp");
+    byte[] buf = new byte[1000];
+    new Random(1).nextBytes(buf);
+    Files.write(f, buf);
+    var rab = new MappedFileRab(f, true, -1, -1, false, WINDOW_SIZE, MAX_WINDOWS);
+    assertEquals(buf.length, rab.size());
+    byte[] tmp = new byte[buf.length];
+    rab.pread(0, tmp, 0, tmp.length);
+    assertArrayEquals(buf, tmp);
+    assertThrows(IOException.class, () -> rab.pwrite(0, tmp, 0, 1));
+    assertThrows(IOException.class, () -> new MappedFileRab(f, true, 2000, -1, false));
+    rab.dispose();
+    assertTrue(Files.exists(f));
+  }
+
+  @Test
+  void testConcurrentAccess() throws Exception {
+    int blocks = 64;
+    int blockSize = 4096;
+    var rab =
+        new MappedFileRab(
+            Files.createTempFile(base, "test-concurrent", ".tmp"),
+            false,
+            (long) blocks * blockSize,
+            -1,
+            true,
+            3 * blockSize + 1,
+            2);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        int seed = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  Random r = new Random(seed);
+                  byte[] buf = new byte[blockSize];
+                  byte[] tmp = new byte[blockSize];
+                  for (int i = 0; i < 500; i++) {
+                    // Every thread owns the blocks congruent to its seed.
+                    long offset = (long) (r.nextInt(blocks / 8) * 8 + seed) * blockSize;
+                    r.nextBytes(buf);
+                    rab.pwrite(offset, buf, 0, blockSize);
+                    rab.pread(offset, tmp, 0, blockSize);
+                    assertArrayEquals(buf, tmp);
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    rab.dispose();
+  }
+
+  @Test
+  void testStoreTo() throws IOException, StorageFormatException, ResumeFailedException {
+    Path tempFile = Files.createTempFile(base, "test-storeto", ".tmp");
+    byte[] buf = new byte[4096];
+    Random r = new Random(1267612);
+    r.nextBytes(buf);
+    var rab = new MappedFileRab(tempFile, false, buf.length, -1, true, 1024, 2);
+    rab.pwrite(0, buf, 0, buf.length);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+    rab.storeTo(dos);
+    dos.close();
+    rab.close();
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    var restored = (MappedFileRab) BucketTools.restoreRabFrom(dis, null, null, null);
+    assertEquals(buf.length, restored.size());
+    assertEquals(rab, restored);
+    byte[] tmp = new byte[buf.length];
+    restored.pread(0, tmp, 0, buf.length);
+    assertArrayEquals(buf, tmp);
+    restored.close();
+    restored.dispose();
+  }
+
+  @Override
+  protected Rab construct(long size) throws IOException {
+    Path f = Files.createTempFile(base, "test", ".tmp");
+    return new MappedFileRab(f, false, size, -1, true, WINDOW_SIZE, MAX_WINDOWS);
+  }
+
+  private final Path base = Path.of("tmp.mapped-file-rab-test");
+}
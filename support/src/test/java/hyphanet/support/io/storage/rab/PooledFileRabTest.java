@@ -2,11 +2,23 @@ package hyphanet.support.io.storage.rab;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import hyphanet.support.io.ResumeFailedException;
+import hyphanet.support.io.storage.DeleteMode;
+import hyphanet.support.io.storage.StorageFormatException;
+import hyphanet.support.io.storage.bucket.BucketTools;
 import hyphanet.support.io.util.FileSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -24,31 +36,31 @@ class PooledFileRabTest extends RabTestBase {
   @Test
   void testLock() throws IOException {
     int sz = 1024;
-    fds.setMaxFDs(1);
-    assertEquals(0, fds.getOpenFDs());
-    assertEquals(0, fds.getClosableFDs());
+    pool.setMaxOpen(1);
+    assertEquals(0, pool.getOpen());
+    assertEquals(0, pool.getIdle());
     PooledFileRab a = construct(sz);
     PooledFileRab b = construct(sz);
-    assertEquals(1, fds.getOpenFDs());
-    assertEquals(1, fds.getClosableFDs());
+    assertEquals(1, pool.getOpen());
+    assertEquals(1, pool.getIdle());
     assertFalse(a.isLocked());
     assertFalse(b.isLocked());
     Rab.RabLock lock = a.lockOpen();
     try {
       assertTrue(a.isLocked());
       assertFalse(b.isLocked());
-      assertEquals(1, fds.getOpenFDs());
-      assertEquals(0, fds.getClosableFDs());
+      assertEquals(1, pool.getOpen());
+      assertEquals(0, pool.getIdle());
     } finally {
       lock.unlock();
       assertFalse(a.isLocked());
-      assertEquals(1, fds.getOpenFDs());
-      assertEquals(1, fds.getClosableFDs());
+      assertEquals(1, pool.getOpen());
+      assertEquals(1, pool.getIdle());
     }
     a.close();
     b.close();
-    assertEquals(0, fds.getOpenFDs());
-    assertEquals(0, fds.getClosableFDs());
+    assertEquals(0, pool.getOpen());
+    assertEquals(0, pool.getIdle());
     a.dispose();
     b.dispose();
   }
@@ -56,7 +68,7 @@ class PooledFileRabTest extends RabTestBase {
   /** Thanks bertm */
   @Test
   void testLocksB() throws IOException {
-    fds.setMaxFDs(1);
+    pool.setMaxOpen(1);
     PooledFileRab a = construct(0);
     PooledFileRab b = construct(0);
     Rab.RabLock lock = b.lockOpen();
@@ -65,33 +77,33 @@ class PooledFileRabTest extends RabTestBase {
     b.close();
     a.dispose();
     b.dispose();
-    assertEquals(0, fds.getOpenFDs());
-    assertEquals(0, fds.getClosableFDs());
+    assertEquals(0, pool.getOpen());
+    assertEquals(0, pool.getIdle());
   }
 
   @Test
   void testLockedNotClosable() throws IOException {
     int sz = 1024;
-    fds.setMaxFDs(2);
+    pool.setMaxOpen(2);
     PooledFileRab a = construct(sz);
     PooledFileRab b = construct(sz);
-    assertEquals(2, fds.getOpenFDs());
-    assertEquals(2, fds.getClosableFDs());
+    assertEquals(2, pool.getOpen());
+    assertEquals(2, pool.getIdle());
     assertTrue(a.isOpen());
     assertTrue(b.isOpen());
     assertFalse(a.isLocked());
     assertFalse(b.isLocked());
     // Open and open FD -> locked
     Rab.RabLock la = a.lockOpen();
-    assertEquals(2, fds.getOpenFDs());
-    assertEquals(1, fds.getClosableFDs());
+    assertEquals(2, pool.getOpen());
+    assertEquals(1, pool.getIdle());
     Rab.RabLock lb = b.lockOpen();
-    assertEquals(2, fds.getOpenFDs());
-    assertEquals(0, fds.getClosableFDs());
+    assertEquals(2, pool.getOpen());
+    assertEquals(0, pool.getIdle());
     la.unlock();
     lb.unlock();
-    assertEquals(2, fds.getOpenFDs());
-    assertEquals(2, fds.getClosableFDs());
+    assertEquals(2, pool.getOpen());
+    assertEquals(2, pool.getIdle());
     a.close();
     b.close();
   }
@@ -99,11 +111,11 @@ class PooledFileRabTest extends RabTestBase {
   @Test
   void testLockedNotClosableFromNotOpenFD() throws IOException {
     int sz = 1024;
-    fds.setMaxFDs(2);
+    pool.setMaxOpen(2);
     PooledFileRab a = construct(sz);
     PooledFileRab b = construct(sz);
-    assertEquals(2, fds.getOpenFDs());
-    assertEquals(2, fds.getClosableFDs());
+    assertEquals(2, pool.getOpen());
+    assertEquals(2, pool.getIdle());
     assertTrue(a.isOpen());
     assertTrue(b.isOpen());
     // Close the RAFs to exercise the other code path.
@@ -111,17 +123,19 @@ class PooledFileRabTest extends RabTestBase {
     b.closeChannel();
     assertFalse(a.isLocked());
     assertFalse(b.isLocked());
-    // Open and open FD -> locked
+    assertEquals(0, pool.getOpen());
+    assertEquals(0, pool.getIdle());
+    // Open and open FD -> locked. Closed channels are not idle.
     Rab.RabLock la = a.lockOpen();
-    assertEquals(1, fds.getOpenFDs());
-    assertEquals(1, fds.getClosableFDs());
+    assertEquals(1, pool.getOpen());
+    assertEquals(0, pool.getIdle());
     Rab.RabLock lb = b.lockOpen();
-    assertEquals(2, fds.getOpenFDs());
-    assertEquals(0, fds.getClosableFDs());
+    assertEquals(2, pool.getOpen());
+    assertEquals(0, pool.getIdle());
     la.unlock();
     lb.unlock();
-    assertEquals(2, fds.getOpenFDs());
-    assertEquals(2, fds.getClosableFDs());
+    assertEquals(2, pool.getOpen());
+    assertEquals(2, pool.getIdle());
     a.close();
     b.close();
   }
@@ -134,16 +148,16 @@ class PooledFileRabTest extends RabTestBase {
   @Test
   void testLockBlocking() throws IOException, InterruptedException {
     int sz = 1024;
-    fds.setMaxFDs(1);
-    assertEquals(0, fds.getOpenFDs());
+    pool.setMaxOpen(1);
+    assertEquals(0, pool.getOpen());
     final PooledFileRab a = construct(sz);
     final PooledFileRab b = construct(sz);
-    assertEquals(1, fds.getOpenFDs());
+    assertEquals(1, pool.getOpen());
     assertFalse(a.isLocked());
     assertFalse(b.isLocked());
     Rab.RabLock lock = a.lockOpen();
     assertTrue(a.isOpen());
-    assertEquals(1, fds.getOpenFDs());
+    assertEquals(1, pool.getOpen());
     // Now try to lock on a second thread.
     // It should wait until the first thread unlocks.
     class Status {
@@ -197,7 +211,7 @@ class PooledFileRabTest extends RabTestBase {
       assertFalse(s.hasLocked);
       assertFalse(s.hasFinished);
     }
-    assertEquals(1, fds.getOpenFDs());
+    assertEquals(1, pool.getOpen());
     assertTrue(a.isOpen());
     assertFalse(b.isOpen());
     // Wait while holding lock, to give it some time to progress if it's buggy.
@@ -206,7 +220,7 @@ class PooledFileRabTest extends RabTestBase {
       assertFalse(s.hasLocked);
       assertFalse(s.hasFinished);
     }
-    assertEquals(1, fds.getOpenFDs());
+    assertEquals(1, pool.getOpen());
     assertTrue(a.isOpen());
     assertFalse(b.isOpen());
     // Now release lock.
@@ -219,7 +233,7 @@ class PooledFileRabTest extends RabTestBase {
     assertFalse(a.isOpen());
     assertTrue(b.isOpen());
     assertTrue(b.isLocked());
-    assertEquals(1, fds.getOpenFDs());
+    assertEquals(1, pool.getOpen());
 
     // Now let it proceed.
     synchronized (s) {
@@ -232,12 +246,12 @@ class PooledFileRabTest extends RabTestBase {
     }
     assertFalse(a.isLocked());
     assertFalse(b.isLocked());
-    assertEquals(1, fds.getClosableFDs());
-    assertEquals(1, fds.getOpenFDs());
+    assertEquals(1, pool.getIdle());
+    assertEquals(1, pool.getOpen());
     a.close();
-    assertEquals(1, fds.getOpenFDs());
+    assertEquals(1, pool.getOpen());
     b.close();
-    assertEquals(0, fds.getOpenFDs());
+    assertEquals(0, pool.getOpen());
     a.dispose();
     b.dispose();
   }
@@ -258,14 +272,144 @@ class PooledFileRabTest extends RabTestBase {
     for (int sz : TEST_LIST) innerTestSimplePooling(sz);
   }
 
+  /** Instances pointing at the same file share one channel and see each other's writes. */
+  @Test
+  void testSharedChannel() throws IOException {
+    int sz = 4096;
+    pool.setMaxOpen(1);
+    PooledFileRab a = construct(sz);
+    PooledFileRab b = new PooledFileRab(a.getPath(), false, sz, -1, false, pool);
+    assertEquals(1, pool.getOpen());
+    assertEquals(1, pool.getIdle());
+    Rab.RabLock la = a.lockOpen();
+    Rab.RabLock lb = b.lockOpen();
+    assertTrue(a.isLocked());
+    assertTrue(b.isLocked());
+    assertEquals(1, pool.getOpen());
+    assertEquals(0, pool.getIdle());
+    byte[] buf = new byte[sz];
+    new Random(8812).nextBytes(buf);
+    a.pwrite(0, buf, 0, sz);
+    byte[] cmp = new byte[sz];
+    b.pread(0, cmp, 0, sz);
+    assertArrayEquals(buf, cmp);
+    la.unlock();
+    assertEquals(0, pool.getIdle());
+    lb.unlock();
+    assertEquals(1, pool.getIdle());
+    b.close();
+    assertTrue(a.isOpen());
+    assertEquals(1, pool.getOpen());
+    a.close();
+    assertEquals(0, pool.getOpen());
+    assertEquals(0, pool.getIdle());
+    a.dispose();
+  }
+
+  @Test
+  void testStats() throws IOException {
+    int sz = 1024;
+    pool.setMaxOpen(1);
+    PooledFileRab a = construct(sz);
+    PooledFileRab b = construct(sz);
+    byte[] buf = new byte[sz];
+    a.pread(0, buf, 0, sz);
+    a.pread(0, buf, 0, sz);
+    FileChannelPool.Stats stats = pool.getStats();
+    // a opened, b opened (evicting a), a reopened (evicting b), then one hit.
+    assertEquals(3, stats.misses());
+    assertEquals(1, stats.hits());
+    assertEquals(2, stats.evictions());
+    assertEquals(0, stats.waits());
+    assertEquals(1, stats.open());
+    assertEquals(1, stats.idle());
+    assertEquals(1, stats.maxOpen());
+    a.close();
+    b.close();
+    a.dispose();
+    b.dispose();
+  }
+
+  /** Many threads reading and writing more files than the pool allows open at once. */
+  @Test
+  void testConcurrentAccess() throws Exception {
+    int sz = 4096;
+    int files = 8;
+    pool.setMaxOpen(3);
+    PooledFileRab[] rabs = new PooledFileRab[files];
+    for (int i = 0; i < files; i++) {
+      rabs[i] = construct(sz);
+    }
+    var executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 16; t++) {
+        int seed = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  Random r = new Random(seed);
+                  byte[] buf = new byte[64];
+                  byte[] cmp = new byte[64];
+                  for (int i = 0; i < 500; i++) {
+                    // Each thread owns a distinct 64-byte slot in every file.
+                    PooledFileRab rab = rabs[r.nextInt(files)];
+                    r.nextBytes(buf);
+                    rab.pwrite(seed * 64L, buf, 0, buf.length);
+                    rab.pread(seed * 64L, cmp, 0, cmp.length);
+                    assertArrayEquals(buf, cmp);
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(pool.getOpen() <= 3);
+    assertEquals(pool.getOpen(), pool.getIdle());
+    for (PooledFileRab rab : rabs) {
+      assertFalse(rab.isLocked());
+      rab.close();
+      rab.dispose();
+    }
+    assertEquals(0, pool.getOpen());
+    assertEquals(0, pool.getIdle());
+  }
+
+  @Test
+  void testDeleteModeIsStored() throws IOException, StorageFormatException, ResumeFailedException {
+    PooledFileRab rab = construct(1024);
+    assertEquals(DeleteMode.DELETE, rab.getDeleteMode());
+    assertThrows(
+        IllegalArgumentException.class, () -> rab.setDeleteMode(DeleteMode.CRYPTO_SHRED, 0));
+    rab.setDeleteMode(DeleteMode.CRYPTO_SHRED, 64);
+    assertEquals(DeleteMode.CRYPTO_SHRED, rab.getDeleteMode());
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+    rab.storeTo(dos);
+    dos.close();
+    rab.close();
+    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    var restored = (PooledFileRab) BucketTools.restoreRabFrom(dis, null, null, null);
+    assertEquals(rab, restored);
+    assertEquals(DeleteMode.CRYPTO_SHRED, restored.getDeleteMode());
+    restored.setSecureDelete(true);
+    assertEquals(DeleteMode.OVERWRITE, restored.getDeleteMode());
+    restored.dispose();
+    assertFalse(Files.exists(restored.getPath()));
+  }
+
   @Override
   protected PooledFileRab construct(long size) throws IOException {
     Path f = Files.createTempFile(base, "test", ".tmp");
-    return new PooledFileRab(f, false, size, -1, true, fds);
+    return new PooledFileRab(f, false, size, -1, true, pool);
   }
 
   private void innerTestSimplePooling(int sz) throws IOException {
-    fds.setMaxFDs(1);
+    pool.setMaxOpen(1);
     PooledFileRab a = construct(sz);
     PooledFileRab b = construct(sz);
     byte[] buf1 = new byte[sz];
@@ -288,7 +432,7 @@ class PooledFileRabTest extends RabTestBase {
   }
 
   private final Path base = Path.of("tmp.pooled-random-access-file-wrapper-test");
-  private final PooledFileRab.FdTracker fds = new PooledFileRab.FdTracker(100);
+  private final FileChannelPool pool = new FileChannelPool(100);
 
   // FIXME more tests???
 
@@ -3,6 +3,11 @@ package hyphanet.support.io.storage.rab;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.Arrays;
 import java.util.Random;
 import org.junit.jupiter.api.Test;
@@ -104,6 +109,15 @@ public abstract class RabTestBase {
     }
   }
 
+  /** Write and read back through direct, heap and read-only buffers and native segments. */
+  @Test
+  void testBuffers() throws IOException {
+    Random r = new Random(20260916);
+    for (int size : sizeList) {
+      innerTestBuffers(size, r);
+    }
+  }
+
   /**
    * Construct an instance of a given size.
    *
@@ -184,6 +198,54 @@ public abstract class RabTestBase {
     raf.dispose();
   }
 
+  private void innerTestBuffers(int len, Random r) throws IOException {
+    if (len == 0) {
+      return;
+    }
+    byte[] data = new byte[len];
+    r.nextBytes(data);
+    Rab rab = construct(len);
+    int start = len == 1 ? 0 : r.nextInt(len / 2);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(len);
+    direct.put(data).flip();
+    rab.pwrite(0, direct);
+    assertFalse(direct.hasRemaining());
+
+    ByteBuffer heap = ByteBuffer.allocate(len + 1).position(1);
+    rab.pread(0, heap);
+    assertFalse(heap.hasRemaining());
+    assertArrayEquals(data, Arrays.copyOfRange(heap.array(), 1, len + 1));
+
+    direct.clear().position(start);
+    rab.pread(start, direct);
+    assertFalse(direct.hasRemaining());
+    byte[] read = new byte[len - start];
+    direct.position(start).get(read);
+    assertArrayEquals(Arrays.copyOfRange(data, start, len), read);
+
+    assertThrows(
+        ReadOnlyBufferException.class,
+        () -> rab.pread(0, ByteBuffer.allocateDirect(len).asReadOnlyBuffer()));
+    assertThrows(Exception.class, () -> rab.pread(1, ByteBuffer.allocateDirect(len)));
+
+    try (Arena arena = Arena.ofConfined()) {
+      MemorySegment segment = arena.allocate(len);
+      rab.pread(0, segment);
+      assertArrayEquals(data, segment.toArray(ValueLayout.JAVA_BYTE));
+      // Write it back reversed, reading through a heap segment.
+      for (int i = 0; i < len; i++) {
+        segment.set(ValueLayout.JAVA_BYTE, i, data[len - 1 - i]);
+      }
+      rab.pwrite(0, segment);
+      byte[] reversed = new byte[len];
+      rab.pread(0, MemorySegment.ofArray(reversed));
+      assertArrayEquals(segment.toArray(ValueLayout.JAVA_BYTE), reversed);
+    }
+    rab.close();
+    rab.dispose();
+  }
+
   private void innerTestSize(long sz) throws IOException {
     Rab raf = construct(sz);
     assertEquals(raf.size(), sz);
@@ -2,6 +2,8 @@ package hyphanet.support.io.storage.rab;
 
 import hyphanet.crypt.key.MasterSecret;
 import hyphanet.support.io.FilenameGenerator;
+import hyphanet.support.io.storage.DeleteMode;
+import hyphanet.support.io.storage.Storage;
 import hyphanet.support.io.storage.TempStorageManager;
 import hyphanet.support.io.storage.bucket.RandomAccessBucket;
 import hyphanet.support.io.storage.bucket.TempBucket;
@@ -21,9 +23,14 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -314,6 +321,95 @@ abstract class TempRabTestBase extends RabTestBase {
     rab.dispose();
   }
 
+  /** Readers racing a migration must see the same data before, during and after it. */
+  @Test
+  void testConcurrentReadsDuringMigration() throws Exception {
+    int len = 4000;
+    byte[] buf = new byte[len];
+    new Random(1234).nextBytes(buf);
+    TempRab rab = (TempRab) manager.makeRab(buf, 0, len, true);
+    assertFalse(rab.hasMigrated());
+    int threads = 4;
+    ExecutorService readers = Executors.newFixedThreadPool(threads);
+    try {
+      var start = new CountDownLatch(1);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        long seed = t;
+        futures.add(
+            readers.submit(
+                () -> {
+                  Random r = new Random(seed);
+                  byte[] read = new byte[len];
+                  start.await();
+                  for (int i = 0; i < 2000; i++) {
+                    int offset = r.nextInt(len);
+                    int length = r.nextInt(len - offset) + 1;
+                    rab.pread(offset, read, 0, length);
+                    assertArrayEquals(
+                        Arrays.copyOfRange(buf, offset, offset + length),
+                        Arrays.copyOf(read, length));
+                  }
+                  return null;
+                }));
+      }
+      start.countDown();
+      assertTrue(rab.migrateToDisk());
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      readers.shutdown();
+    }
+    assertTrue(rab.hasMigrated());
+    checkArrayInner(buf, rab, len, new Random(5678));
+    rab.close();
+    rab.dispose();
+  }
+
+  /** Encrypted files are crypto shredded, files holding plaintext are overwritten instead. */
+  @Test
+  void testCryptoShred() throws Exception {
+    manager.setDeleteMode(DeleteMode.CRYPTO_SHRED);
+    TempRabFactory factory = manager.getRabFactory();
+    factory.setCreateRam(false);
+    int len = 4096;
+    byte[] buf = new byte[len];
+    new Random(4321).nextBytes(buf);
+    Rab rab = factory.makeRab(len);
+    rab.pwrite(0, buf, 0, len);
+    assertEquals(
+        enableCrypto() ? DeleteMode.CRYPTO_SHRED : DeleteMode.OVERWRITE, rab.getDeleteMode());
+
+    Path file;
+    try (var files = Files.list(path)) {
+      file = files.findFirst().orElseThrow();
+    }
+    // A second link keeps the contents readable once the file has been deleted.
+    Path link = Files.createLink(path.resolveSibling(path.getFileName() + ".link"), file);
+    try {
+      byte[] before = Files.readAllBytes(link);
+      rab.close();
+      rab.dispose();
+      assertFalse(Files.exists(file));
+      byte[] after = Files.readAllBytes(link);
+      assertEquals(before.length, after.length);
+      if (enableCrypto()) {
+        int headerLen = Storage.CRYPT_TYPE.headerLen;
+        assertFalse(Arrays.equals(before, 0, headerLen, after, 0, headerLen));
+        assertTrue(Arrays.equals(before, headerLen, len, after, headerLen, len));
+        var shredded = new PooledFileRab(link, true, -1, -1, false);
+        assertThrows(
+            Exception.class, () -> new EncryptedRab(Storage.CRYPT_TYPE, shredded, secret, false));
+        shredded.close();
+      } else {
+        assertFalse(Arrays.equals(before, after));
+      }
+    } finally {
+      Files.delete(link);
+    }
+  }
+
   @Override
   protected Rab construct(long size) throws IOException {
     return manager.makeRab(size);